@@ -61,6 +61,7 @@ import javax.naming.NamingException;
 
 import org.dcm4che3.net.Device;
 import org.dcm4chee.storage.ContainerEntry;
+import org.dcm4chee.storage.IOPriority;
 import org.dcm4chee.storage.RetrieveContext;
 import org.dcm4chee.storage.StorageContext;
 import org.dcm4chee.storage.archiver.service.ArchiverContext;
@@ -206,10 +207,12 @@ public class ArchiverServiceImpl implements ArchiverService {
             throws Exception {
         List<ContainerEntry> entries = context.getEntries();
         StorageContext storageCtx = storageService.createStorageContext(storageSystem);
+        storageCtx.setPriority(IOPriority.ARCHIVING);
         String name = context.getName();
         try {
             storageService.storeContainerEntries(storageCtx, entries, name);
             RetrieveContext retrieveCtx = retrieveService.createRetrieveContext(storageSystem);
+            retrieveCtx.setPriority(IOPriority.ARCHIVING);
             if (storageDeviceExtension().getArchiver().isVerifyContainer())
                 retrieveService.verifyContainer(retrieveCtx, name, entries);
             LOG.info("Stored container entries: {} to {}@{}", entries.size(), entries, name,
@@ -228,6 +231,7 @@ public class ArchiverServiceImpl implements ArchiverService {
         context.setNotInContainer(true);
         List<ContainerEntry> entries = context.getEntries();
         StorageContext storageCtx = storageService.createStorageContext(storageSystem);
+        storageCtx.setPriority(IOPriority.ARCHIVING);
         String name = context.getName();
         List<String> entryNames = new ArrayList<String>();
         String entrySeparator = storageDeviceExtension().getArchiver().getEntrySeparator();
@@ -268,6 +272,8 @@ public class ArchiverServiceImpl implements ArchiverService {
             String storageSystemID) {
         StorageSystem storageSystem = storageDeviceExtension().getStorageSystem(
                 storageSystemGroupID, storageSystemID);
-        return retrieveService.createRetrieveContext(storageSystem);
+        RetrieveContext ctx = retrieveService.createRetrieveContext(storageSystem);
+        ctx.setPriority(IOPriority.ARCHIVING);
+        return ctx;
     }
 }
@@ -0,0 +1,167 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.storage.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+import org.dcm4che3.net.Device;
+import org.dcm4chee.storage.conf.FileCache;
+import org.dcm4chee.storage.conf.StorageDeviceExtension;
+import org.dcm4chee.storage.conf.StorageSystem;
+import org.dcm4chee.storage.conf.StorageSystemGroup;
+import org.dcm4chee.storage.conf.StorageSystemStatus;
+import org.jboss.weld.environment.se.Weld;
+import org.jboss.weld.environment.se.WeldContainer;
+
+/**
+ * Shared setup of the benchmarks: boots the CDI container once per JVM and
+ * creates storage configurations on the local file system or on a jclouds
+ * blob store.
+ * 
+ * @author agent <agent@local>
+ *
+ */
+final class Benchmarks {
+
+    static final String FILESYSTEM = "filesystem";
+    static final String CLOUD = "cloud";
+
+    private static WeldContainer weld;
+
+    private Benchmarks() {
+    }
+
+    static synchronized <T> T select(Class<T> type) {
+        if (weld == null)
+            weld = new Weld().initialize();
+        return weld.instance().select(type).get();
+    }
+
+    static Device device() {
+        return StorageDeviceProducer.DEVICE;
+    }
+
+    static StorageDeviceExtension addDeviceExtension() {
+        StorageDeviceExtension ext = new StorageDeviceExtension();
+        device().addDeviceExtension(ext);
+        return ext;
+    }
+
+    static void removeDeviceExtension(StorageDeviceExtension ext) {
+        device().removeDeviceExtension(ext);
+    }
+
+    static StorageSystemGroup createStorageSystemGroup(
+            StorageDeviceExtension ext, String groupID) {
+        StorageSystemGroup group = new StorageSystemGroup();
+        group.setGroupID(groupID);
+        ext.addStorageSystemGroup(group);
+        return group;
+    }
+
+    static StorageSystem createStorageSystem(StorageSystemGroup group,
+            String systemID, String backend, Path dir) throws IOException {
+        StorageSystem system = new StorageSystem();
+        system.setStorageSystemID(systemID);
+        system.setStorageSystemStatus(StorageSystemStatus.OK);
+        switch (backend) {
+        case FILESYSTEM:
+            system.setProviderName("org.dcm4chee.storage.filesystem");
+            system.setStorageSystemPath(dir.toString());
+            system.setMountCheckFile("NO_MOUNT");
+            Files.createDirectories(dir);
+            break;
+        case CLOUD:
+            system.setProviderName("org.dcm4chee.storage.cloud");
+            system.setStorageSystemAPI("filesystem");
+            system.setStorageSystemPath(dir.toString());
+            system.setStorageSystemContainer(systemID);
+            Files.createDirectories(dir.resolve(systemID));
+            break;
+        default:
+            throw new IllegalArgumentException("backend: " + backend);
+        }
+        group.addStorageSystem(system);
+        return system;
+    }
+
+    static FileCache createFileCache(Path dir) {
+        FileCache fileCache = new FileCache();
+        fileCache.setProviderName("org.dcm4chee.storage.filecache");
+        fileCache.setFileCacheRootDirectory(
+                dir.resolve("filecache").toString());
+        fileCache.setJournalRootDirectory(
+                dir.resolve("journaldir").toString());
+        return fileCache;
+    }
+
+    static byte[] randomBytes(int size) {
+        byte[] b = new byte[size];
+        new Random(size).nextBytes(b);
+        return b;
+    }
+
+    static void deleteDirectory(Path dir) throws IOException {
+        if (!Files.exists(dir))
+            return;
+
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file,
+                    BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir,
+                    IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,248 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.storage.benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che3.util.TagUtils;
+import org.dcm4chee.storage.ContainerEntry;
+import org.dcm4chee.storage.ExtractTask;
+import org.dcm4chee.storage.RetrieveContext;
+import org.dcm4chee.storage.StorageContext;
+import org.dcm4chee.storage.conf.Container;
+import org.dcm4chee.storage.conf.StorageDeviceExtension;
+import org.dcm4chee.storage.conf.StorageSystem;
+import org.dcm4chee.storage.conf.StorageSystemGroup;
+import org.dcm4chee.storage.service.RetrieveService;
+import org.dcm4chee.storage.service.StorageService;
+import org.dcm4chee.storage.spi.ContainerProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link ContainerProvider#writeEntriesTo},
+ * {@link ContainerProvider#extractEntries} and
+ * {@link ContainerProvider#seekEntry} of the zip and tar container formats.
+ * 
+ * @author agent <agent@local>
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ContainerProviderBenchmark {
+
+    private static final String NAME = "container";
+
+    @Param({ "org.dcm4chee.storage.zip", "org.dcm4chee.storage.tar" })
+    public String providerName;
+
+    @Param({ "32" })
+    public int entries;
+
+    @Param({ "65536" })
+    public int entrySize;
+
+    private StorageDeviceExtension ext;
+    private StorageContext storageCtx;
+    private RetrieveContext retrieveCtx;
+    private ContainerProvider provider;
+    private List<ContainerEntry> entryList;
+    private Path dir;
+    private Path containerFile;
+    private String lastEntryName;
+    private final byte[] buffer = new byte[8192];
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, NoSuchAlgorithmException {
+        dir = Files.createTempDirectory("container-benchmark");
+        ext = Benchmarks.addDeviceExtension();
+        StorageSystemGroup group =
+                Benchmarks.createStorageSystemGroup(ext, "bench");
+        Container container = new Container();
+        container.setProviderName(providerName);
+        container.setChecksumEntry("MD5SUM");
+        if (providerName.equals("org.dcm4chee.storage.tar"))
+            container.setIndexEntry("INDEX");
+        group.setContainer(container);
+        StorageSystem system = Benchmarks.createStorageSystem(group,
+                "bench", Benchmarks.FILESYSTEM, dir.resolve("storage"));
+        storageCtx = Benchmarks.select(StorageService.class)
+                .createStorageContext(system);
+        retrieveCtx = Benchmarks.select(RetrieveService.class)
+                .createRetrieveContext(system);
+        provider = storageCtx.getContainerProvider();
+        entryList = createEntries(dir.resolve("entries"));
+        containerFile = dir.resolve(NAME);
+        try (OutputStream out = Files.newOutputStream(containerFile)) {
+            provider.writeEntriesTo(storageCtx, entryList, out);
+        }
+    }
+
+    private List<ContainerEntry> createEntries(Path entriesDir)
+            throws IOException, NoSuchAlgorithmException {
+        Files.createDirectories(entriesDir);
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        List<ContainerEntry> list = new ArrayList<ContainerEntry>(entries);
+        for (int i = 0; i < entries; i++) {
+            byte[] data = Benchmarks.randomBytes(entrySize + i);
+            Path file = entriesDir.resolve("entry-" + i);
+            Files.write(file, data);
+            lastEntryName = file.getFileName().toString();
+            list.add(new ContainerEntry.Builder(lastEntryName,
+                    TagUtils.toHexString(md.digest(data)))
+                    .setSourcePath(file).build());
+        }
+        return list;
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        Benchmarks.removeDeviceExtension(ext);
+        Benchmarks.deleteDirectory(dir);
+    }
+
+    @Benchmark
+    public long writeEntriesTo() throws IOException {
+        DiscardOutputStream out = new DiscardOutputStream();
+        provider.writeEntriesTo(storageCtx, entryList, out);
+        return out.count;
+    }
+
+    @Benchmark
+    public long extractEntries() throws IOException {
+        DrainExtractTask extractTask = new DrainExtractTask(buffer);
+        try (InputStream in = new BufferedInputStream(
+                Files.newInputStream(containerFile))) {
+            provider.extractEntries(retrieveCtx, NAME, extractTask, in);
+        }
+        return extractTask.count;
+    }
+
+    @Benchmark
+    public long seekEntry() throws IOException {
+        try (SeekableByteChannel channel = Files.newByteChannel(containerFile)) {
+            return drain(provider.seekEntry(retrieveCtx, NAME, lastEntryName,
+                    channel), buffer);
+        }
+    }
+
+    private static long drain(InputStream in, byte[] buffer)
+            throws IOException {
+        long count = 0;
+        int n;
+        while ((n = in.read(buffer)) > 0)
+            count += n;
+        return count;
+    }
+
+    private static class DiscardOutputStream extends OutputStream {
+
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    private static class DrainExtractTask implements ExtractTask {
+
+        final byte[] buffer;
+        long count;
+
+        DrainExtractTask(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void copyStream(String entryName, InputStream in)
+                throws IOException {
+            count += drain(in, buffer);
+        }
+
+        @Override
+        public void entryExtracted(String entryName) {
+        }
+
+        @Override
+        public void finished() {
+        }
+
+        @Override
+        public void exception(IOException exception) {
+        }
+
+        @Override
+        public Path getFile(String entryName) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.storage.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.KeyGenerator;
+
+import org.dcm4che3.net.Device;
+import org.dcm4chee.storage.RetrieveContext;
+import org.dcm4chee.storage.StorageContext;
+import org.dcm4chee.storage.conf.StorageDeviceExtension;
+import org.dcm4chee.storage.conf.StorageSystem;
+import org.dcm4chee.storage.conf.StorageSystemGroup;
+import org.dcm4chee.storage.service.RetrieveService;
+import org.dcm4chee.storage.service.StorageService;
+import org.dcm4chee.storage.spi.StorageSystemProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the overhead of the encrypt decorator on writing and reading
+ * objects of the file system storage provider.
+ * 
+ * @author agent <agent@local>
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EncryptDecoratorBenchmark {
+
+    private static final String KEYSTORE_TYPE = "JCEKS";
+    private static final String KEYSTORE_PASSWORD = "secret";
+    private static final String KEY_ALIAS = "benchmark";
+    private static final String NAME = "encrypt/object";
+    private static final String WRITE_NAME = "encrypt/write";
+
+    @Param({ "false", "true" })
+    public boolean encrypt;
+
+    @Param({ "65536", "1048576" })
+    public int size;
+
+    private StorageDeviceExtension ext;
+    private StorageSystemProvider provider;
+    private StorageContext storageCtx;
+    private RetrieveContext retrieveCtx;
+    private Path dir;
+    private byte[] data;
+    private final byte[] buffer = new byte[8192];
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, GeneralSecurityException {
+        dir = Files.createTempDirectory("encrypt-benchmark");
+        data = Benchmarks.randomBytes(size);
+        initKeyStore(dir.resolve("key.jceks"));
+        ext = Benchmarks.addDeviceExtension();
+        StorageSystemGroup group =
+                Benchmarks.createStorageSystemGroup(ext, "bench");
+        StorageSystem system = Benchmarks.createStorageSystem(group,
+                "bench", Benchmarks.FILESYSTEM, dir.resolve("storage"));
+        if (encrypt)
+            system.setEncryptionKeyAlias(KEY_ALIAS);
+        storageCtx = Benchmarks.select(StorageService.class)
+                .createStorageContext(system);
+        retrieveCtx = Benchmarks.select(RetrieveService.class)
+                .createRetrieveContext(system);
+        provider = storageCtx.getStorageSystemProvider();
+        try (OutputStream out = provider.openOutputStream(storageCtx, NAME)) {
+            out.write(data);
+        }
+    }
+
+    private static void initKeyStore(Path file)
+            throws IOException, GeneralSecurityException {
+        KeyStore ks = KeyStore.getInstance(KEYSTORE_TYPE);
+        ks.load(null, null);
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(128);
+        ks.setEntry(KEY_ALIAS,
+                new KeyStore.SecretKeyEntry(keyGen.generateKey()),
+                new KeyStore.PasswordProtection(KEYSTORE_PASSWORD.toCharArray()));
+        try (OutputStream out = Files.newOutputStream(file)) {
+            ks.store(out, KEYSTORE_PASSWORD.toCharArray());
+        }
+        Device device = Benchmarks.device();
+        device.setKeyStoreURL(file.toUri().toString());
+        device.setKeyStoreType(KEYSTORE_TYPE);
+        device.setKeyStorePin(KEYSTORE_PASSWORD);
+        device.setKeyStoreKeyPin(KEYSTORE_PASSWORD);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        Benchmarks.removeDeviceExtension(ext);
+        Benchmarks.deleteDirectory(dir);
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteObject() throws IOException {
+        Files.deleteIfExists(provider.getBaseDirectory(
+                storageCtx.getStorageSystem()).resolve(WRITE_NAME));
+    }
+
+    @Benchmark
+    public void openOutputStream() throws IOException {
+        try (OutputStream out = provider.openOutputStream(storageCtx,
+                WRITE_NAME)) {
+            out.write(data);
+        }
+    }
+
+    @Benchmark
+    public long openInputStream() throws IOException {
+        long count = 0;
+        try (InputStream in = provider.openInputStream(retrieveCtx, NAME)) {
+            int n;
+            while ((n = in.read(buffer)) > 0)
+                count += n;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,137 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.storage.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4chee.storage.RetrieveContext;
+import org.dcm4chee.storage.conf.StorageDeviceExtension;
+import org.dcm4chee.storage.conf.StorageSystem;
+import org.dcm4chee.storage.conf.StorageSystemGroup;
+import org.dcm4chee.storage.service.RetrieveService;
+import org.dcm4chee.storage.service.StorageService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link RetrieveService#openInputStream} reading a whole object,
+ * with and without file cache.
+ * 
+ * @author agent <agent@local>
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RetrieveServiceBenchmark {
+
+    private static final String NAME = "retrieve/object";
+
+    @Param({ Benchmarks.FILESYSTEM, Benchmarks.CLOUD })
+    public String backend;
+
+    @Param({ "65536", "1048576" })
+    public int size;
+
+    @Param({ "false", "true" })
+    public boolean fileCache;
+
+    private RetrieveService service;
+    private StorageDeviceExtension ext;
+    private StorageSystem system;
+    private Path dir;
+    private byte[] buffer = new byte[8192];
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        service = Benchmarks.select(RetrieveService.class);
+        dir = Files.createTempDirectory("retrieve-benchmark");
+        ext = Benchmarks.addDeviceExtension();
+        StorageSystemGroup group =
+                Benchmarks.createStorageSystemGroup(ext, "bench");
+        if (fileCache)
+            group.setFileCache(Benchmarks.createFileCache(dir));
+        system = Benchmarks.createStorageSystem(group, "bench", backend,
+                dir.resolve("storage"));
+        StorageService storageService =
+                Benchmarks.select(StorageService.class);
+        storageService.copyInputStream(
+                storageService.createStorageContext(system),
+                new ByteArrayInputStream(Benchmarks.randomBytes(size)),
+                NAME);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        Benchmarks.removeDeviceExtension(ext);
+        Benchmarks.deleteDirectory(dir);
+    }
+
+    @Benchmark
+    public long openInputStream() throws IOException {
+        RetrieveContext ctx = service.createRetrieveContext(system);
+        long count = 0;
+        try (InputStream in = service.openInputStream(ctx, NAME)) {
+            int n;
+            while ((n = in.read(buffer)) > 0)
+                count += n;
+        }
+        return count;
+    }
+}
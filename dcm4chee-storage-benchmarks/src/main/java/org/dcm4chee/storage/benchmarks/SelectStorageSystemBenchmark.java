@@ -0,0 +1,129 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.storage.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4chee.storage.conf.PlacementPolicy;
+import org.dcm4chee.storage.conf.StorageDeviceExtension;
+import org.dcm4chee.storage.conf.StorageSystem;
+import org.dcm4chee.storage.conf.StorageSystemGroup;
+import org.dcm4chee.storage.service.StorageService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link StorageService#selectStorageSystem} called concurrently
+ * by several threads against one storage system group.
+ * 
+ * @author agent <agent@local>
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SelectStorageSystemBenchmark {
+
+    private static final long RESERVE_SPACE = 1024L * 1024;
+
+    @Param({ "ROUND_ROBIN", "LEAST_IN_FLIGHT", "MOST_FREE_SPACE",
+            "LATENCY_WEIGHTED" })
+    public PlacementPolicy placementPolicy;
+
+    @Param({ "4" })
+    public int storageSystems;
+
+    @Param({ "0", "60" })
+    public int usableSpaceRefreshInterval;
+
+    private StorageService service;
+    private StorageDeviceExtension ext;
+    private Path dir;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        service = Benchmarks.select(StorageService.class);
+        dir = Files.createTempDirectory("select-benchmark");
+        ext = Benchmarks.addDeviceExtension();
+        StorageSystemGroup group =
+                Benchmarks.createStorageSystemGroup(ext, "bench");
+        group.setPlacementPolicy(placementPolicy);
+        group.setParallelism(storageSystems);
+        for (int i = 1; i <= storageSystems; i++) {
+            String systemID = "fs" + i;
+            StorageSystem system = Benchmarks.createStorageSystem(group,
+                    systemID, Benchmarks.FILESYSTEM, dir.resolve(systemID));
+            system.setNextStorageSystemID(
+                    "fs" + (i % storageSystems + 1));
+            system.setMinFreeSpace("1MiB");
+            system.setUsableSpaceRefreshInterval(usableSpaceRefreshInterval);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        Benchmarks.removeDeviceExtension(ext);
+        Benchmarks.deleteDirectory(dir);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public StorageSystem selectStorageSystem() {
+        return service.selectStorageSystem("bench", RESERVE_SPACE);
+    }
+}
@@ -38,14 +38,24 @@
 
 package org.dcm4chee.storage.cifs;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import javax.enterprise.context.Dependent;
 import javax.inject.Named;
@@ -58,10 +68,13 @@ import jcifs.smb.SmbFile;
 import jcifs.smb.SmbFileOutputStream;
 
 import org.dcm4che3.util.StreamUtils;
+import org.dcm4chee.storage.DirectoryCache;
 import org.dcm4chee.storage.ObjectAlreadyExistsException;
 import org.dcm4chee.storage.ObjectNotFoundException;
 import org.dcm4chee.storage.RetrieveContext;
 import org.dcm4chee.storage.StorageContext;
+import org.dcm4chee.storage.StorageFuture;
+import org.dcm4chee.storage.StreamSeekableByteChannel;
 import org.dcm4chee.storage.conf.StorageSystem;
 import org.dcm4chee.storage.spi.StorageSystemProvider;
 
@@ -81,10 +94,16 @@ public class CifsStorageSystemProvider implements StorageSystemProvider {
     private StorageSystem storageSystem;
     private SmbFile baseDir;    
     private NtlmPasswordAuthentication auth;
+    private DirectoryCache dirCache;
+    private Semaphore connections;
+    private Map<String, Long> sizeCache;
 
     @Override
     public void init(StorageSystem storageSystem) {
         this.storageSystem = storageSystem;
+        dirCache = new DirectoryCache(storageSystem.getDirectoryCacheSize());
+        connections = new Semaphore(Math.max(1, storageSystem.getMaxConnections()), true);
+        sizeCache = createSizeCache(storageSystem.getAttributeCacheSize());
         auth = new NtlmPasswordAuthentication(storageSystem.getStorageSystemDomain(),
                 storageSystem.getStorageSystemIdentity(),
                 storageSystem.getStorageSystemCredential());
@@ -96,6 +115,53 @@ public class CifsStorageSystemProvider implements StorageSystemProvider {
         }
     }
 
+    /**
+     * jCIFS attribute caching is disabled globally, because it is per SmbFile
+     * and would report stale attributes of files created meanwhile. Stored
+     * objects are never modified, so their size is cached per storage
+     * system instead, until the object is deleted. Other nodes of a cluster
+     * may delete the object meanwhile, so a cached size is dropped as soon
+     * as the server reports the object as missing.
+     */
+    private static Map<String, Long> createSizeCache(final int maxSize) {
+        if (maxSize <= 0)
+            return null;
+
+        return Collections.synchronizedMap(
+                new LinkedHashMap<String, Long>(16, 0.75f, true) {
+
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected boolean removeEldestEntry(
+                            Map.Entry<String, Long> eldest) {
+                        return size() > maxSize;
+                    }
+                });
+    }
+
+    private Long cachedSize(String name) {
+        return sizeCache != null ? sizeCache.get(name) : null;
+    }
+
+    private void cacheSize(String name, long size) {
+        if (sizeCache != null)
+            sizeCache.put(name, size);
+    }
+
+    private void uncacheSize(String name) {
+        if (sizeCache != null)
+            sizeCache.remove(name);
+    }
+
+    private IOException notFound(SmbException e, String name) {
+        if (!isNotFound(e.getNtStatus()))
+            return e;
+        uncacheSize(name);
+        return new ObjectNotFoundException(storageSystem.getStorageSystemPath(),
+                name);
+    }
+
     private String constructUrl(StorageSystem storageSystem) {
         StringBuilder sb = new StringBuilder("smb://");
         sb.append(storageSystem.getStorageSystemHostname());
@@ -128,20 +194,144 @@ public class CifsStorageSystemProvider implements StorageSystemProvider {
     @Override
     public OutputStream openOutputStream(final StorageContext context, String name)
             throws IOException {
+        // always ask the server - the object may be deleted by another node
         final SmbFile target = new SmbFile(baseDir, name);
         if (target.exists())
             throw new ObjectAlreadyExistsException(storageSystem.getStorageSystemPath(),
                     name);
-        SmbFile dir = new SmbFile(target.getParent(), auth);
+        uncacheSize(name);
+        String parent = target.getParent();
+        if (!dirCache.contains(parent)) {
+            mkdirs(parent);
+            dirCache.add(parent);
+        }
+        acquireConnection();
+        try {
+            SmbFileOutputStream out;
+            try {
+                out = new SmbFileOutputStream(target);
+            } catch (SmbException e) {
+                if (!isNotFound(e.getNtStatus()))
+                    throw e;
+                // cached directory was removed meanwhile
+                dirCache.remove(parent);
+                mkdirs(parent);
+                dirCache.add(parent);
+                out = new SmbFileOutputStream(target);
+            }
+            return new CifsOutputStream(new BufferedOutputStream(out,
+                    storageSystem.getBufferedOutputLength()), context, name);
+        } catch (IOException | RuntimeException e) {
+            connections.release();
+            throw e;
+        }
+    }
+
+    private void mkdirs(String path) throws IOException {
+        SmbFile dir = new SmbFile(path, auth);
         if (!dir.exists())
             dir.mkdirs();
-        return new SmbFileOutputStream(target) {
-            @Override
-            public void close() throws IOException {
+    }
+
+    private void acquireConnection() throws IOException {
+        try {
+            int timeout = storageSystem.getConnectionTimeout();
+            if (timeout <= 0)
+                connections.acquire();
+            else if (!connections.tryAcquire(timeout, TimeUnit.MILLISECONDS))
+                throw new IOException("No connection to "
+                        + storageSystem.getStorageSystemHostname()
+                        + " available within " + timeout + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private InputStream newInputStream(SmbFile file, long position)
+            throws IOException {
+        acquireConnection();
+        InputStream in = null;
+        try {
+            in = file.getInputStream();
+            StreamUtils.skipFully(in, position);
+            return new CifsInputStream(in);
+        } catch (IOException | RuntimeException e) {
+            if (in != null)
+                in.close();
+            connections.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Counts the written bytes, so the file size need not to be queried
+     * after close, and releases the connection permit.
+     */
+    private class CifsOutputStream extends FilterOutputStream {
+
+        private final StorageContext context;
+        private final String name;
+        private long count;
+        private boolean closed;
+
+        CifsOutputStream(OutputStream out, StorageContext context, String name) {
+            super(out);
+            this.context = context;
+            this.name = name;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            try {
+                // FilterOutputStream.close() ignores flush errors
+                try {
+                    out.flush();
+                } finally {
+                    out.close();
+                }
+                context.setFileSize(count);
+                cacheSize(name, count);
+            } finally {
+                connections.release();
+            }
+        }
+    }
+
+    private class CifsInputStream extends FilterInputStream {
+
+        private boolean closed;
+
+        CifsInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            try {
                 super.close();
-                context.setFileSize(target.getContentLength());
+            } finally {
+                connections.release();
             }
-        };
+        }
     }
 
     @Override
@@ -160,6 +350,13 @@ public class CifsStorageSystemProvider implements StorageSystemProvider {
         }
     }
 
+    @Override
+    public StorageFuture<Void> storeFileAsync(StorageContext context, Path path,
+            String name) throws IOException {
+        // the jCIFS API is blocking
+        throw new UnsupportedOperationException();
+    }
+
     @Override
     public void moveFile(StorageContext context, Path path, String name)
             throws IOException {
@@ -174,11 +371,46 @@ public class CifsStorageSystemProvider implements StorageSystemProvider {
             throws IOException {
         SmbFile file = new SmbFile(baseDir, name);
         try {
-            return file.getInputStream();
+            return new BufferedInputStream(newInputStream(file, 0L),
+                    storageSystem.getBufferedInputLength());
         } catch (SmbException e) {
-            throw isNotFound(e.getNtStatus()) ? new ObjectNotFoundException(
-                    storageSystem.getStorageSystemPath(), name) : e;
+            throw notFound(e, name);
+        }
+    }
+
+    @Override
+    public SeekableByteChannel openChannel(RetrieveContext ctx,
+            final String name) throws IOException {
+        final SmbFile file = new SmbFile(baseDir, name);
+        Long cachedSize = cachedSize(name);
+        final long size;
+        if (cachedSize != null) {
+            size = cachedSize;
+        } else {
+            try {
+                size = file.length();
+            } catch (SmbException e) {
+                throw notFound(e, name);
+            }
+            cacheSize(name, size);
         }
+        return new StreamSeekableByteChannel(
+                storageSystem.getBufferedInputLength()) {
+
+            @Override
+            protected InputStream openStream(long position) throws IOException {
+                try {
+                    return newInputStream(file, position);
+                } catch (SmbException e) {
+                    throw notFound(e, name);
+                }
+            }
+
+            @Override
+            protected long fetchSize() {
+                return size;
+            }
+        };
     }
 
     @Override
@@ -188,6 +420,7 @@ public class CifsStorageSystemProvider implements StorageSystemProvider {
 
     @Override
     public void deleteObject(StorageContext ctx, String name) throws IOException {
+        uncacheSize(name);
         SmbFile file = new SmbFile(baseDir, name);
         try {
             file.delete();
@@ -202,6 +435,7 @@ public class CifsStorageSystemProvider implements StorageSystemProvider {
                 if (dir.list().length > 0)
                     break;
                 dir.delete();
+                dirCache.remove(dir.getPath());
                 dir = new SmbFile(dir.getParent(), auth);
             }
         } catch (SmbException e) {
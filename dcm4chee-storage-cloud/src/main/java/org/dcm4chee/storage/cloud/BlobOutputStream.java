@@ -0,0 +1,315 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.storage.cloud;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.io.Payload;
+import org.jclouds.io.Payloads;
+
+import com.google.common.io.ByteSource;
+
+/**
+ * Buffers written data in pooled chunks and uploads it by the writing
+ * thread: objects smaller than the part size by a single put on close,
+ * larger objects as multipart upload of each filled part - in parallel by
+ * the executor of the {@link MultipartUploader}, if configured - or, if
+ * multipart upload is not available, by a single put of a temporary file,
+ * to which the data is spilled after exceeding the part size. If no chunk
+ * is available from the {@link ChunkPool}, the current part is spilled to
+ * a temporary file as well, instead of waiting for other uploads.
+ * Objects not exceeding the pack threshold are passed to the
+ * {@link SegmentPacker} instead, if packing is enabled.
+ *
+ * @author agent <agent@local>
+ *
+ */
+class BlobOutputStream extends OutputStream {
+
+    private static final long DEFAULT_PART_SIZE = 32000000L;
+    private static final int BUFFER_SIZE = 65536;
+
+    interface Callback {
+        /**
+         * @param etag the etag of the uploaded blob or {@code null}, if the
+         *        object was packed
+         * @param size the size of the object
+         */
+        void uploaded(String etag, long size);
+    }
+
+    private final BlobStore blobStore;
+    private final String container;
+    private final String name;
+    private final MultipartUploader multipartUploader;
+    private final SegmentPacker packer;
+    private final long partSize;
+    private final Callback callback;
+    private List<byte[]> chunks = new ArrayList<byte[]>();
+    private int chunkPos = ChunkPool.CHUNK_SIZE;
+    private long partLength;
+    private long length;
+    private MultipartUploader.Upload upload;
+    private Path spillFile;
+    private OutputStream spillOut;
+    private boolean closed;
+    private final byte[] single = new byte[1];
+
+    BlobOutputStream(BlobStore blobStore, String container, String name,
+            MultipartUploader multipartUploader, SegmentPacker packer,
+            long partSize, Callback callback) {
+        this.blobStore = blobStore;
+        this.container = container;
+        this.name = name;
+        this.multipartUploader = multipartUploader;
+        this.packer = packer;
+        this.partSize = partSize > 0 ? partSize : DEFAULT_PART_SIZE;
+        this.callback = callback;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        single[0] = (byte) b;
+        write(single, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed)
+            throw new IOException("Stream closed");
+        try {
+            while (len > 0) {
+                int n;
+                if (spillOut != null) {
+                    n = (int) Math.min(len, partSize - partLength);
+                    spillOut.write(b, off, n);
+                } else {
+                    if (chunkPos == ChunkPool.CHUNK_SIZE) {
+                        byte[] chunk = ChunkPool.tryGet();
+                        if (chunk == null) {
+                            spill();
+                            continue;
+                        }
+                        chunks.add(chunk);
+                        chunkPos = 0;
+                    }
+                    n = (int) Math.min(Math.min(len,
+                            ChunkPool.CHUNK_SIZE - chunkPos), partSize - partLength);
+                    System.arraycopy(b, off, chunks.get(chunks.size() - 1),
+                            chunkPos, n);
+                    chunkPos += n;
+                }
+                partLength += n;
+                length += n;
+                off += n;
+                len -= n;
+                if (partLength == partSize)
+                    flushPart();
+            }
+        } catch (IOException | RuntimeException e) {
+            discard();
+            throw e;
+        }
+    }
+
+    /**
+     * Moves the buffered data to a temporary file, to which further data is
+     * written directly.
+     */
+    private void spill() throws IOException {
+        spillFile = Files.createTempFile("blob", ".tmp");
+        spillOut = new BufferedOutputStream(Files.newOutputStream(spillFile),
+                BUFFER_SIZE);
+        int last = chunks.size() - 1;
+        for (int i = 0; i <= last; i++)
+            spillOut.write(chunks.get(i), 0,
+                    i < last ? ChunkPool.CHUNK_SIZE : chunkPos);
+        releaseAll(chunks);
+        chunks = new ArrayList<byte[]>();
+        chunkPos = ChunkPool.CHUNK_SIZE;
+    }
+
+    private void flushPart() throws IOException {
+        if (multipartUploader != null) {
+            if (upload == null)
+                upload = multipartUploader.initiateUpload(container,
+                        blobStore.blobBuilder(name).build().getMetadata());
+            Payload part;
+            Runnable onDone;
+            if (spillOut != null) {
+                spillOut.close();
+                spillOut = null;
+                final Path partFile = spillFile;
+                spillFile = null;
+                part = Payloads.newFilePayload(partFile.toFile());
+                part.getContentMetadata().setContentLength(partLength);
+                onDone = new Runnable() {
+                    @Override
+                    public void run() {
+                        deleteQuietly(partFile);
+                    }
+                };
+            } else {
+                part = bufferedPayload();
+                final List<byte[]> partChunks = chunks;
+                onDone = new Runnable() {
+                    @Override
+                    public void run() {
+                        releaseAll(partChunks);
+                    }
+                };
+            }
+            resetPart();
+            upload.uploadPart(part, onDone);
+        } else {
+            // without multipart upload, the whole object is spilled
+            if (spillOut == null)
+                spill();
+            partLength = 0;
+        }
+    }
+
+    private void resetPart() {
+        chunks = new ArrayList<byte[]>();
+        chunkPos = ChunkPool.CHUNK_SIZE;
+        partLength = 0;
+    }
+
+    private Payload bufferedPayload() {
+        List<ByteSource> sources = new ArrayList<ByteSource>(chunks.size());
+        int last = chunks.size() - 1;
+        for (int i = 0; i <= last; i++)
+            sources.add(ByteSource.wrap(chunks.get(i))
+                    .slice(0, i < last ? ChunkPool.CHUNK_SIZE : chunkPos));
+        Payload payload = Payloads.newByteSourcePayload(
+                ByteSource.concat(sources));
+        payload.getContentMetadata().setContentLength(partLength);
+        return payload;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        String etag;
+        try {
+            if (upload != null) {
+                if (partLength > 0)
+                    flushPart();
+                etag = upload.complete();
+                upload = null;
+            } else if (spillOut != null) {
+                spillOut.close();
+                spillOut = null;
+                if (packer != null && packer.accepts(length)) {
+                    packer.add(name, Files.readAllBytes(spillFile));
+                    etag = null;
+                } else {
+                    Payload payload = Payloads.newFilePayload(spillFile.toFile());
+                    payload.getContentMetadata().setContentLength(length);
+                    etag = put(payload);
+                }
+            } else if (packer != null && packer.accepts(length)) {
+                packer.add(name, bufferedBytes());
+                etag = null;
+            } else {
+                etag = put(bufferedPayload());
+            }
+        } catch (IOException | RuntimeException e) {
+            discard();
+            throw e;
+        }
+        discard();
+        callback.uploaded(etag, length);
+    }
+
+    private byte[] bufferedBytes() {
+        byte[] b = new byte[(int) partLength];
+        int last = chunks.size() - 1;
+        for (int i = 0; i <= last; i++)
+            System.arraycopy(chunks.get(i), 0, b, i * ChunkPool.CHUNK_SIZE,
+                    i < last ? ChunkPool.CHUNK_SIZE : chunkPos);
+        return b;
+    }
+
+    private String put(Payload payload) {
+        Blob blob = blobStore.blobBuilder(name).payload(payload).build();
+        return blobStore.putBlob(container, blob);
+    }
+
+    private void discard() {
+        closed = true;
+        releaseAll(chunks);
+        chunks.clear();
+        if (upload != null) {
+            upload.abort();
+            upload = null;
+        }
+        if (spillOut != null) {
+            try {
+                spillOut.close();
+            } catch (IOException ignore) {}
+            spillOut = null;
+        }
+        if (spillFile != null) {
+            deleteQuietly(spillFile);
+            spillFile = null;
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ignore) {}
+    }
+
+    private static void releaseAll(List<byte[]> chunks) {
+        for (byte[] chunk : chunks)
+            ChunkPool.release(chunk);
+    }
+}
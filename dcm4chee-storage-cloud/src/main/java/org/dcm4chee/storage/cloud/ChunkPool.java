@@ -0,0 +1,90 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.storage.cloud;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of fixed size byte arrays, in which uploaded data is buffered, so
+ * buffers are not allocated and garbage collected for each uploaded object.
+ * The number of chunks in use is limited to a quarter of the maximal heap
+ * size, so concurrent uploads cannot exhaust the heap.
+ *
+ * @author agent <agent@local>
+ *
+ */
+class ChunkPool {
+
+    static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int MAX_IDLE = 64;
+    private static final int MAX_IN_USE = (int) Math.max(MAX_IDLE,
+            Runtime.getRuntime().maxMemory() / 4 / CHUNK_SIZE);
+
+    private static final Queue<byte[]> idle = new ConcurrentLinkedQueue<byte[]>();
+    private static final AtomicInteger idleCount = new AtomicInteger();
+    private static final Semaphore inUse = new Semaphore(MAX_IN_USE);
+
+    private ChunkPool() {}
+
+    /**
+     * Returns a chunk or {@code null}, if the maximal number of chunks is in
+     * use.
+     */
+    static byte[] tryGet() {
+        if (!inUse.tryAcquire())
+            return null;
+        byte[] chunk = idle.poll();
+        if (chunk == null)
+            return new byte[CHUNK_SIZE];
+        idleCount.decrementAndGet();
+        return chunk;
+    }
+
+    static void release(byte[] chunk) {
+        if (idleCount.incrementAndGet() <= MAX_IDLE)
+            idle.offer(chunk);
+        else
+            idleCount.decrementAndGet();
+        inUse.release();
+    }
+}
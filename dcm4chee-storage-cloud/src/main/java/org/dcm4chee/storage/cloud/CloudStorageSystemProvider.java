@@ -38,12 +38,12 @@
 
 package org.dcm4chee.storage.cloud;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -51,9 +51,7 @@ import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.FutureTask;
+import java.util.concurrent.Executor;
 
 import javax.enterprise.context.Dependent;
 import javax.inject.Inject;
@@ -64,6 +62,8 @@ import org.dcm4chee.storage.ObjectAlreadyExistsException;
 import org.dcm4chee.storage.ObjectNotFoundException;
 import org.dcm4chee.storage.RetrieveContext;
 import org.dcm4chee.storage.StorageContext;
+import org.dcm4chee.storage.StorageFuture;
+import org.dcm4chee.storage.StreamSeekableByteChannel;
 import org.dcm4chee.storage.conf.StorageDevice;
 import org.dcm4chee.storage.conf.StorageSystem;
 import org.dcm4chee.storage.spi.StorageSystemProvider;
@@ -73,6 +73,12 @@ import org.jclouds.apis.Apis;
 import org.jclouds.blobstore.BlobStore;
 import org.jclouds.blobstore.BlobStoreContext;
 import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.domain.PageSet;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.domain.StorageType;
+import org.jclouds.blobstore.options.GetOptions;
+import org.jclouds.blobstore.options.ListContainerOptions;
 import org.jclouds.io.Payload;
 import org.jclouds.io.payloads.InputStreamPayload;
 import org.jclouds.providers.ProviderMetadata;
@@ -80,6 +86,9 @@ import org.jclouds.providers.Providers;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.CountingInputStream;
 
 import static org.jclouds.Constants.*;
@@ -96,9 +105,35 @@ public class CloudStorageSystemProvider implements StorageSystemProvider {
     private static Logger log = LoggerFactory
             .getLogger(CloudStorageSystemProvider.class);
 
+    private static final int WRITTEN_NAMES_CAPACITY = 1000000;
+    private static final double WRITTEN_NAMES_FPP = 0.01;
+    private static final long MIN_READ_WINDOW = 1024 * 1024;
+    private static final long MAX_READ_WINDOW = 64 * 1024 * 1024;
+
     private StorageSystem system;
     private BlobStoreContext context;
     private MultipartUploader multipartUploader;
+    private SegmentPacker packer;
+
+    /*
+     * Names of objects uploaded by this provider, to detect duplicates
+     * without requesting the existence of each object before upload,
+     * if disabled by StorageSystem#isCheckExists(). If the current filter
+     * is saturated, it replaces the previous one, so at least the last
+     * WRITTEN_NAMES_CAPACITY names are always covered.
+     */
+    private BloomFilter<CharSequence> writtenNames;
+    private BloomFilter<CharSequence> previousWrittenNames;
+    private int writtenNamesCount;
+
+    /*
+     * Names of objects found in the container by init, if
+     * StorageSystem#isCheckExists() is disabled, in filters of
+     * WRITTEN_NAMES_CAPACITY names. Until the listing is complete, the
+     * existence of each object is requested before upload.
+     */
+    private List<BloomFilter<CharSequence>> listedNames;
+    private volatile boolean listed;
 
     @Inject @StorageDevice
     private Device device;
@@ -136,17 +171,99 @@ public class CloudStorageSystemProvider implements StorageSystemProvider {
         ctxBuilder.overrides(overrides);
         context = ctxBuilder.buildView(BlobStoreContext.class);
         long partSize = system.getMultipartUploadSizeInBytes();
+        int concurrency = Math.min(system.getMultipartUploadParallelism(),
+                system.getMaxConnections());
         multipartUploader = partSize > 0 ? MultipartUploader
-                .newMultipartUploader(context, partSize) : null;
+                .newMultipartUploader(context, partSize, new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        device.execute(command);
+                    }
+                }, concurrency) : null;
+        packer = system.getPackSegmentSizeInBytes() > 0
+                ? new SegmentPacker(context.getBlobStore(), system, device)
+                : null;
+        listExistingNames();
 
         Runtime.getRuntime().addShutdownHook(new Thread() {
             @Override
             public void run() {
+                if (packer != null) {
+                    try {
+                        packer.flush();
+                    } catch (IOException e) {
+                        log.warn("Failed to upload pending segments to {}",
+                                system, e);
+                    }
+                }
                 context.close();
             }
         });
     }
 
+    private void listExistingNames() {
+        final List<BloomFilter<CharSequence>> names =
+                new ArrayList<BloomFilter<CharSequence>>();
+        synchronized (this) {
+            listedNames = names;
+            listed = false;
+        }
+        if (system.isCheckExists())
+            return;
+
+        final BlobStore blobStore = context.getBlobStore();
+        final String container = system.getStorageSystemContainer();
+        device.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int count = listNames(blobStore, container, names);
+                    synchronized (CloudStorageSystemProvider.this) {
+                        if (listedNames != names)
+                            return;
+                        listed = true;
+                    }
+                    log.info("Listed {} objects in {}/{}",
+                            count, system.getStorageSystemPath(), container);
+                } catch (IOException e) {
+                    log.warn("Failed to list objects in {}/{} - request the existence of each object before upload",
+                            system.getStorageSystemPath(), container, e);
+                }
+            }
+        });
+    }
+
+    private static int listNames(BlobStore blobStore, String container,
+            List<BloomFilter<CharSequence>> names) throws IOException {
+        BloomFilter<CharSequence> filter = null;
+        int count = 0;
+        String marker = null;
+        do {
+            ListContainerOptions options = ListContainerOptions.Builder.recursive();
+            if (marker != null)
+                options.afterMarker(marker);
+            PageSet<? extends StorageMetadata> page;
+            try {
+                page = blobStore.list(container, options);
+            } catch (RuntimeException e) {
+                throw new IOException("Failed to list " + container, e);
+            }
+            for (StorageMetadata md : page) {
+                if (md.getType() != StorageType.BLOB)
+                    continue;
+                if (count++ % WRITTEN_NAMES_CAPACITY == 0) {
+                    filter = BloomFilter.create(
+                            Funnels.stringFunnel(StandardCharsets.UTF_8),
+                            WRITTEN_NAMES_CAPACITY, WRITTEN_NAMES_FPP);
+                    names.add(filter);
+                }
+                filter.put(md.getName());
+            }
+            marker = page.getNextMarker();
+        } while (marker != null);
+        return count;
+    }
+
     private static List<String> getApisAndProviders() {
         List<String> l = new ArrayList<String>();
         for (ProviderMetadata md : Providers.all())
@@ -171,44 +288,34 @@ public class CloudStorageSystemProvider implements StorageSystemProvider {
     @Override
     public OutputStream openOutputStream(final StorageContext ctx,
             final String name) throws IOException {
-        final PipedInputStream in = new PipedInputStream();
-        final FutureTask<Void> f = new FutureTask<Void>(new Callable<Void>() {
-            @Override
-            public Void call() throws Exception {
-                try {
-                    upload(ctx, in, name);
-                } finally {
-                    in.close();
-                }
-                return null;
-            }
-        });
-
-        OutputStream out = new PipedOutputStream(in) {
-            @Override
-            public void close() throws IOException {
-                super.close();
-                try {
-                    f.get();
-                } catch (InterruptedException e) {
-                    throw new InterruptedIOException();
-                } catch (ExecutionException e) {
-                    Throwable c = e.getCause();
-                    if (c instanceof IOException)
-                        throw (IOException) c;
-                    throw new IOException("Upload failed", c);
-                }
-            }
-        };
-
-        device.execute(f);
-        return out;
+        final String container = system.getStorageSystemContainer();
+        BlobStore blobStore = context.getBlobStore();
+        checkNotExists(blobStore, container, name);
+        return new BlobOutputStream(blobStore, container, name,
+                multipartUploader, packer, system.getMultipartUploadSizeInBytes(),
+                new BlobOutputStream.Callback() {
+                    @Override
+                    public void uploaded(String etag, long size) {
+                        ctx.setFileSize(size);
+                        if (etag == null)
+                            return;
+                        written(name);
+                        log.info("Uploaded[uri={}, container={}, name={}, etag={}]",
+                                system.getStorageSystemPath(), container, name, etag);
+                    }
+                });
     }
 
     @Override
     public void copyInputStream(StorageContext ctx, InputStream in, String name)
             throws IOException {
-        upload(ctx, in, name);
+        if (packer != null) {
+            // the size is only known after reading the stream
+            try (OutputStream out = openOutputStream(ctx, name)) {
+                ByteStreams.copy(in, out);
+            }
+        } else
+            upload(ctx, in, name);
     }
 
     private void upload(StorageContext ctx, InputStream in, String name)
@@ -220,9 +327,7 @@ public class CloudStorageSystemProvider implements StorageSystemProvider {
             long len) throws IOException {
         String container = system.getStorageSystemContainer();
         BlobStore blobStore = context.getBlobStore();
-        if (blobStore.blobExists(container, name))
-            throw new ObjectAlreadyExistsException(
-                    system.getStorageSystemPath(), container + '/' + name);
+        checkNotExists(blobStore, container, name);
         CountingInputStream cin = new CountingInputStream(in);
         Payload payload = new InputStreamPayload(cin);
         if (len != -1) {
@@ -232,19 +337,80 @@ public class CloudStorageSystemProvider implements StorageSystemProvider {
         String etag = (multipartUploader != null) ? multipartUploader.upload(
                 container, blob) : blobStore.putBlob(container, blob);
         ctx.setFileSize(cin.getCount());
+        written(name);
         log.info("Uploaded[uri={}, container={}, name={}, etag={}]",
                 system.getStorageSystemPath(), container, name, etag);
     }
 
+    /**
+     * Checks if an object with the name already exists. If
+     * {@link StorageSystem#isCheckExists()} is disabled, the existence is
+     * only requested for names, which were found in the container by
+     * {@link #init(StorageSystem)} or may have been uploaded by this provider
+     * since, so duplicates are still detected without an additional request
+     * for each upload. Until the container is listed, the existence is
+     * requested for each upload.
+     */
+    private void checkNotExists(BlobStore blobStore, String container,
+            String name) throws IOException {
+        if ((packer != null && packer.contains(name))
+                || ((system.isCheckExists() || !listed || mightExist(name))
+                        && blobStore.blobExists(container, name)))
+            throw new ObjectAlreadyExistsException(
+                    system.getStorageSystemPath(), container + '/' + name);
+    }
+
+    private synchronized boolean mightExist(String name) {
+        if (writtenNames != null && writtenNames.mightContain(name)
+                || previousWrittenNames != null
+                        && previousWrittenNames.mightContain(name))
+            return true;
+        for (BloomFilter<CharSequence> filter : listedNames)
+            if (filter.mightContain(name))
+                return true;
+        return false;
+    }
+
+    private synchronized void written(String name) {
+        if (system.isCheckExists())
+            return;
+        // start a new generation if saturated, to keep the false positive
+        // rate without forgetting the most recently written names
+        if (writtenNames == null || writtenNamesCount >= WRITTEN_NAMES_CAPACITY) {
+            previousWrittenNames = writtenNames;
+            writtenNames = BloomFilter.create(
+                    Funnels.stringFunnel(StandardCharsets.UTF_8),
+                    WRITTEN_NAMES_CAPACITY, WRITTEN_NAMES_FPP);
+            writtenNamesCount = 0;
+        }
+        writtenNames.put(name);
+        writtenNamesCount++;
+    }
+
     @Override
     public void storeFile(StorageContext ctx, Path source, String name)
             throws IOException {
+        long size = Files.size(source);
+        if (packer != null && packer.accepts(size)) {
+            checkNotExists(context.getBlobStore(),
+                    system.getStorageSystemContainer(), name);
+            packer.add(name, Files.readAllBytes(source));
+            ctx.setFileSize(size);
+            return;
+        }
         try (InputStream in = Files.newInputStream(source,
                 StandardOpenOption.READ)) {
-            upload(ctx, in, name, Files.size(source));
+            upload(ctx, in, name, size);
         }
     }
 
+    @Override
+    public StorageFuture<Void> storeFileAsync(StorageContext context, Path path,
+            String name) throws IOException {
+        // the jclouds BlobStore API is blocking
+        throw new UnsupportedOperationException();
+    }
+
     @Override
     public void moveFile(StorageContext ctx, Path source, String name)
             throws IOException {
@@ -255,15 +421,82 @@ public class CloudStorageSystemProvider implements StorageSystemProvider {
     @Override
     public InputStream openInputStream(RetrieveContext ctx, String name)
             throws IOException {
+        if (packer != null) {
+            InputStream in = packer.openInputStream(name);
+            if (in != null)
+                return in;
+        }
         BlobStore blobStore = context.getBlobStore();
         String container = system.getStorageSystemContainer();
         Blob blob = blobStore.getBlob(container, name);
-        if (blob == null)
+        if (blob == null) {
+            // may be packed by another node meanwhile
+            if (packer != null && packer.reload()) {
+                InputStream in = packer.openInputStream(name);
+                if (in != null)
+                    return in;
+            }
             throw new ObjectNotFoundException(system.getStorageSystemPath(),
                     container + '/' + name);
+        }
         return blob.getPayload().openStream();
     }
 
+    @Override
+    public SeekableByteChannel openChannel(RetrieveContext ctx,
+            final String name) throws IOException {
+        if (packer != null) {
+            SeekableByteChannel channel = packer.openChannel(name);
+            if (channel != null)
+                return channel;
+        }
+        final BlobStore blobStore = context.getBlobStore();
+        final String container = system.getStorageSystemContainer();
+        BlobMetadata metadata = blobStore.blobMetadata(container, name);
+        if (metadata == null) {
+            // may be packed by another node meanwhile
+            if (packer != null && packer.reload()) {
+                SeekableByteChannel channel = packer.openChannel(name);
+                if (channel != null)
+                    return channel;
+            }
+            throw new ObjectNotFoundException(system.getStorageSystemPath(),
+                    container + '/' + name);
+        }
+        final long size = metadata.getContentMetadata().getContentLength();
+        return new StreamSeekableByteChannel(system.getBufferedInputLength()) {
+
+            private long windowEnd = -1L;
+            private long window;
+
+            // requests bounded ranges, so a seek does not drain or abort a
+            // response up to the end of a large object; the range grows
+            // while the object is read sequentially
+            @Override
+            protected InputStream openStream(long position) throws IOException {
+                window = position == windowEnd
+                        ? Math.min(window * 2, MAX_READ_WINDOW)
+                        : Math.max(system.getBufferedInputLength(),
+                                MIN_READ_WINDOW);
+                windowEnd = Math.min(size, position + window);
+                if (position >= windowEnd)
+                    return new ByteArrayInputStream(new byte[0]);
+                Blob blob = blobStore.getBlob(container, name,
+                        GetOptions.Builder.range(position, windowEnd - 1));
+                if (blob == null)
+                    throw new ObjectNotFoundException(
+                            system.getStorageSystemPath(),
+                            container + '/' + name);
+                return blob.getPayload().openStream();
+            }
+
+            @Override
+            protected long fetchSize() {
+                return size;
+            }
+        };
+    }
+
     @Override
     public Path getFile(RetrieveContext ctx, String name) throws IOException {
         throw new UnsupportedOperationException();
@@ -272,9 +505,13 @@ public class CloudStorageSystemProvider implements StorageSystemProvider {
     @Override
     public void deleteObject(StorageContext ctx, String name)
             throws IOException {
+        if (packer != null && packer.delete(name))
+            return;
         BlobStore blobStore = context.getBlobStore();
         String container = system.getStorageSystemContainer();
-        if (!blobStore.blobExists(container, name))
+        // removal of a missing blob is not an error of the blob store API,
+        // so a missing object is only reported if existence is checked
+        if (system.isCheckExists() && !blobStore.blobExists(container, name))
             throw new ObjectNotFoundException(system.getStorageSystemPath(),
                     container + '/' + name);
         blobStore.removeBlob(container, name);
@@ -293,6 +530,7 @@ public class CloudStorageSystemProvider implements StorageSystemProvider {
 
     @Override
     public void sync (List<String> names) throws IOException {
-        //do nothing.
+        if (packer != null && names != null)
+            packer.sync(names);
     }
 }
@@ -41,8 +41,20 @@ package org.dcm4chee.storage.cloud;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.jclouds.apis.ApiMetadata;
 import org.jclouds.aws.s3.AWSS3Client;
@@ -54,6 +66,7 @@ import org.jclouds.io.ContentMetadata;
 import org.jclouds.io.Payload;
 import org.jclouds.io.PayloadSlicer;
 import org.jclouds.io.internal.BasePayloadSlicer;
+import org.jclouds.io.payloads.ByteArrayPayload;
 import org.jclouds.openstack.swift.CommonSwiftClient;
 import org.jclouds.openstack.swift.SwiftApiMetadata;
 import org.jclouds.openstack.swift.blobstore.functions.ResourceToObjectInfo;
@@ -61,99 +74,368 @@ import org.jclouds.openstack.swift.domain.SwiftObject;
 import org.jclouds.openstack.swift.domain.internal.SwiftObjectImpl;
 import org.jclouds.s3.S3ApiMetadata;
 import org.jclouds.s3.domain.ObjectMetadataBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.ByteStreams;
 
 /**
+ * Uploads a blob as a sequence of parts. If constructed with an executor and
+ * a concurrency greater than 1, up to that number of parts are read ahead
+ * and uploaded at once; otherwise parts are uploaded one after another.
+ *
  * @author Steve Kroetsch<stevekroetsch@hotmail.com>
  *
  */
 @SuppressWarnings("deprecation")
 abstract class MultipartUploader {
 
+    private static Logger log = LoggerFactory
+            .getLogger(MultipartUploader.class);
+
     private PayloadSlicer slicer;
     private long partSize;
+    private Executor executor;
+    private int concurrency;
     protected BlobStoreContext context;
 
-    private MultipartUploader(BlobStoreContext context, long partSize) {
+    MultipartUploader(BlobStoreContext context, long partSize,
+            Executor executor, int concurrency) {
         if (partSize <= 0L)
             throw new IllegalArgumentException();
         this.partSize = partSize;
         this.context = context;
+        this.executor = executor;
+        this.concurrency = Math.max(1, concurrency);
         slicer = new BasePayloadSlicer();
     }
 
     static MultipartUploader newMultipartUploader(
             BlobStoreContext context, long partSize) {
+        return newMultipartUploader(context, partSize, null, 1);
+    }
+
+    static MultipartUploader newMultipartUploader(
+            BlobStoreContext context, long partSize, Executor executor,
+            int concurrency) {
         ApiMetadata apiMetadata = context.unwrap().getProviderMetadata()
                 .getApiMetadata();
         if (apiMetadata instanceof S3ApiMetadata) {
-            return new AWSS3MultipartUploader(context, partSize);
+            return new AWSS3MultipartUploader(context, partSize, executor,
+                    concurrency);
         } else if (apiMetadata instanceof SwiftApiMetadata) {
-            return new SwiftMultipartUploader(context, partSize);
+            return new SwiftMultipartUploader(context, partSize, executor,
+                    concurrency);
         }
         return null;
     }
 
+    int getConcurrency() {
+        return executor != null ? concurrency : 1;
+    }
+
     String upload(String container, Blob blob) throws IOException {
         MutableBlobMetadata metadata = blob.getMetadata();
         Payload payload = blob.getPayload();
         Iterable<Payload> parts = slicer.slice(payload, partSize);
-        return execute(container, metadata, parts);
+        return getConcurrency() > 1
+                ? executeParallel(container, metadata, parts)
+                : execute(container, metadata, parts);
+    }
+
+    protected String execute(String container, MutableBlobMetadata metadata,
+            Iterable<Payload> parts) throws IOException {
+        String key = metadata.getName();
+        SortedMap<Integer, String> etags = new TreeMap<Integer, String>();
+        String uploadId = initiate(container, metadata);
+        int partNum = 0;
+        try {
+            for (Payload part : parts) {
+                partNum++;
+                etags.put(Integer.valueOf(partNum),
+                        uploadPart(container, key, uploadId, partNum, part));
+            }
+            if (partNum == 0)
+                throw new IOException("Failed to read data from input stream");
+        } catch (Exception e) {
+            abort(container, key, uploadId, partNum);
+            throw e;
+        }
+        return complete(container, key, uploadId, etags);
+    }
+
+    protected String executeParallel(final String container,
+            MutableBlobMetadata metadata, Iterable<Payload> parts)
+            throws IOException {
+        final String key = metadata.getName();
+        final SortedMap<Integer, String> etags =
+                new ConcurrentSkipListMap<Integer, String>();
+        final Semaphore permits = new Semaphore(concurrency);
+        final AtomicReference<Throwable> failure =
+                new AtomicReference<Throwable>();
+        final String uploadId = initiate(container, metadata);
+        List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>();
+        int partNum = 0;
+        try {
+            Iterator<Payload> iter = parts.iterator();
+            for (;;) {
+                // bounds the number of parts held in memory to concurrency
+                permits.acquire();
+                if (failure.get() != null || !iter.hasNext()) {
+                    permits.release();
+                    break;
+                }
+                final int num = ++partNum;
+                final Payload part = detach(iter.next());
+                FutureTask<Void> task = new FutureTask<Void>(
+                        new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        try {
+                            etags.put(Integer.valueOf(num), uploadPart(
+                                    container, key, uploadId, num, part));
+                        } catch (Exception e) {
+                            failure.compareAndSet(null, e);
+                            throw e;
+                        } finally {
+                            permits.release();
+                        }
+                        return null;
+                    }
+                });
+                tasks.add(task);
+                try {
+                    executor.execute(task);
+                } catch (RuntimeException e) {
+                    tasks.remove(task);
+                    permits.release();
+                    throw e;
+                }
+            }
+        } catch (Exception e) {
+            failure.compareAndSet(null, e);
+        }
+        awaitCompletion(tasks, failure);
+        Throwable e = failure.get();
+        if (e == null && partNum == 0)
+            e = new IOException("Failed to read data from input stream");
+        if (e != null) {
+            abort(container, key, uploadId, partNum);
+            throw toIOException(e);
+        }
+        return complete(container, key, uploadId, etags);
     }
 
-    protected abstract String execute(String container,
-            MutableBlobMetadata metadata, Iterable<Payload> slices)
+    /**
+     * Initiates a multipart upload, to which the caller passes parts one
+     * after another as they become available.
+     */
+    Upload initiateUpload(String container, MutableBlobMetadata metadata)
+            throws IOException {
+        return new Upload(container, metadata.getName(),
+                initiate(container, metadata));
+    }
+
+    class Upload {
+
+        private final String container;
+        private final String key;
+        private final String uploadId;
+        private final SortedMap<Integer, String> etags =
+                new ConcurrentSkipListMap<Integer, String>();
+        private final Semaphore permits = new Semaphore(getConcurrency());
+        private final AtomicReference<Throwable> failure =
+                new AtomicReference<Throwable>();
+        private final List<FutureTask<Void>> tasks =
+                new ArrayList<FutureTask<Void>>();
+        private int partNum;
+
+        private Upload(String container, String key, String uploadId) {
+            this.container = container;
+            this.key = key;
+            this.uploadId = uploadId;
+        }
+
+        /**
+         * Uploads the next part. If the concurrency is greater than 1, the
+         * part is uploaded by the executor and this method only blocks while
+         * that number of parts are in progress; otherwise the part is
+         * uploaded by the calling thread.
+         *
+         * @param part the part
+         * @param onDone run after the part is uploaded or failed, to release
+         *        the buffers of the part
+         */
+        void uploadPart(final Payload part, final Runnable onDone)
+                throws IOException {
+            Throwable e = failure.get();
+            if (e != null) {
+                onDone.run();
+                throw toIOException(e);
+            }
+            final int num = ++partNum;
+            if (getConcurrency() <= 1) {
+                try {
+                    etags.put(Integer.valueOf(num), MultipartUploader.this
+                            .uploadPart(container, key, uploadId, num, part));
+                } finally {
+                    onDone.run();
+                }
+                return;
+            }
+            try {
+                permits.acquire();
+            } catch (InterruptedException ie) {
+                onDone.run();
+                throw toIOException(ie);
+            }
+            FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    try {
+                        etags.put(Integer.valueOf(num), MultipartUploader.this
+                                .uploadPart(container, key, uploadId, num, part));
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                        throw e;
+                    } finally {
+                        permits.release();
+                        onDone.run();
+                    }
+                    return null;
+                }
+            });
+            tasks.add(task);
+            try {
+                executor.execute(task);
+            } catch (RuntimeException re) {
+                tasks.remove(task);
+                permits.release();
+                onDone.run();
+                throw re;
+            }
+        }
+
+        String complete() throws IOException {
+            awaitCompletion(tasks, failure);
+            Throwable e = failure.get();
+            if (e == null && partNum == 0)
+                e = new IOException("No data written");
+            if (e != null)
+                throw toIOException(e);
+            return MultipartUploader.this.complete(container, key, uploadId,
+                    etags);
+        }
+
+        void abort() {
+            awaitCompletion(tasks, failure);
+            MultipartUploader.this.abort(container, key, uploadId, partNum);
+        }
+    }
+
+    private static void awaitCompletion(List<FutureTask<Void>> tasks,
+            AtomicReference<Throwable> failure) {
+        for (FutureTask<Void> task : tasks) {
+            try {
+                task.get();
+            } catch (ExecutionException e) {
+                failure.compareAndSet(null, e.getCause());
+            } catch (InterruptedException e) {
+                failure.compareAndSet(null, e);
+                for (FutureTask<Void> t : tasks)
+                    t.cancel(true);
+                return;
+            }
+        }
+    }
+
+    private static IOException toIOException(Throwable e) {
+        if (e instanceof IOException)
+            return (IOException) e;
+        if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        if (e instanceof Error)
+            throw (Error) e;
+        if (e instanceof InterruptedException) {
+            Thread.currentThread().interrupt();
+            return new InterruptedIOException("Multipart upload interrupted");
+        }
+        return new IOException("Multipart upload failed", e);
+    }
+
+    /**
+     * Slices of a stream payload share the underlying stream, so their
+     * content has to be read before the next slice is taken.
+     */
+    private static Payload detach(Payload part) throws IOException {
+        if (!(part.getRawContent() instanceof InputStream))
+            return part;
+        try (InputStream in = part.openStream()) {
+            return new ByteArrayPayload(ByteStreams.toByteArray(in));
+        }
+    }
+
+    protected abstract String initiate(String container,
+            MutableBlobMetadata metadata) throws IOException;
+
+    protected abstract String uploadPart(String container, String key,
+            String uploadId, int partNum, Payload part) throws IOException;
+
+    protected abstract String complete(String container, String key,
+            String uploadId, SortedMap<Integer, String> etags)
             throws IOException;
 
+    protected abstract void abort(String container, String key,
+            String uploadId, int numParts);
+
     static private class AWSS3MultipartUploader extends MultipartUploader {
 
         private AWSS3Client client;
 
-        private AWSS3MultipartUploader(BlobStoreContext context, long chunkSize) {
-            super(context, chunkSize);
+        private AWSS3MultipartUploader(BlobStoreContext context,
+                long chunkSize, Executor executor, int concurrency) {
+            super(context, chunkSize, executor, concurrency);
             client = context.unwrapApi(AWSS3Client.class);
         }
 
         @Override
-        protected String execute(String container,
-                MutableBlobMetadata metadata, Iterable<Payload> parts)
-                throws IOException {
+        protected String initiate(String container,
+                MutableBlobMetadata metadata) {
             ContentMetadata contentMetadata = metadata.getContentMetadata();
-            String key = metadata.getName();
             ObjectMetadataBuilder builder = ObjectMetadataBuilder
                     .create()
-                    .key(key)
+                    .key(metadata.getName())
                     .contentType(contentMetadata.getContentType())
                     .contentDisposition(contentMetadata.getContentDisposition());
-            SortedMap<Integer, String> etags = new TreeMap<Integer, String>();
-            String uploadId = client.initiateMultipartUpload(container,
-                    builder.build());
+            return client.initiateMultipartUpload(container, builder.build());
+        }
+
+        @Override
+        protected String uploadPart(String container, String key,
+                String uploadId, int partNum, Payload part) {
             try {
-                int partNum = 0;
-                for (Payload part : parts) {
-                    partNum++;
-                    String eTag;
-                    try {
-                        eTag = client.uploadPart(container, key, partNum,
-                                uploadId, part);
-                        etags.put(Integer.valueOf(partNum), eTag);
-                    } catch (KeyNotFoundException e) {
-                        // Try again, because of eventual consistency the upload
-                        // id may not be present.
-                        eTag = client.uploadPart(container, key, partNum,
-                                uploadId, part);
-                        etags.put(Integer.valueOf(partNum), eTag);
-                    }
-                }
-                if (partNum == 0)
-                    throw new IOException(
-                            "Failed to read data from input stream");
-            } catch (Exception e) {
-                client.abortMultipartUpload(container, key, uploadId);
-                throw e;
+                return client.uploadPart(container, key, partNum, uploadId,
+                        part);
+            } catch (KeyNotFoundException e) {
+                // Try again, because of eventual consistency the upload
+                // id may not be present.
+                return client.uploadPart(container, key, partNum, uploadId,
+                        part);
             }
+        }
+
+        @Override
+        protected String complete(String container, String key,
+                String uploadId, SortedMap<Integer, String> etags) {
             return client.completeMultipartUpload(container, key, uploadId,
                     etags);
         }
+
+        @Override
+        protected void abort(String container, String key, String uploadId,
+                int numParts) {
+            client.abortMultipartUpload(container, key, uploadId);
+        }
     }
 
     static private class SwiftMultipartUploader extends MultipartUploader {
@@ -163,8 +445,9 @@ abstract class MultipartUploader {
         private CommonSwiftClient client;
         private ResourceToObjectInfo blob2ObjectMd;
 
-        private SwiftMultipartUploader(BlobStoreContext context, long chunkSize) {
-            super(context, chunkSize);
+        private SwiftMultipartUploader(BlobStoreContext context,
+                long chunkSize, Executor executor, int concurrency) {
+            super(context, chunkSize, executor, concurrency);
             client = context.unwrapApi(CommonSwiftClient.class);
             blob2ObjectMd = new ResourceToObjectInfo();
         }
@@ -183,21 +466,38 @@ abstract class MultipartUploader {
         }
 
         @Override
-        protected String execute(String container,
-                MutableBlobMetadata metadata, Iterable<Payload> parts)
-                throws IOException {
-            String key = metadata.getName();
-            int partNum = 0;
-            for (Payload part : parts) {
-                partNum++;
+        protected String initiate(String container,
+                MutableBlobMetadata metadata) {
+            return null;
+        }
+
+        @Override
+        protected String uploadPart(String container, String key,
+                String uploadId, int partNum, Payload part) {
+            String partName = getPartName(key, partNum);
+            Blob blobPart = context.getBlobStore().blobBuilder(partName)
+                    .payload(part).contentDisposition(partName).build();
+            return client.putObject(container, blob2Object(blobPart));
+        }
+
+        @Override
+        protected String complete(String container, String key,
+                String uploadId, SortedMap<Integer, String> etags) {
+            return client.putObjectManifest(container, key);
+        }
+
+        @Override
+        protected void abort(String container, String key, String uploadId,
+                int numParts) {
+            for (int partNum = 1; partNum <= numParts; partNum++) {
                 String partName = getPartName(key, partNum);
-                Blob blobPart = context.getBlobStore().blobBuilder(partName)
-                        .payload(part).contentDisposition(partName).build();
-                client.putObject(container, blob2Object(blobPart));
+                try {
+                    client.removeObject(container, partName);
+                } catch (RuntimeException e) {
+                    log.warn("Failed to remove part {} of aborted upload: {}",
+                            partName, e);
+                }
             }
-            if (partNum == 0)
-                throw new IOException("Failed to read data from input stream");
-            return client.putObjectManifest(container, key);
         }
     }
 }
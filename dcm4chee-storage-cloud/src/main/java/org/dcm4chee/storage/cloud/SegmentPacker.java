@@ -0,0 +1,706 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.storage.cloud;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che3.net.Device;
+import org.dcm4chee.storage.ObjectAlreadyExistsException;
+import org.dcm4chee.storage.StreamSeekableByteChannel;
+import org.dcm4chee.storage.conf.StorageSystem;
+import org.dcm4chee.storage.conf.SyncPolicy;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.PageSet;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.options.GetOptions;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Packs small objects into segment blobs of
+ * {@link StorageSystem#getPackSegmentSize()}, to save the per request
+ * overhead of the object store. Objects are collected in an open segment in
+ * memory, which is uploaded if full, after
+ * {@link StorageSystem#getPackMaxDelay()} seconds, or on
+ * {@link #sync(Collection)} of one of its objects, so callers make stores
+ * durable by {@link StorageSystem#getSyncPolicy()} as for file systems.
+ * With {@link SyncPolicy#ALWAYS}, or without a scheduled executor to upload
+ * the open segment later, {@link #add} returns only after the segment is
+ * uploaded: the first waiting store uploads the open segment, while objects
+ * of stores arriving meanwhile are collected in the next open segment.
+ * Uploads of segments, which failed, are retried every
+ * {@link StorageSystem#getPackMaxDelay()} seconds.
+ * <p>
+ * Each segment blob {@code _segments/<uuid>.seg} is accompanied by an index
+ * blob {@code _segments/<uuid>.idx}, listing offset, length and name of its
+ * objects, from which the index of all packed objects is loaded on first
+ * access. Segments uploaded by other nodes later are loaded by
+ * {@link #reload}, if an object is not found. Objects packed by other nodes
+ * are not detected as duplicates on store, and deletions by other nodes are
+ * not noticed until restart. Segments, of which less than half of the data
+ * is still referenced after deletions, are compacted by re-packing the
+ * remaining objects.
+ *
+ * @author agent <agent@local>
+ *
+ */
+class SegmentPacker {
+
+    private static final Logger log = LoggerFactory.getLogger(SegmentPacker.class);
+
+    private static final String SEGMENT_DIR = "_segments";
+    private static final String SEGMENT_EXT = ".seg";
+    private static final String INDEX_EXT = ".idx";
+    private static final double COMPACT_RATIO = 0.5;
+
+    private final BlobStore blobStore;
+    private final StorageSystem system;
+    private final Device device;
+    private final Map<String, Entry> index = new HashMap<String, Entry>();
+    private final Map<String, Segment> pending = new LinkedHashMap<String, Segment>();
+    private final Set<String> segments = new HashSet<String>();
+    private final Object commitLock = new Object();
+    private final Object loadLock = new Object();
+    private Segment open;
+    private ScheduledFuture<?> flushTask;
+    private volatile boolean loaded;
+
+    private static class Segment {
+        final String name;
+        final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+        byte[] data;
+        int size;
+        int liveBytes;
+        boolean uploaded;
+        boolean compacting;
+
+        Segment(String name) {
+            this.name = name;
+        }
+    }
+
+    private static class Entry {
+        final Segment segment;
+        final int offset;
+        final int length;
+
+        Entry(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    SegmentPacker(BlobStore blobStore, StorageSystem system, Device device) {
+        this.blobStore = blobStore;
+        this.system = system;
+        this.device = device;
+    }
+
+    private String container() {
+        return system.getStorageSystemContainer();
+    }
+
+    boolean accepts(long size) {
+        return size <= system.getPackThresholdInBytes();
+    }
+
+    boolean contains(String name) throws IOException {
+        load();
+        synchronized (this) {
+            return index.containsKey(name);
+        }
+    }
+
+    /**
+     * Packs an object. With write-behind, returns after the object was added
+     * to the open segment, otherwise after the segment containing it is
+     * uploaded.
+     */
+    void add(String name, byte[] data) throws IOException {
+        load();
+        Entry entry;
+        Segment full;
+        synchronized (this) {
+            if (index.containsKey(name))
+                throw new ObjectAlreadyExistsException(
+                        system.getStorageSystemPath(), container() + '/' + name);
+            Segment prev = open;
+            entry = append(openSegment(data.length), name, data);
+            full = prev != entry.segment ? prev : null;
+        }
+        if (isWriteBehind()) {
+            if (full != null)
+                uploadLater(full);
+            scheduleFlush();
+            return;
+        }
+        try {
+            // stores waiting here are collected in the open segment, which
+            // is uploaded by the next of them
+            synchronized (commitLock) {
+                upload(entry.segment);
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                // the store failed, so do not report the object as existing
+                Segment seg = entry.segment;
+                if (!seg.uploaded && seg.entries.get(name) == entry) {
+                    seg.entries.remove(name);
+                    seg.liveBytes -= entry.length;
+                    index.remove(name);
+                }
+            }
+            throw e;
+        }
+    }
+
+    private Segment openSegment(int length) {
+        if (open != null && open.size > 0
+                && open.size + length > system.getPackSegmentSizeInBytes())
+            open = null;
+        if (open == null) {
+            open = new Segment(SEGMENT_DIR + '/' + UUID.randomUUID());
+            open.data = new byte[(int) Math.min(
+                    system.getPackSegmentSizeInBytes(),
+                    Math.max(length, 65536))];
+            pending.put(open.name, open);
+            segments.add(open.name);
+        }
+        return open;
+    }
+
+    private boolean isWriteBehind() {
+        return system.getSyncPolicy() != SyncPolicy.ALWAYS
+                && system.getPackMaxDelay() > 0
+                && device.getScheduledExecutor() != null;
+    }
+
+    private void uploadLater(final Segment seg) {
+        device.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    upload(seg);
+                } catch (IOException e) {
+                    log.warn("Failed to upload segment {} to {}",
+                            seg.name, system, e);
+                }
+            }
+        });
+    }
+
+    private Entry append(Segment seg, String name, byte[] data) {
+        if (seg.size + data.length > seg.data.length)
+            seg.data = Arrays.copyOf(seg.data,
+                    Math.max(seg.size + data.length, seg.data.length * 2));
+        System.arraycopy(data, 0, seg.data, seg.size, data.length);
+        Entry entry = new Entry(seg, seg.size, data.length);
+        seg.entries.put(name, entry);
+        seg.size += data.length;
+        seg.liveBytes += data.length;
+        index.put(name, entry);
+        return entry;
+    }
+
+    /**
+     * Uploads the open segment and retries failed uploads after
+     * {@link StorageSystem#getPackMaxDelay()} seconds.
+     */
+    private synchronized void scheduleFlush() {
+        int delay = system.getPackMaxDelay();
+        if (flushTask != null || delay <= 0
+                || device.getScheduledExecutor() == null)
+            return;
+        flushTask = device.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SegmentPacker.this) {
+                    flushTask = null;
+                }
+                try {
+                    flush();
+                } catch (IOException e) {
+                    log.warn("Failed to upload pending segments to {}",
+                            system, e);
+                }
+            }
+        }, delay, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Uploads the open segment and all segments, which upload failed before.
+     */
+    void flush() throws IOException {
+        List<Segment> segments;
+        synchronized (this) {
+            open = null;
+            segments = new ArrayList<Segment>(pending.values());
+        }
+        uploadAll(segments);
+    }
+
+    /**
+     * Uploads the segments containing any of the given objects.
+     */
+    void sync(Collection<String> names) throws IOException {
+        List<Segment> segments = new ArrayList<Segment>();
+        synchronized (this) {
+            for (String name : names) {
+                Entry entry = index.get(name);
+                if (entry != null && !entry.segment.uploaded
+                        && !segments.contains(entry.segment))
+                    segments.add(entry.segment);
+            }
+            if (segments.contains(open))
+                open = null;
+        }
+        uploadAll(segments);
+    }
+
+    /**
+     * Tries to upload all segments, even if the upload of one of them fails.
+     */
+    private void uploadAll(List<Segment> segments) throws IOException {
+        IOException failure = null;
+        for (Segment seg : segments) {
+            try {
+                upload(seg);
+            } catch (IOException e) {
+                if (failure == null)
+                    failure = e;
+                else
+                    failure.addSuppressed(e);
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    private void upload(Segment seg) throws IOException {
+        // serializes concurrent uploads of the same segment, so a sync
+        // waits for an upload already in progress
+        synchronized (seg) {
+            byte[] data;
+            int size;
+            byte[] idx;
+            int entryCount;
+            boolean empty;
+            synchronized (this) {
+                if (seg.uploaded)
+                    return;
+                if (seg == open)
+                    open = null;
+                if (seg.entries.isEmpty()) {
+                    // all objects deleted before upload
+                    seg.uploaded = true;
+                    seg.data = null;
+                    pending.remove(seg.name);
+                    return;
+                }
+                data = seg.data;
+                size = seg.size;
+                idx = indexOf(seg);
+                entryCount = seg.entries.size();
+            }
+            try {
+                putBlob(seg.name + SEGMENT_EXT, Arrays.copyOf(data, size));
+                putBlob(seg.name + INDEX_EXT, idx);
+            } catch (IOException e) {
+                scheduleFlush();
+                throw e;
+            }
+            synchronized (this) {
+                seg.uploaded = true;
+                seg.data = null;
+                pending.remove(seg.name);
+                // objects deleted during the upload
+                empty = seg.entries.isEmpty();
+                idx = !empty && seg.entries.size() != entryCount
+                        ? indexOf(seg) : null;
+            }
+            log.info("Uploaded segment[uri={}, container={}, name={}, size={}]",
+                    system.getStorageSystemPath(), container(), seg.name, size);
+            // the remaining objects are stored, so only log failures
+            try {
+                if (empty)
+                    removeSegment(seg);
+                else if (idx != null)
+                    putBlob(seg.name + INDEX_EXT, idx);
+            } catch (IOException e) {
+                log.warn("Failed to update index of segment {} in {}",
+                        seg.name, system, e);
+            }
+        }
+    }
+
+    private static byte[] indexOf(Segment seg) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(seg.size).append('\n');
+        for (Map.Entry<String, Entry> e : seg.entries.entrySet())
+            sb.append(e.getValue().offset).append(' ')
+                .append(e.getValue().length).append(' ')
+                .append(e.getKey()).append('\n');
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void putBlob(String name, byte[] data) throws IOException {
+        try {
+            Blob blob = blobStore.blobBuilder(name).payload(data).build();
+            blobStore.putBlob(container(), blob);
+        } catch (RuntimeException e) {
+            throw new IOException("Failed to upload " + name + " to "
+                    + container(), e);
+        }
+    }
+
+    private Blob getBlob(String name, GetOptions options) throws IOException {
+        try {
+            return blobStore.getBlob(container(), name, options);
+        } catch (RuntimeException e) {
+            throw new IOException("Failed to get " + name + " from "
+                    + container(), e);
+        }
+    }
+
+    /**
+     * Returns the size of a packed object or -1, if the object is not packed.
+     */
+    long size(String name) throws IOException {
+        load();
+        synchronized (this) {
+            Entry entry = index.get(name);
+            return entry != null ? entry.length : -1L;
+        }
+    }
+
+    /**
+     * Opens a packed object or returns {@code null}, if the object is not
+     * packed.
+     */
+    InputStream openInputStream(String name) throws IOException {
+        load();
+        Entry entry;
+        byte[] data;
+        synchronized (this) {
+            entry = index.get(name);
+            if (entry == null)
+                return null;
+            data = entry.segment.data;
+        }
+        return data != null
+                ? new ByteArrayInputStream(data, entry.offset, entry.length)
+                : openRange(entry, 0);
+    }
+
+    /**
+     * Opens a channel to a packed object or returns {@code null}, if the
+     * object is not packed.
+     */
+    SeekableByteChannel openChannel(String name) throws IOException {
+        load();
+        final Entry entry;
+        synchronized (this) {
+            entry = index.get(name);
+            if (entry == null)
+                return null;
+        }
+        return new StreamSeekableByteChannel(system.getBufferedInputLength()) {
+
+            @Override
+            protected InputStream openStream(long position) throws IOException {
+                if (position >= entry.length)
+                    return new ByteArrayInputStream(new byte[0]);
+                byte[] data;
+                synchronized (SegmentPacker.this) {
+                    data = entry.segment.data;
+                }
+                return data != null
+                        ? new ByteArrayInputStream(data,
+                                entry.offset + (int) position,
+                                entry.length - (int) position)
+                        : openRange(entry, position);
+            }
+
+            @Override
+            protected long fetchSize() {
+                return entry.length;
+            }
+        };
+    }
+
+    private InputStream openRange(Entry entry, long position) throws IOException {
+        if (position >= entry.length)
+            return new ByteArrayInputStream(new byte[0]);
+        long start = entry.offset + position;
+        Blob blob = getBlob(entry.segment.name + SEGMENT_EXT,
+                GetOptions.Builder.range(start, entry.offset + entry.length - 1));
+        if (blob == null)
+            throw new IOException("Missing segment " + entry.segment.name
+                    + " in " + container());
+        return blob.getPayload().openStream();
+    }
+
+    /**
+     * Deletes a packed object.
+     *
+     * @return {@code false}, if the object is not packed
+     */
+    boolean delete(String name) throws IOException {
+        load();
+        Segment seg;
+        byte[] idx = null;
+        boolean uploaded;
+        boolean compact = false;
+        synchronized (this) {
+            Entry entry = index.remove(name);
+            if (entry == null)
+                return false;
+            seg = entry.segment;
+            seg.entries.remove(name);
+            seg.liveBytes -= entry.length;
+            uploaded = seg.uploaded;
+            if (uploaded) {
+                if (!seg.entries.isEmpty())
+                    idx = indexOf(seg);
+                compact = !seg.compacting && !seg.entries.isEmpty()
+                        && seg.liveBytes < seg.size * COMPACT_RATIO;
+                seg.compacting |= compact;
+            }
+        }
+        if (uploaded) {
+            if (idx != null) {
+                putBlob(seg.name + INDEX_EXT, idx);
+            } else {
+                removeSegment(seg);
+            }
+        }
+        if (compact)
+            compactLater(seg);
+        return true;
+    }
+
+    private void removeSegment(Segment seg) throws IOException {
+        synchronized (this) {
+            segments.remove(seg.name);
+        }
+        try {
+            blobStore.removeBlob(container(), seg.name + INDEX_EXT);
+            blobStore.removeBlob(container(), seg.name + SEGMENT_EXT);
+        } catch (RuntimeException e) {
+            throw new IOException("Failed to remove segment " + seg.name
+                    + " from " + container(), e);
+        }
+    }
+
+    private void compactLater(final Segment seg) {
+        device.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact(seg);
+                } catch (IOException e) {
+                    log.warn("Failed to compact segment {} of {}",
+                            seg.name, system, e);
+                    synchronized (SegmentPacker.this) {
+                        seg.compacting = false;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Re-packs the remaining objects of a segment into the open segment,
+     * uploads it and removes the compacted segment.
+     */
+    private void compact(Segment seg) throws IOException {
+        List<String> names;
+        synchronized (this) {
+            names = new ArrayList<String>(seg.entries.keySet());
+        }
+        for (String name : names) {
+            Entry entry;
+            synchronized (this) {
+                entry = seg.entries.get(name);
+            }
+            if (entry == null)
+                continue;
+            byte[] data = new byte[entry.length];
+            try (InputStream in = openRange(entry, 0)) {
+                int off = 0;
+                int n;
+                while (off < data.length
+                        && (n = in.read(data, off, data.length - off)) > 0)
+                    off += n;
+                if (off < data.length)
+                    throw new IOException("Unexpected end of segment "
+                            + seg.name);
+            }
+            synchronized (this) {
+                // skip objects deleted meanwhile
+                if (seg.entries.remove(name) == null)
+                    continue;
+                seg.liveBytes -= entry.length;
+                // re-points the index entry, so the object is never missing
+                append(openSegment(data.length), name, data);
+            }
+        }
+        flush();
+        synchronized (this) {
+            seg.entries.clear();
+            seg.liveBytes = 0;
+        }
+        removeSegment(seg);
+        log.info("Compacted segment[uri={}, container={}, name={}]",
+                system.getStorageSystemPath(), container(), seg.name);
+    }
+
+    /**
+     * Loads the index of all packed objects on first access, without holding
+     * the monitor of the packer while fetching the index blobs.
+     */
+    private void load() throws IOException {
+        if (!loaded)
+            loadIndexes(false);
+    }
+
+    /**
+     * Loads the index of segments uploaded by other nodes since the last
+     * load.
+     *
+     * @return {@code true}, if segments were loaded
+     */
+    boolean reload() throws IOException {
+        return loadIndexes(true);
+    }
+
+    private boolean loadIndexes(boolean reload) throws IOException {
+        synchronized (loadLock) {
+            if (loaded && !reload)
+                return false;
+            Set<String> known;
+            synchronized (this) {
+                known = new HashSet<String>(segments);
+            }
+            List<String> loadedSegments = new ArrayList<String>();
+            Map<String, Entry> loadedIndex = new HashMap<String, Entry>();
+            String marker = null;
+            do {
+                ListContainerOptions options = ListContainerOptions.Builder
+                        .inDirectory(SEGMENT_DIR);
+                if (marker != null)
+                    options.afterMarker(marker);
+                PageSet<? extends StorageMetadata> page;
+                try {
+                    page = blobStore.list(container(), options);
+                } catch (RuntimeException e) {
+                    throw new IOException("Failed to list segments of "
+                            + container(), e);
+                }
+                for (StorageMetadata md : page) {
+                    String name = md.getName();
+                    if (!name.endsWith(INDEX_EXT))
+                        continue;
+                    String segName = name.substring(0,
+                            name.length() - INDEX_EXT.length());
+                    if (!known.contains(segName)) {
+                        loadIndex(segName, loadedIndex);
+                        loadedSegments.add(segName);
+                    }
+                }
+                marker = page.getNextMarker();
+            } while (marker != null);
+            synchronized (this) {
+                // entries of this node take precedence
+                for (Map.Entry<String, Entry> e : loadedIndex.entrySet())
+                    if (!index.containsKey(e.getKey()))
+                        index.put(e.getKey(), e.getValue());
+                segments.addAll(loadedSegments);
+                loaded = true;
+            }
+            return !loadedSegments.isEmpty();
+        }
+    }
+
+    private void loadIndex(String segName, Map<String, Entry> loadedIndex)
+            throws IOException {
+        Blob blob = getBlob(segName + INDEX_EXT, GetOptions.NONE);
+        if (blob == null)
+            return;
+        Segment seg = new Segment(segName);
+        seg.uploaded = true;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                blob.getPayload().openStream(), StandardCharsets.UTF_8))) {
+            seg.size = Integer.parseInt(reader.readLine());
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ", 3);
+                Entry entry = new Entry(seg, Integer.parseInt(fields[0]),
+                        Integer.parseInt(fields[1]));
+                seg.entries.put(fields[2], entry);
+                seg.liveBytes += entry.length;
+                loadedIndex.put(fields[2], entry);
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid index of segment " + segName, e);
+        }
+    }
+}
@@ -39,26 +39,40 @@
 package org.dcm4chee.storage.cloud;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Properties;
+import java.util.SortedMap;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.dcm4chee.storage.cloud.MultipartUploader;
 import org.jclouds.ContextBuilder;
 import org.jclouds.blobstore.BlobStore;
 import org.jclouds.blobstore.BlobStoreContext;
 import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.MutableBlobMetadata;
+import org.jclouds.io.Payload;
 import org.junit.Assert;
 import org.junit.Assume;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.google.common.io.ByteStreams;
+
 /**
  * @author Steve Kroetsch<stevekroetsch@hotmail.com>
  *
@@ -186,4 +200,123 @@ public class MultipartUploaderTest {
                 blobStore.removeBlob(container, name);
         }
     }
+
+    @Test
+    public void testParallelUpload() throws IOException {
+        byte[] data = createPartData(10, 1024);
+        BlobStoreContext context = ContextBuilder.newBuilder("transient")
+                .buildView(BlobStoreContext.class);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            InMemoryMultipartUploader uploader = new InMemoryMultipartUploader(
+                    context, 1024, executor, 3, -1);
+            uploader.upload("test", newBlob(context, data));
+            Assert.assertArrayEquals(data, uploader.completed);
+            Assert.assertFalse(uploader.aborted);
+            Assert.assertTrue(uploader.maxInFlight.get() > 1);
+            Assert.assertTrue(uploader.maxInFlight.get() <= 3);
+        } finally {
+            executor.shutdown();
+            context.close();
+        }
+    }
+
+    @Test
+    public void testParallelUploadAbortsOnFailure() throws IOException {
+        byte[] data = createPartData(10, 1024);
+        BlobStoreContext context = ContextBuilder.newBuilder("transient")
+                .buildView(BlobStoreContext.class);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            InMemoryMultipartUploader uploader = new InMemoryMultipartUploader(
+                    context, 1024, executor, 3, 4);
+            try {
+                uploader.upload("test", newBlob(context, data));
+                Assert.fail("IOException expected");
+            } catch (IOException e) {
+                Assert.assertEquals("Failed to upload part 4", e.getMessage());
+            }
+            Assert.assertTrue(uploader.aborted);
+            Assert.assertNull(uploader.completed);
+        } finally {
+            executor.shutdown();
+            context.close();
+        }
+    }
+
+    private static byte[] createPartData(int numParts, int partSize) {
+        byte[] data = new byte[numParts * partSize];
+        for (int i = 0; i < numParts; i++)
+            Arrays.fill(data, i * partSize, (i + 1) * partSize, (byte) i);
+        return data;
+    }
+
+    private static Blob newBlob(BlobStoreContext context, byte[] data) {
+        return context.getBlobStore().blobBuilder(UUID.randomUUID().toString())
+                .payload(new ByteArrayInputStream(data)).build();
+    }
+
+    private static class InMemoryMultipartUploader extends MultipartUploader {
+
+        final ConcurrentMap<Integer, byte[]> parts =
+                new ConcurrentHashMap<Integer, byte[]>();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final int failPartNum;
+        volatile byte[] completed;
+        volatile boolean aborted;
+
+        InMemoryMultipartUploader(BlobStoreContext context, long partSize,
+                ExecutorService executor, int concurrency, int failPartNum) {
+            super(context, partSize, executor, concurrency);
+            this.failPartNum = failPartNum;
+        }
+
+        @Override
+        protected String initiate(String container,
+                MutableBlobMetadata metadata) {
+            return "uploadId";
+        }
+
+        @Override
+        protected String uploadPart(String container, String key,
+                String uploadId, int partNum, Payload part) throws IOException {
+            int n = inFlight.incrementAndGet();
+            try {
+                int max;
+                while ((max = maxInFlight.get()) < n
+                        && !maxInFlight.compareAndSet(max, n))
+                    ;
+                Thread.sleep(50);
+                if (partNum == failPartNum)
+                    throw new IOException("Failed to upload part " + partNum);
+                try (InputStream in = part.openStream()) {
+                    parts.put(Integer.valueOf(partNum),
+                            ByteStreams.toByteArray(in));
+                }
+                return "etag" + partNum;
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+
+        @Override
+        protected String complete(String container, String key,
+                String uploadId, SortedMap<Integer, String> etags)
+                throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (Integer partNum : etags.keySet())
+                out.write(parts.get(partNum));
+            completed = out.toByteArray();
+            return "etag";
+        }
+
+        @Override
+        protected void abort(String container, String key, String uploadId,
+                int numParts) {
+            aborted = true;
+        }
+    }
 }
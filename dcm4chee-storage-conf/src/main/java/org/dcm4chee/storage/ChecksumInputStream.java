@@ -0,0 +1,168 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.storage;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Input stream of a container entry, which verifies the digest of the entry
+ * against its checksum, when the end of the entry is reached. Throws
+ * {@link ChecksumException} from {@code read}, so the caller never sees the
+ * end of a corrupted entry.
+ *
+ * @author agent <agent@local>
+ *
+ */
+public class ChecksumInputStream extends FilterInputStream {
+
+    private final MessageDigest digest;
+    private final byte[] checksum;
+    private final String entryName;
+    private final String name;
+    private boolean verified;
+    private ChecksumException failure;
+    private boolean closed;
+
+    public ChecksumInputStream(InputStream in, MessageDigest digest,
+            byte[] checksum, String entryName, String name) {
+        super(in);
+        this.digest = digest;
+        this.checksum = checksum;
+        this.entryName = entryName;
+        this.name = name;
+    }
+
+    /**
+     * Wraps the stream of a container entry for verification against the
+     * checksums read from the checksum entry of the container.
+     *
+     * @param in stream of the container entry
+     * @param checksums checksums of the container entries, or {@code null}
+     *        if the container has no checksum entry
+     * @param algorithm digest algorithm of the checksums
+     * @param entryName the name of the entry
+     * @param name the container name
+     * @return {@code in}, if {@code checksums} is {@code null}; otherwise
+     *         the verifying stream
+     * @throws ChecksumException if there is no checksum for the entry
+     */
+    public static InputStream verify(InputStream in,
+            Map<String, byte[]> checksums, String algorithm,
+            String entryName, String name) throws ChecksumException {
+        if (checksums == null)
+            return in;
+
+        byte[] checksum = checksums.get(entryName);
+        if (checksum == null)
+            throw new ChecksumException(
+                    "Missing checksum for container entry: "
+                            + entryName + " in " + name);
+        try {
+            return new ChecksumInputStream(in,
+                    MessageDigestPool.get(algorithm), checksum,
+                    entryName, name);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b < 0)
+            verify();
+        else
+            digest.update((byte) b);
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        if (n < 0)
+            verify();
+        else
+            digest.update(b, off, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] b = new byte[(int) Math.min(n, 8192)];
+        int read = read(b, 0, b.length);
+        return read < 0 ? 0 : read;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void verify() throws ChecksumException {
+        if (!verified) {
+            verified = true;
+            if (!Arrays.equals(digest.digest(), checksum))
+                failure = new ChecksumException(
+                        "Checksums do not match for container entry: "
+                                + entryName + " in " + name);
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+
+        closed = true;
+        try {
+            super.close();
+        } finally {
+            MessageDigestPool.release(digest);
+        }
+    }
+}
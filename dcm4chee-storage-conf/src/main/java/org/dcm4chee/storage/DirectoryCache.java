@@ -0,0 +1,99 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.storage;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Bounded set of directories of a storage system which are known to exist,
+ * so storage providers can skip checking and creating the parent directory
+ * of objects written into them. Providers must {@link #remove} directories
+ * they delete, and should re-create a cached directory if writing into it
+ * fails because it was removed by someone else.
+ * 
+ * @author agent <agent@local>
+ *
+ */
+public class DirectoryCache {
+
+    private final int maxSize;
+    private final ConcurrentMap<String, Boolean> dirs =
+            new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * @param maxSize
+     *            maximal number of cached directories; {@code 0} disables
+     *            the cache
+     */
+    public DirectoryCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public boolean contains(String dir) {
+        return maxSize > 0 && dirs.containsKey(dir);
+    }
+
+    public void add(String dir) {
+        if (maxSize <= 0)
+            return;
+
+        if (dirs.size() >= maxSize)
+            evict(Math.max(1, maxSize / 4));
+        dirs.put(dir, Boolean.TRUE);
+    }
+
+    public void remove(String dir) {
+        dirs.remove(dir);
+    }
+
+    public void clear() {
+        dirs.clear();
+    }
+
+    private void evict(int count) {
+        Iterator<String> iter = dirs.keySet().iterator();
+        while (count-- > 0 && iter.hasNext()) {
+            iter.next();
+            iter.remove();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.storage;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of {@link MessageDigest} instances per algorithm, to avoid the
+ * provider lookup of {@link MessageDigest#getInstance} for every stored or
+ * retrieved object. New instances are cloned from a prototype, if the
+ * provider supports it. Instances must be passed back by {@link #release}
+ * after their digest was calculated, and must not be used afterwards.
+ * 
+ * @author agent <agent@local>
+ *
+ */
+public class MessageDigestPool {
+
+    private static final int MAX_IDLE_PER_ALGORITHM = 64;
+
+    private static final ConcurrentMap<String, Entry> pools =
+            new ConcurrentHashMap<String, Entry>();
+
+    private static class Entry {
+        final MessageDigest prototype;
+        final Queue<MessageDigest> idle =
+                new ConcurrentLinkedQueue<MessageDigest>();
+        final AtomicInteger idleCount = new AtomicInteger();
+
+        Entry(MessageDigest prototype) {
+            this.prototype = prototype;
+        }
+    }
+
+    private MessageDigestPool() {
+    }
+
+    public static MessageDigest get(String algorithm)
+            throws NoSuchAlgorithmException {
+        Entry entry = pools.get(algorithm);
+        if (entry == null) {
+            entry = new Entry(MessageDigest.getInstance(algorithm));
+            Entry prev = pools.putIfAbsent(algorithm, entry);
+            if (prev != null)
+                entry = prev;
+        }
+        MessageDigest digest = entry.idle.poll();
+        if (digest != null) {
+            entry.idleCount.decrementAndGet();
+            return digest;
+        }
+        try {
+            return (MessageDigest) entry.prototype.clone();
+        } catch (CloneNotSupportedException e) {
+            return MessageDigest.getInstance(algorithm);
+        }
+    }
+
+    public static void release(MessageDigest digest) {
+        Entry entry = pools.get(digest.getAlgorithm());
+        if (entry == null || entry.idleCount.get() >= MAX_IDLE_PER_ALGORITHM)
+            return;
+
+        digest.reset();
+        entry.idleCount.incrementAndGet();
+        entry.idle.offer(digest);
+    }
+}
@@ -56,6 +56,7 @@ public class RetrieveContext {
     private FileCacheProvider fileCacheProvider;
     private StorageSystem storageSystem;
     private String digest;
+    private IOPriority priority = IOPriority.INTERACTIVE;
     private HashMap<String,Object> properties = new HashMap<String,Object>();
 
     public StorageSystemProvider getStorageSystemProvider() {
@@ -98,6 +99,14 @@ public class RetrieveContext {
         this.digest = digest;
     }
 
+    public IOPriority getPriority() {
+        return priority;
+    }
+
+    public void setPriority(IOPriority priority) {
+        this.priority = priority;
+    }
+
     public Object getProperty(String key) {
         return properties.get(key);
     }
@@ -67,6 +67,7 @@ public class StorageContext {
     private MessageDigest digest;
     private Path filePath;
     private String fileDigest;
+    private IOPriority priority = IOPriority.INGEST;
     private HashMap<String,Object> properties = new HashMap<String,Object>();
 
     public StorageSystemProvider getStorageSystemProvider() {
@@ -125,6 +126,14 @@ public class StorageContext {
         this.fileDigest = digest;
     }
 
+    public IOPriority getPriority() {
+        return priority;
+    }
+
+    public void setPriority(IOPriority priority) {
+        this.priority = priority;
+    }
+
     public Object getProperty(String key) {
         return properties.get(key);
     }
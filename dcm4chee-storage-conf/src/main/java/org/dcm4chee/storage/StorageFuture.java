@@ -0,0 +1,198 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.storage;
+
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of an asynchronous storage operation, which is completed by the
+ * operation and notifies registered {@link CompletionHandler}s on completion.
+ * Handlers are invoked by the thread completing the operation, or by the
+ * registering thread, if the operation is already completed, so they shall
+ * not block.
+ * 
+ * @author agent <agent@local>
+ *
+ */
+public class StorageFuture<V> implements Future<V> {
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final List<Callback<V, ?>> callbacks = new ArrayList<Callback<V, ?>>();
+    private boolean completed;
+    private V result;
+    private Throwable failure;
+
+    public static <V> StorageFuture<V> completed(V result) {
+        StorageFuture<V> future = new StorageFuture<V>();
+        future.complete(result);
+        return future;
+    }
+
+    public static <V> StorageFuture<V> failed(Throwable failure) {
+        StorageFuture<V> future = new StorageFuture<V>();
+        future.fail(failure);
+        return future;
+    }
+
+    /**
+     * Completes the operation with the given result.
+     * 
+     * @return {@code false}, if the operation was already completed
+     */
+    public boolean complete(V result) {
+        return setDone(result, null);
+    }
+
+    /**
+     * Completes the operation with the given failure.
+     * 
+     * @return {@code false}, if the operation was already completed
+     */
+    public boolean fail(Throwable failure) {
+        return setDone(null, failure);
+    }
+
+    /**
+     * Completes the operation with a {@link CancellationException}. A running
+     * operation is not interrupted, but an operation waiting for execution
+     * will not be started.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return setDone(null, new CancellationException());
+    }
+
+    private boolean setDone(V result, Throwable failure) {
+        List<Callback<V, ?>> toNotify;
+        synchronized (this) {
+            if (completed)
+                return false;
+            this.completed = true;
+            this.result = result;
+            this.failure = failure;
+            toNotify = new ArrayList<Callback<V, ?>>(callbacks);
+            callbacks.clear();
+        }
+        done.countDown();
+        for (Callback<V, ?> callback : toNotify)
+            callback.notify(result, failure);
+        return true;
+    }
+
+    /**
+     * Registers a handler, which is invoked on completion of the operation.
+     * 
+     * @param handler the handler, may be {@code null}
+     * @param attachment object passed to the handler
+     * @return this future
+     */
+    public <A> StorageFuture<V> whenDone(
+            CompletionHandler<V, ? super A> handler, A attachment) {
+        if (handler == null)
+            return this;
+
+        Callback<V, A> callback = new Callback<V, A>(handler, attachment);
+        synchronized (this) {
+            if (!completed) {
+                callbacks.add(callback);
+                return this;
+            }
+        }
+        callback.notify(result, failure);
+        return this;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return failure instanceof CancellationException;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return completed;
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    @Override
+    public V get(long timeout, TimeUnit unit) throws InterruptedException,
+            ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit))
+            throw new TimeoutException();
+        return result();
+    }
+
+    private synchronized V result() throws ExecutionException {
+        if (failure instanceof CancellationException)
+            throw (CancellationException) failure;
+        if (failure != null)
+            throw new ExecutionException(failure);
+        return result;
+    }
+
+    private static class Callback<V, A> {
+        private final CompletionHandler<V, ? super A> handler;
+        private final A attachment;
+
+        Callback(CompletionHandler<V, ? super A> handler, A attachment) {
+            this.handler = handler;
+            this.attachment = attachment;
+        }
+
+        void notify(V result, Throwable failure) {
+            if (failure == null)
+                handler.completed(result, attachment);
+            else
+                handler.failed(failure, attachment);
+        }
+    }
+}
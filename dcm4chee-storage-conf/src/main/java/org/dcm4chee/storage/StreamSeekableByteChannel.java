@@ -0,0 +1,206 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.storage;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * Read-only {@link SeekableByteChannel} for storage systems which can open an
+ * input stream at an arbitrary offset of an object, like ranged GET requests
+ * against an object store. Sequential reads and short forward seeks are served
+ * from the currently open stream; other seeks re-open the stream at the new
+ * position. Streams may cover only a range of the object, so implementations
+ * can issue bounded requests; a new stream is opened where one ended.
+ *
+ * @author agent <agent@local>
+ *
+ */
+public abstract class StreamSeekableByteChannel implements SeekableByteChannel {
+
+    private static final int MAX_SKIP = 64 * 1024;
+
+    private final int bufferSize;
+    private InputStream in;
+    private long inPosition;
+    private long position;
+    private long size = -1L;
+    private boolean closed;
+
+    protected StreamSeekableByteChannel(int bufferSize) {
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("bufferSize: " + bufferSize);
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Opens an input stream which starts at the specified position of the
+     * object and extends to its end or to the end of a range of it.
+     */
+    protected abstract InputStream openStream(long position) throws IOException;
+
+    protected abstract long fetchSize() throws IOException;
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (!dst.hasRemaining())
+            return 0;
+        if (position >= size())
+            return -1;
+        int n = read(streamAtPosition(), dst);
+        if (n < 0) {
+            // the stream covered only a range of the object
+            closeStream();
+            n = read(streamAtPosition(), dst);
+        }
+        if (n > 0) {
+            position += n;
+            inPosition += n;
+        }
+        return n;
+    }
+
+    private int read(InputStream in, ByteBuffer dst) throws IOException {
+        int n;
+        if (dst.hasArray()) {
+            n = in.read(dst.array(), dst.arrayOffset() + dst.position(),
+                    dst.remaining());
+            if (n > 0)
+                dst.position(dst.position() + n);
+        } else {
+            byte[] b = new byte[Math.min(dst.remaining(), bufferSize)];
+            n = in.read(b);
+            if (n > 0)
+                dst.put(b, 0, n);
+        }
+        return n;
+    }
+
+    private InputStream streamAtPosition() throws IOException {
+        if (in != null && inPosition != position) {
+            long gap = position - inPosition;
+            if (gap > 0 && gap <= MAX_SKIP && skip(in, gap))
+                inPosition = position;
+            else
+                closeStream();
+        }
+        if (in == null) {
+            in = new BufferedInputStream(openStream(position), bufferSize);
+            inPosition = position;
+        }
+        return in;
+    }
+
+    private static boolean skip(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                if (in.read() < 0)
+                    return false;
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+        return true;
+    }
+
+    private void closeStream() throws IOException {
+        InputStream tmp = in;
+        in = null;
+        if (tmp != null)
+            tmp.close();
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (closed)
+            throw new ClosedChannelException();
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0)
+            throw new IllegalArgumentException("position: " + newPosition);
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        if (size < 0)
+            size = fetchSize();
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) throws IOException {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            closeStream();
+        }
+    }
+}
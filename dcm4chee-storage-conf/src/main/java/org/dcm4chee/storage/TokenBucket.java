@@ -0,0 +1,143 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.storage;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket for limiting the rate of operations or transferred bytes.
+ * Callers may acquire more tokens than available; the missing tokens are
+ * borrowed from the future, so following callers wait until the debt is
+ * paid back. This keeps the long-term rate for requests of any size.
+ * 
+ * @author agent <agent@local>
+ *
+ */
+public class TokenBucket {
+
+    private final long ratePerSecond;
+    private final long capacity;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param ratePerSecond
+     *            number of tokens added per second; {@code 0} disables the
+     *            limit
+     * @param capacity
+     *            maximal number of tokens accumulated while idle
+     */
+    public TokenBucket(long ratePerSecond, long capacity) {
+        this.ratePerSecond = ratePerSecond;
+        this.capacity = Math.max(1L, capacity);
+        this.tokens = this.capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    public long getRatePerSecond() {
+        return ratePerSecond;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public boolean isUnlimited() {
+        return ratePerSecond <= 0;
+    }
+
+    /**
+     * Takes the specified number of tokens, waiting until previous debts
+     * are paid back.
+     */
+    public void acquire(long n) throws InterruptedException {
+        long waitNanos = reserve(n);
+        if (waitNanos > 0)
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+
+    /**
+     * Takes the specified number of tokens, if they are available without
+     * waiting.
+     */
+    public synchronized boolean tryAcquire(long n) {
+        if (isUnlimited())
+            return true;
+
+        refill();
+        if (tokens < n)
+            return false;
+
+        tokens -= n;
+        return true;
+    }
+
+    /**
+     * Returns the time in ns until the specified number of tokens will be
+     * available, if no other caller takes tokens meanwhile.
+     */
+    public synchronized long nanosUntilAvailable(long n) {
+        if (isUnlimited())
+            return 0L;
+
+        refill();
+        return tokens >= n ? 0L : (long) ((n - tokens) * 1e9 / ratePerSecond);
+    }
+
+    /**
+     * Takes the specified number of tokens and returns the time in ns the
+     * caller has to wait before using them.
+     */
+    public synchronized long reserve(long n) {
+        if (isUnlimited())
+            return 0L;
+
+        refill();
+        tokens -= n;
+        return tokens >= 0 ? 0L : (long) (-tokens * 1e9 / ratePerSecond);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity,
+                tokens + (now - lastRefill) * ratePerSecond / 1e9);
+        lastRefill = now;
+    }
+}
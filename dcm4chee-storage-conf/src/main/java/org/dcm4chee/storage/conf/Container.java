@@ -66,6 +66,9 @@ public class Container implements Serializable{
     @ConfigurableProperty(name = "dcmStorageContainerChecksumEntry", defaultValue = "MD5SUM")
     private String checksumEntry = "MD5SUM";
 
+    @ConfigurableProperty(name = "dcmStorageContainerIndexEntry")
+    private String indexEntry;
+
     private ContainerProvider containerProvider;
 
     public String getProviderName() {
@@ -103,4 +106,12 @@ public class Container implements Serializable{
         this.checksumEntry = checksumEntry;
     }
 
+    public String getIndexEntry() {
+        return indexEntry;
+    }
+
+    public void setIndexEntry(String indexEntry) {
+        this.indexEntry = indexEntry;
+    }
+
 }
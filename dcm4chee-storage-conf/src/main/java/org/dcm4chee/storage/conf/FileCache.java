@@ -92,6 +92,15 @@ public class FileCache implements Serializable{
     @ConfigurableProperty(name = "dcmStorageMinFreeSpace")
     private String minFreeSpace;
 
+    @ConfigurableProperty(name = "dcmStorageFileCacheRAMRootDirectory")
+    private String ramRootDirectory;
+
+    @ConfigurableProperty(name = "dcmStorageFileCacheRAMSize", defaultValue = "256MB")
+    private String ramSize = "256MB";
+
+    @ConfigurableProperty(name = "dcmStorageFileCacheRAMMaxObjectSize", defaultValue = "1MB")
+    private String ramMaxObjectSize = "1MB";
+
     @ConfigurableProperty(name = "dcmStorageSystemGroupID")
     private String storageSystemGroupID;
 
@@ -99,6 +108,8 @@ public class FileCache implements Serializable{
     private String storageSystemGroupType;
 
     private long minFreeSpaceInBytes = -1L;
+    private long ramSizeInBytes = 256000000L;
+    private long ramMaxObjectSizeInBytes = 1000000L;
     private FileCacheProvider fileCacheProvider;
 
     public String getProviderName() {
@@ -199,6 +210,44 @@ public class FileCache implements Serializable{
         return minFreeSpace;
     }
 
+    public String getRAMRootDirectory() {
+        return ramRootDirectory;
+    }
+
+    public void setRAMRootDirectory(String ramRootDirectory) {
+        this.ramRootDirectory = ramRootDirectory;
+    }
+
+    public String getRAMSize() {
+        return ramSize;
+    }
+
+    public void setRAMSize(String ramSize) {
+        this.ramSizeInBytes = ramSize != null
+                ? Utils.parseByteSize(ramSize)
+                : -1L;
+        this.ramSize = ramSize;
+    }
+
+    public long getRAMSizeInBytes() {
+        return ramSizeInBytes;
+    }
+
+    public String getRAMMaxObjectSize() {
+        return ramMaxObjectSize;
+    }
+
+    public void setRAMMaxObjectSize(String ramMaxObjectSize) {
+        this.ramMaxObjectSizeInBytes = ramMaxObjectSize != null
+                ? Utils.parseByteSize(ramMaxObjectSize)
+                : -1L;
+        this.ramMaxObjectSize = ramMaxObjectSize;
+    }
+
+    public long getRAMMaxObjectSizeInBytes() {
+        return ramMaxObjectSizeInBytes;
+    }
+
     public String getStorageSystemGroupID() {
         return storageSystemGroupID;
     }
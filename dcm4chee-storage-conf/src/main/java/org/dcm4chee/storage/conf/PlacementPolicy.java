@@ -0,0 +1,72 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.storage.conf;
+
+/**
+ * Policy defining which of the active storage systems of a storage group
+ * is selected for storing an object.
+ *
+ * @author agent <agent@local>
+ */
+public enum PlacementPolicy {
+
+    /**
+     * active storage systems are selected in turn
+     */
+    ROUND_ROBIN,
+
+    /**
+     * the active storage system with the least writes in progress is selected
+     */
+    LEAST_IN_FLIGHT,
+
+    /**
+     * the active storage system with the most usable space is selected;
+     * requires a usable space refresh interval on the storage systems
+     */
+    MOST_FREE_SPACE,
+
+    /**
+     * active storage systems are selected randomly, weighted by the
+     * reciprocal of their average write latency - the time writes spent in
+     * the storage system, without the time waiting for the client to supply
+     * the data
+     */
+    LATENCY_WEIGHTED
+}
@@ -82,12 +82,24 @@ public class StorageSystem implements Serializable{
     @ConfigurableProperty(name = "dcmStorageMinFreeSpace")
     private String minFreeSpace;
 
+    @ConfigurableProperty(name = "dcmStorageUsableSpaceRefreshInterval", defaultValue = "0")
+    private int usableSpaceRefreshInterval;
+
     @ConfigurableProperty(name = "dcmStorageReadOnly", defaultValue = "false")
     private boolean readOnly;
 
     @ConfigurableProperty(name = "dcmStorageCacheOnStore", defaultValue = "false")
     private boolean cacheOnStore;
 
+    @ConfigurableProperty(name = "dcmStorageHardLinkOnStore", defaultValue = "false")
+    private boolean hardLinkOnStore;
+
+    @ConfigurableProperty(name = "dcmStorageDirectoryCacheSize", defaultValue = "0")
+    private int directoryCacheSize;
+
+    @ConfigurableProperty(name = "dcmStorageAttributeCacheSize", defaultValue = "0")
+    private int attributeCacheSize;
+
     @ConfigurableProperty(name = "dcmInstanceAvailability", defaultValue = "ONLINE")
     private Availability availability = Availability.ONLINE;
 
@@ -115,9 +127,59 @@ public class StorageSystem implements Serializable{
     @ConfigurableProperty(name = "dcmStorageSystemSocketTimeout", defaultValue = "0")
     private int socketTimeout;
 
+    @ConfigurableProperty(name = "dcmStorageSystemConnectionIdleTimeout", defaultValue = "60")
+    private int connectionIdleTimeout = 60;
+
     @ConfigurableProperty(name = "dcmStorageSystemMultipartUploadSize", defaultValue = "32MB")
     private String multipartUploadSize = "32MB";
 
+    @ConfigurableProperty(name = "dcmStorageSystemMultipartUploadParallelism", defaultValue = "1")
+    private int multipartUploadParallelism = 1;
+
+    /**
+     * If disabled, the cloud provider lists the objects in the container on
+     * start, and requests the existence of an object before upload only for
+     * names found by the listing or uploaded by itself since; until the
+     * listing is complete, the existence is requested for each upload.
+     * Objects uploaded by other nodes after the start are then silently
+     * overwritten by uploads with the same name.
+     */
+    @ConfigurableProperty(name = "dcmStorageSystemCheckExists", defaultValue = "true")
+    private boolean checkExists = true;
+
+    @ConfigurableProperty(name = "dcmStorageSystemPackSegmentSize")
+    private String packSegmentSize;
+
+    @ConfigurableProperty(name = "dcmStorageSystemPackThreshold", defaultValue = "1MB")
+    private String packThreshold = "1MB";
+
+    @ConfigurableProperty(name = "dcmStorageSystemPackMaxDelay", defaultValue = "10")
+    private int packMaxDelay = 10;
+
+    @ConfigurableProperty(name = "dcmStorageSystemMaxConcurrentExtractions", defaultValue = "0")
+    private int maxConcurrentExtractions;
+
+    @ConfigurableProperty(name = "dcmStorageSystemRequestWindow", defaultValue = "16")
+    private int requestWindow = 16;
+
+    @ConfigurableProperty(name = "dcmStorageScrubThreads", defaultValue = "1")
+    private int scrubThreads = 1;
+
+    @ConfigurableProperty(name = "dcmStorageScrubMaxRate")
+    private String scrubMaxRate;
+
+    @ConfigurableProperty(name = "dcmStorageMaxBandwidth")
+    private String maxBandwidth;
+
+    @ConfigurableProperty(name = "dcmStorageMaxIOPS", defaultValue = "0")
+    private int maxIOPS;
+
+    @ConfigurableProperty(name = "dcmStorageMaxAsyncTransfers", defaultValue = "4")
+    private int maxAsyncTransfers = 4;
+
+    @ConfigurableProperty(name = "dcmStorageNativeAsync", defaultValue = "false")
+    private boolean nativeAsync;
+
     @ConfigurableProperty(name = "dcmStorageSystemEncryptionKeyAlias")
     private String encryptionKeyAlias;
 
@@ -142,6 +204,9 @@ public class StorageSystem implements Serializable{
     @ConfigurableProperty(name = "dcmSyncPolicy", defaultValue = "NEVER")
     private SyncPolicy syncPolicy = SyncPolicy.NEVER;
 
+    @ConfigurableProperty(name = "dcmSyncGroupCommitWindow", defaultValue = "0")
+    private int syncGroupCommitWindow;
+
     @ConfigurableProperty(name = "description")
     private String description;
 
@@ -160,6 +225,12 @@ public class StorageSystem implements Serializable{
     private StorageSystemGroup storageSystemGroup;
     private long minFreeSpaceInBytes = -1L;
     private long multipartUploadSizeInBytes = 32000000L;
+
+    private long packSegmentSizeInBytes = -1L;
+
+    private long packThresholdInBytes = 1000000L;
+    private long scrubMaxRateInBytes = -1L;
+    private long maxBandwidthInBytes = -1L;
     private transient StorageSystemProvider storageSystemProvider;
 
     public String getProviderName() {
@@ -245,6 +316,30 @@ public class StorageSystem implements Serializable{
         this.cacheOnStore = cacheOnStore;
     }
 
+    public boolean isHardLinkOnStore() {
+        return hardLinkOnStore;
+    }
+
+    public void setHardLinkOnStore(boolean hardLinkOnStore) {
+        this.hardLinkOnStore = hardLinkOnStore;
+    }
+
+    public int getDirectoryCacheSize() {
+        return directoryCacheSize;
+    }
+
+    public void setDirectoryCacheSize(int directoryCacheSize) {
+        this.directoryCacheSize = directoryCacheSize;
+    }
+
+    public int getAttributeCacheSize() {
+        return attributeCacheSize;
+    }
+
+    public void setAttributeCacheSize(int attributeCacheSize) {
+        this.attributeCacheSize = attributeCacheSize;
+    }
+
     public StorageSystemStatus getStorageSystemStatus() {
         return storageSystemStatus;
     }
@@ -293,6 +388,14 @@ public class StorageSystem implements Serializable{
         return minFreeSpaceInBytes;
     }
 
+    public int getUsableSpaceRefreshInterval() {
+        return usableSpaceRefreshInterval;
+    }
+
+    public void setUsableSpaceRefreshInterval(int usableSpaceRefreshInterval) {
+        this.usableSpaceRefreshInterval = usableSpaceRefreshInterval;
+    }
+
     public String getMountCheckFile() {
         return mountCheckFile;
     }
@@ -357,6 +460,14 @@ public class StorageSystem implements Serializable{
         this.socketTimeout = socketTimeout;
     }
 
+    public int getConnectionIdleTimeout() {
+        return connectionIdleTimeout;
+    }
+
+    public void setConnectionIdleTimeout(int connectionIdleTimeout) {
+        this.connectionIdleTimeout = connectionIdleTimeout;
+    }
+
     public String getMultipartUploadSize() {
         return multipartUploadSize;
     }
@@ -371,6 +482,134 @@ public class StorageSystem implements Serializable{
         return multipartUploadSizeInBytes;
     }
 
+    public int getMultipartUploadParallelism() {
+        return multipartUploadParallelism;
+    }
+
+    public void setMultipartUploadParallelism(int multipartUploadParallelism) {
+        this.multipartUploadParallelism = multipartUploadParallelism;
+    }
+
+    public boolean isCheckExists() {
+        return checkExists;
+    }
+
+    public void setCheckExists(boolean checkExists) {
+        this.checkExists = checkExists;
+    }
+
+    public String getPackSegmentSize() {
+        return packSegmentSize;
+    }
+
+    public void setPackSegmentSize(String packSegmentSize) {
+        this.packSegmentSizeInBytes = packSegmentSize != null ? Utils
+                .parseByteSize(packSegmentSize) : -1L;
+        this.packSegmentSize = packSegmentSize;
+    }
+
+    public long getPackSegmentSizeInBytes() {
+        return packSegmentSizeInBytes;
+    }
+
+    public String getPackThreshold() {
+        return packThreshold;
+    }
+
+    public void setPackThreshold(String packThreshold) {
+        this.packThresholdInBytes = packThreshold != null ? Utils
+                .parseByteSize(packThreshold) : -1L;
+        this.packThreshold = packThreshold;
+    }
+
+    public long getPackThresholdInBytes() {
+        return packThresholdInBytes;
+    }
+
+    public int getPackMaxDelay() {
+        return packMaxDelay;
+    }
+
+    public void setPackMaxDelay(int packMaxDelay) {
+        this.packMaxDelay = packMaxDelay;
+    }
+
+    public int getMaxConcurrentExtractions() {
+        return maxConcurrentExtractions;
+    }
+
+    public void setMaxConcurrentExtractions(int maxConcurrentExtractions) {
+        this.maxConcurrentExtractions = maxConcurrentExtractions;
+    }
+
+    public int getRequestWindow() {
+        return requestWindow;
+    }
+
+    public void setRequestWindow(int requestWindow) {
+        this.requestWindow = requestWindow;
+    }
+
+    public int getScrubThreads() {
+        return scrubThreads;
+    }
+
+    public void setScrubThreads(int scrubThreads) {
+        this.scrubThreads = scrubThreads;
+    }
+
+    public String getScrubMaxRate() {
+        return scrubMaxRate;
+    }
+
+    public void setScrubMaxRate(String scrubMaxRate) {
+        this.scrubMaxRateInBytes = scrubMaxRate != null ? Utils
+                .parseByteSize(scrubMaxRate) : -1L;
+        this.scrubMaxRate = scrubMaxRate;
+    }
+
+    public long getScrubMaxRateInBytes() {
+        return scrubMaxRateInBytes;
+    }
+
+    public String getMaxBandwidth() {
+        return maxBandwidth;
+    }
+
+    public void setMaxBandwidth(String maxBandwidth) {
+        this.maxBandwidthInBytes = maxBandwidth != null ? Utils
+                .parseByteSize(maxBandwidth) : -1L;
+        this.maxBandwidth = maxBandwidth;
+    }
+
+    public long getMaxBandwidthInBytes() {
+        return maxBandwidthInBytes;
+    }
+
+    public int getMaxIOPS() {
+        return maxIOPS;
+    }
+
+    public void setMaxIOPS(int maxIOPS) {
+        this.maxIOPS = maxIOPS;
+    }
+
+    public int getMaxAsyncTransfers() {
+        return maxAsyncTransfers;
+    }
+
+    public void setMaxAsyncTransfers(int maxAsyncTransfers) {
+        this.maxAsyncTransfers = maxAsyncTransfers;
+    }
+
+    public boolean isNativeAsync() {
+        return nativeAsync;
+    }
+
+    public void setNativeAsync(boolean nativeAsync) {
+        this.nativeAsync = nativeAsync;
+    }
+
     public void setEncryptionKeyAlias(String encryptionKeyAlias) {
         this.encryptionKeyAlias = encryptionKeyAlias;
     }
@@ -442,6 +681,14 @@ public class StorageSystem implements Serializable{
         this.syncPolicy = syncPolicy;
     }
 
+    public int getSyncGroupCommitWindow() {
+        return syncGroupCommitWindow;
+    }
+
+    public void setSyncGroupCommitWindow(int syncGroupCommitWindow) {
+        this.syncGroupCommitWindow = syncGroupCommitWindow;
+    }
+
     public StorageSystemProvider getStorageSystemProvider(
             Instance<StorageSystemProvider> instances) {
         if (storageSystemProvider == null) {
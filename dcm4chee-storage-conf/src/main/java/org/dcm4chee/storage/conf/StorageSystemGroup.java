@@ -107,6 +107,9 @@ public class StorageSystemGroup implements Serializable{
     @ConfigurableProperty(name = "dcmStorageParallelism", defaultValue = "1")
     private int parallelism = 1;
 
+    @ConfigurableProperty(name = "dcmStoragePlacementPolicy", defaultValue = "ROUND_ROBIN")
+    private PlacementPolicy placementPolicy = PlacementPolicy.ROUND_ROBIN;
+
     @ConfigurableProperty(name = "dcmStorageFilePathFormat")
     private String storageFilePathFormat;
 
@@ -278,6 +281,14 @@ public class StorageSystemGroup implements Serializable{
         this.parallelism = parallelism;
     }
 
+    public PlacementPolicy getPlacementPolicy() {
+        return placementPolicy;
+    }
+
+    public void setPlacementPolicy(PlacementPolicy placementPolicy) {
+        this.placementPolicy = placementPolicy;
+    }
+
     public String getDigestAlgorithm() {
 		return digestAlgorithm;
 	}
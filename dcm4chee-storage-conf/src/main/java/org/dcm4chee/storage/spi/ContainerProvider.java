@@ -41,6 +41,7 @@ package org.dcm4chee.storage.spi;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.SeekableByteChannel;
 import java.util.List;
 
 import org.dcm4chee.storage.ContainerEntry;
@@ -72,6 +73,30 @@ public interface ContainerProvider {
     InputStream seekEntry(RetrieveContext ctx, String name, String entryName,
             InputStream in) throws IOException;
 
+    /**
+     * Seeks the entry with random access to the container. If the container
+     * provides an index of its entries, the entry is read without reading
+     * preceding entries; otherwise the container is scanned from its begin.
+     *
+     * @param ctx the retrieve context
+     * @param name the container name
+     * @param entryName the name of the entry
+     * @param channel channel to the container, positioned at its begin
+     * @return input stream of the entry, which closes the channel on close
+     * @throws IOException
+     */
+    InputStream seekEntry(RetrieveContext ctx, String name, String entryName,
+            SeekableByteChannel channel) throws IOException;
+
+    /**
+     * Returns {@code true} if containers provide an index of their entries,
+     * so {@link #seekEntry(RetrieveContext, String, String, SeekableByteChannel)}
+     * does not need to scan preceding entries.
+     *
+     * @return {@code true} if entries can be seeked by index
+     */
+    boolean hasEntryIndex();
+
     void extractEntries(RetrieveContext ctx, String name,
             ExtractTask extractTask, InputStream in) throws IOException;
 }
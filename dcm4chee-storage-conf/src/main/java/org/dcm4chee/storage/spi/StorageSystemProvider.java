@@ -41,11 +41,13 @@ package org.dcm4chee.storage.spi;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Path;
 import java.util.List;
 
 import org.dcm4chee.storage.RetrieveContext;
 import org.dcm4chee.storage.StorageContext;
+import org.dcm4chee.storage.StorageFuture;
 import org.dcm4chee.storage.conf.StorageSystem;
 
 
@@ -76,12 +78,40 @@ public interface StorageSystemProvider {
     public void storeFile(StorageContext context, Path path, String name)
             throws IOException;
 
+    /**
+     * Starts to store a file without blocking a thread for the whole transfer.
+     * Used instead of running {@link #storeFile} on an executor, if enabled by
+     * {@link StorageSystem#isNativeAsync()}.
+     *
+     * @param context the storage context
+     * @param path the file to store
+     * @param name the name of the stored object
+     * @return future completed after the file is stored
+     * @throws IOException if the transfer could not be started
+     * @throws UnsupportedOperationException if the provider, or one of its
+     *         decorators, can only store the file by {@link #storeFile}
+     */
+    public StorageFuture<Void> storeFileAsync(StorageContext context, Path path,
+            String name) throws IOException;
+
     public void moveFile(StorageContext context, Path path, String name)
             throws IOException;
 
     public InputStream openInputStream(RetrieveContext ctx, String name)
             throws IOException;
 
+    /**
+     * Opens a read-only channel to the object, which allows to read parts of
+     * it without transferring the whole object from the storage system.
+     *
+     * @param ctx the retrieve context
+     * @param name the object name
+     * @return seekable channel positioned at the begin of the object
+     * @throws IOException
+     */
+    public SeekableByteChannel openChannel(RetrieveContext ctx, String name)
+            throws IOException;
+
     public Path getFile(RetrieveContext ctx, String name)
             throws IOException;
 
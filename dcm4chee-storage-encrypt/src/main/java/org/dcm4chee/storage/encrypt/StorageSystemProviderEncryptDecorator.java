@@ -41,6 +41,7 @@ package org.dcm4chee.storage.encrypt;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.KeyStore;
@@ -59,6 +60,7 @@ import org.dcm4che3.util.StreamUtils;
 import org.dcm4che3.util.StringUtils;
 import org.dcm4chee.storage.RetrieveContext;
 import org.dcm4chee.storage.StorageContext;
+import org.dcm4chee.storage.StorageFuture;
 import org.dcm4chee.storage.conf.StorageDevice;
 import org.dcm4chee.storage.conf.StorageSystem;
 import org.dcm4chee.storage.spi.StorageSystemProvider;
@@ -144,6 +146,15 @@ public abstract class StorageSystemProviderEncryptDecorator implements
             storageSystemProvider.storeFile(context, path, name);
     }
 
+    @Override
+    public StorageFuture<Void> storeFileAsync(StorageContext context, Path path,
+            String name) throws IOException {
+        if (secretKey != null)
+            throw new UnsupportedOperationException();
+        else
+            return storageSystemProvider.storeFileAsync(context, path, name);
+    }
+
     @Override
     public void moveFile(StorageContext context, Path path, String name)
             throws IOException {
@@ -164,6 +175,15 @@ public abstract class StorageSystemProviderEncryptDecorator implements
         return secretKey != null ? new BlockCipherInputStream(in, secretKey) : in;
     }
 
+    @Override
+    public SeekableByteChannel openChannel(RetrieveContext ctx, String name)
+            throws IOException {
+        if (secretKey != null)
+            throw new UnsupportedOperationException();
+        else
+            return storageSystemProvider.openChannel(ctx, name);
+    }
+
     @Override
     public Path getFile(RetrieveContext ctx, String name) throws IOException {
         if (secretKey != null)
@@ -72,7 +72,7 @@ public class DefaultFileCacheProvider implements FileCacheProvider {
     private org.dcm4che3.filecache.FileCache impl;
 
     @Inject @StorageDevice
-    private Device device;
+    protected Device device;
 
     @Override
     public void init(FileCache fileCache) {
@@ -101,13 +101,17 @@ public class DefaultFileCacheProvider implements FileCacheProvider {
         return toPath(ctx.getStorageSystem(), name);
     }
 
-    private Path toPath(StorageSystem storageSystem, String name) {
-        return impl.getFileCacheRootDirectory().resolve(
+    protected Path toPath(StorageSystem storageSystem, String name) {
+        return getFileCacheRootDirectory().resolve(
                 Paths.get(
                     storageSystem.getStorageSystemID(),
                     name));
     }
 
+    protected Path getFileCacheRootDirectory() {
+        return impl.getFileCacheRootDirectory();
+    }
+
     @Override
     public void register(StorageContext ctx, String name, Path path) throws IOException {
         register(path);
@@ -0,0 +1,431 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.storage.filecache;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.enterprise.context.Dependent;
+import javax.inject.Named;
+
+import org.dcm4chee.storage.StorageContext;
+import org.dcm4chee.storage.conf.FileCache;
+import org.dcm4chee.storage.conf.StorageSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * File cache with a RAM tier in front of the journal based file cache.
+ * <p>
+ * The RAM tier is a directory on a memory backed file system (e.g. tmpfs)
+ * specified by {@link FileCache#getRAMRootDirectory()}. Cached files are
+ * written to the RAM tier and written back asynchronously to the file cache
+ * root directory, which serves as SSD tier. If the RAM tier exceeds
+ * {@link FileCache#getRAMSizeInBytes()}, least recently used files are
+ * demoted by replacing them with a symbolic link to their copy in the SSD
+ * tier. Files larger than {@link FileCache#getRAMMaxObjectSizeInBytes()} are
+ * demoted as soon as they are written back; smaller ones are promoted again
+ * on access. Objects of a known size exceeding this limit are written to
+ * the SSD tier directly.
+ *
+ * @author agent <agent@local>
+ *
+ */
+@Named("org.dcm4chee.storage.filecache.tiered")
+@Dependent
+public class TieredFileCacheProvider extends DefaultFileCacheProvider {
+
+    private static final Logger LOG = LoggerFactory
+            .getLogger(TieredFileCacheProvider.class);
+
+    private final LinkedHashMap<Path, Long> resident =
+            new LinkedHashMap<Path, Long>(16, 0.75f, true);
+    private final Set<Path> pending = new HashSet<Path>();
+    private long residentSize;
+    private Path ramRoot;
+    private long ramSize;
+    private long maxObjectSize;
+
+    @Override
+    public void init(FileCache fileCache) {
+        super.init(fileCache);
+        if (fileCache.getRAMRootDirectory() == null)
+            return;
+
+        ramRoot = Paths.get(fileCache.getRAMRootDirectory());
+        ramSize = fileCache.getRAMSizeInBytes();
+        maxObjectSize = fileCache.getRAMMaxObjectSizeInBytes();
+        try {
+            loadRAMTier();
+        } catch (IOException e) {
+            LOG.warn("Failed to load RAM tier {}", ramRoot, e);
+        }
+    }
+
+    private void loadRAMTier() throws IOException {
+        if (!Files.isDirectory(ramRoot))
+            return;
+
+        Files.walkFileTree(ramRoot, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file,
+                    BasicFileAttributes attrs) throws IOException {
+                if (file.getFileName().toString().endsWith(".part"))
+                    Files.delete(file);
+                else if (attrs.isRegularFile()) {
+                    addResident(file, attrs.size());
+                    if (!Files.exists(toSSDTier(file)) && beginTransfer(file))
+                        writeBack(file, attrs.size());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        evict();
+    }
+
+    @Override
+    public Path toPath(StorageContext ctx, String name) {
+        Path path = toPath(ctx.getStorageSystem(), name);
+        return ramRoot != null && !fitsRAM(ctx.getFileSize())
+                ? toSSDTier(path)
+                : path;
+    }
+
+    @Override
+    protected Path toPath(StorageSystem storageSystem, String name) {
+        return ramRoot != null
+                ? ramRoot.resolve(
+                        Paths.get(
+                            storageSystem.getStorageSystemID(),
+                            name))
+                : super.toPath(storageSystem, name);
+    }
+
+    private boolean isRAMTier(Path path) {
+        return ramRoot != null && path.startsWith(ramRoot);
+    }
+
+    private Path toSSDTier(Path path) {
+        return getFileCacheRootDirectory().resolve(ramRoot.relativize(path));
+    }
+
+    private boolean fitsRAM(long size) {
+        return maxObjectSize < 0 || size <= maxObjectSize;
+    }
+
+    private static Path resolveTempPath(Path path) {
+        return path.resolveSibling(path.getFileName() + ".part");
+    }
+
+    @Override
+    public void register(Path path) throws IOException {
+        if (!isRAMTier(path)) {
+            super.register(path);
+            return;
+        }
+
+        long size = Files.size(path);
+        addResident(path, size);
+        if (beginTransfer(path))
+            writeBack(path, size);
+    }
+
+    @Override
+    public boolean access(Path path) throws IOException {
+        if (!isRAMTier(path))
+            return super.access(path);
+
+        Path ssdPath = toSSDTier(path);
+        if (Files.isSymbolicLink(path)) {
+            if (!super.access(ssdPath)) {
+                Files.deleteIfExists(path);
+                return false;
+            }
+            long size = Files.size(ssdPath);
+            if (fitsRAM(size) && beginTransfer(path))
+                promote(path, ssdPath, size);
+            return true;
+        }
+
+        if (Files.exists(path)) {
+            touch(path);
+            return true;
+        }
+
+        if (!super.access(ssdPath))
+            return false;
+
+        if (!beginTransfer(path)) {
+            // restored by another thread
+            awaitTransfer(path);
+            return access(path);
+        }
+        try {
+            restore(path, ssdPath);
+        } finally {
+            endTransfer(path);
+        }
+        return true;
+    }
+
+    @Override
+    public void clearCache() throws IOException {
+        if (ramRoot != null) {
+            clearResident();
+            if (Files.isDirectory(ramRoot))
+                Files.walkFileTree(ramRoot, new SimpleFileVisitor<Path>() {
+
+                    @Override
+                    public FileVisitResult visitFile(Path file,
+                            BasicFileAttributes attrs) throws IOException {
+                        Files.delete(file);
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult postVisitDirectory(Path dir,
+                            IOException e) throws IOException {
+                        if (e != null)
+                            throw e;
+                        if (!dir.equals(ramRoot))
+                            Files.delete(dir);
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+        }
+        super.clearCache();
+    }
+
+    private void writeBack(final Path path, final long size) {
+        device.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    copyToSSDTier(path);
+                } catch (IOException e) {
+                    LOG.warn("Failed to write back {} to SSD tier", path, e);
+                } finally {
+                    endTransfer(path);
+                }
+                if (!fitsRAM(size) && removeResident(path))
+                    demote(path);
+                evict();
+            }
+        });
+    }
+
+    private void promote(final Path path, final Path ssdPath, final long size) {
+        device.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    copyToRAMTier(ssdPath, path);
+                    addResident(path, size);
+                } catch (IOException e) {
+                    LOG.warn("Failed to promote {} to RAM tier", path, e);
+                } finally {
+                    endTransfer(path);
+                }
+                evict();
+            }
+        });
+    }
+
+    private void restore(Path path, Path ssdPath) throws IOException {
+        Files.createDirectories(path.getParent());
+        if (!fitsRAM(Files.size(ssdPath))) {
+            try {
+                linkToSSDTier(path, ssdPath);
+                return;
+            } catch (UnsupportedOperationException e) {
+                // copy to RAM tier and demote after write back
+            }
+        }
+        copyToRAMTier(ssdPath, path);
+        addResident(path, Files.size(path));
+        evict();
+    }
+
+    private void copyToRAMTier(Path ssdPath, Path path) throws IOException {
+        Path tmpPath = resolveTempPath(path);
+        try {
+            Files.copy(ssdPath, tmpPath, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tmpPath, path, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmpPath);
+            throw e;
+        }
+    }
+
+    private void copyToSSDTier(Path path) throws IOException {
+        Path ssdPath = toSSDTier(path);
+        Path tmpPath = resolveTempPath(ssdPath);
+        Files.createDirectories(ssdPath.getParent());
+        try {
+            Files.copy(path, tmpPath, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tmpPath, ssdPath, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmpPath);
+            throw e;
+        }
+        super.register(ssdPath);
+    }
+
+    private void evict() {
+        for (Path path : selectVictims())
+            demote(path);
+    }
+
+    private void demote(Path path) {
+        Path ssdPath = toSSDTier(path);
+        try {
+            if (!Files.exists(ssdPath))
+                copyToSSDTier(path);
+            try {
+                linkToSSDTier(path, ssdPath);
+            } catch (UnsupportedOperationException | IOException e) {
+                Files.delete(path);
+            }
+        } catch (IOException e) {
+            LOG.warn("Failed to demote {} to SSD tier", path, e);
+            addResident(path, sizeOf(path));
+        }
+    }
+
+    private static void linkToSSDTier(Path path, Path ssdPath)
+            throws IOException {
+        Path linkPath = resolveTempPath(path);
+        try {
+            Files.deleteIfExists(linkPath);
+            Files.createSymbolicLink(linkPath, ssdPath.toAbsolutePath());
+            Files.move(linkPath, path, StandardCopyOption.ATOMIC_MOVE);
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.deleteIfExists(linkPath);
+            throw e;
+        }
+    }
+
+    private static long sizeOf(Path path) {
+        try {
+            return Files.size(path);
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+
+    private synchronized void addResident(Path path, long size) {
+        Long prev = resident.put(path, size);
+        if (prev != null)
+            residentSize -= prev;
+        residentSize += size;
+    }
+
+    private synchronized boolean removeResident(Path path) {
+        Long size = resident.remove(path);
+        if (size == null)
+            return false;
+
+        residentSize -= size;
+        return true;
+    }
+
+    private synchronized void touch(Path path) {
+        resident.get(path);
+    }
+
+    private synchronized void clearResident() {
+        resident.clear();
+        residentSize = 0L;
+    }
+
+    private synchronized boolean beginTransfer(Path path) {
+        return pending.add(path);
+    }
+
+    private synchronized void endTransfer(Path path) {
+        pending.remove(path);
+        notifyAll();
+    }
+
+    private synchronized void awaitTransfer(Path path)
+            throws InterruptedIOException {
+        try {
+            while (pending.contains(path))
+                wait();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    private synchronized List<Path> selectVictims() {
+        List<Path> victims = new ArrayList<Path>();
+        if (ramSize < 0)
+            return victims;
+
+        Iterator<Map.Entry<Path, Long>> iter = resident.entrySet().iterator();
+        while (residentSize > ramSize && iter.hasNext()) {
+            Map.Entry<Path, Long> entry = iter.next();
+            if (pending.contains(entry.getKey()))
+                continue;
+
+            iter.remove();
+            residentSize -= entry.getValue();
+            victims.add(entry.getKey());
+        }
+        return victims;
+    }
+}
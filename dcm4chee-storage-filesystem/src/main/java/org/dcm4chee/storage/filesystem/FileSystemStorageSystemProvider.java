@@ -38,21 +38,32 @@
 
 package org.dcm4chee.storage.filesystem;
 
+import org.dcm4che3.net.Device;
+import org.dcm4chee.storage.DirectoryCache;
 import org.dcm4chee.storage.ObjectAlreadyExistsException;
 import org.dcm4chee.storage.ObjectNotFoundException;
 import org.dcm4chee.storage.RetrieveContext;
 import org.dcm4chee.storage.StorageContext;
+import org.dcm4chee.storage.StorageFuture;
+import org.dcm4chee.storage.conf.StorageDevice;
 import org.dcm4chee.storage.conf.StorageSystem;
 import org.dcm4chee.storage.conf.SyncPolicy;
 import org.dcm4chee.storage.spi.StorageSystemProvider;
 
 import javax.enterprise.context.Dependent;
+import javax.inject.Inject;
 import javax.inject.Named;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
 import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.*;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 /**
  * @author Gunter Zeilinger<gunterze@gmail.com>
@@ -62,8 +73,15 @@ import java.util.Map;
 @Dependent
 public class FileSystemStorageSystemProvider implements StorageSystemProvider {
 
+    private static final int ASYNC_BUFFER_SIZE = 65536;
+
+    @Inject @StorageDevice
+    private Device device;
+
     private StorageSystem storageSystem;
     private Path basePath;
+    private GroupCommitSync groupCommitSync;
+    private DirectoryCache dirCache;
 
     @Override
     public Path getBaseDirectory(StorageSystem system) {
@@ -74,6 +92,13 @@ public class FileSystemStorageSystemProvider implements StorageSystemProvider {
     public void init(StorageSystem storageSystem) {
         this.storageSystem = storageSystem;
         this.basePath = Paths.get(storageSystem.getStorageSystemPath());
+        this.dirCache = new DirectoryCache(storageSystem.getDirectoryCacheSize());
+        this.groupCommitSync = new GroupCommitSync(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                device.execute(command);
+            }
+        });
     }
 
     @Override
@@ -98,9 +123,17 @@ public class FileSystemStorageSystemProvider implements StorageSystemProvider {
     public OutputStream openOutputStream(final StorageContext context, String name)
             throws IOException {
         final Path path = basePath.resolve(name);
-        Files.createDirectories(path.getParent());
+        createParentDirectories(path);
         try {
-            BufferedOutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(path, StandardOpenOption.CREATE_NEW), 65536);
+            OutputStream out;
+            try {
+                out = Files.newOutputStream(path, StandardOpenOption.CREATE_NEW);
+            } catch (NoSuchFileException e) {
+                if (!recreateParentDirectories(path))
+                    throw e;
+                out = Files.newOutputStream(path, StandardOpenOption.CREATE_NEW);
+            }
+            BufferedOutputStream outputStream = new BufferedOutputStream(out, 65536);
             return new FilterOutputStream(outputStream) {
 
                 @Override
@@ -118,9 +151,15 @@ public class FileSystemStorageSystemProvider implements StorageSystemProvider {
     public void copyInputStream(StorageContext context, InputStream source,
             String name) throws IOException {
         Path target = basePath.resolve(name);
-        Files.createDirectories(target.getParent());
+        createParentDirectories(target);
         try {
-            Files.copy(source, target);
+            try {
+                Files.copy(source, target);
+            } catch (NoSuchFileException e) {
+                if (!recreateParentDirectories(target))
+                    throw e;
+                Files.copy(source, target);
+            }
         } catch (FileAlreadyExistsException e) {
             throw new ObjectAlreadyExistsException(
                     storageSystem.getStorageSystemPath(), name, e);
@@ -132,9 +171,15 @@ public class FileSystemStorageSystemProvider implements StorageSystemProvider {
     public void storeFile(StorageContext context, Path source, String name)
             throws IOException {
         Path target = basePath.resolve(name);
-        Files.createDirectories(target.getParent());
+        createParentDirectories(target);
         try {
-            Files.copy(source, target);
+            try {
+                storeFile(source, target);
+            } catch (NoSuchFileException e) {
+                if (!recreateParentDirectories(target))
+                    throw e;
+                storeFile(source, target);
+            }
         } catch (FileAlreadyExistsException e) {
             throw new ObjectAlreadyExistsException(
                     storageSystem.getStorageSystemPath(), name, e);
@@ -142,13 +187,218 @@ public class FileSystemStorageSystemProvider implements StorageSystemProvider {
         context.setFileSize(Files.size(target));
     }
 
+    private void storeFile(Path source, Path target) throws IOException {
+        if (!(storageSystem.isHardLinkOnStore() && createLink(target, source)))
+            transfer(source, target);
+    }
+
+    /**
+     * Links target to the data of source, if both reside on the same file
+     * system and the file system supports hard links.
+     * 
+     * @return {@code false}, if the link could not be created
+     */
+    private static boolean createLink(Path target, Path source)
+            throws IOException {
+        try {
+            Files.createLink(target, source);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            throw e;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Copies source to target by {@link FileChannel#transferTo}, which lets
+     * the operating system copy the data without passing it through user
+     * space.
+     */
+    private static void transfer(Path source, Path target) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            try (FileChannel out = FileChannel.open(target,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                long size = in.size();
+                long pos = 0L;
+                long n;
+                while (pos < size
+                        && (n = in.transferTo(pos, size - pos, out)) > 0)
+                    pos += n;
+            } catch (FileAlreadyExistsException e) {
+                throw e;
+            } catch (IOException e) {
+                Files.deleteIfExists(target);
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public StorageFuture<Void> storeFileAsync(StorageContext context,
+            Path source, String name) throws IOException {
+        Path target = basePath.resolve(name);
+        createParentDirectories(target);
+        try {
+            if (storageSystem.isHardLinkOnStore() && createLink(target, source)) {
+                context.setFileSize(Files.size(target));
+                return StorageFuture.completed(null);
+            }
+            AsynchronousFileChannel in = AsynchronousFileChannel.open(source,
+                    StandardOpenOption.READ);
+            AsynchronousFileChannel out;
+            try {
+                try {
+                    out = openAsync(target);
+                } catch (NoSuchFileException e) {
+                    if (!recreateParentDirectories(target))
+                        throw e;
+                    out = openAsync(target);
+                }
+            } catch (IOException | RuntimeException e) {
+                in.close();
+                throw e;
+            }
+            return new AsyncTransfer(context, in, out, target).start();
+        } catch (FileAlreadyExistsException e) {
+            throw new ObjectAlreadyExistsException(
+                    storageSystem.getStorageSystemPath(), name, e);
+        }
+    }
+
+    private static AsynchronousFileChannel openAsync(Path target)
+            throws IOException {
+        return AsynchronousFileChannel.open(target,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Copies the source to the target channel by alternately issued reads
+     * and writes, each continued by the completion handler of the previous
+     * one, so no thread is blocked during the transfer.
+     */
+    private static class AsyncTransfer {
+
+        private final StorageFuture<Void> future = new StorageFuture<Void>();
+        private final ByteBuffer buffer =
+                ByteBuffer.allocateDirect(ASYNC_BUFFER_SIZE);
+        private final StorageContext context;
+        private final AsynchronousFileChannel in;
+        private final AsynchronousFileChannel out;
+        private final Path target;
+        private long position;
+
+        private final CompletionHandler<Integer, Void> readHandler =
+                new CompletionHandler<Integer, Void>() {
+
+            @Override
+            public void completed(Integer n, Void attachment) {
+                if (n < 0) {
+                    finish();
+                    return;
+                }
+                buffer.flip();
+                write();
+            }
+
+            @Override
+            public void failed(Throwable exc, Void attachment) {
+                AsyncTransfer.this.failed(exc);
+            }
+        };
+
+        private final CompletionHandler<Integer, Void> writeHandler =
+                new CompletionHandler<Integer, Void>() {
+
+            @Override
+            public void completed(Integer n, Void attachment) {
+                position += n;
+                if (buffer.hasRemaining()) {
+                    write();
+                } else {
+                    buffer.clear();
+                    read();
+                }
+            }
+
+            @Override
+            public void failed(Throwable exc, Void attachment) {
+                AsyncTransfer.this.failed(exc);
+            }
+        };
+
+        AsyncTransfer(StorageContext context, AsynchronousFileChannel in,
+                AsynchronousFileChannel out, Path target) {
+            this.context = context;
+            this.in = in;
+            this.out = out;
+            this.target = target;
+        }
+
+        StorageFuture<Void> start() {
+            read();
+            return future;
+        }
+
+        private void read() {
+            try {
+                in.read(buffer, position, null, readHandler);
+            } catch (RuntimeException e) {
+                failed(e);
+            }
+        }
+
+        private void write() {
+            try {
+                out.write(buffer, position, null, writeHandler);
+            } catch (RuntimeException e) {
+                failed(e);
+            }
+        }
+
+        private void finish() {
+            try {
+                close();
+            } catch (IOException e) {
+                failed(e);
+                return;
+            }
+            context.setFileSize(position);
+            future.complete(null);
+        }
+
+        private void failed(Throwable exc) {
+            try {
+                close();
+            } catch (IOException ignore) {}
+            try {
+                Files.deleteIfExists(target);
+            } catch (IOException ignore) {}
+            future.fail(exc);
+        }
+
+        private void close() throws IOException {
+            try {
+                in.close();
+            } finally {
+                out.close();
+            }
+        }
+    }
+
     @Override
     public void moveFile(StorageContext context, Path source, String name)
             throws IOException {
         Path target = basePath.resolve(name);
-        Files.createDirectories(target.getParent());
+        createParentDirectories(target);
         try {
-            Files.move(source, target);
+            try {
+                Files.move(source, target);
+            } catch (NoSuchFileException e) {
+                if (!recreateParentDirectories(target))
+                    throw e;
+                Files.move(source, target);
+            }
         } catch (FileAlreadyExistsException e) {
             throw new ObjectAlreadyExistsException(
                     storageSystem.getStorageSystemPath(), name, e);
@@ -156,6 +406,33 @@ public class FileSystemStorageSystemProvider implements StorageSystemProvider {
         context.setFileSize(Files.size(target));
     }
 
+    private void createParentDirectories(Path path) throws IOException {
+        Path dir = path.getParent();
+        String key = dir.toString();
+        if (!dirCache.contains(key)) {
+            Files.createDirectories(dir);
+            dirCache.add(key);
+        }
+    }
+
+    /**
+     * Re-creates the parent directory of path, if it was removed after it
+     * was cached.
+     * 
+     * @return {@code false}, if the parent directory still exists
+     */
+    private boolean recreateParentDirectories(Path path) throws IOException {
+        Path dir = path.getParent();
+        String key = dir.toString();
+        if (Files.isDirectory(dir))
+            return false;
+
+        dirCache.remove(key);
+        Files.createDirectories(dir);
+        dirCache.add(key);
+        return true;
+    }
+
     @Override
     public InputStream openInputStream(RetrieveContext ctx, String name)
             throws IOException {
@@ -168,6 +445,18 @@ public class FileSystemStorageSystemProvider implements StorageSystemProvider {
         }
     }
 
+    @Override
+    public SeekableByteChannel openChannel(RetrieveContext ctx, String name)
+            throws IOException {
+        Path path = basePath.resolve(name);
+        try {
+            return Files.newByteChannel(path, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            throw new ObjectNotFoundException(
+                    storageSystem.getStorageSystemPath(), name, e);
+        }
+    }
+
     @Override
     public Path getFile(RetrieveContext ctx, String name) throws IOException {
         Path path = basePath.resolve(name);
@@ -190,6 +479,7 @@ public class FileSystemStorageSystemProvider implements StorageSystemProvider {
             Path dir = path.getParent();
             while (!basePath.equals(dir)) {
                 Files.delete(dir);
+                dirCache.remove(dir.toString());
                 dir = dir.getParent();
             }
         } catch (DirectoryNotEmptyException e) {}
@@ -213,11 +503,9 @@ public class FileSystemStorageSystemProvider implements StorageSystemProvider {
         if (names == null)
             return;
 
-        for (String name : names) {
-            Path target = basePath.resolve(name);
-            FileChannel targetChannel = new RandomAccessFile(target.toFile(), "rw").getChannel();
-            targetChannel.force(true); //sync
-            targetChannel.close();
-        }
+        List<Path> paths = new ArrayList<Path>(names.size());
+        for (String name : names)
+            paths.add(basePath.resolve(name));
+        groupCommitSync.sync(paths, storageSystem.getSyncGroupCommitWindow());
     }
 }
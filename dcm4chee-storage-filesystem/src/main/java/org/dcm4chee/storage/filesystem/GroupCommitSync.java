@@ -0,0 +1,234 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.storage.filesystem;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Syncs files by group commit: files of concurrent callers are collected
+ * into one batch while the previous batch is committed, the files of a
+ * batch are forced in parallel, the directory entries of their parent
+ * directories once per directory, and all callers of the batch return
+ * together. A caller fails only, if one of its own files could not be
+ * synced.
+ * 
+ * @author agent <agent@local>
+ *
+ */
+class GroupCommitSync {
+
+    private static final int MAX_PARALLELISM = 8;
+
+    private final Executor executor;
+    private final Object commitLock = new Object();
+    private Batch openBatch;
+
+    public GroupCommitSync(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Returns after the specified files and their directory entries are
+     * written to the storage device.
+     * 
+     * @param files
+     *            files to sync
+     * @param window
+     *            time in ms the leader of a batch waits for more files
+     *            before committing the batch
+     */
+    public void sync(Collection<Path> files, int window) throws IOException {
+        Batch batch;
+        boolean leader;
+        synchronized (this) {
+            if (openBatch == null)
+                openBatch = new Batch();
+            batch = openBatch;
+            batch.files.addAll(files);
+            leader = !batch.hasLeader;
+            batch.hasLeader = true;
+        }
+        if (leader) {
+            synchronized (commitLock) {
+                if (window > 0)
+                    try {
+                        Thread.sleep(window);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                synchronized (this) {
+                    openBatch = null;
+                }
+                batch.commit();
+            }
+        }
+        batch.await(files);
+    }
+
+    private class Batch {
+
+        final Set<Path> files = new LinkedHashSet<Path>();
+        final Map<Path, IOException> failures =
+                new ConcurrentHashMap<Path, IOException>();
+        final CountDownLatch committed = new CountDownLatch(1);
+        volatile IOException exception;
+        boolean hasLeader;
+
+        void commit() {
+            try {
+                Set<Path> dirs = new LinkedHashSet<Path>();
+                for (Path file : files)
+                    dirs.add(file.getParent());
+                forceAll(new ArrayList<Path>(files), false);
+                forceAll(new ArrayList<Path>(dirs), true);
+            } finally {
+                committed.countDown();
+            }
+        }
+
+        // the leader forces all paths not taken by a helper and only waits
+        // for paths in progress, so helpers queued behind busy threads of a
+        // bounded executor cannot block the commit
+        private void forceAll(final List<Path> paths, final boolean dirs) {
+            if (paths.isEmpty())
+                return;
+
+            final AtomicInteger next = new AtomicInteger();
+            final CountDownLatch done = new CountDownLatch(paths.size());
+            Runnable helper = new Runnable() {
+                @Override
+                public void run() {
+                    force(paths, next, done, dirs);
+                }
+            };
+            int helpers = Math.min(paths.size(), MAX_PARALLELISM) - 1;
+            for (int i = 0; i < helpers; i++)
+                try {
+                    executor.execute(helper);
+                } catch (RuntimeException e) {
+                    break;
+                }
+            force(paths, next, done, dirs);
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                exception = new InterruptedIOException();
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void force(List<Path> paths, AtomicInteger next,
+                CountDownLatch done, boolean dirs) {
+            int i;
+            while ((i = next.getAndIncrement()) < paths.size()) {
+                Path path = paths.get(i);
+                try {
+                    GroupCommitSync.force(path, dirs);
+                } catch (IOException e) {
+                    failures.put(path, e);
+                } finally {
+                    done.countDown();
+                }
+            }
+        }
+
+        /**
+         * Waits for the commit of the batch and fails only, if one of the
+         * specified files or its directory could not be synced.
+         */
+        void await(Collection<Path> callerFiles) throws IOException {
+            try {
+                committed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (exception != null)
+                throw new IOException("Failed to sync " + callerFiles.size()
+                        + " files", exception);
+            IOException failure = null;
+            for (Path file : callerFiles) {
+                IOException e = failures.get(file);
+                if (e == null)
+                    e = failures.get(file.getParent());
+                if (e == null)
+                    continue;
+                if (failure == null)
+                    failure = new IOException("Failed to sync " + file, e);
+                else
+                    failure.addSuppressed(e);
+            }
+            if (failure != null)
+                throw failure;
+        }
+    }
+
+    private static void force(Path path, boolean dir) throws IOException {
+        FileChannel channel;
+        try {
+            channel = dir
+                    ? FileChannel.open(path, StandardOpenOption.READ)
+                    : FileChannel.open(path, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            if (dir) // directories cannot be opened on all platforms
+                return;
+            throw e;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.storage.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Snapshot of the metrics of one operation type of a storage system.
+ * The latency histogram counts operations with a duration less than the
+ * corresponding bound of {@link #getHistogramBoundsMillis()}; the last
+ * element counts operations exceeding all bounds.
+ * 
+ * @author agent <agent@local>
+ *
+ */
+public class OperationMetrics {
+
+    private final String operation;
+    private final long count;
+    private final long errors;
+    private final long inFlight;
+    private final long totalTimeMillis;
+    private final long maxTimeMillis;
+    private final long[] histogram;
+
+    @ConstructorProperties({ "operation", "count", "errors", "inFlight",
+            "totalTimeMillis", "maxTimeMillis", "histogram" })
+    public OperationMetrics(String operation, long count, long errors,
+            long inFlight, long totalTimeMillis, long maxTimeMillis,
+            long[] histogram) {
+        this.operation = operation;
+        this.count = count;
+        this.errors = errors;
+        this.inFlight = inFlight;
+        this.totalTimeMillis = totalTimeMillis;
+        this.maxTimeMillis = maxTimeMillis;
+        this.histogram = histogram;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    public long getInFlight() {
+        return inFlight;
+    }
+
+    public long getTotalTimeMillis() {
+        return totalTimeMillis;
+    }
+
+    public long getMaxTimeMillis() {
+        return maxTimeMillis;
+    }
+
+    public double getAverageTimeMillis() {
+        return count > 0 ? (double) totalTimeMillis / count : 0;
+    }
+
+    public long[] getHistogram() {
+        return histogram.clone();
+    }
+
+    public long[] getHistogramBoundsMillis() {
+        return OperationStats.BUCKET_BOUNDS_MS.clone();
+    }
+
+    @Override
+    public String toString() {
+        return operation + "[count=" + count + ", errors=" + errors
+                + ", inFlight=" + inFlight + ", avg="
+                + getAverageTimeMillis() + "ms, max=" + maxTimeMillis + "ms]";
+    }
+}
@@ -0,0 +1,117 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.storage.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Accumulates count, errors, operations in flight and a latency histogram of
+ * one operation type.
+ * 
+ * @author agent <agent@local>
+ *
+ */
+class OperationStats {
+
+    static final long[] BUCKET_BOUNDS_MS = {
+        1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000
+    };
+
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong inFlight = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLongArray buckets =
+            new AtomicLongArray(BUCKET_BOUNDS_MS.length + 1);
+
+    void started() {
+        inFlight.incrementAndGet();
+    }
+
+    void ended(long nanos, boolean failed) {
+        inFlight.decrementAndGet();
+        count.incrementAndGet();
+        if (failed)
+            errors.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxNanos.get())
+                && !maxNanos.compareAndSet(max, nanos))
+            ;
+        buckets.incrementAndGet(bucketIndex(nanos));
+    }
+
+    private static int bucketIndex(long nanos) {
+        long ms = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int i = 0;
+        while (i < BUCKET_BOUNDS_MS.length && ms >= BUCKET_BOUNDS_MS[i])
+            i++;
+        return i;
+    }
+
+    long errors() {
+        return errors.get();
+    }
+
+    long inFlight() {
+        return inFlight.get();
+    }
+
+    void reset() {
+        count.set(0);
+        errors.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+        for (int i = 0; i < buckets.length(); i++)
+            buckets.set(i, 0);
+    }
+
+    OperationMetrics snapshot(String name) {
+        long[] histogram = new long[buckets.length()];
+        for (int i = 0; i < histogram.length; i++)
+            histogram[i] = buckets.get(i);
+        return new OperationMetrics(name, count.get(), errors.get(),
+                inFlight.get(), totalNanos.get() / 1000000L,
+                maxNanos.get() / 1000000L, histogram);
+    }
+}
@@ -0,0 +1,113 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.storage.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.dcm4chee.storage.conf.StorageSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the metrics of all storage systems and registers them at the platform
+ * MBean server with object names
+ * {@code org.dcm4chee.storage:type=StorageSystem,group=<groupID>,system=<systemID>}.
+ * 
+ * @author agent <agent@local>
+ *
+ */
+public class StorageMetricsRegistry {
+
+    private static final Logger LOG =
+            LoggerFactory.getLogger(StorageMetricsRegistry.class);
+
+    private static final String DOMAIN = "org.dcm4chee.storage";
+
+    private static final ConcurrentMap<String, StorageSystemMetrics> metrics =
+            new ConcurrentHashMap<String, StorageSystemMetrics>();
+
+    private StorageMetricsRegistry() {}
+
+    public static StorageSystemMetrics metricsOf(StorageSystem storageSystem) {
+        String groupID = storageSystem.getStorageSystemGroup() != null
+                ? storageSystem.getStorageSystemGroup().getGroupID()
+                : null;
+        String systemID = storageSystem.getStorageSystemID();
+        String key = groupID + '/' + systemID;
+        StorageSystemMetrics m = metrics.get(key);
+        if (m == null) {
+            StorageSystemMetrics newMetrics =
+                    new StorageSystemMetrics(groupID, systemID);
+            m = metrics.putIfAbsent(key, newMetrics);
+            if (m == null) {
+                m = newMetrics;
+                register(objectName(groupID, systemID), m);
+            }
+        }
+        return m;
+    }
+
+    public static ObjectName objectName(String groupID, String systemID) {
+        try {
+            return new ObjectName(DOMAIN + ":type=StorageSystem,group="
+                    + ObjectName.quote(String.valueOf(groupID))
+                    + ",system=" + ObjectName.quote(String.valueOf(systemID)));
+        } catch (JMException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private static void register(ObjectName name, StorageSystemMetrics m) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(m, name);
+        } catch (JMException e) {
+            LOG.warn("Failed to register metrics MBean {}", name, e);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.storage.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author agent <agent@local>
+ *
+ */
+public class StorageSystemMetrics implements StorageSystemMetricsMXBean {
+
+    static final String EXTRACT_ENTRIES = "extractEntries";
+
+    private final String groupID;
+    private final String systemID;
+    private final ConcurrentMap<String, OperationStats> operations =
+            new ConcurrentHashMap<String, OperationStats>();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private volatile long since = System.nanoTime();
+
+    public StorageSystemMetrics(String groupID, String systemID) {
+        this.groupID = groupID;
+        this.systemID = systemID;
+    }
+
+    @Override
+    public String getStorageSystemGroupID() {
+        return groupID;
+    }
+
+    @Override
+    public String getStorageSystemID() {
+        return systemID;
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    @Override
+    public double getReadThroughput() {
+        return throughput(bytesRead.get());
+    }
+
+    @Override
+    public double getWriteThroughput() {
+        return throughput(bytesWritten.get());
+    }
+
+    private double throughput(long bytes) {
+        long nanos = System.nanoTime() - since;
+        return nanos > 0 ? bytes * 1e9 / nanos : 0;
+    }
+
+    @Override
+    public long getErrors() {
+        long errors = 0;
+        for (OperationStats stats : operations.values())
+            errors += stats.errors();
+        return errors;
+    }
+
+    @Override
+    public long getInFlight() {
+        long inFlight = 0;
+        for (OperationStats stats : operations.values())
+            inFlight += stats.inFlight();
+        return inFlight;
+    }
+
+    @Override
+    public long getExtractionQueueDepth() {
+        OperationStats stats = operations.get(EXTRACT_ENTRIES);
+        return stats != null ? stats.inFlight() : 0;
+    }
+
+    @Override
+    public List<OperationMetrics> getOperations() {
+        List<OperationMetrics> list =
+                new ArrayList<OperationMetrics>(operations.size());
+        for (Map.Entry<String, OperationStats> entry : operations.entrySet())
+            list.add(entry.getValue().snapshot(entry.getKey()));
+        return list;
+    }
+
+    public OperationMetrics getOperation(String name) {
+        OperationStats stats = operations.get(name);
+        return stats != null ? stats.snapshot(name) : null;
+    }
+
+    @Override
+    public void reset() {
+        for (OperationStats stats : operations.values())
+            stats.reset();
+        bytesRead.set(0);
+        bytesWritten.set(0);
+        since = System.nanoTime();
+    }
+
+    /**
+     * Marks the begin of an operation.
+     * 
+     * @param operation name of the operation
+     * @return start time to pass to {@link #end(String, long, boolean)}
+     */
+    public long start(String operation) {
+        statsOf(operation).started();
+        return System.nanoTime();
+    }
+
+    public void end(String operation, long start, boolean failed) {
+        statsOf(operation).ended(System.nanoTime() - start, failed);
+    }
+
+    public void addBytesRead(long n) {
+        bytesRead.addAndGet(n);
+    }
+
+    public void addBytesWritten(long n) {
+        bytesWritten.addAndGet(n);
+    }
+
+    private OperationStats statsOf(String operation) {
+        OperationStats stats = operations.get(operation);
+        if (stats == null) {
+            OperationStats newStats = new OperationStats();
+            stats = operations.putIfAbsent(operation, newStats);
+            if (stats == null)
+                stats = newStats;
+        }
+        return stats;
+    }
+}
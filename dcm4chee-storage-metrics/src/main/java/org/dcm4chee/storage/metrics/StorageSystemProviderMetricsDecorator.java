@@ -0,0 +1,317 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.storage.metrics;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import javax.decorator.Decorator;
+import javax.decorator.Delegate;
+import javax.inject.Inject;
+
+import org.dcm4chee.storage.RetrieveContext;
+import org.dcm4chee.storage.StorageContext;
+import org.dcm4chee.storage.StorageFuture;
+import org.dcm4chee.storage.conf.StorageSystem;
+import org.dcm4chee.storage.spi.StorageSystemProvider;
+
+/**
+ * Records latency, errors, operations in flight and transferred bytes of
+ * all operations on a storage system into its {@link StorageSystemMetrics},
+ * exposed by JMX. Operations returning a stream or channel are accounted
+ * until the stream or channel is closed.
+ * 
+ * @author agent <agent@local>
+ *
+ */
+@Decorator
+public abstract class StorageSystemProviderMetricsDecorator implements
+        StorageSystemProvider {
+
+    @Inject
+    @Delegate
+    StorageSystemProvider storageSystemProvider;
+
+    private StorageSystemMetrics metrics;
+
+    public void init(StorageSystem storageSystem) {
+        metrics = StorageMetricsRegistry.metricsOf(storageSystem);
+        storageSystemProvider.init(storageSystem);
+    }
+
+    @Override
+    public void checkWriteable() throws IOException {
+        long start = metrics.start("checkWriteable");
+        boolean failed = true;
+        try {
+            storageSystemProvider.checkWriteable();
+            failed = false;
+        } finally {
+            metrics.end("checkWriteable", start, failed);
+        }
+    }
+
+    @Override
+    public long getUsableSpace() throws IOException {
+        long start = metrics.start("getUsableSpace");
+        boolean failed = true;
+        try {
+            long usableSpace = storageSystemProvider.getUsableSpace();
+            failed = false;
+            return usableSpace;
+        } finally {
+            metrics.end("getUsableSpace", start, failed);
+        }
+    }
+
+    @Override
+    public long getTotalSpace() throws IOException {
+        long start = metrics.start("getTotalSpace");
+        boolean failed = true;
+        try {
+            long totalSpace = storageSystemProvider.getTotalSpace();
+            failed = false;
+            return totalSpace;
+        } finally {
+            metrics.end("getTotalSpace", start, failed);
+        }
+    }
+
+    @Override
+    public OutputStream openOutputStream(StorageContext context, String name)
+            throws IOException {
+        long start = metrics.start("openOutputStream");
+        try {
+            return new MeteredOutputStream(
+                    storageSystemProvider.openOutputStream(context, name),
+                    metrics, "openOutputStream", start);
+        } catch (IOException | RuntimeException e) {
+            metrics.end("openOutputStream", start, true);
+            throw e;
+        }
+    }
+
+    @Override
+    public void copyInputStream(StorageContext context, InputStream in,
+            String name) throws IOException {
+        long start = metrics.start("copyInputStream");
+        boolean failed = true;
+        try {
+            storageSystemProvider.copyInputStream(context,
+                    new WriteCountingInputStream(in, metrics), name);
+            failed = false;
+        } finally {
+            metrics.end("copyInputStream", start, failed);
+        }
+    }
+
+    @Override
+    public void storeFile(StorageContext context, Path path, String name)
+            throws IOException {
+        long start = metrics.start("storeFile");
+        boolean failed = true;
+        try {
+            long size = Files.size(path);
+            storageSystemProvider.storeFile(context, path, name);
+            metrics.addBytesWritten(size);
+            failed = false;
+        } finally {
+            metrics.end("storeFile", start, failed);
+        }
+    }
+
+    @Override
+    public StorageFuture<Void> storeFileAsync(StorageContext context, Path path,
+            String name) throws IOException {
+        final long start = metrics.start("storeFileAsync");
+        try {
+            final long size = Files.size(path);
+            return storageSystemProvider.storeFileAsync(context, path, name)
+                    .whenDone(new CompletionHandler<Void, Void>() {
+
+                        @Override
+                        public void completed(Void result, Void attachment) {
+                            metrics.addBytesWritten(size);
+                            metrics.end("storeFileAsync", start, false);
+                        }
+
+                        @Override
+                        public void failed(Throwable exc, Void attachment) {
+                            metrics.end("storeFileAsync", start, true);
+                        }
+                    }, null);
+        } catch (UnsupportedOperationException e) {
+            // not an error: the caller falls back to storeFile
+            metrics.end("storeFileAsync", start, false);
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            metrics.end("storeFileAsync", start, true);
+            throw e;
+        }
+    }
+
+    @Override
+    public void moveFile(StorageContext context, Path path, String name)
+            throws IOException {
+        long start = metrics.start("moveFile");
+        boolean failed = true;
+        try {
+            long size = Files.size(path);
+            storageSystemProvider.moveFile(context, path, name);
+            metrics.addBytesWritten(size);
+            failed = false;
+        } finally {
+            metrics.end("moveFile", start, failed);
+        }
+    }
+
+    @Override
+    public InputStream openInputStream(RetrieveContext ctx, String name)
+            throws IOException {
+        long start = metrics.start("openInputStream");
+        try {
+            return new MeteredInputStream(
+                    storageSystemProvider.openInputStream(ctx, name),
+                    metrics, "openInputStream", start);
+        } catch (IOException | RuntimeException e) {
+            metrics.end("openInputStream", start, true);
+            throw e;
+        }
+    }
+
+    @Override
+    public SeekableByteChannel openChannel(RetrieveContext ctx, String name)
+            throws IOException {
+        long start = metrics.start("openChannel");
+        try {
+            return new MeteredByteChannel(
+                    storageSystemProvider.openChannel(ctx, name),
+                    metrics, "openChannel", start);
+        } catch (IOException | RuntimeException e) {
+            metrics.end("openChannel", start, true);
+            throw e;
+        }
+    }
+
+    @Override
+    public Path getFile(RetrieveContext ctx, String name) throws IOException {
+        long start = metrics.start("getFile");
+        boolean failed = true;
+        try {
+            Path file = storageSystemProvider.getFile(ctx, name);
+            failed = false;
+            return file;
+        } finally {
+            metrics.end("getFile", start, failed);
+        }
+    }
+
+    @Override
+    public void deleteObject(StorageContext ctx, String name)
+            throws IOException {
+        long start = metrics.start("deleteObject");
+        boolean failed = true;
+        try {
+            storageSystemProvider.deleteObject(ctx, name);
+            failed = false;
+        } finally {
+            metrics.end("deleteObject", start, failed);
+        }
+    }
+
+    @Override
+    public <E extends Enum<E>> E queryStatus(RetrieveContext ctx, String name,
+            Class<E> enumType) throws IOException {
+        long start = metrics.start("queryStatus");
+        boolean failed = true;
+        try {
+            E status = storageSystemProvider.queryStatus(ctx, name, enumType);
+            failed = false;
+            return status;
+        } finally {
+            metrics.end("queryStatus", start, failed);
+        }
+    }
+
+    @Override
+    public void sync(List<String> names) throws IOException {
+        long start = metrics.start("sync");
+        boolean failed = true;
+        try {
+            storageSystemProvider.sync(names);
+            failed = false;
+        } finally {
+            metrics.end("sync", start, failed);
+        }
+    }
+
+    private static class WriteCountingInputStream extends FilterInputStream {
+
+        private final StorageSystemMetrics metrics;
+
+        WriteCountingInputStream(InputStream in, StorageSystemMetrics metrics) {
+            super(in);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0)
+                metrics.addBytesWritten(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0)
+                metrics.addBytesWritten(n);
+            return n;
+        }
+    }
+}
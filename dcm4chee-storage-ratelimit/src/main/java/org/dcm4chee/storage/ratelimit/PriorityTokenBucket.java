@@ -0,0 +1,90 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.storage.ratelimit;
+
+import org.dcm4chee.storage.IOPriority;
+import org.dcm4chee.storage.TokenBucket;
+
+/**
+ * Token bucket which serves waiting callers of a higher {@link IOPriority}
+ * first. Tokens are only granted when they are available, in chunks of at
+ * most the capacity of the bucket, so a large request of a lower priority
+ * does not hold back requests of a higher priority beyond its next chunk.
+ * 
+ * @author agent <agent@local>
+ *
+ */
+class PriorityTokenBucket {
+
+    private final TokenBucket bucket;
+    private final int[] waiting = new int[IOPriority.values().length];
+
+    PriorityTokenBucket(long ratePerSecond, long capacity) {
+        this.bucket = new TokenBucket(ratePerSecond, capacity);
+    }
+
+    void acquire(long n, IOPriority priority) throws InterruptedException {
+        long maxChunk = bucket.getCapacity();
+        while (n > 0) {
+            long chunk = Math.min(n, maxChunk);
+            acquireChunk(chunk, priority.ordinal());
+            n -= chunk;
+        }
+    }
+
+    private synchronized void acquireChunk(long n, int p)
+            throws InterruptedException {
+        waiting[p]++;
+        try {
+            while (higherPriorityWaiting(p) || !bucket.tryAcquire(n))
+                wait(1L + bucket.nanosUntilAvailable(n) / 1000000L);
+        } finally {
+            waiting[p]--;
+            notifyAll();
+        }
+    }
+
+    private boolean higherPriorityWaiting(int p) {
+        for (int i = 0; i < p; i++)
+            if (waiting[i] > 0)
+                return true;
+        return false;
+    }
+}
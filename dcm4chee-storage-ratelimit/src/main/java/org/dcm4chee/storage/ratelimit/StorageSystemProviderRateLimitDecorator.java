@@ -0,0 +1,194 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.storage.ratelimit;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import javax.decorator.Decorator;
+import javax.decorator.Delegate;
+import javax.inject.Inject;
+
+import org.dcm4chee.storage.IOPriority;
+import org.dcm4chee.storage.RetrieveContext;
+import org.dcm4chee.storage.StorageContext;
+import org.dcm4chee.storage.StorageFuture;
+import org.dcm4chee.storage.conf.StorageSystem;
+import org.dcm4chee.storage.spi.StorageSystemProvider;
+
+/**
+ * Limits the bandwidth and the number of I/O operations per second to a
+ * storage system by {@link StorageSystem#getMaxBandwidth()} and
+ * {@link StorageSystem#getMaxIOPS()}. If the limit is reached, waiting
+ * requests are served by the {@link IOPriority} of their storage or
+ * retrieve context. Files are stored as rate limited streams, so a large
+ * file does not burst at full speed after waiting for its share of the
+ * bandwidth; native asynchronous stores are not supported with a bandwidth
+ * limit.
+ * 
+ * @author agent <agent@local>
+ *
+ */
+@Decorator
+public abstract class StorageSystemProviderRateLimitDecorator implements
+        StorageSystemProvider {
+
+    @Inject
+    @Delegate
+    StorageSystemProvider storageSystemProvider;
+
+    private PriorityTokenBucket bandwidth;
+    private PriorityTokenBucket iops;
+
+    public void init(StorageSystem storageSystem) {
+        long maxBandwidth = storageSystem.getMaxBandwidthInBytes();
+        if (maxBandwidth > 0)
+            bandwidth = new PriorityTokenBucket(maxBandwidth, maxBandwidth);
+        int maxIOPS = storageSystem.getMaxIOPS();
+        if (maxIOPS > 0)
+            iops = new PriorityTokenBucket(maxIOPS, maxIOPS);
+        storageSystemProvider.init(storageSystem);
+    }
+
+    @SuppressWarnings("resource")
+    @Override
+    public OutputStream openOutputStream(StorageContext context, String name)
+            throws IOException {
+        RateLimits.acquire(iops, 1, context.getPriority());
+        OutputStream out = storageSystemProvider.openOutputStream(context, name);
+        return bandwidth != null
+                ? new RateLimitedOutputStream(out, bandwidth, context.getPriority())
+                : out;
+    }
+
+    @Override
+    public void copyInputStream(StorageContext context, InputStream in, String name)
+            throws IOException {
+        RateLimits.acquire(iops, 1, context.getPriority());
+        storageSystemProvider.copyInputStream(context, bandwidth != null
+                ? new RateLimitedInputStream(in, bandwidth, context.getPriority())
+                : in, name);
+    }
+
+    @Override
+    public void storeFile(StorageContext context, Path path, String name)
+            throws IOException {
+        RateLimits.acquire(iops, 1, context.getPriority());
+        if (bandwidth != null)
+            copyFile(context, path, name);
+        else
+            storageSystemProvider.storeFile(context, path, name);
+    }
+
+    @Override
+    public StorageFuture<Void> storeFileAsync(StorageContext context, Path path,
+            String name) throws IOException {
+        // the delegate would transfer the file unthrottled
+        if (bandwidth != null)
+            throw new UnsupportedOperationException();
+        RateLimits.acquire(iops, 1, context.getPriority());
+        return storageSystemProvider.storeFileAsync(context, path, name);
+    }
+
+    @Override
+    public void moveFile(StorageContext context, Path path, String name)
+            throws IOException {
+        RateLimits.acquire(iops, 1, context.getPriority());
+        if (bandwidth != null) {
+            copyFile(context, path, name);
+            Files.delete(path);
+        } else
+            storageSystemProvider.moveFile(context, path, name);
+    }
+
+    private void copyFile(StorageContext context, Path path, String name)
+            throws IOException {
+        long size = Files.size(path);
+        try (InputStream in = new RateLimitedInputStream(
+                Files.newInputStream(path), bandwidth, context.getPriority())) {
+            storageSystemProvider.copyInputStream(context, in, name);
+        }
+        context.setFileSize(size);
+    }
+
+    @SuppressWarnings("resource")
+    @Override
+    public InputStream openInputStream(RetrieveContext ctx, String name)
+            throws IOException {
+        RateLimits.acquire(iops, 1, ctx.getPriority());
+        InputStream in = storageSystemProvider.openInputStream(ctx, name);
+        return bandwidth != null
+                ? new RateLimitedInputStream(in, bandwidth, ctx.getPriority())
+                : in;
+    }
+
+    @Override
+    public SeekableByteChannel openChannel(RetrieveContext ctx, String name)
+            throws IOException {
+        RateLimits.acquire(iops, 1, ctx.getPriority());
+        SeekableByteChannel channel = storageSystemProvider.openChannel(ctx, name);
+        return bandwidth != null
+                ? new RateLimitedByteChannel(channel, bandwidth, ctx.getPriority())
+                : channel;
+    }
+
+    @Override
+    public Path getFile(RetrieveContext ctx, String name) throws IOException {
+        RateLimits.acquire(iops, 1, ctx.getPriority());
+        return storageSystemProvider.getFile(ctx, name);
+    }
+
+    @Override
+    public void deleteObject(StorageContext ctx, String name) throws IOException {
+        RateLimits.acquire(iops, 1, ctx.getPriority());
+        storageSystemProvider.deleteObject(ctx, name);
+    }
+
+    @Override
+    public <E extends Enum<E>> E queryStatus(RetrieveContext ctx, String name,
+            Class<E> enumType) throws IOException {
+        RateLimits.acquire(iops, 1, ctx.getPriority());
+        return storageSystemProvider.queryStatus(ctx, name, enumType);
+    }
+}
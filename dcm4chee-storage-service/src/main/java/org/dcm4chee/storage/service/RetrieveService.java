@@ -40,8 +40,11 @@ package org.dcm4chee.storage.service;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.concurrent.Future;
 
 import org.dcm4chee.storage.ContainerEntry;
 import org.dcm4chee.storage.RetrieveContext;
@@ -60,12 +63,41 @@ public interface RetrieveService {
     InputStream openInputStream(RetrieveContext ctx, String name)
             throws IOException;
 
+    /**
+     * Opens the object asynchronously, without blocking the calling thread.
+     *
+     * @param ctx the retrieve context
+     * @param name the name of the object
+     * @param attachment object passed to the handler
+     * @param handler invoked on completion, may be {@code null}
+     * @return future providing the opened stream
+     */
+    <A> Future<InputStream> openInputStreamAsync(RetrieveContext ctx,
+            String name, A attachment,
+            CompletionHandler<InputStream, ? super A> handler);
+
     InputStream openInputStream(RetrieveContext ctx, String name, String entryName)
             throws IOException, InterruptedException;
 
+    SeekableByteChannel openChannel(RetrieveContext ctx, String name)
+            throws IOException;
+
     Path getFile(RetrieveContext ctx, String name)
             throws IOException;
 
+    /**
+     * Gets the object as file asynchronously, without blocking the calling
+     * thread.
+     *
+     * @param ctx the retrieve context
+     * @param name the name of the object
+     * @param attachment object passed to the handler
+     * @param handler invoked on completion, may be {@code null}
+     * @return future providing the file
+     */
+    <A> Future<Path> getFileAsync(RetrieveContext ctx, String name,
+            A attachment, CompletionHandler<Path, ? super A> handler);
+
     Path getFile(RetrieveContext ctx, String name, String entryName)
             throws IOException, InterruptedException;
 
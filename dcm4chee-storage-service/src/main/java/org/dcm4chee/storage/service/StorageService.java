@@ -41,8 +41,10 @@ package org.dcm4chee.storage.service;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.CompletionHandler;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.concurrent.Future;
 
 import org.dcm4chee.storage.ContainerEntry;
 import org.dcm4chee.storage.StorageContext;
@@ -67,11 +69,41 @@ public interface StorageService {
 
     void copyInputStream(StorageContext context, InputStream in, String target) throws IOException;
 
+    /**
+     * Copies the stream asynchronously to the storage system, without
+     * blocking the calling thread. The stream is closed by the caller after
+     * completion.
+     *
+     * @param context the storage context
+     * @param in the source stream
+     * @param target the name of the stored object
+     * @param attachment object passed to the handler
+     * @param handler invoked on completion, may be {@code null}
+     * @return future completed after the stream is stored
+     */
+    <A> Future<Void> copyInputStreamAsync(StorageContext context,
+            InputStream in, String target, A attachment,
+            CompletionHandler<Void, ? super A> handler);
+
     void storeContainerEntries(StorageContext context,
             List<ContainerEntry> entries, String name) throws IOException;
 
     void storeFile(StorageContext context, Path path, String name) throws IOException;
 
+    /**
+     * Stores the file asynchronously to the storage system, without
+     * blocking the calling thread.
+     *
+     * @param context the storage context
+     * @param path the file to store
+     * @param name the name of the stored object
+     * @param attachment object passed to the handler
+     * @param handler invoked on completion, may be {@code null}
+     * @return future completed after the file is stored
+     */
+    <A> Future<Void> storeFileAsync(StorageContext context, Path path,
+            String name, A attachment, CompletionHandler<Void, ? super A> handler);
+
     void moveFile(StorageContext context, Path path, String name) throws IOException;
 
     void deleteObject(StorageContext context, String name) throws IOException;
@@ -39,8 +39,11 @@ package org.dcm4chee.storage.service.decorators;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.concurrent.Future;
 
 import org.dcm4chee.conf.decorators.DelegatingService;
 import org.dcm4chee.conf.decorators.DelegatingServiceImpl;
@@ -74,17 +77,37 @@ public class DelegatingRetrieveService extends DelegatingServiceImpl<RetrieveSer
         return getNextDecorator().openInputStream(ctx, name);
     }
 
+    @Override
+    public <A> Future<InputStream> openInputStreamAsync(RetrieveContext ctx,
+            String name, A attachment,
+            CompletionHandler<InputStream, ? super A> handler) {
+        return getNextDecorator().openInputStreamAsync(ctx, name, attachment,
+                handler);
+    }
+
     @Override
     public InputStream openInputStream(RetrieveContext ctx, String name, String entryName)
             throws IOException, InterruptedException {
         return getNextDecorator().openInputStream(ctx, name, entryName);
     }
 
+    @Override
+    public SeekableByteChannel openChannel(RetrieveContext ctx, String name)
+            throws IOException {
+        return getNextDecorator().openChannel(ctx, name);
+    }
+
     @Override
     public Path getFile(RetrieveContext ctx, String name) throws IOException {
         return getNextDecorator().getFile(ctx, name);
     }
 
+    @Override
+    public <A> Future<Path> getFileAsync(RetrieveContext ctx, String name,
+            A attachment, CompletionHandler<Path, ? super A> handler) {
+        return getNextDecorator().getFileAsync(ctx, name, attachment, handler);
+    }
+
     @Override
     public Path getFile(RetrieveContext ctx, String name, String entryName)
             throws IOException, InterruptedException {
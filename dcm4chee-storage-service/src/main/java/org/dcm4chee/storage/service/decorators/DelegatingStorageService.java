@@ -40,8 +40,10 @@ package org.dcm4chee.storage.service.decorators;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.CompletionHandler;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.concurrent.Future;
 
 import org.dcm4chee.conf.decorators.DelegatingService;
 import org.dcm4chee.conf.decorators.DelegatingServiceImpl;
@@ -91,6 +93,14 @@ public class DelegatingStorageService extends DelegatingServiceImpl<StorageServi
         getNextDecorator().copyInputStream(context, in, name);
     }
 
+    @Override
+    public <A> Future<Void> copyInputStreamAsync(StorageContext context,
+            InputStream in, String name, A attachment,
+            CompletionHandler<Void, ? super A> handler) {
+        return getNextDecorator().copyInputStreamAsync(context, in, name,
+                attachment, handler);
+    }
+
     @Override
     public void storeContainerEntries(StorageContext context,
             List<ContainerEntry> entries, String name) throws IOException {
@@ -103,6 +113,13 @@ public class DelegatingStorageService extends DelegatingServiceImpl<StorageServi
         getNextDecorator().storeFile(context, path, name);
     }
 
+    @Override
+    public <A> Future<Void> storeFileAsync(StorageContext context, Path path,
+            String name, A attachment, CompletionHandler<Void, ? super A> handler) {
+        return getNextDecorator().storeFileAsync(context, path, name,
+                attachment, handler);
+    }
+
     @Override
     public void moveFile(StorageContext context, Path path, String name)
             throws IOException {
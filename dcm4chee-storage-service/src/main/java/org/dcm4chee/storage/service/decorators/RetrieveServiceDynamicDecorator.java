@@ -39,8 +39,11 @@ package org.dcm4chee.storage.service.decorators;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.concurrent.Future;
 
 import javax.decorator.Decorator;
 import javax.decorator.Delegate;
@@ -80,17 +83,37 @@ public abstract class RetrieveServiceDynamicDecorator extends
         return wrapWithDynamicDecorators(delegate).openInputStream(ctx, name);
     }
 
+    @Override
+    public <A> Future<InputStream> openInputStreamAsync(RetrieveContext ctx,
+            String name, A attachment,
+            CompletionHandler<InputStream, ? super A> handler) {
+        return wrapWithDynamicDecorators(delegate).openInputStreamAsync(ctx, name, attachment,
+                handler);
+    }
+
     @Override
     public InputStream openInputStream(RetrieveContext ctx, String name, String entryName)
             throws IOException, InterruptedException {
         return wrapWithDynamicDecorators(delegate).openInputStream(ctx, entryName);
     }
 
+    @Override
+    public SeekableByteChannel openChannel(RetrieveContext ctx, String name)
+            throws IOException {
+        return wrapWithDynamicDecorators(delegate).openChannel(ctx, name);
+    }
+
     @Override
     public Path getFile(RetrieveContext ctx, String name) throws IOException {
         return wrapWithDynamicDecorators(delegate).getFile(ctx, name);
     }
 
+    @Override
+    public <A> Future<Path> getFileAsync(RetrieveContext ctx, String name,
+            A attachment, CompletionHandler<Path, ? super A> handler) {
+        return wrapWithDynamicDecorators(delegate).getFileAsync(ctx, name, attachment, handler);
+    }
+
     @Override
     public Path getFile(RetrieveContext ctx, String name, String entryName) throws IOException,
             InterruptedException {
@@ -40,8 +40,10 @@ package org.dcm4chee.storage.service.decorators;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.CompletionHandler;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.concurrent.Future;
 
 import javax.decorator.Decorator;
 import javax.decorator.Delegate;
@@ -97,6 +99,14 @@ public abstract class StorageServiceDynamicDecorator extends
         wrapWithDynamicDecorators(delegate).copyInputStream(context, in, name);
     }
 
+    @Override
+    public <A> Future<Void> copyInputStreamAsync(StorageContext context,
+            InputStream in, String name, A attachment,
+            CompletionHandler<Void, ? super A> handler) {
+        return wrapWithDynamicDecorators(delegate).copyInputStreamAsync(context, in, name,
+                attachment, handler);
+    }
+
     @Override
     public void storeContainerEntries(StorageContext context, List<ContainerEntry> entries,
             String name) throws IOException {
@@ -108,6 +118,13 @@ public abstract class StorageServiceDynamicDecorator extends
         wrapWithDynamicDecorators(delegate).storeFile(context, path, name);
     }
 
+    @Override
+    public <A> Future<Void> storeFileAsync(StorageContext context, Path path,
+            String name, A attachment, CompletionHandler<Void, ? super A> handler) {
+        return wrapWithDynamicDecorators(delegate).storeFileAsync(context, path, name,
+                attachment, handler);
+    }
+
     @Override
     public void moveFile(StorageContext context, Path path, String name) throws IOException {
         wrapWithDynamicDecorators(delegate).moveFile(context, path, name);
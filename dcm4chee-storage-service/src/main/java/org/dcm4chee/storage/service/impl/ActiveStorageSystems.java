@@ -0,0 +1,136 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.storage.service.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dcm4chee.storage.conf.StorageSystemGroup;
+
+/**
+ * Immutable snapshot of the active storage systems of a storage group, as
+ * selected by the last {@link StorageSystemSelector} run, together with
+ * the round-robin cursor shared by all snapshots of that group.
+ * <p>
+ * While the snapshot is current, concurrent stores advance the cursor by
+ * compare-and-set, so they are spread evenly over the active storage
+ * systems. The snapshot is replaced only if storage systems are activated
+ * or deactivated.
+ *
+ * @author agent <agent@local>
+ *
+ */
+class ActiveStorageSystems {
+
+    private final StorageSystemGroup group;
+    private final String[] configuredIDs;
+    private final String[] activeIDs;
+    private final AtomicInteger cursor;
+
+    ActiveStorageSystems() {
+        this(null, null, new String[0], new AtomicInteger());
+    }
+
+    private ActiveStorageSystems(StorageSystemGroup group,
+            String[] configuredIDs, String[] activeIDs, AtomicInteger cursor) {
+        this.group = group;
+        this.configuredIDs = configuredIDs;
+        this.activeIDs = activeIDs;
+        this.cursor = cursor;
+    }
+
+    /**
+     * Returns a new snapshot sharing the cursor of this snapshot.
+     *
+     * @param group the storage group
+     * @param configuredIDs the active storage system IDs of the group
+     *        configuration the selection was based on
+     * @param activeIDs the active storage system IDs after the selection
+     * @return the new snapshot
+     */
+    ActiveStorageSystems update(StorageSystemGroup group,
+            String[] configuredIDs, String[] activeIDs) {
+        return new ActiveStorageSystems(group, configuredIDs, activeIDs, cursor);
+    }
+
+    AtomicInteger getCursor() {
+        return cursor;
+    }
+
+    /**
+     * Returns {@code true} if the group configuration did not change since
+     * the snapshot was taken, and no further storage systems have to be
+     * activated to reach the configured parallelism.
+     */
+    boolean isCurrent(StorageSystemGroup group) {
+        return this.group == group
+                && configuredIDs == group.getActiveStorageSystemIDs()
+                && activeIDs.length > 0
+                && activeIDs.length >= group.getParallelism();
+    }
+
+    /**
+     * Advances the cursor to the next active storage system.
+     *
+     * @return index of the next active storage system
+     */
+    int next() {
+        for (;;) {
+            int current = cursor.get();
+            int index = current % activeIDs.length;
+            if (cursor.compareAndSet(current, index + 1))
+                return index;
+        }
+    }
+
+    /**
+     * Resets the cursor to the storage system returned by {@link #next()},
+     * if no other store advanced the cursor in the meantime.
+     */
+    void reset(int index) {
+        cursor.compareAndSet(index + 1, index);
+    }
+
+    int size() {
+        return activeIDs.length;
+    }
+
+    String getActiveID(int index) {
+        return activeIDs[index];
+    }
+}
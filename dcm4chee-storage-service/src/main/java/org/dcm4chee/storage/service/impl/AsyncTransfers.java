@@ -0,0 +1,232 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.storage.service.impl;
+
+import java.nio.channels.CompletionHandler;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dcm4chee.storage.StorageFuture;
+import org.dcm4chee.storage.conf.StorageSystem;
+
+/**
+ * Runs blocking transfers asynchronously, with at most
+ * {@link StorageSystem#getMaxAsyncTransfers()} transfers per storage system
+ * in progress. Further transfers are queued without blocking the caller, so
+ * a slow storage system cannot occupy all threads of the device executor.
+ * Native asynchronous transfers share the same limit: they are started by a
+ * thread of the device executor, but keep their permit until they complete.
+ * 
+ * @author agent <agent@local>
+ *
+ */
+class AsyncTransfers {
+
+    private final Executor executor;
+    private final ConcurrentMap<String, BoundedExecutor> executors =
+            new ConcurrentHashMap<String, BoundedExecutor>();
+
+    AsyncTransfers(Executor executor) {
+        this.executor = executor;
+    }
+
+    <V, A> StorageFuture<V> submit(StorageSystem system,
+            final Callable<V> task, A attachment,
+            CompletionHandler<V, ? super A> handler) {
+        final StorageFuture<V> future = new StorageFuture<V>();
+        future.whenDone(handler, attachment);
+        try {
+            executorOf(system).execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (future.isDone())
+                        return;
+                    try {
+                        future.complete(task.call());
+                    } catch (Throwable e) {
+                        future.fail(e);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            future.fail(e);
+        }
+        return future;
+    }
+
+    /**
+     * Starts a native asynchronous transfer, if less than
+     * {@link StorageSystem#getMaxAsyncTransfers()} transfers to the storage
+     * system are in progress. Otherwise the start is queued.
+     *
+     * @param system the storage system
+     * @param start starts the transfer and returns its future; invoked by a
+     *        thread of the device executor, so it may block shortly, e.g. for
+     *        rate limits, or fall back to a blocking transfer
+     */
+    <V, A> StorageFuture<V> start(StorageSystem system,
+            Callable<StorageFuture<V>> start, A attachment,
+            CompletionHandler<V, ? super A> handler) {
+        StorageFuture<V> future = new StorageFuture<V>();
+        future.whenDone(handler, attachment);
+        try {
+            BoundedExecutor executor = executorOf(system);
+            executor.execute(executor.new NativeTransfer<V>(start, future));
+        } catch (RuntimeException e) {
+            future.fail(e);
+        }
+        return future;
+    }
+
+    private BoundedExecutor executorOf(StorageSystem system) {
+        String key = system.getStorageSystemGroup().getGroupID() + '/'
+                + system.getStorageSystemID();
+        BoundedExecutor boundedExecutor = executors.get(key);
+        if (boundedExecutor == null) {
+            BoundedExecutor newExecutor = new BoundedExecutor();
+            boundedExecutor = executors.putIfAbsent(key, newExecutor);
+            if (boundedExecutor == null)
+                boundedExecutor = newExecutor;
+        }
+        boundedExecutor.maxActive = Math.max(1, system.getMaxAsyncTransfers());
+        return boundedExecutor;
+    }
+
+    private class BoundedExecutor implements Executor, Runnable {
+
+        private final Queue<Runnable> queue = new ConcurrentLinkedQueue<Runnable>();
+        private final AtomicInteger active = new AtomicInteger();
+        private volatile int maxActive;
+
+        @Override
+        public void execute(Runnable command) {
+            queue.add(command);
+            startWorker();
+        }
+
+        private void startWorker() {
+            int n;
+            while ((n = active.get()) < maxActive) {
+                if (active.compareAndSet(n, n + 1)) {
+                    try {
+                        executor.execute(this);
+                    } catch (RuntimeException e) {
+                        active.decrementAndGet();
+                        throw e;
+                    }
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean release = true;
+            try {
+                Runnable command;
+                while ((command = queue.poll()) != null) {
+                    if (command instanceof NativeTransfer) {
+                        // the transfer takes over the permit of this worker
+                        release = false;
+                        command.run();
+                        return;
+                    }
+                    command.run();
+                }
+            } finally {
+                if (release)
+                    release();
+            }
+        }
+
+        private void release() {
+            active.decrementAndGet();
+            // re-check for commands queued after the last poll
+            if (!queue.isEmpty())
+                startWorker();
+        }
+
+        private class NativeTransfer<V> implements Runnable,
+                CompletionHandler<V, Void> {
+
+            private final Callable<StorageFuture<V>> start;
+            private final StorageFuture<V> future;
+
+            NativeTransfer(Callable<StorageFuture<V>> start,
+                    StorageFuture<V> future) {
+                this.start = start;
+                this.future = future;
+            }
+
+            @Override
+            public void run() {
+                if (future.isDone()) {
+                    release();
+                    return;
+                }
+                StorageFuture<V> transfer;
+                try {
+                    transfer = start.call();
+                } catch (Throwable e) {
+                    failed(e, null);
+                    return;
+                }
+                transfer.whenDone(this, null);
+            }
+
+            @Override
+            public void completed(V result, Void attachment) {
+                release();
+                future.complete(result);
+            }
+
+            @Override
+            public void failed(Throwable exc, Void attachment) {
+                release();
+                future.fail(exc);
+            }
+        }
+    }
+}
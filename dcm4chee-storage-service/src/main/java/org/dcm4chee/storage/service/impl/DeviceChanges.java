@@ -0,0 +1,145 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.storage.service.impl;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.dcm4che3.net.Device;
+import org.dcm4chee.storage.conf.StorageDeviceExtension;
+import org.dcm4chee.storage.conf.StorageSystem;
+import org.dcm4chee.storage.conf.StorageSystemGroup;
+import org.dcm4chee.storage.conf.StorageSystemStatus;
+
+/**
+ * Accumulates configuration changes of several {@link StorageSystemSelector}s,
+ * so they can be applied to the device configuration by one merge. Later
+ * changes of the same storage group or storage system supersede earlier ones.
+ * <p>
+ * Instances are not thread-safe.
+ *
+ * @author agent <agent@local>
+ *
+ */
+class DeviceChanges {
+
+    private final Map<String,GroupChanges> groupChanges = new LinkedHashMap<>();
+
+    private static class GroupChanges {
+        boolean selectionChanged;
+        String[] activeStorageSystemIDs;
+        String nextStorageSystemID;
+        final Map<String,StorageSystemStatus> storageSystem2newStatus = new HashMap<>();
+    }
+
+    public boolean isEmpty() {
+        return groupChanges.isEmpty();
+    }
+
+    public void add(String groupID, String[] activeStorageSystemIDs, String nextStorageSystemID,
+            Map<String,StorageSystemStatus> storageSystem2newStatus) {
+        GroupChanges changes = groupChanges(groupID);
+        changes.selectionChanged = true;
+        changes.activeStorageSystemIDs = activeStorageSystemIDs;
+        changes.nextStorageSystemID = nextStorageSystemID;
+        changes.storageSystem2newStatus.putAll(storageSystem2newStatus);
+    }
+
+    /**
+     * Adds status changes of storage systems, without changing the active
+     * storage systems of the group.
+     */
+    public void addStatusChanges(String groupID,
+            Map<String,StorageSystemStatus> storageSystem2newStatus) {
+        groupChanges(groupID).storageSystem2newStatus.putAll(storageSystem2newStatus);
+    }
+
+    private GroupChanges groupChanges(String groupID) {
+        GroupChanges changes = groupChanges.get(groupID);
+        if (changes == null)
+            groupChanges.put(groupID, changes = new GroupChanges());
+        return changes;
+    }
+
+    /**
+     * Adds changes which were taken before the changes of this instance, e.g.
+     * changes which could not be merged. Changes of this instance are kept.
+     */
+    public void addEarlier(DeviceChanges earlier) {
+        for (Entry<String,GroupChanges> entry : earlier.groupChanges.entrySet()) {
+            GroupChanges earlierChanges = entry.getValue();
+            GroupChanges changes = groupChanges.get(entry.getKey());
+            if (changes == null) {
+                groupChanges.put(entry.getKey(), earlierChanges);
+            } else {
+                if (!changes.selectionChanged && earlierChanges.selectionChanged) {
+                    changes.selectionChanged = true;
+                    changes.activeStorageSystemIDs = earlierChanges.activeStorageSystemIDs;
+                    changes.nextStorageSystemID = earlierChanges.nextStorageSystemID;
+                }
+                for (Entry<String,StorageSystemStatus> status
+                        : earlierChanges.storageSystem2newStatus.entrySet())
+                    if (!changes.storageSystem2newStatus.containsKey(status.getKey()))
+                        changes.storageSystem2newStatus.put(status.getKey(), status.getValue());
+            }
+        }
+    }
+
+    public void applyTo(Device device) {
+        StorageDeviceExtension storageExtension = device.getDeviceExtension(StorageDeviceExtension.class);
+        for (Entry<String,GroupChanges> entry : groupChanges.entrySet()) {
+            StorageSystemGroup modifyGroup = storageExtension.getStorageSystemGroup(entry.getKey());
+            if (modifyGroup == null)
+                continue;
+
+            GroupChanges changes = entry.getValue();
+            if (changes.selectionChanged) {
+                modifyGroup.setActiveStorageSystemIDs(changes.activeStorageSystemIDs);
+                modifyGroup.setNextStorageSystemID(changes.nextStorageSystemID);
+            }
+            for (Entry<String,StorageSystemStatus> status : changes.storageSystem2newStatus.entrySet()) {
+                StorageSystem storageSystem = modifyGroup.getStorageSystem(status.getKey());
+                if (storageSystem != null)
+                    storageSystem.setStorageSystemStatus(status.getValue());
+            }
+        }
+    }
+}
@@ -40,64 +40,179 @@ package org.dcm4chee.storage.service.impl;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
+import org.dcm4che3.net.Device;
+import org.dcm4che3.util.SafeClose;
 import org.dcm4chee.storage.ExtractTask;
 import org.dcm4chee.storage.RetrieveContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
+ * Extracts container entries to the file cache in two stages: the thread
+ * running the container provider reads entries into pooled buffers, while a
+ * writer running on the device executor flushes them to the file cache.
+ * There is one writer per task: entries arrive one after the other, so a
+ * single writer keeps them in order without coordinating open files, while
+ * concurrent extractions of different containers - limited by
+ * {@link org.dcm4chee.storage.conf.StorageSystem#getMaxConcurrentExtractions()}
+ * - each run their own writer. The reader blocks if all
+ * {@value #MAX_BUFFERS} buffers are waiting for the writer.
+ * <p>
+ * If the container provider supports seeking entries by index, entries
+ * requested before the reader reaches them are seeked directly by up to
+ * {@link #MAX_SEEKERS} concurrent seekers. Whichever of the reader and the
+ * seekers reaches an entry first claims it; the other one skips the entry.
+ *
  * @author Steve Kroetsch<stevekroetsch@hotmail.com>
  * @author Gunter Zeilinger <gunterze@gmail.com>
  *
  */
 class ExtractTaskImpl implements ExtractTask {
 
+    private static final Logger LOG = LoggerFactory.getLogger(ExtractTaskImpl.class);
+
+    static final int BUFFER_SIZE = 64 * 1024;
+    static final int MAX_BUFFERS = 32;
+    static final int MAX_SEEKERS = 2;
+
+    private enum Claim { EXTRACT, SEEK }
+
     private final ConcurrentHashMap<String, FuturePath> requestedEntries =
             new ConcurrentHashMap<String, FuturePath>();
+    private final LinkedBlockingQueue<WriteOp> writeQueue =
+            new LinkedBlockingQueue<WriteOp>();
+    private final ConcurrentLinkedQueue<byte[]> bufferPool =
+            new ConcurrentLinkedQueue<byte[]>();
+    private final Semaphore freeBuffers = new Semaphore(MAX_BUFFERS);
+    private final ConcurrentHashMap<String, Claim> claims =
+            new ConcurrentHashMap<String, Claim>();
+    private final LinkedBlockingDeque<String> seekQueue =
+            new LinkedBlockingDeque<String>();
+    private final Object seekLock = new Object();
+    private int seekers;
+    private boolean finishing;
+    private byte[] skipBuffer;
+    private final CountDownLatch writerDone = new CountDownLatch(1);
+    private final Device device;
     private RetrieveContext context;
     private String name;
+    private boolean writerStarted;
     private volatile IOException ex;
+    private volatile IOException writeException;
     private volatile boolean finished;
 
-    ExtractTaskImpl(RetrieveContext context, String name) {
+    ExtractTaskImpl(RetrieveContext context, String name, Device device) {
         this.context = context;
         this.name = name;
+        this.device = device;
     }
 
     @Override
     public void copyStream(String entryName, InputStream in) throws IOException {
-        Path path = context.getFileCacheProvider()
-                .toPath(context, name).resolve(entryName);
-        Path tmpPath = resolveTempPath(path);
+        if (claims.putIfAbsent(entryName, Claim.EXTRACT) != null) {
+            skip(in);
+            return;
+        }
+        checkWriteException();
+        startWriter();
+        writeQueue.add(new WriteOp(WriteOp.BEGIN, entryName));
         try {
-            Files.createDirectories(tmpPath.getParent());
-            Files.copy(in, tmpPath);
-        } catch (IOException e) {
-            Files.deleteIfExists(tmpPath);
+            int len;
+            do {
+                byte[] buf = acquireBuffer();
+                len = readFully(in, buf);
+                if (len > 0)
+                    writeQueue.add(new WriteOp(entryName, buf, len));
+                else
+                    releaseBuffer(buf);
+                checkWriteException();
+            } while (len == BUFFER_SIZE);
+        } catch (IOException | RuntimeException e) {
+            writeQueue.add(new WriteOp(WriteOp.ABORT, entryName));
             throw e;
         }
+        writeQueue.add(new WriteOp(WriteOp.END, entryName));
     }
 
     @Override
     public void entryExtracted(String entryName) throws IOException {
-        Path path = context.getFileCacheProvider()
-                .toPath(context, name).resolve(entryName);
-        Path tmpPath = resolveTempPath(path);
+        if (claims.get(entryName) != Claim.EXTRACT)
+            return;
+
+        checkWriteException();
+        writeQueue.add(new WriteOp(WriteOp.EXTRACTED, entryName));
+    }
+
+    /**
+     * Reads the entry without writing it, so the container provider still
+     * sees all bytes of the entry for checksum verification.
+     */
+    private void skip(InputStream in) throws IOException {
+        if (skipBuffer == null)
+            skipBuffer = new byte[BUFFER_SIZE];
+        while (in.read(skipBuffer) > 0)
+            ;
+    }
+
+    private void startWriter() {
+        if (!writerStarted) {
+            device.execute(new Writer());
+            writerStarted = true;
+        }
+    }
+
+    private void checkWriteException() throws IOException {
+        if (writeException != null)
+            throw writeException;
+    }
+
+    private byte[] acquireBuffer() throws IOException {
         try {
-            Files.move(tmpPath, path);
-        } catch (IOException e) {
-            Files.deleteIfExists(tmpPath);
-            Files.deleteIfExists(path);
-            throw e;
+            while (!freeBuffers.tryAcquire(1, TimeUnit.SECONDS)) {
+                checkWriteException();
+                if (writerDone.getCount() == 0)
+                    throw new IOException("Writer of " + name + " terminated");
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
         }
+        byte[] buf = bufferPool.poll();
+        return buf != null ? buf : new byte[BUFFER_SIZE];
+    }
 
-        context.getFileCacheProvider().register(context, name, path);
+    private void releaseBuffer(byte[] buf) {
+        bufferPool.offer(buf);
+        freeBuffers.release();
+    }
+
+    private static int readFully(InputStream in, byte[] buf) throws IOException {
+        int off = 0;
+        int read;
+        while (off < buf.length
+                && (read = in.read(buf, off, buf.length - off)) > 0)
+            off += read;
+        return off;
+    }
 
-        FuturePath futurePath = requestedEntries.get(entryName);
-        if (futurePath != null)
-            futurePath.setPath(path);
+    private Path toPath(String entryName) {
+        return context.getFileCacheProvider()
+                .toPath(context, name).resolve(entryName);
     }
 
     private static Path resolveTempPath(Path path) {
@@ -106,6 +221,27 @@ class ExtractTaskImpl implements ExtractTask {
 
     @Override
     public void finished() {
+        synchronized (seekLock) {
+            finishing = true;
+        }
+        if (writerStarted) {
+            writeQueue.add(WriteOp.FINISH);
+            try {
+                writerDone.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (seekLock) {
+            try {
+                while (seekers > 0)
+                    seekLock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (ex == null)
+            ex = writeException;
         this.finished = true;
         for (FuturePath futurePath : requestedEntries.values()) {
             synchronized (futurePath) {
@@ -123,17 +259,115 @@ class ExtractTaskImpl implements ExtractTask {
     public Path getFile(String entryName) throws IOException, InterruptedException {
         FuturePath newFuturePath = new FuturePath();
         FuturePath prevFuturePath = requestedEntries.putIfAbsent(entryName, newFuturePath);
-        return (prevFuturePath != null ? prevFuturePath : newFuturePath).getPath();
+        if (prevFuturePath != null)
+            return prevFuturePath.getPath();
+
+        if (!claims.containsKey(entryName)
+                && context.getContainerProvider().hasEntryIndex()) {
+            seekQueue.offerFirst(entryName);
+            startSeeker();
+        }
+        return newFuturePath.getPath();
+    }
+
+    private void startSeeker() {
+        synchronized (seekLock) {
+            if (finishing || seekers >= MAX_SEEKERS)
+                return;
+            seekers++;
+        }
+        device.execute(new Seeker());
+    }
+
+    private void seek(String entryName) {
+        if (claims.containsKey(entryName))
+            return;
+
+        Path path = toPath(entryName);
+        Path tmpPath = path.resolveSibling(path.getFileName() + ".seek");
+        boolean claimed = false;
+        try {
+            SeekableByteChannel channel = context.getStorageSystemProvider()
+                    .openChannel(context, name);
+            InputStream in;
+            try {
+                in = context.getContainerProvider()
+                        .seekEntry(context, name, entryName, channel);
+            } catch (IOException | RuntimeException e) {
+                SafeClose.close(channel);
+                throw e;
+            }
+            try {
+                Files.createDirectories(tmpPath.getParent());
+                try (OutputStream out = Files.newOutputStream(tmpPath)) {
+                    byte[] buf = new byte[BUFFER_SIZE];
+                    int read;
+                    while ((read = in.read(buf)) > 0) {
+                        if (claims.containsKey(entryName))
+                            return;
+                        out.write(buf, 0, read);
+                    }
+                }
+            } finally {
+                SafeClose.close(in);
+            }
+            if (claims.putIfAbsent(entryName, Claim.SEEK) != null)
+                return;
+
+            claimed = true;
+            Files.move(tmpPath, path);
+            context.getFileCacheProvider().register(context, name, path);
+            requestedEntries.get(entryName).setPath(path);
+        } catch (UnsupportedOperationException e) {
+            LOG.debug("Seek of {} in {} not supported", entryName, name);
+        } catch (IOException e) {
+            if (claimed)
+                requestedEntries.get(entryName).setException(e);
+            else
+                LOG.info("Failed to seek {} in {} - wait for extraction",
+                        entryName, name, e);
+        } finally {
+            try {
+                Files.deleteIfExists(tmpPath);
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private class Seeker implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                String entryName;
+                while ((entryName = nextEntryToSeek()) != null)
+                    seek(entryName);
+            } finally {
+                synchronized (seekLock) {
+                    seekers--;
+                    seekLock.notifyAll();
+                }
+            }
+        }
+
+        private String nextEntryToSeek() {
+            synchronized (seekLock) {
+                return finishing ? null : seekQueue.pollFirst();
+            }
+        }
     }
 
     private class FuturePath {
         private Path path;
+        private IOException ex;
 
         synchronized Path getPath() throws IOException, InterruptedException {
-            while (path == null && !ExtractTaskImpl.this.finished)
+            while (path == null && ex == null && !ExtractTaskImpl.this.finished)
                 wait();
             if (path != null)
                 return path;
+            if (ex != null)
+                throw ex;
             if (ExtractTaskImpl.this.ex != null)
                 throw ExtractTaskImpl.this.ex;
             return null;
@@ -143,6 +377,127 @@ class ExtractTaskImpl implements ExtractTask {
             this.path = path;
             notifyAll();
         }
+
+        synchronized void setException(IOException ex) {
+            this.ex = ex;
+            notifyAll();
+        }
+    }
+
+    private static class WriteOp {
+        static final int BEGIN = 0;
+        static final int DATA = 1;
+        static final int END = 2;
+        static final int ABORT = 3;
+        static final int EXTRACTED = 4;
+        static final int FINISHED = 5;
+        static final WriteOp FINISH = new WriteOp(FINISHED, null);
+
+        final int type;
+        final String entryName;
+        final byte[] buf;
+        final int len;
+
+        WriteOp(int type, String entryName) {
+            this.type = type;
+            this.entryName = entryName;
+            this.buf = null;
+            this.len = 0;
+        }
+
+        WriteOp(String entryName, byte[] buf, int len) {
+            this.type = DATA;
+            this.entryName = entryName;
+            this.buf = buf;
+            this.len = len;
+        }
     }
 
-}
\ No newline at end of file
+    private class Writer implements Runnable {
+        private final Set<Path> tmpPaths = new HashSet<Path>();
+        private Path tmpPath;
+        private OutputStream out;
+
+        @Override
+        public void run() {
+            try {
+                WriteOp op;
+                while ((op = writeQueue.take()).type != WriteOp.FINISHED) {
+                    try {
+                        if (writeException == null)
+                            write(op);
+                    } catch (IOException e) {
+                        writeException = e;
+                    } catch (RuntimeException e) {
+                        writeException = new IOException(e);
+                    } finally {
+                        if (op.buf != null)
+                            releaseBuffer(op.buf);
+                    }
+                }
+            } catch (InterruptedException e) {
+                writeException = new InterruptedIOException();
+            } finally {
+                SafeClose.close(out);
+                for (Path path : tmpPaths)
+                    deleteIfExists(path);
+                writerDone.countDown();
+            }
+        }
+
+        private void write(WriteOp op) throws IOException {
+            switch (op.type) {
+            case WriteOp.BEGIN:
+                tmpPath = resolveTempPath(toPath(op.entryName));
+                tmpPaths.add(tmpPath);
+                Files.createDirectories(tmpPath.getParent());
+                out = Files.newOutputStream(tmpPath,
+                        StandardOpenOption.CREATE_NEW);
+                break;
+            case WriteOp.DATA:
+                out.write(op.buf, 0, op.len);
+                break;
+            case WriteOp.END:
+                OutputStream tmp = out;
+                out = null;
+                tmp.close();
+                break;
+            case WriteOp.ABORT:
+                SafeClose.close(out);
+                out = null;
+                Files.deleteIfExists(tmpPath);
+                tmpPaths.remove(tmpPath);
+                break;
+            case WriteOp.EXTRACTED:
+                extracted(op.entryName);
+                break;
+            }
+        }
+
+        private void extracted(String entryName) throws IOException {
+            Path path = toPath(entryName);
+            Path tmpPath = resolveTempPath(path);
+            tmpPaths.remove(tmpPath);
+            try {
+                Files.move(tmpPath, path);
+            } catch (IOException e) {
+                Files.deleteIfExists(tmpPath);
+                Files.deleteIfExists(path);
+                throw e;
+            }
+
+            context.getFileCacheProvider().register(context, name, path);
+
+            FuturePath futurePath = requestedEntries.get(entryName);
+            if (futurePath != null)
+                futurePath.setPath(path);
+        }
+
+        private void deleteIfExists(Path path) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException ignore) {
+            }
+        }
+    }
+}
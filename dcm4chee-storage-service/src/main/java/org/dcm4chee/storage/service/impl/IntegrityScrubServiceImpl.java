@@ -0,0 +1,398 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.storage.service.impl;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.dcm4che3.net.Device;
+import org.dcm4che3.util.SafeClose;
+import org.dcm4chee.storage.IOPriority;
+import org.dcm4chee.storage.MessageDigestPool;
+import org.dcm4chee.storage.ObjectNotFoundException;
+import org.dcm4chee.storage.RetrieveContext;
+import org.dcm4chee.storage.TokenBucket;
+import org.dcm4chee.storage.conf.StorageDevice;
+import org.dcm4chee.storage.conf.StorageSystem;
+import org.dcm4chee.storage.service.IntegrityScrub;
+import org.dcm4chee.storage.service.IntegrityScrubService;
+import org.dcm4chee.storage.service.RetrieveService;
+import org.dcm4chee.storage.spi.ContainerProvider;
+import org.dcm4chee.storage.spi.StorageSystemProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * @author agent <agent@local>
+ *
+ */
+@ApplicationScoped
+public class IntegrityScrubServiceImpl implements IntegrityScrubService {
+
+    private static final Logger LOG =
+            LoggerFactory.getLogger(IntegrityScrubServiceImpl.class);
+
+    private static final int QUEUE_SIZE = 1000;
+    private static final int READ_BUFFER_SIZE = 65536;
+    private static final long POLL_INTERVAL = 100L;
+
+    @Inject @StorageDevice
+    private Device device;
+
+    @Inject
+    private RetrieveService retrieveService;
+
+    @Override
+    public IntegrityScrub scrub(StorageSystem storageSystem) throws IOException {
+        RetrieveContext ctx = retrieveService.createRetrieveContext(storageSystem);
+        final Path baseDir = ctx.getStorageSystemProvider()
+                .getBaseDirectory(storageSystem);
+        final Set<String> statusFileExtensions =
+                storageSystem.getStatusFileExtensions().keySet();
+        final Scrub scrub = new Scrub(ctx);
+        scrub.start(new Producer() {
+            @Override
+            void produce() throws IOException, InterruptedException {
+                Files.walkFileTree(baseDir, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file,
+                            BasicFileAttributes attrs) throws IOException {
+                        String name = baseDir.relativize(file).toString()
+                                .replace(file.getFileSystem().getSeparator(), "/");
+                        for (String ext : statusFileExtensions)
+                            if (name.endsWith(ext))
+                                return FileVisitResult.CONTINUE;
+
+                        try {
+                            return scrub.offer(name, null)
+                                    ? FileVisitResult.CONTINUE
+                                    : FileVisitResult.TERMINATE;
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException();
+                        }
+                    }
+                });
+            }
+        });
+        return scrub;
+    }
+
+    @Override
+    public IntegrityScrub scrub(StorageSystem storageSystem,
+            final Map<String, String> digests) {
+        RetrieveContext ctx = retrieveService.createRetrieveContext(storageSystem);
+        final Scrub scrub = new Scrub(ctx);
+        scrub.start(new Producer() {
+            @Override
+            void produce() throws InterruptedException {
+                for (Map.Entry<String, String> entry : digests.entrySet())
+                    if (!scrub.offer(entry.getKey(), entry.getValue()))
+                        return;
+            }
+        });
+        return scrub;
+    }
+
+    private static abstract class Producer {
+        abstract void produce() throws IOException, InterruptedException;
+    }
+
+    private static class Item {
+        final String name;
+        final String digest;
+
+        Item(String name, String digest) {
+            this.name = name;
+            this.digest = digest;
+        }
+    }
+
+    private class Scrub implements IntegrityScrub {
+
+        private final RetrieveContext ctx;
+        private final StorageSystem storageSystem;
+        private final String digestAlgorithm;
+        private final TokenBucket readRate;
+        private final int threads;
+        private final BlockingQueue<Item> queue =
+                new LinkedBlockingQueue<Item>(QUEUE_SIZE);
+        private final CountDownLatch done;
+        private final AtomicLong checked = new AtomicLong();
+        private final AtomicLong bytesRead = new AtomicLong();
+        private final Map<String, String> failures =
+                Collections.synchronizedMap(new HashMap<String, String>());
+        private volatile boolean produced;
+        private volatile boolean cancelled;
+
+        Scrub(RetrieveContext ctx) {
+            ctx.setPriority(IOPriority.SCRUBBING);
+            this.ctx = ctx;
+            this.storageSystem = ctx.getStorageSystem();
+            this.digestAlgorithm = storageSystem.getStorageSystemGroup()
+                    .getDigestAlgorithm();
+            if (digestAlgorithm != null)
+                try {
+                    MessageDigestPool.release(MessageDigestPool.get(digestAlgorithm));
+                } catch (NoSuchAlgorithmException e) {
+                    throw new RuntimeException("Invalid digest algorithm,"
+                            + " check configuration for storage group "
+                            + storageSystem.getStorageSystemGroup().getGroupID());
+                }
+            long maxRate = storageSystem.getScrubMaxRateInBytes();
+            this.readRate = new TokenBucket(maxRate, maxRate);
+            this.threads = Math.max(1, storageSystem.getScrubThreads());
+            this.done = new CountDownLatch(threads);
+        }
+
+        void start(final Producer producer) {
+            LOG.info("Start integrity scrub of {} with {} threads", storageSystem,
+                    threads);
+            device.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        producer.produce();
+                    } catch (Exception e) {
+                        LOG.warn("Integrity scrub of {} aborted:", storageSystem, e);
+                        cancelled = true;
+                    } finally {
+                        produced = true;
+                    }
+                }
+            });
+            for (int i = 0; i < threads; i++)
+                device.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            work();
+                        } finally {
+                            done.countDown();
+                            if (done.getCount() == 0) {
+                                // stop the producer, if workers died
+                                cancelled = true;
+                                LOG.info("Finished integrity scrub of {}: {} objects, "
+                                        + "{} bytes checked, {} failures",
+                                        storageSystem, checked, bytesRead,
+                                        failures.size());
+                            }
+                        }
+                    }
+                });
+        }
+
+        boolean offer(String name, String digest) throws InterruptedException {
+            Item item = new Item(name, digest);
+            while (!cancelled)
+                if (queue.offer(item, POLL_INTERVAL, TimeUnit.MILLISECONDS))
+                    return true;
+            return false;
+        }
+
+        private void work() {
+            try {
+                while (!cancelled) {
+                    Item item = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                    if (item != null)
+                        check(item);
+                    else if (produced && queue.isEmpty())
+                        return;
+                }
+            } catch (InterruptedException e) {
+                cancelled = true;
+            }
+        }
+
+        private void check(Item item) throws InterruptedException {
+            try {
+                String failure = verify(item);
+                if (failure != null)
+                    fail(item.name, failure);
+            } catch (InterruptedIOException e) {
+                throw new InterruptedException();
+            } catch (ObjectNotFoundException e) {
+                fail(item.name, "Object not found");
+            } catch (IOException | RuntimeException e) {
+                fail(item.name, e.toString());
+            } finally {
+                checked.incrementAndGet();
+            }
+        }
+
+        private String verify(Item item) throws IOException {
+            StorageSystemProvider provider = ctx.getStorageSystemProvider();
+            ContainerProvider containerProvider = ctx.getContainerProvider();
+            DigestingInputStream din = null;
+            InputStream in = new ThrottledInputStream(
+                    provider.openInputStream(ctx, item.name), this);
+            try {
+                if (item.digest != null && digestAlgorithm != null)
+                    in = din = new DigestingInputStream(in, newMessageDigest());
+                if (containerProvider != null)
+                    containerProvider.extractEntries(ctx, item.name,
+                            new TestExtractTask(), in);
+                byte[] buf = new byte[READ_BUFFER_SIZE];
+                while (in.read(buf) > 0)
+                    ;
+                if (din != null) {
+                    String digest = din.digest();
+                    if (!item.digest.equals(digest))
+                        return "Digest mismatch - expected: " + item.digest
+                                + ", calculated: " + digest;
+                }
+                return null;
+            } finally {
+                SafeClose.close(in);
+                if (din != null)
+                    din.digest();
+            }
+        }
+
+        private MessageDigest newMessageDigest() {
+            try {
+                return MessageDigestPool.get(digestAlgorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        private void fail(String name, String reason) {
+            LOG.warn("Integrity check of {}@{} failed: {}", name, storageSystem,
+                    reason);
+            failures.put(name, reason);
+        }
+
+        void read(int n) throws InterruptedIOException {
+            bytesRead.addAndGet(n);
+            try {
+                readRate.acquire(n);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        @Override
+        public StorageSystem getStorageSystem() {
+            return storageSystem;
+        }
+
+        @Override
+        public long getCheckedObjects() {
+            return checked.get();
+        }
+
+        @Override
+        public long getBytesRead() {
+            return bytesRead.get();
+        }
+
+        @Override
+        public Map<String, String> getFailures() {
+            synchronized (failures) {
+                return new HashMap<String, String>(failures);
+            }
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public boolean awaitCompletion(long timeout, TimeUnit unit)
+                throws InterruptedException {
+            return done.await(timeout, unit);
+        }
+    }
+
+    private static class ThrottledInputStream extends FilterInputStream {
+
+        private final Scrub scrub;
+
+        ThrottledInputStream(InputStream in, Scrub scrub) {
+            super(in);
+            this.scrub = scrub;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1)
+                scrub.read(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0)
+                scrub.read(n);
+            return n;
+        }
+    }
+}
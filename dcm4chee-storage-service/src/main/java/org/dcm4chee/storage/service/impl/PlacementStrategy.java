@@ -0,0 +1,166 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.storage.service.impl;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.dcm4chee.storage.conf.PlacementPolicy;
+import org.dcm4chee.storage.conf.StorageSystem;
+import org.dcm4chee.storage.conf.StorageSystemGroup;
+
+/**
+ * Implementations of the {@link PlacementPolicy} configured for a storage
+ * group. A strategy selects one of the active storage systems of the
+ * current {@link ActiveStorageSystems} snapshot. Strategies other than
+ * round-robin start from the round-robin position, so ties are spread
+ * evenly.
+ *
+ * @author agent <agent@local>
+ *
+ */
+enum PlacementStrategy {
+    ROUND_ROBIN {
+        @Override
+        int select(StorageSystemGroup group, ActiveStorageSystems active,
+                StorageServiceImpl service) {
+            return active.next();
+        }
+
+        @Override
+        void rejected(ActiveStorageSystems active, int index) {
+            active.reset(index);
+        }
+    },
+    LEAST_IN_FLIGHT {
+        @Override
+        int select(StorageSystemGroup group, ActiveStorageSystems active,
+                StorageServiceImpl service) {
+            int start = active.next();
+            int size = active.size();
+            int selected = start;
+            int minInFlight = Integer.MAX_VALUE;
+            for (int i = 0; i < size; i++) {
+                int index = (start + i) % size;
+                StorageSystemLoad load = service.getLoad(
+                        group.getGroupID(), active.getActiveID(index));
+                int inFlight = load != null ? load.getInFlight() : 0;
+                if (inFlight < minInFlight) {
+                    minInFlight = inFlight;
+                    selected = index;
+                }
+            }
+            return selected;
+        }
+    },
+    MOST_FREE_SPACE {
+        @Override
+        int select(StorageSystemGroup group, ActiveStorageSystems active,
+                StorageServiceImpl service) {
+            int start = active.next();
+            int size = active.size();
+            int selected = start;
+            long maxUsableSpace = -1L;
+            for (int i = 0; i < size; i++) {
+                int index = (start + i) % size;
+                StorageSystem system = group.getStorageSystem(active.getActiveID(index));
+                long usableSpace = system != null
+                        ? service.getUsableSpaceEstimate(system) : -1L;
+                if (usableSpace > maxUsableSpace) {
+                    maxUsableSpace = usableSpace;
+                    selected = index;
+                }
+            }
+            return selected;
+        }
+    },
+    LATENCY_WEIGHTED {
+        @Override
+        int select(StorageSystemGroup group, ActiveStorageSystems active,
+                StorageServiceImpl service) {
+            int start = active.next();
+            int size = active.size();
+            long[] latencies = new long[size];
+            long minLatency = Long.MAX_VALUE;
+            for (int i = 0; i < size; i++) {
+                StorageSystemLoad load = service.getLoad(
+                        group.getGroupID(), active.getActiveID(i));
+                latencies[i] = load != null ? load.getAvgLatency() : 0L;
+                if (latencies[i] > 0L && latencies[i] < minLatency)
+                    minLatency = latencies[i];
+            }
+            if (minLatency == Long.MAX_VALUE)
+                return start;
+
+            // storage systems without measured latency are weighted as the fastest one
+            double[] weights = new double[size];
+            double sum = 0.;
+            for (int i = 0; i < size; i++) {
+                weights[i] = 1. / (latencies[i] > 0L ? latencies[i] : minLatency);
+                sum += weights[i];
+            }
+            double r = ThreadLocalRandom.current().nextDouble() * sum;
+            for (int i = 0; i < size; i++) {
+                int index = (start + i) % size;
+                if ((r -= weights[index]) < 0.)
+                    return index;
+            }
+            return start;
+        }
+    };
+
+    /**
+     * Selects one of the active storage systems.
+     *
+     * @return index of the selected storage system in {@code active}
+     */
+    abstract int select(StorageSystemGroup group, ActiveStorageSystems active,
+            StorageServiceImpl service);
+
+    /**
+     * Invoked if the storage system selected by
+     * {@link #select(StorageSystemGroup, ActiveStorageSystems, StorageServiceImpl)}
+     * cannot be used.
+     */
+    void rejected(ActiveStorageSystems active, int index) {
+    }
+
+    static PlacementStrategy valueOf(PlacementPolicy policy) {
+        return policy != null ? valueOf(policy.name()) : ROUND_ROBIN;
+    }
+}
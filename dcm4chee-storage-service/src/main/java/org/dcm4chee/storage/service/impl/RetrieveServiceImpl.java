@@ -40,13 +40,19 @@ package org.dcm4chee.storage.service.impl;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.enterprise.inject.Instance;
@@ -54,9 +60,9 @@ import javax.inject.Inject;
 
 import org.dcm4che3.net.Device;
 import org.dcm4che3.util.SafeClose;
-import org.dcm4che3.util.TagUtils;
 import org.dcm4chee.storage.ContainerEntry;
 import org.dcm4chee.storage.ExtractTask;
+import org.dcm4chee.storage.MessageDigestPool;
 import org.dcm4chee.storage.ObjectNotFoundException;
 import org.dcm4chee.storage.RetrieveContext;
 import org.dcm4chee.storage.conf.StorageDevice;
@@ -76,6 +82,8 @@ import org.dcm4chee.storage.spi.StorageSystemProvider;
 @ApplicationScoped
 public class RetrieveServiceImpl implements RetrieveService {
 
+    private static final int DIGEST_BUFFER_SIZE = 65536;
+
     @Inject @StorageDevice
     private Device device;
 
@@ -91,6 +99,16 @@ public class RetrieveServiceImpl implements RetrieveService {
     private final ConcurrentHashMap<ExtractTaskKey, ExtractTask> extractTasks =
             new ConcurrentHashMap<ExtractTaskKey, ExtractTask>();
 
+    private final ConcurrentHashMap<String, Semaphore> extractPermits =
+            new ConcurrentHashMap<String, Semaphore>();
+
+    private final AsyncTransfers asyncTransfers = new AsyncTransfers(new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            device.execute(command);
+        }
+    });
+
     public StorageSystem getStorageSystem(String groupID, String systemID) {
         StorageDeviceExtension devExt =
                 device.getDeviceExtension(StorageDeviceExtension.class);
@@ -125,17 +143,18 @@ public class RetrieveServiceImpl implements RetrieveService {
         if (digestAlgorithm != null) {
             MessageDigest digest;
             try {
-                digest = MessageDigest.getInstance(digestAlgorithm);
+                digest = MessageDigestPool.get(digestAlgorithm);
             } catch (NoSuchAlgorithmException e) {
+                in.close();
                 throw new RuntimeException("Invalid digest algorithm,"
                         + " check configuration for storage group "
                         + ctx.getStorageSystem().getStorageSystemGroup().getGroupID());
             }
-            in = new DigestInputStream(in, digest) {
+            in = new DigestingInputStream(in, digest) {
                 @Override
                 public void close() throws IOException {
                     super.close();
-                    ctx.setDigest(TagUtils.toHexString(getMessageDigest().digest()));
+                    ctx.setDigest(digest());
                 }
             };
         }
@@ -143,6 +162,19 @@ public class RetrieveServiceImpl implements RetrieveService {
         return in;
     }
 
+    @Override
+    public <A> Future<InputStream> openInputStreamAsync(
+            final RetrieveContext ctx, final String name, A attachment,
+            CompletionHandler<InputStream, ? super A> handler) {
+        return asyncTransfers.submit(ctx.getStorageSystem(),
+                new Callable<InputStream>() {
+                    @Override
+                    public InputStream call() throws IOException {
+                        return openInputStream(ctx, name);
+                    }
+                }, attachment, handler);
+    }
+
     @Override
     public InputStream openInputStream(RetrieveContext ctx, String name,
             String entryName) throws IOException, InterruptedException {
@@ -154,15 +186,60 @@ public class RetrieveServiceImpl implements RetrieveService {
             throw new UnsupportedOperationException();
 
         StorageSystemProvider provider = ctx.getStorageSystemProvider();
-        InputStream in = provider.openInputStream(ctx, name);
+        SeekableByteChannel channel;
         try {
-            return containerProvider.seekEntry(ctx, name, entryName, in);
+            channel = provider.openChannel(ctx, name);
+        } catch (UnsupportedOperationException e) {
+            InputStream in = provider.openInputStream(ctx, name);
+            try {
+                return containerProvider.seekEntry(ctx, name, entryName, in);
+            } catch (IOException e2) {
+                SafeClose.close(in);
+                throw e2;
+            }
+        }
+        try {
+            return containerProvider.seekEntry(ctx, name, entryName, channel);
         } catch (IOException e) {
-            SafeClose.close(in);
+            SafeClose.close(channel);
             throw e;
         }
     }
 
+    @Override
+    public SeekableByteChannel openChannel(RetrieveContext ctx, String name)
+            throws IOException {
+        StorageSystemProvider provider = ctx.getStorageSystemProvider();
+        FileCacheProvider fileCacheProvider = ctx.getFileCacheProvider();
+        if (fileCacheProvider == null)
+            return provider.openChannel(ctx, name);
+
+        // read a cached copy, but do not download the whole object for
+        // random access to a few ranges of it
+        Path path = fileCacheProvider.toPath(ctx, name);
+        if (fileCacheProvider.access(path))
+            return Files.newByteChannel(path);
+
+        try {
+            return provider.openChannel(ctx, name);
+        } catch (UnsupportedOperationException e) {
+            return Files.newByteChannel(getFile(ctx, name));
+        }
+    }
+
+    @Override
+    public <A> Future<Path> getFileAsync(final RetrieveContext ctx,
+            final String name, A attachment,
+            CompletionHandler<Path, ? super A> handler) {
+        return asyncTransfers.submit(ctx.getStorageSystem(),
+                new Callable<Path>() {
+                    @Override
+                    public Path call() throws IOException {
+                        return getFile(ctx, name);
+                    }
+                }, attachment, handler);
+    }
+
     @Override
     public Path getFile(RetrieveContext ctx, String name) throws IOException {
         StorageSystemProvider provider = ctx.getStorageSystemProvider();
@@ -207,7 +284,7 @@ public class RetrieveServiceImpl implements RetrieveService {
 
     private ExtractTask getExtractTask(final RetrieveContext ctx, final String name) {
         final ExtractTaskKey key = new ExtractTaskKey(ctx.getStorageSystem(), name);
-        final ExtractTask newTask = new ExtractTaskImpl(ctx, name);
+        final ExtractTask newTask = new ExtractTaskImpl(ctx, name, device);
         ExtractTask prevTask = extractTasks.putIfAbsent(key, newTask);
         if (prevTask != null)
             return prevTask;
@@ -216,12 +293,27 @@ public class RetrieveServiceImpl implements RetrieveService {
 
             @Override
             public void run() {
+                Semaphore permits = extractPermits(ctx.getStorageSystem());
+                try {
+                    if (permits != null)
+                        permits.acquire();
+                } catch (InterruptedException e) {
+                    newTask.exception(new InterruptedIOException());
+                    newTask.finished();
+                    extractTasks.remove(key);
+                    return;
+                }
                 try (InputStream in = ctx.getStorageSystemProvider()
                         .openInputStream(ctx, name)) {
                     ctx.getContainerProvider().extractEntries(ctx, name,
                             newTask, in);
                 } catch (IOException ex) {
                     newTask.exception(ex);
+                } catch (RuntimeException ex) {
+                    newTask.exception(new IOException(ex));
+                } finally {
+                    if (permits != null)
+                        permits.release();
                 }
                 newTask.finished();
                 extractTasks.remove(key);
@@ -230,6 +322,23 @@ public class RetrieveServiceImpl implements RetrieveService {
         return newTask;
     }
 
+    private Semaphore extractPermits(StorageSystem storageSystem) {
+        int maxConcurrentExtractions = storageSystem.getMaxConcurrentExtractions();
+        if (maxConcurrentExtractions <= 0)
+            return null;
+
+        String key = storageSystem.getStorageSystemGroup().getGroupID()
+                + '/' + storageSystem.getStorageSystemID();
+        Semaphore permits = extractPermits.get(key);
+        if (permits == null) {
+            Semaphore newPermits = new Semaphore(maxConcurrentExtractions, true);
+            permits = extractPermits.putIfAbsent(key, newPermits);
+            if (permits == null)
+                permits = newPermits;
+        }
+        return permits;
+    }
+
     @Override
     public void verifyContainer(RetrieveContext ctx, String name,
             List<ContainerEntry> expectedEntries) throws IOException,
@@ -288,7 +397,7 @@ public class RetrieveServiceImpl implements RetrieveService {
             throws IOException {
 
         try (InputStream in = openInputStream(ctx, name)) {
-            byte[] buffer = new byte[1024];
+            byte[] buffer = new byte[DIGEST_BUFFER_SIZE];
             // read fully just to calculate digest
             while (in.read(buffer) != -1)
                 ;
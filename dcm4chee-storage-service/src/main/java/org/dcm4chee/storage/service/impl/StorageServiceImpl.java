@@ -38,21 +38,26 @@
 
 package org.dcm4chee.storage.service.impl;
 
+import java.io.FilterInputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
-import java.security.DigestInputStream;
-import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.enterprise.context.ApplicationScoped;
@@ -62,10 +67,11 @@ import javax.inject.Inject;
 import org.dcm4che3.conf.api.DicomConfiguration;
 import org.dcm4che3.conf.core.api.ConfigurationException;
 import org.dcm4che3.net.Device;
-import org.dcm4che3.util.TagUtils;
 import org.dcm4chee.storage.ContainerEntry;
+import org.dcm4chee.storage.MessageDigestPool;
 import org.dcm4chee.storage.ObjectAlreadyExistsException;
 import org.dcm4chee.storage.StorageContext;
+import org.dcm4chee.storage.StorageFuture;
 import org.dcm4chee.storage.conf.StorageDevice;
 import org.dcm4chee.storage.conf.StorageDeviceExtension;
 import org.dcm4chee.storage.conf.StorageSystem;
@@ -86,6 +92,10 @@ public class StorageServiceImpl implements StorageService {
 
     private static final Logger LOG = LoggerFactory.getLogger(StorageServiceImpl.class);
 
+    private static final int COPY_BUFFER_SIZE = 65536;
+
+    private static final int MERGE_RETRY_INTERVAL = 30;
+
     @Inject @StorageDevice
     private Device device;
 
@@ -101,17 +111,47 @@ public class StorageServiceImpl implements StorageService {
     @Inject
     private Instance<FileCacheProvider> fileCacheProviders;
     
-    private final AtomicBoolean mergeDeviceIsRunning = new AtomicBoolean();
+    /*
+     * Configuration changes of storage system selections, which are not yet merged into the
+     * DICOM configuration. Changes made while a merge is running are merged by the next merge.
+     */
+    private DeviceChanges pendingDeviceChanges = new DeviceChanges();
+
+    private final Object pendingDeviceChangesLock = new Object();
+
+    private final Object mergeDeviceLock = new Object();
+
+    private final AtomicBoolean mergeDeviceScheduled = new AtomicBoolean();
     
     /*
-     * Maintains the active storage system index for a storage group.
+     * Maintains the active storage systems and the active storage system index for a storage group.
      * The index should not be stored in the DICOM config as for parallel filesystems it is updated
      * constantly in a round-robin fashion to simulate a RAID-0 like behavior.
      * DICOM configuration is the wrong storage for runtime state with a high modification rate.
      * Currently this does not take into account clustering -> Think about putting the storage runtime state
      * into an Infinispan cache  
      */
-    private final ConcurrentMap<String,Integer> storageGroup2ActiveStorageSystemIndex = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String,ActiveStorageSystems> storageGroup2ActiveStorageSystems = new ConcurrentHashMap<>();
+
+    /*
+     * Maintains writes in progress and write latency per storage system for placement policies
+     * other than round-robin.
+     */
+    private final ConcurrentMap<String,StorageSystemLoad> storageSystem2Load = new ConcurrentHashMap<>();
+
+    private final UsableSpaceCache usableSpaceCache = new UsableSpaceCache(new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            device.execute(command);
+        }
+    });
+
+    private final AsyncTransfers asyncTransfers = new AsyncTransfers(new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            device.execute(command);
+        }
+    });
 
     @Override
     public StorageSystem selectStorageSystem(String groupID, long reserveSpace) {
@@ -125,40 +165,165 @@ public class StorageServiceImpl implements StorageService {
             throw new IllegalArgumentException("No such Storage System Group - " + groupID);
         }
         
-        final StorageSystemSelector storageSystemSelector = new StorageSystemSelector(group, storageSystemProviders, storageGroup2ActiveStorageSystemIndex);
+        ActiveStorageSystems activeStorageSystems = activeStorageSystems(groupID);
+        if (activeStorageSystems.isCurrent(group)) {
+            StorageSystem selectedSystem = selectActiveStorageSystem(group, activeStorageSystems, reserveSpace);
+            if (selectedSystem != null)
+                return selectedSystem;
+        }
+
+        // probe the storage systems outside of the group lock, so stores to a degraded
+        // group do not wait for each other's remote checks
+        String[] configuredIDs = group.getActiveStorageSystemIDs();
+        StorageSystemSelector storageSystemSelector = new StorageSystemSelector(group,
+                storageSystemProviders, activeStorageSystems.getCursor(), usableSpaceCache);
         StorageSystem selectedSystem = storageSystemSelector.selectStorageSystem(reserveSpace);
-        
-        if(storageSystemSelector.isConfigurationChanged()) {
-            Runnable mergeConfigRunner = new Runnable() {
-                @Override
-                public void run() {
-                    if (!mergeDeviceIsRunning.compareAndSet(false, true)) {
-                        LOG.info("mergeDevice already running");
-                        return;
-                    }
-                    
-                    try {
-                        Device modifyDevice = dicomConfiguration.findDevice(device.getDeviceName());
-                        storageSystemSelector.mergeDeviceChanges(modifyDevice);
-                        dicomConfiguration.merge(modifyDevice);
-                    } catch (ConfigurationException e) {
-                        LOG.warn("Device {} could not be merged", device.getDeviceName(), e);
-                    } finally {
-                        mergeDeviceIsRunning.set(false);
+        synchronized (activeStorageSystems.getCursor()) {
+            // queue changes in the order of the selections, so an earlier selection
+            // cannot supersede a later one
+            if (storageGroup2ActiveStorageSystems.get(groupID) == activeStorageSystems) {
+                storageSystemSelector.updateCursor();
+                storageGroup2ActiveStorageSystems.put(groupID, activeStorageSystems.update(
+                        group, configuredIDs, storageSystemSelector.getActiveStorageSystemIDs()));
+                if (storageSystemSelector.isConfigurationChanged()) {
+                    synchronized (pendingDeviceChangesLock) {
+                        storageSystemSelector.addDeviceChanges(pendingDeviceChanges);
                     }
                 }
-            };
-            
+            } else if (storageSystemSelector.isConfigurationChanged()) {
+                // a concurrent selection was published meanwhile: keep its active
+                // storage systems, but do not lose detected status changes
+                synchronized (pendingDeviceChangesLock) {
+                    storageSystemSelector.addStatusChanges(pendingDeviceChanges);
+                }
+            }
+        }
+        
+        if(storageSystemSelector.isConfigurationChanged()) {
             if(asyncMergeConfig) {
-                device.execute(mergeConfigRunner);
+                scheduleMergeDeviceChanges();
             } else {
-                mergeConfigRunner.run();
+                mergeDeviceChanges();
             }
         }
         
         return selectedSystem;
     }
 
+    private void scheduleMergeDeviceChanges() {
+        if (!mergeDeviceScheduled.compareAndSet(false, true))
+            return;
+
+        device.execute(new Runnable() {
+            @Override
+            public void run() {
+                mergeDeviceScheduled.set(false);
+                mergeDeviceChanges();
+            }
+        });
+    }
+
+    /*
+     * Merges all pending configuration changes by one merge. If the merge fails, the changes are
+     * kept pending and merged together with the next configuration change, or by a retry after
+     * MERGE_RETRY_INTERVAL seconds, if the device provides a scheduled executor.
+     */
+    private void mergeDeviceChanges() {
+        synchronized (mergeDeviceLock) {
+            DeviceChanges deviceChanges;
+            synchronized (pendingDeviceChangesLock) {
+                deviceChanges = pendingDeviceChanges;
+                if (deviceChanges.isEmpty())
+                    return;
+                pendingDeviceChanges = new DeviceChanges();
+            }
+            boolean merged = false;
+            try {
+                Device modifyDevice = dicomConfiguration.findDevice(device.getDeviceName());
+                deviceChanges.applyTo(modifyDevice);
+                dicomConfiguration.merge(modifyDevice);
+                merged = true;
+            } catch (ConfigurationException | RuntimeException e) {
+                LOG.warn("Device {} could not be merged", device.getDeviceName(), e);
+            } finally {
+                if (!merged) {
+                    synchronized (pendingDeviceChangesLock) {
+                        pendingDeviceChanges.addEarlier(deviceChanges);
+                    }
+                    scheduleMergeRetry();
+                }
+            }
+        }
+    }
+
+    private void scheduleMergeRetry() {
+        if (device.getScheduledExecutor() == null)
+            return;
+
+        device.schedule(new Runnable() {
+            @Override
+            public void run() {
+                scheduleMergeDeviceChanges();
+            }
+        }, MERGE_RETRY_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    private ActiveStorageSystems activeStorageSystems(String groupID) {
+        ActiveStorageSystems activeStorageSystems = storageGroup2ActiveStorageSystems.get(groupID);
+        if (activeStorageSystems == null) {
+            ActiveStorageSystems newActiveStorageSystems = new ActiveStorageSystems();
+            activeStorageSystems = storageGroup2ActiveStorageSystems.putIfAbsent(groupID, newActiveStorageSystems);
+            if (activeStorageSystems == null)
+                activeStorageSystems = newActiveStorageSystems;
+        }
+        return activeStorageSystems;
+    }
+
+    /*
+     * Selects the next storage system of the current snapshot without allocating a StorageSystemSelector.
+     * Returns null if the storage system cannot be selected, so the caller falls back to the
+     * StorageSystemSelector, which also updates the status of the storage system. 
+     */
+    private StorageSystem selectActiveStorageSystem(StorageSystemGroup group,
+            ActiveStorageSystems activeStorageSystems, long reserveSpace) {
+        PlacementStrategy strategy = PlacementStrategy.valueOf(group.getPlacementPolicy());
+        int index = strategy.select(group, activeStorageSystems, this);
+        StorageSystem system = group.getStorageSystem(activeStorageSystems.getActiveID(index));
+        try {
+            if (system != null && StorageSystemSelector.isSelectable(system)
+                    && StorageSystemSelector.hasMinFreeSpace(system,
+                            system.getStorageSystemProvider(storageSystemProviders),
+                            usableSpaceCache, reserveSpace)) {
+                usableSpaceCache.reserve(system, reserveSpace);
+                return system;
+            }
+        } catch (IOException e) {
+            LOG.debug("{} not accessible", system, e);
+        }
+        strategy.rejected(activeStorageSystems, index);
+        return null;
+    }
+
+    StorageSystemLoad getLoad(String groupID, String systemID) {
+        return storageSystem2Load.get(groupID + '/' + systemID);
+    }
+
+    long getUsableSpaceEstimate(StorageSystem system) {
+        return usableSpaceCache.getEstimate(system);
+    }
+
+    private StorageSystemLoad loadOf(StorageSystem system) {
+        String key = system.getStorageSystemGroup().getGroupID() + '/' + system.getStorageSystemID();
+        StorageSystemLoad load = storageSystem2Load.get(key);
+        if (load == null) {
+            StorageSystemLoad newLoad = new StorageSystemLoad();
+            load = storageSystem2Load.putIfAbsent(key, newLoad);
+            if (load == null)
+                load = newLoad;
+        }
+        return load;
+    }
+
 
     @Override
     public StorageSystemGroup selectBestStorageSystemGroup(String groupType) {
@@ -199,6 +364,18 @@ public class StorageServiceImpl implements StorageService {
     @Override
     public OutputStream openOutputStream(final StorageContext ctx, String name)
             throws IOException {
+        StorageSystemLoad load = loadOf(ctx.getStorageSystem());
+        long startTime = load.writeStarted();
+        try {
+            return new InFlightOutputStream(doOpenOutputStream(ctx, name), load, startTime);
+        } catch (IOException | RuntimeException e) {
+            load.writeFinished(startTime);
+            throw e;
+        }
+    }
+
+    private OutputStream doOpenOutputStream(final StorageContext ctx, String name)
+            throws IOException {
         StorageSystemProvider provider = ctx.getStorageSystemProvider();
         FileCacheProvider fileCacheProvider = ctx.getFileCacheProvider();
         provider.checkWriteable();
@@ -219,6 +396,119 @@ public class StorageServiceImpl implements StorageService {
         }
     }
 
+    /*
+     * Accounts the time between the invocations by the client as client time, so only the time
+     * spent in opening, writing and closing the stream adds to the latency of the storage system.
+     */
+    private static class InFlightOutputStream extends FilterOutputStream {
+
+        private final StorageSystemLoad load;
+        private final long startTime;
+        private long clientTime;
+        private long lastReturn;
+        private boolean closed;
+
+        public InFlightOutputStream(OutputStream out, StorageSystemLoad load, long startTime) {
+            super(out);
+            this.load = load;
+            this.startTime = startTime;
+            this.lastReturn = System.nanoTime();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            enter();
+            try {
+                out.write(b);
+            } finally {
+                lastReturn = System.nanoTime();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            enter();
+            try {
+                out.write(b, off, len);
+            } finally {
+                lastReturn = System.nanoTime();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            enter();
+            try {
+                out.flush();
+            } finally {
+                lastReturn = System.nanoTime();
+            }
+        }
+
+        private void enter() {
+            clientTime += System.nanoTime() - lastReturn;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            enter();
+            try {
+                super.close();
+            } finally {
+                load.writeFinished(startTime, clientTime);
+            }
+        }
+    }
+
+    /*
+     * Measures the time spent in reading the data supplied by the client.
+     */
+    private static class ClientInputStream extends FilterInputStream {
+
+        private long readTime;
+
+        public ClientInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            try {
+                return in.read();
+            } finally {
+                readTime += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            try {
+                return in.read(b, off, len);
+            } finally {
+                readTime += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long start = System.nanoTime();
+            try {
+                return in.skip(n);
+            } finally {
+                readTime += System.nanoTime() - start;
+            }
+        }
+
+        long getReadTime() {
+            return readTime;
+        }
+    }
+
     private static class FileCacheOutputStream extends FilterOutputStream {
 
         private StorageContext ctx;
@@ -233,6 +523,11 @@ public class StorageServiceImpl implements StorageService {
             this.path = path;
         }
 
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
         @Override
         public void close() throws IOException {
             super.close();
@@ -241,27 +536,52 @@ public class StorageServiceImpl implements StorageService {
     }
 
     @Override
-    public void copyInputStream(StorageContext ctx, InputStream in,
+    public void copyInputStream(StorageContext ctx, InputStream clientIn,
             String name) throws IOException {
         StorageSystemProvider provider = ctx.getStorageSystemProvider();
         FileCacheProvider fileCacheProvider = ctx.getFileCacheProvider();
         provider.checkWriteable();
-        if (fileCacheProvider != null) {
-            Path cachedFile = fileCacheProvider.toPath(ctx, name);
-            fileCacheProvider.register(ctx, name, cachedFile);
-            Files.createDirectories(cachedFile.getParent());
-            try {
-                calculateDigestAndCopy(ctx, in, cachedFile);
-            } catch (FileAlreadyExistsException e) {
-                throw new ObjectAlreadyExistsException(
-                        ctx.getStorageSystem().getStorageSystemPath(), name, e);
+        StorageSystemLoad load = loadOf(ctx.getStorageSystem());
+        ClientInputStream in = new ClientInputStream(clientIn);
+        long startTime = load.writeStarted();
+        try {
+            if (fileCacheProvider != null) {
+                Path cachedFile = fileCacheProvider.toPath(ctx, name);
+                fileCacheProvider.register(ctx, name, cachedFile);
+                Files.createDirectories(cachedFile.getParent());
+                try {
+                    calculateDigestAndCopy(ctx, in, cachedFile);
+                } catch (FileAlreadyExistsException e) {
+                    throw new ObjectAlreadyExistsException(
+                            ctx.getStorageSystem().getStorageSystemPath(), name, e);
+                }
+                provider.storeFile(ctx, cachedFile, name);
+            } else {
+                InputStream din = toDigestInputStream(ctx, in);
+                provider.copyInputStream(ctx, din, name);
+                if (din instanceof DigestingInputStream)
+                    ctx.setFileDigest(((DigestingInputStream) din).digest());
             }
-            provider.storeFile(ctx, cachedFile, name);
-        } else
-            provider.copyInputStream(ctx, toDigestInputStream(ctx, in), name);
+        } finally {
+            load.writeFinished(startTime, in.getReadTime());
+        }
         LOG.info("Copied stream to {}@{}", name, ctx.getStorageSystem());
     }
 
+    @Override
+    public <A> Future<Void> copyInputStreamAsync(final StorageContext ctx,
+            final InputStream in, final String name, A attachment,
+            CompletionHandler<Void, ? super A> handler) {
+        return asyncTransfers.submit(ctx.getStorageSystem(),
+                new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        copyInputStream(ctx, in, name);
+                        return null;
+                    }
+                }, attachment, handler);
+    }
+
     @Override
     public void storeContainerEntries(StorageContext ctx,
             List<ContainerEntry> entries, String name) throws IOException {
@@ -271,8 +591,12 @@ public class StorageServiceImpl implements StorageService {
         
         StorageSystemProvider provider = ctx.getStorageSystemProvider();
         provider.checkWriteable();
+        StorageSystemLoad load = loadOf(ctx.getStorageSystem());
+        long startTime = load.writeStarted();
         try ( OutputStream out = provider.openOutputStream(ctx, name)) {
             containerProvider.writeEntriesTo(ctx, entries, out);
+        } finally {
+            load.writeFinished(startTime);
         }
         LOG.info("Stored Entries to {}@{}", name, ctx.getStorageSystem());
         FileCacheProvider fileCacheProvider = ctx.getFileCacheProvider();
@@ -293,30 +617,118 @@ public class StorageServiceImpl implements StorageService {
         StorageSystemProvider provider = ctx.getStorageSystemProvider();
         FileCacheProvider fileCacheProvider = ctx.getFileCacheProvider();
         provider.checkWriteable();
-        provider.storeFile(ctx, path, name);
-        if (fileCacheProvider != null) {
-            Path cachedFile = fileCacheProvider.toPath(ctx, name);
-            Files.createDirectories(cachedFile.getParent());
-            Files.copy(path, cachedFile);
-            fileCacheProvider.register(ctx, name, cachedFile);
+        StorageSystemLoad load = loadOf(ctx.getStorageSystem());
+        long startTime = load.writeStarted();
+        try {
+            if (fileCacheProvider != null) {
+                // read the source only once and store the cached copy, which
+                // is still in the page cache - or hard linked, if configured
+                ctx.setFileSize(Files.size(path)); // lets the cache select its tier
+                Path cachedFile = fileCacheProvider.toPath(ctx, name);
+                Files.createDirectories(cachedFile.getParent());
+                try {
+                    transferFile(path, cachedFile);
+                } catch (FileAlreadyExistsException e) {
+                    throw new ObjectAlreadyExistsException(
+                            ctx.getStorageSystem().getStorageSystemPath(), name, e);
+                }
+                try {
+                    provider.storeFile(ctx, cachedFile, name);
+                } catch (IOException | RuntimeException e) {
+                    Files.deleteIfExists(cachedFile);
+                    throw e;
+                }
+                fileCacheProvider.register(ctx, name, cachedFile);
+            } else {
+                provider.storeFile(ctx, path, name);
+            }
+        } finally {
+            load.writeFinished(startTime);
         }
         LOG.info("Stored File {} to {}@{}", path, name, ctx.getStorageSystem());
     }
 
+    @Override
+    public <A> Future<Void> storeFileAsync(final StorageContext ctx,
+            final Path path, final String name, A attachment,
+            CompletionHandler<Void, ? super A> handler) {
+        StorageSystem system = ctx.getStorageSystem();
+        if (system.isNativeAsync() && ctx.getFileCacheProvider() == null)
+            return asyncTransfers.start(system,
+                    new Callable<StorageFuture<Void>>() {
+                        @Override
+                        public StorageFuture<Void> call() {
+                            return storeFileNativeAsync(ctx, path, name);
+                        }
+                    }, attachment, handler);
+
+        return asyncTransfers.submit(system, new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        storeFile(ctx, path, name);
+                        return null;
+                    }
+                }, attachment, handler);
+    }
+
+    private StorageFuture<Void> storeFileNativeAsync(final StorageContext ctx,
+            final Path path, final String name) {
+        StorageSystemProvider provider = ctx.getStorageSystemProvider();
+        final StorageSystemLoad load = loadOf(ctx.getStorageSystem());
+        final long startTime = load.writeStarted();
+        StorageFuture<Void> future;
+        try {
+            provider.checkWriteable();
+            // invoked on the decorated provider, so encryption, rate limits
+            // and metrics apply to the native transfer as well
+            future = provider.storeFileAsync(ctx, path, name);
+        } catch (UnsupportedOperationException e) {
+            load.writeFinished(startTime);
+            try {
+                storeFile(ctx, path, name);
+                return StorageFuture.completed(null);
+            } catch (IOException | RuntimeException e2) {
+                return StorageFuture.failed(e2);
+            }
+        } catch (IOException | RuntimeException e) {
+            future = StorageFuture.failed(e);
+        }
+        return future.whenDone(new CompletionHandler<Void, Void>() {
+
+            @Override
+            public void completed(Void result, Void attachment) {
+                load.writeFinished(startTime);
+                LOG.info("Stored File {} to {}@{}", path, name,
+                        ctx.getStorageSystem());
+            }
+
+            @Override
+            public void failed(Throwable exc, Void attachment) {
+                load.writeFinished(startTime);
+            }
+        }, null);
+    }
+
     @Override
     public void moveFile(StorageContext ctx, Path path, String name)
             throws IOException {
         StorageSystemProvider provider = ctx.getStorageSystemProvider();
         FileCacheProvider fileCacheProvider = ctx.getFileCacheProvider();
         provider.checkWriteable();
-        if (fileCacheProvider != null) {
-            provider.storeFile(ctx, path, name);
-            Path cachedFile = fileCacheProvider.toPath(ctx, name);
-            Files.createDirectories(cachedFile.getParent());
-            Files.move(path, cachedFile);
-            fileCacheProvider.register(ctx, name, cachedFile);
-        } else {
-            provider.moveFile(ctx, path, name);
+        StorageSystemLoad load = loadOf(ctx.getStorageSystem());
+        long startTime = load.writeStarted();
+        try {
+            if (fileCacheProvider != null) {
+                provider.storeFile(ctx, path, name);
+                Path cachedFile = fileCacheProvider.toPath(ctx, name);
+                Files.createDirectories(cachedFile.getParent());
+                Files.move(path, cachedFile);
+                fileCacheProvider.register(ctx, name, cachedFile);
+            } else {
+                provider.moveFile(ctx, path, name);
+            }
+        } finally {
+            load.writeFinished(startTime);
         }
         LOG.info("Moved File {} to {}@{}", path, name, ctx.getStorageSystem());
     }
@@ -337,75 +749,80 @@ public class StorageServiceImpl implements StorageService {
         provider.sync(names);
     }
 
+    // never open an existing cached file for writing: it may be hard linked
+    // to the stored object
+    private static void transferFile(Path source, Path target)
+            throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(target,
+                        StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            try {
+                long size = in.size();
+                long pos = 0L;
+                long n;
+                while (pos < size && (n = in.transferTo(pos, size - pos, out)) > 0)
+                    pos += n;
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(target);
+                throw e;
+            }
+        }
+    }
+
     protected void calculateDigestAndCopy(StorageContext ctx, InputStream in,
             Path cachedFile) throws IOException {
         InputStream din = toDigestInputStream(ctx, in);
-        if(din instanceof DigestInputStream)
-            Files.copy(din, cachedFile);
-        else
-        Files.copy(din, cachedFile);
+        try (OutputStream out = Files.newOutputStream(cachedFile,
+                StandardOpenOption.CREATE_NEW)) {
+            byte[] buf = new byte[COPY_BUFFER_SIZE];
+            int n;
+            while ((n = din.read(buf)) > 0)
+                out.write(buf, 0, n);
+        }
+        if (din instanceof DigestingInputStream)
+            ctx.setFileDigest(((DigestingInputStream) din).digest());
     }
 
     protected InputStream toDigestInputStream(final StorageContext ctx, InputStream in) {
+        MessageDigest digest = newMessageDigest(ctx);
+        if (digest == null)
+            return in;
 
-        String digestAlgorithm = ctx.getStorageSystem().getStorageSystemGroup()
-                .getDigestAlgorithm();
-
-        if (digestAlgorithm != null) {
-            
-            MessageDigest digest;
-            
-            try {
-                digest = MessageDigest.getInstance(digestAlgorithm);
-            } catch (NoSuchAlgorithmException e) {
-                throw new RuntimeException("Invalid digest algorithm,"
-                        + " check configuration for storage group"
-                        + ctx.getStorageSystem().getStorageSystemGroup()
-                                .getGroupID());
+        return new DigestingInputStream(in, digest) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                ctx.setFileDigest(digest());
             }
-            DigestInputStream din = new DigestInputStream(in, digest){
-                @Override
-                public void close() throws IOException {
-                    super.close();
-                    ctx.setFileDigest(TagUtils.toHexString(getMessageDigest().digest()));
-                }
-            };
-
-            return din;
-        } else {
-            return in;
-        }
+        };
     }
 
     protected OutputStream toDigestOutputStream(final StorageContext ctx, OutputStream out) {
+        MessageDigest digest = newMessageDigest(ctx);
+        if (digest == null)
+            return out;
 
-        DigestOutputStream dout = null;
-        String digestAlgorithm = ctx.getStorageSystem()
-                .getStorageSystemGroup().getDigestAlgorithm();
-
-        if (digestAlgorithm != null) {
-            MessageDigest digest = null;
-            
-            try {
-                digest = MessageDigest.getInstance(digestAlgorithm);
-            } catch (NoSuchAlgorithmException e) {
-                throw new RuntimeException("Invalid digest algorithm,"
-                        + " check configuration for storage group"
-                        + ctx.getStorageSystem().getStorageSystemGroup()
-                                .getGroupID());
+        return new DigestingOutputStream(out, digest) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                ctx.setFileDigest(digest());
             }
-            dout = new DigestOutputStream(out, digest) {
-                @Override
-                public void close() throws IOException {
-                    super.close();
-                    ctx.setFileDigest(TagUtils.toHexString(getMessageDigest().digest()));
-                }
-            };
-            
-            return dout;
-        }
-        else {
-            return out;
+        };
+    }
+
+    private static MessageDigest newMessageDigest(StorageContext ctx) {
+        StorageSystemGroup group = ctx.getStorageSystem().getStorageSystemGroup();
+        String digestAlgorithm = group.getDigestAlgorithm();
+        if (digestAlgorithm == null)
+            return null;
+
+        try {
+            return MessageDigestPool.get(digestAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Invalid digest algorithm,"
+                    + " check configuration for storage group "
+                    + group.getGroupID());
         }
     }
 }
@@ -0,0 +1,99 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.storage.service.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes in progress and average write latency of a storage system, as
+ * maintained by {@link StorageServiceImpl} for the placement strategies.
+ * The latency of a write is the time spent in the storage system: time the
+ * write waited for the client to supply the data to store is excluded.
+ *
+ * @author agent <agent@local>
+ *
+ */
+class StorageSystemLoad {
+
+    private static final int LATENCY_SMOOTHING_SHIFT = 3;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong avgLatency = new AtomicLong();
+
+    /**
+     * @return start time of the write in nanoseconds
+     */
+    long writeStarted() {
+        inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    void writeFinished(long startTime) {
+        writeFinished(startTime, 0L);
+    }
+
+    /**
+     * @param startTime start time of the write in nanoseconds
+     * @param clientTime time in nanoseconds the write waited for the client,
+     *        which is not accounted to the latency of the storage system
+     */
+    void writeFinished(long startTime, long clientTime) {
+        inFlight.decrementAndGet();
+        long latency = Math.max(1L, System.nanoTime() - startTime - clientTime);
+        long prev, next;
+        do {
+            prev = avgLatency.get();
+            next = prev == 0L ? latency
+                    : prev + ((latency - prev) >> LATENCY_SMOOTHING_SHIFT);
+        } while (!avgLatency.compareAndSet(prev, next));
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return exponentially weighted average write latency in nanoseconds,
+     *         or {@code 0} if no write finished yet
+     */
+    long getAvgLatency() {
+        return avgLatency.get();
+    }
+}
@@ -43,13 +43,10 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.enterprise.inject.Instance;
 
-import org.dcm4che3.net.Device;
-import org.dcm4chee.storage.conf.StorageDeviceExtension;
 import org.dcm4chee.storage.conf.StorageSystem;
 import org.dcm4chee.storage.conf.StorageSystemGroup;
 import org.dcm4chee.storage.conf.StorageSystemStatus;
@@ -76,24 +73,23 @@ public class StorageSystemSelector {
     
     private final Map<String,StorageSystemStatus> storageSystem2newStatus = new HashMap<>();
     
-    private final ConcurrentMap<String,Integer> storageGroup2ActiveStorageSystemIndex;
+    private final AtomicInteger activeStorageSystemCursor;
     
-    private Integer activeStorageSystemIndex;
+    private final UsableSpaceCache usableSpaceCache;
+    
+    private int activeStorageSystemIndex;
     private String[] activeStorageSystemIDs;
     private String nextStorageSystemID;
     private boolean configChanged;
     
-    public StorageSystemSelector(StorageSystemGroup group, Instance<StorageSystemProvider> storageSystemProviders, ConcurrentMap<String,Integer> storageGroup2ActiveStorageSystemIndex) {
+    public StorageSystemSelector(StorageSystemGroup group, Instance<StorageSystemProvider> storageSystemProviders, AtomicInteger activeStorageSystemCursor,
+            UsableSpaceCache usableSpaceCache) {
         this.group = group;
         this.storageSystemProviders = storageSystemProviders;
-        this.storageGroup2ActiveStorageSystemIndex = storageGroup2ActiveStorageSystemIndex;
+        this.activeStorageSystemCursor = activeStorageSystemCursor;
+        this.usableSpaceCache = usableSpaceCache;
 
-        
-        activeStorageSystemIndex = storageGroup2ActiveStorageSystemIndex.get(group.getGroupID());
-        if(activeStorageSystemIndex == null) {
-            activeStorageSystemIndex = 0;
-        }
-        
+        activeStorageSystemIndex = activeStorageSystemCursor.get();
         activeStorageSystemIDs = group.getActiveStorageSystemIDs();
         nextStorageSystemID = group.getNextStorageSystemID();
     }
@@ -120,27 +116,40 @@ public class StorageSystemSelector {
             if ((system = system.getNextStorageSystem()) == start)
                 system = null;
         }
-        
-        storageGroup2ActiveStorageSystemIndex.put(group.getGroupID(), activeStorageSystemIndex);
+
+        if (selected != null && usableSpaceCache != null)
+            usableSpaceCache.reserve(selected, reserveSpace);
 
         return selected;
     }
     
+    /**
+     * Moves the shared cursor behind the storage system selected by
+     * {@link #selectStorageSystem(long)}. Must be invoked only if the
+     * selection is published as current selection of the group.
+     */
+    public void updateCursor() {
+        activeStorageSystemCursor.set(activeStorageSystemIndex);
+    }
+
     public boolean isConfigurationChanged() {
         return configChanged;
     }
     
-    public void mergeDeviceChanges(Device device) {
+    public String[] getActiveStorageSystemIDs() {
+        return activeStorageSystemIDs;
+    }
+    
+    void addDeviceChanges(DeviceChanges deviceChanges) {
         if(configChanged) {
-            StorageDeviceExtension storageExtension = device.getDeviceExtension(StorageDeviceExtension.class);
-            StorageSystemGroup modifyGroup = storageExtension.getStorageSystemGroup(group.getGroupID());
-            modifyGroup.setActiveStorageSystemIDs(activeStorageSystemIDs);
-            modifyGroup.setNextStorageSystemID(nextStorageSystemID);
-            
-            for(Entry<String,StorageSystemStatus> entry : storageSystem2newStatus.entrySet()) {
-                StorageSystem storageSystem = modifyGroup.getStorageSystem(entry.getKey());
-                storageSystem.setStorageSystemStatus(entry.getValue());
-            }
+            deviceChanges.add(group.getGroupID(), activeStorageSystemIDs, nextStorageSystemID,
+                    storageSystem2newStatus);
+        }
+    }
+
+    void addStatusChanges(DeviceChanges deviceChanges) {
+        if (!storageSystem2newStatus.isEmpty()) {
+            deviceChanges.addStatusChanges(group.getGroupID(), storageSystem2newStatus);
         }
     }
     
@@ -194,30 +203,18 @@ public class StorageSystemSelector {
     }
     
     public boolean checkMinFreeSpace(StorageSystem system, long reserveSpace) {
-        if (!system.installed()) {
-            return false;
-        }
-        if (system.isReadOnly()) {
-            return false;
-        }
-        if (system.getStorageSystemStatus() != StorageSystemStatus.OK) {
+        if (!isSelectable(system)) {
             return false;
         }
 
         StorageSystemProvider provider = system.getStorageSystemProvider(storageSystemProviders);
 
         try {
-            provider.checkWriteable();
-            if (system.getMinFreeSpace() != null) {
-                if(system.getMinFreeSpaceInBytes() == -1L)
-                    system.setMinFreeSpaceInBytes(provider.getTotalSpace()*Integer.valueOf
-                            (system.getMinFreeSpace().replace("%", ""))/100);
-                if(provider.getUsableSpace() < system.getMinFreeSpaceInBytes() + reserveSpace) {
-                    LOG.info("Update Status of {} to FULL", system);
-                    storageSystem2newStatus.put(system.getStorageSystemID(), StorageSystemStatus.FULL);
-                    configChanged = true;
-                    return false;
-                }
+            if (!hasMinFreeSpace(system, provider, usableSpaceCache, reserveSpace)) {
+                LOG.info("Update Status of {} to FULL", system);
+                storageSystem2newStatus.put(system.getStorageSystemID(), StorageSystemStatus.FULL);
+                configChanged = true;
+                return false;
             }
         } catch (IOException e) {
             LOG.warn("Update Status of {} to NOT_ACCESSABLE caused by", system, e);
@@ -228,4 +225,40 @@ public class StorageSystemSelector {
         
         return true;
     }
+
+    /**
+     * Checks if the storage system may be selected according to its configuration,
+     * without accessing the storage system.
+     */
+    static boolean isSelectable(StorageSystem system) {
+        return system.installed()
+                && !system.isReadOnly()
+                && system.getStorageSystemStatus() == StorageSystemStatus.OK;
+    }
+
+    /**
+     * Checks if the storage system is writeable and has the configured minimal free space
+     * left after storing an object of size {@code reserveSpace}. Does not modify the
+     * configuration, so it can be invoked by concurrent stores.
+     */
+    static boolean hasMinFreeSpace(StorageSystem system, StorageSystemProvider provider,
+            UsableSpaceCache usableSpaceCache, long reserveSpace) throws IOException {
+        if (usableSpaceCache != null && system.getUsableSpaceRefreshInterval() > 0) {
+            long minFreeSpace = system.getMinFreeSpace() != null
+                    ? minFreeSpaceInBytes(system, provider) : 0L;
+            return usableSpaceCache.getUsableSpace(system, provider, minFreeSpace + reserveSpace)
+                    >= minFreeSpace + reserveSpace;
+        }
+        provider.checkWriteable();
+        return system.getMinFreeSpace() == null
+                || provider.getUsableSpace() >= minFreeSpaceInBytes(system, provider) + reserveSpace;
+    }
+
+    private static long minFreeSpaceInBytes(StorageSystem system, StorageSystemProvider provider)
+            throws IOException {
+        if(system.getMinFreeSpaceInBytes() == -1L)
+            system.setMinFreeSpaceInBytes(provider.getTotalSpace()*Integer.valueOf
+                    (system.getMinFreeSpace().replace("%", ""))/100);
+        return system.getMinFreeSpaceInBytes();
+    }
 }
@@ -0,0 +1,178 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.storage.service.impl;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dcm4chee.storage.conf.StorageSystem;
+import org.dcm4chee.storage.spi.StorageSystemProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps an estimate of the usable space of storage systems, so that
+ * {@link StorageSystemSelector} does not need to probe the storage system
+ * for each stored object.
+ * <p>
+ * The estimate is refreshed in the background after
+ * {@link StorageSystem#getUsableSpaceRefreshInterval()} seconds and is
+ * decremented locally by the space reserved for selected storage systems.
+ * If the estimate approaches the required space, the storage system is
+ * probed synchronously.
+ *
+ * @author agent <agent@local>
+ *
+ */
+public class UsableSpaceCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UsableSpaceCache.class);
+
+    private static final int HEADROOM_DIVISOR = 10;
+
+    private final ConcurrentHashMap<String, Estimate> estimates =
+            new ConcurrentHashMap<String, Estimate>();
+    private final Executor executor;
+
+    public UsableSpaceCache(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Returns the estimated usable space of the storage system, probing the
+     * storage system if there is no estimate yet or if the estimate is
+     * less than 10% above {@code requiredSpace}.
+     *
+     * @param system the storage system
+     * @param provider the provider of the storage system
+     * @param requiredSpace the space required to select the storage system
+     * @return estimated usable space in bytes
+     * @throws IOException if the storage system is not writeable
+     */
+    public long getUsableSpace(StorageSystem system,
+            StorageSystemProvider provider, long requiredSpace)
+            throws IOException {
+        String key = keyOf(system);
+        Estimate estimate = estimates.get(key);
+        if (estimate == null
+                || estimate.usableSpace.get()
+                    < requiredSpace + requiredSpace / HEADROOM_DIVISOR) {
+            estimate = new Estimate(probe(provider));
+            estimates.put(key, estimate);
+        } else if (estimate.isExpired(system.getUsableSpaceRefreshInterval()))
+            refresh(key, system, provider, estimate);
+
+        return estimate.usableSpace.get();
+    }
+
+    /**
+     * Returns the estimated usable space of the storage system without
+     * probing the storage system.
+     *
+     * @param system the storage system
+     * @return estimated usable space in bytes, or {@code -1} if there is
+     *         no estimate
+     */
+    public long getEstimate(StorageSystem system) {
+        Estimate estimate = estimates.get(keyOf(system));
+        return estimate != null ? estimate.usableSpace.get() : -1L;
+    }
+
+    /**
+     * Decrements the estimated usable space of the storage system.
+     *
+     * @param system the selected storage system
+     * @param reserveSpace the space reserved for the object to store
+     */
+    public void reserve(StorageSystem system, long reserveSpace) {
+        Estimate estimate = estimates.get(keyOf(system));
+        if (estimate != null)
+            estimate.usableSpace.addAndGet(-reserveSpace);
+    }
+
+    private void refresh(final String key, final StorageSystem system,
+            final StorageSystemProvider provider, final Estimate estimate) {
+        if (!estimate.refreshing.compareAndSet(false, true))
+            return;
+
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    estimates.replace(key, estimate, new Estimate(probe(provider)));
+                } catch (IOException e) {
+                    LOG.info("Failed to refresh usable space of {}", system, e);
+                    estimates.remove(key, estimate);
+                } finally {
+                    estimate.refreshing.set(false);
+                }
+            }
+        });
+    }
+
+    private static long probe(StorageSystemProvider provider)
+            throws IOException {
+        provider.checkWriteable();
+        return provider.getUsableSpace();
+    }
+
+    private static String keyOf(StorageSystem system) {
+        return system.getStorageSystemGroup().getGroupID()
+                + '/' + system.getStorageSystemID();
+    }
+
+    private static final class Estimate {
+        final AtomicLong usableSpace;
+        final long probeTime = System.currentTimeMillis();
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Estimate(long usableSpace) {
+            this.usableSpace = new AtomicLong(usableSpace);
+        }
+
+        boolean isExpired(int refreshInterval) {
+            return System.currentTimeMillis() - probeTime
+                    > refreshInterval * 1000L;
+        }
+    }
+}
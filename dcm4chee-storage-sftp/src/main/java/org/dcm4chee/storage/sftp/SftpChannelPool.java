@@ -0,0 +1,484 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.storage.sftp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dcm4che3.net.Device;
+import org.dcm4chee.storage.conf.StorageSystem;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpException;
+
+/**
+ * Pool of SFTP channels to a storage system, multiplexed over a few SSH
+ * sessions. At most {@link StorageSystem#getMaxConnections()} channels are
+ * borrowed at the same time; further callers wait for a channel to be
+ * released. Idle channels are re-validated before reuse, if they were idle
+ * for more than {@value #VALIDATE_AFTER_IDLE} ms, and closed after
+ * {@link StorageSystem#getConnectionIdleTimeout()} s, also if there is no
+ * further traffic, by a task scheduled by the device. Sessions are closed
+ * with their last channel. Downloads on pooled channels keep up to
+ * {@link StorageSystem#getRequestWindow()} read requests in flight.
+ * 
+ * @author agent <agent@local>
+ *
+ */
+public class SftpChannelPool {
+
+    private static final int DEFAULT_PORT = 22;
+    private static final int CHANNELS_PER_SESSION = 4;
+    private static final long VALIDATE_AFTER_IDLE = 30000L;
+
+    private final StorageSystem storageSystem;
+    private final Device device;
+    private final Semaphore permits;
+    private final Deque<PooledChannel> idle = new ArrayDeque<PooledChannel>();
+    private final Map<ChannelSftp, PooledChannel> borrowed =
+            new IdentityHashMap<ChannelSftp, PooledChannel>();
+    private final List<PooledSession> sessions = new ArrayList<PooledSession>();
+    private final Object createLock = new Object();
+    private boolean closed;
+    private ScheduledFuture<?> evictTask;
+
+    private final AtomicLong sessionsCreated = new AtomicLong();
+    private final AtomicLong channelsCreated = new AtomicLong();
+    private final AtomicLong channelsClosed = new AtomicLong();
+    private final AtomicLong channelsEvicted = new AtomicLong();
+    private final AtomicLong healthCheckFailures = new AtomicLong();
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong waitTimeNanos = new AtomicLong();
+
+    private static class PooledSession {
+        final Session session;
+        int channels;
+
+        PooledSession(Session session) {
+            this.session = session;
+        }
+    }
+
+    private static class PooledChannel {
+        final ChannelSftp channel;
+        final PooledSession session;
+        long lastUsed;
+
+        PooledChannel(ChannelSftp channel, PooledSession session) {
+            this.channel = channel;
+            this.session = session;
+        }
+    }
+
+    public SftpChannelPool(StorageSystem storageSystem) {
+        this(storageSystem, null);
+    }
+
+    /**
+     * Creates a pool, which closes idle channels by tasks scheduled by the
+     * specified device, if it provides a scheduled executor.
+     */
+    public SftpChannelPool(StorageSystem storageSystem, Device device) {
+        this.storageSystem = storageSystem;
+        this.device = device;
+        this.permits = new Semaphore(
+                Math.max(1, storageSystem.getMaxConnections()), true);
+    }
+
+    /**
+     * Returns an idle, healthy channel or connects a new one, waiting for
+     * another channel to be released if the pool is exhausted. The channel
+     * must be passed back by {@link #release} or {@link #invalidate}.
+     */
+    public ChannelSftp borrow() throws IOException {
+        synchronized (this) {
+            if (closed)
+                throw new IOException("SFTP channel pool of "
+                        + storageSystem.getStorageSystemHostname()
+                        + " is closed");
+        }
+        acquirePermit();
+        try {
+            PooledChannel pc;
+            while ((pc = pollIdle()) != null) {
+                if (isHealthy(pc)) {
+                    markBorrowed(pc);
+                    return pc.channel;
+                }
+                healthCheckFailures.incrementAndGet();
+                close(pc);
+            }
+            pc = create();
+            markBorrowed(pc);
+            return pc.channel;
+        } catch (IOException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a channel to the pool, after the last operation on it
+     * completed normally.
+     */
+    public void release(ChannelSftp channel) {
+        PooledChannel pc = unmarkBorrowed(channel);
+        if (pc == null)
+            return;
+
+        List<PooledChannel> evicted;
+        synchronized (this) {
+            if (closed || !channel.isConnected()
+                    || !pc.session.session.isConnected()) {
+                evicted = new ArrayList<PooledChannel>(1);
+                evicted.add(pc);
+            } else {
+                pc.lastUsed = System.currentTimeMillis();
+                idle.addFirst(pc);
+                evicted = evictIdle(pc.lastUsed);
+                scheduleEviction();
+            }
+        }
+        permits.release();
+        close(evicted);
+    }
+
+    /**
+     * Closes a channel instead of returning it to the pool, after an
+     * operation on it failed and left it in an unknown state.
+     */
+    public void invalidate(ChannelSftp channel) {
+        PooledChannel pc = unmarkBorrowed(channel);
+        if (pc == null)
+            return;
+
+        permits.release();
+        close(pc);
+    }
+
+    public void close() {
+        List<PooledChannel> toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = new ArrayList<PooledChannel>(idle);
+            idle.clear();
+            if (evictTask != null) {
+                evictTask.cancel(false);
+                evictTask = null;
+            }
+        }
+        close(toClose);
+    }
+
+    public synchronized int getActiveChannels() {
+        return borrowed.size();
+    }
+
+    public synchronized int getIdleChannels() {
+        return idle.size();
+    }
+
+    public synchronized int getSessions() {
+        return sessions.size();
+    }
+
+    public long getSessionsCreated() {
+        return sessionsCreated.get();
+    }
+
+    public long getChannelsCreated() {
+        return channelsCreated.get();
+    }
+
+    public long getChannelsClosed() {
+        return channelsClosed.get();
+    }
+
+    public long getChannelsEvicted() {
+        return channelsEvicted.get();
+    }
+
+    public long getHealthCheckFailures() {
+        return healthCheckFailures.get();
+    }
+
+    public long getBorrows() {
+        return borrows.get();
+    }
+
+    /**
+     * Returns the accumulated time callers waited for a free channel.
+     */
+    public long getWaitTime(TimeUnit unit) {
+        return unit.convert(waitTimeNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "SftpChannelPool[" + storageSystem
+                + ", active=" + getActiveChannels()
+                + ", idle=" + getIdleChannels()
+                + ", sessions=" + getSessions()
+                + ", borrows=" + getBorrows()
+                + ", created=" + getChannelsCreated()
+                + ", closed=" + getChannelsClosed()
+                + ", evicted=" + getChannelsEvicted()
+                + ", healthCheckFailures=" + getHealthCheckFailures()
+                + "]";
+    }
+
+    private void acquirePermit() throws IOException {
+        long start = System.nanoTime();
+        try {
+            int timeout = storageSystem.getConnectionTimeout();
+            if (timeout <= 0)
+                permits.acquire();
+            else if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS))
+                throw new IOException("No SFTP channel to "
+                        + storageSystem.getStorageSystemHostname()
+                        + " available within " + timeout + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            waitTimeNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private synchronized void markBorrowed(PooledChannel pc) {
+        borrowed.put(pc.channel, pc);
+        borrows.incrementAndGet();
+    }
+
+    private synchronized PooledChannel unmarkBorrowed(ChannelSftp channel) {
+        return borrowed.remove(channel);
+    }
+
+    private PooledChannel pollIdle() {
+        List<PooledChannel> evicted;
+        PooledChannel pc;
+        synchronized (this) {
+            evicted = evictIdle(System.currentTimeMillis());
+            pc = idle.pollFirst();
+        }
+        close(evicted);
+        return pc;
+    }
+
+    private List<PooledChannel> evictIdle(long now) {
+        List<PooledChannel> evicted = new ArrayList<PooledChannel>();
+        long idleTimeout = storageSystem.getConnectionIdleTimeout() * 1000L;
+        if (idleTimeout <= 0)
+            return evicted;
+
+        Iterator<PooledChannel> iter = idle.descendingIterator();
+        while (iter.hasNext()) {
+            PooledChannel pc = iter.next();
+            if (now - pc.lastUsed < idleTimeout)
+                break;
+            iter.remove();
+            evicted.add(pc);
+            channelsEvicted.incrementAndGet();
+        }
+        return evicted;
+    }
+
+    // called with the monitor held
+    private void scheduleEviction() {
+        long idleTimeout = storageSystem.getConnectionIdleTimeout() * 1000L;
+        if (evictTask != null || closed || idle.isEmpty() || idleTimeout <= 0
+                || device == null || device.getScheduledExecutor() == null)
+            return;
+
+        long delay = idle.peekLast().lastUsed + idleTimeout
+                - System.currentTimeMillis();
+        evictTask = device.schedule(new Runnable() {
+            @Override
+            public void run() {
+                evictExpired();
+            }
+        }, Math.max(0L, delay), TimeUnit.MILLISECONDS);
+    }
+
+    private void evictExpired() {
+        List<PooledChannel> evicted;
+        synchronized (this) {
+            evictTask = null;
+            evicted = evictIdle(System.currentTimeMillis());
+            scheduleEviction();
+        }
+        close(evicted);
+    }
+
+    private boolean isHealthy(PooledChannel pc) {
+        if (!pc.channel.isConnected() || !pc.session.session.isConnected())
+            return false;
+
+        if (System.currentTimeMillis() - pc.lastUsed < VALIDATE_AFTER_IDLE)
+            return true;
+
+        try {
+            pc.channel.realpath(".");
+            return true;
+        } catch (SftpException e) {
+            return false;
+        }
+    }
+
+    private PooledChannel create() throws IOException {
+        synchronized (createLock) {
+            PooledSession ps = sessionWithFreeCapacity();
+            try {
+                return openChannel(ps);
+            } catch (IOException e) {
+                if (ps.session.isConnected())
+                    throw e;
+                // session was dropped by the server - retry with a new one
+                return openChannel(sessionWithFreeCapacity());
+            }
+        }
+    }
+
+    private PooledSession sessionWithFreeCapacity() throws IOException {
+        synchronized (this) {
+            for (Iterator<PooledSession> iter = sessions.iterator();
+                    iter.hasNext();) {
+                PooledSession ps = iter.next();
+                if (!ps.session.isConnected()) {
+                    if (ps.channels == 0)
+                        iter.remove();
+                    continue;
+                }
+                if (ps.channels < CHANNELS_PER_SESSION)
+                    return ps;
+            }
+        }
+        PooledSession ps = new PooledSession(connectSession());
+        synchronized (this) {
+            sessions.add(ps);
+        }
+        sessionsCreated.incrementAndGet();
+        return ps;
+    }
+
+    private PooledChannel openChannel(PooledSession ps) throws IOException {
+        synchronized (this) {
+            ps.channels++;
+        }
+        ChannelSftp channel = null;
+        try {
+            channel = (ChannelSftp) ps.session.openChannel("sftp");
+            channel.connect(storageSystem.getConnectionTimeout());
+            if (storageSystem.getRequestWindow() > 0)
+                channel.setBulkRequests(storageSystem.getRequestWindow());
+        } catch (JSchException e) {
+            if (channel != null)
+                channel.disconnect();
+            closeChannelOf(ps);
+            throw new IOException("Open channel failed", e);
+        }
+        channelsCreated.incrementAndGet();
+        return new PooledChannel(channel, ps);
+    }
+
+    private Session connectSession() throws IOException {
+        JSch jsch = new JSch();
+        String host = storageSystem.getStorageSystemHostname();
+        int port = storageSystem.getStorageSystemPort();
+        if (port == -1)
+            port = DEFAULT_PORT;
+        String user = storageSystem.getStorageSystemIdentity();
+        Session session;
+        try {
+            session = jsch.getSession(user, host, port);
+        } catch (JSchException e) {
+            throw new IOException("Session create failed", e);
+        }
+        session.setPassword(storageSystem.getStorageSystemCredential());
+        Properties config = new Properties();
+        config.put("StrictHostKeyChecking", "no");
+        session.setConfig(config);
+        try {
+            session.setTimeout(storageSystem.getSocketTimeout());
+            session.connect(storageSystem.getConnectionTimeout());
+        } catch (JSchException e) {
+            throw new IOException("Session connect failed for server " + host + ":"
+                    + port + " and " + " user " + user, e);
+        }
+        return session;
+    }
+
+    private void close(List<PooledChannel> list) {
+        for (PooledChannel pc : list)
+            close(pc);
+    }
+
+    private void close(PooledChannel pc) {
+        pc.channel.disconnect();
+        channelsClosed.incrementAndGet();
+        closeChannelOf(pc.session);
+    }
+
+    private void closeChannelOf(PooledSession ps) {
+        boolean last;
+        synchronized (this) {
+            last = --ps.channels == 0;
+            if (last)
+                sessions.remove(ps);
+        }
+        if (last)
+            ps.session.disconnect();
+    }
+}
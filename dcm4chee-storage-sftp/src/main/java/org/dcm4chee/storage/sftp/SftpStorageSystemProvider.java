@@ -38,34 +38,38 @@
 
 package org.dcm4chee.storage.sftp;
 
+import java.io.BufferedOutputStream;
 import java.io.FilterInputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
 import java.util.Map;
-import java.util.Properties;
 import java.util.Vector;
 
 import javax.enterprise.context.Dependent;
+import javax.inject.Inject;
 import javax.inject.Named;
 
+import org.dcm4che3.net.Device;
 import org.dcm4che3.util.StreamUtils;
+import org.dcm4chee.storage.DirectoryCache;
 import org.dcm4chee.storage.ObjectAlreadyExistsException;
 import org.dcm4chee.storage.ObjectNotFoundException;
 import org.dcm4chee.storage.RetrieveContext;
 import org.dcm4chee.storage.StorageContext;
+import org.dcm4chee.storage.StorageFuture;
+import org.dcm4chee.storage.StreamSeekableByteChannel;
+import org.dcm4chee.storage.conf.StorageDevice;
 import org.dcm4chee.storage.conf.StorageSystem;
 import org.dcm4chee.storage.spi.StorageSystemProvider;
 
 import com.jcraft.jsch.ChannelSftp;
 import com.jcraft.jsch.ChannelSftp.LsEntry;
-import com.jcraft.jsch.JSch;
-import com.jcraft.jsch.JSchException;
-import com.jcraft.jsch.Session;
 import com.jcraft.jsch.SftpATTRS;
 import com.jcraft.jsch.SftpException;
 import com.jcraft.jsch.SftpStatVFS;
@@ -78,61 +82,32 @@ import com.jcraft.jsch.SftpStatVFS;
 @Dependent
 public class SftpStorageSystemProvider implements StorageSystemProvider {
 
-    private static int DEFAULT_PORT = 22;
+    @Inject @StorageDevice
+    private Device device;
 
-    private Session session;
     private StorageSystem storageSystem;
+    private DirectoryCache dirCache;
+    private SftpChannelPool pool;
 
     @Override
     public void init(StorageSystem storageSystem) {
         this.storageSystem = storageSystem;
+        this.dirCache = new DirectoryCache(storageSystem.getDirectoryCacheSize());
+        if (pool != null)
+            pool.close();
+        this.pool = new SftpChannelPool(storageSystem, device);
+        final SftpChannelPool pool = this.pool;
 
         Runtime.getRuntime().addShutdownHook(new Thread() {
             @Override
             public void run() {
-                if (session != null)
-                    session.disconnect();
+                pool.close();
             }
         });
     }
 
-    private synchronized ChannelSftp openChannel() throws IOException {
-        if (session == null || !session.isConnected()) {
-            JSch jsch = new JSch();
-            String host = storageSystem.getStorageSystemHostname();
-            int port = storageSystem.getStorageSystemPort();
-            if (port == -1)
-                port = DEFAULT_PORT;
-            String user = storageSystem.getStorageSystemIdentity();
-            try {
-                session = jsch.getSession(user, host, port);
-            } catch (JSchException e) {
-                throw new IOException("Session create failed", e);
-            }
-            session.setPassword(storageSystem.getStorageSystemCredential());
-            Properties config = new Properties();
-            config.put("StrictHostKeyChecking", "no");
-            session.setConfig(config);
-            try {
-                session.connect();
-            } catch (JSchException e) {
-                throw new IOException("Session connect failed for server " + host + ":"
-                        + port + " and " + " user " + user, e);
-            }
-        }
-
-        ChannelSftp channel;
-        try {
-            channel = (ChannelSftp) session.openChannel("sftp");
-        } catch (JSchException e) {
-            throw new IOException("Open channel failed", e);
-        }
-        try {
-            channel.connect();
-        } catch (JSchException e) {
-            throw new IOException("Connect channel failed", e);
-        }
-        return channel;
+    public SftpChannelPool getChannelPool() {
+        return pool;
     }
 
     @Override
@@ -141,7 +116,7 @@ public class SftpStorageSystemProvider implements StorageSystemProvider {
 
     @Override
     public long getUsableSpace() throws IOException {
-        ChannelSftp channel = openChannel();
+        ChannelSftp channel = pool.borrow();
         try {
             SftpStatVFS stat = channel.statVFS(storageSystem.getStorageSystemPath());
             return stat.getAvailForNonRoot();
@@ -149,13 +124,13 @@ public class SftpStorageSystemProvider implements StorageSystemProvider {
             throw new IOException("Usable space check failed for path "
                     + storageSystem.getStorageSystemPath(), e);
         } finally {
-            channel.disconnect();
+            pool.release(channel);
         }
     }
 
     @Override
     public long getTotalSpace() throws IOException {
-        ChannelSftp channel = openChannel();
+        ChannelSftp channel = pool.borrow();
         try {
             SftpStatVFS stat = channel.statVFS(storageSystem.getStorageSystemPath());
             return stat.getCapacity();
@@ -163,40 +138,103 @@ public class SftpStorageSystemProvider implements StorageSystemProvider {
             throw new IOException("Total space check failed for path "
                     + storageSystem.getStorageSystemPath(), e);
         } finally {
-            channel.disconnect();
+            pool.release(channel);
         }
     }
 
     @Override
     public OutputStream openOutputStream(final StorageContext context, final String name)
             throws IOException {
-        final ChannelSftp channel = openChannel();
+        final ChannelSftp channel = pool.borrow();
         final String dest = resolvePath(name);
         try {
-            if (exists(channel, dest))
+            if (exists(channel, dest)) {
+                pool.release(channel);
                 throw new ObjectAlreadyExistsException(
                         storageSystem.getStorageSystemPath(), name);
+            }
 
             String dir = getParentDir(dest);
-            if (!exists(channel, dir))
+            if (!dirCache.contains(dir)) {
+                if (!exists(channel, dir))
+                    mkdirs(channel, dir);
+                dirCache.add(dir);
+            }
+
+            OutputStream out;
+            try {
+                out = channel.put(dest);
+            } catch (SftpException e) {
+                if (e.id != ChannelSftp.SSH_FX_NO_SUCH_FILE)
+                    throw e;
+                // cached directory was removed meanwhile
+                dirCache.remove(dir);
                 mkdirs(channel, dir);
+                out = channel.put(dest);
+            }
+            // JSch sends each write as separate request(s) without waiting
+            // for the acknowledge, so pass full packets instead of the small
+            // chunks written by callers
+            out = new BufferedOutputStream(out,
+                    storageSystem.getBufferedOutputLength());
+            return new FilterOutputStream(out) {
+                private boolean failed;
+                private boolean closed;
+
+                @Override
+                public void write(int b) throws IOException {
+                    try {
+                        out.write(b);
+                    } catch (IOException e) {
+                        failed = true;
+                        throw e;
+                    }
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    try {
+                        out.write(b, off, len);
+                    } catch (IOException e) {
+                        failed = true;
+                        throw e;
+                    }
+                }
 
-            return new FilterOutputStream(channel.put(dest)) {
                 @Override
                 public void close() throws IOException {
-                    super.close();
+                    if (closed)
+                        return;
+                    closed = true;
+                    try {
+                        // FilterOutputStream.close() ignores flush errors
+                        out.flush();
+                        out.close();
+                    } catch (IOException e) {
+                        failed = true;
+                        throw e;
+                    } finally {
+                        if (failed)
+                            pool.invalidate(channel);
+                    }
+                    if (failed)
+                        return;
                     try {
                         SftpATTRS attrs = channel.stat(dest);
                         context.setFileSize(attrs.getSize());
                     } catch (SftpException e) {
                         throw new IOException("Get file size failed for path " + dest, e);
                     } finally {
-                        channel.disconnect();
+                        pool.release(channel);
                     }
                 }
             };
         } catch (SftpException e) {
+            pool.invalidate(channel);
             throw new IOException("Open output stream failed for path " + dest, e);
+        } catch (RuntimeException e) {
+            pool.invalidate(channel);
+            throw e;
         }
     }
 
@@ -215,9 +253,17 @@ public class SftpStorageSystemProvider implements StorageSystemProvider {
         String parent = getParentDir(dir);
         if (parent == null)
             return;
-        if (!exists(channel, parent))
+        if (!dirCache.contains(parent) && !exists(channel, parent))
             mkdirs(channel, parent);
-        channel.mkdir(dir);
+        try {
+            channel.mkdir(dir);
+        } catch (SftpException e) {
+            if (!exists(channel, dir)) {
+                dirCache.remove(parent);
+                throw e;
+            }
+        }
+        dirCache.add(dir);
     }
 
     private String getParentDir(String path) {
@@ -252,6 +298,13 @@ public class SftpStorageSystemProvider implements StorageSystemProvider {
         }
     }
 
+    @Override
+    public StorageFuture<Void> storeFileAsync(StorageContext context, Path path,
+            String name) throws IOException {
+        // the JSch API is blocking
+        throw new UnsupportedOperationException();
+    }
+
     @Override
     public void moveFile(StorageContext context, Path path, String name)
             throws IOException {
@@ -265,24 +318,59 @@ public class SftpStorageSystemProvider implements StorageSystemProvider {
     public InputStream openInputStream(RetrieveContext ctx, String name)
             throws IOException {
         String src = resolvePath(name);
-        final ChannelSftp channel = openChannel();
+        ChannelSftp channel = pool.borrow();
         try {
-            if (!exists(channel, src))
+            if (!exists(channel, src)) {
+                pool.release(channel);
                 throw new ObjectNotFoundException(storageSystem.getStorageSystemPath(),
                         name);
-
-            return new FilterInputStream(channel.get(src)) {
-                @Override
-                public void close() throws IOException {
-                    super.close();
-                    channel.disconnect();
-                }
-            };
+            }
+            return new PooledChannelInputStream(channel, channel.get(src));
         } catch (SftpException e) {
+            pool.invalidate(channel);
             throw new IOException("Open input stream failed for path " + src, e);
         }
     }
 
+    @Override
+    public SeekableByteChannel openChannel(RetrieveContext ctx, String name)
+            throws IOException {
+        final String src = resolvePath(name);
+        final long size;
+        ChannelSftp channel = pool.borrow();
+        try {
+            size = channel.stat(src).getSize();
+        } catch (SftpException e) {
+            if (e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE)
+                throw new ObjectNotFoundException(
+                        storageSystem.getStorageSystemPath(), name);
+            throw new IOException("Get file size failed for path " + src, e);
+        } finally {
+            pool.release(channel);
+        }
+        return new StreamSeekableByteChannel(
+                storageSystem.getBufferedInputLength()) {
+
+            @Override
+            protected InputStream openStream(long position) throws IOException {
+                ChannelSftp channel = pool.borrow();
+                try {
+                    return new PooledChannelInputStream(channel,
+                            channel.get(src, null, position));
+                } catch (SftpException e) {
+                    pool.invalidate(channel);
+                    throw new IOException("Open input stream failed for path "
+                            + src, e);
+                }
+            }
+
+            @Override
+            protected long fetchSize() {
+                return size;
+            }
+        };
+    }
+
     @Override
     public Path getFile(RetrieveContext context, String name) throws IOException {
         throw new UnsupportedOperationException();
@@ -291,7 +379,7 @@ public class SftpStorageSystemProvider implements StorageSystemProvider {
     @Override
     public void deleteObject(StorageContext context, String name) throws IOException {
         String path = resolvePath(name);
-        ChannelSftp channel = openChannel();
+        ChannelSftp channel = pool.borrow();
         try {
             try {
                 channel.rm(path);
@@ -311,6 +399,7 @@ public class SftpStorageSystemProvider implements StorageSystemProvider {
                     if (v.size() > 2)
                         break;
                     channel.rmdir(dir);
+                    dirCache.remove(dir);
                     dir = getParentDir(dir);
                 }
             } catch (SftpException e) {
@@ -318,7 +407,71 @@ public class SftpStorageSystemProvider implements StorageSystemProvider {
                     throw new IOException("Remove directory failed for path " + dir, e);
             }
         } finally {
-            channel.disconnect();
+            pool.release(channel);
+        }
+    }
+
+    /**
+     * Returns the channel to the pool on close, or closes it, if reading
+     * from the remote file failed.
+     */
+    private class PooledChannelInputStream extends FilterInputStream {
+
+        private final ChannelSftp channel;
+        private boolean failed;
+        private boolean closed;
+
+        PooledChannelInputStream(ChannelSftp channel, InputStream in) {
+            super(in);
+            this.channel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return super.read();
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                return super.read(b, off, len);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            try {
+                return super.skip(n);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            try {
+                super.close();
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            } finally {
+                if (failed)
+                    pool.invalidate(channel);
+                else
+                    pool.release(channel);
+            }
         }
     }
 
@@ -332,17 +485,22 @@ public class SftpStorageSystemProvider implements StorageSystemProvider {
             Class<E> enumType) throws IOException {
         Map<String, String> statusFileExtensions = ctx.getStorageSystem()
                 .getStatusFileExtensions();
-        for (String ext : statusFileExtensions.keySet()) {
-            String path = resolvePath(name) + ext;
-            ChannelSftp channel = openChannel();
-            try {
-                if (exists(channel, path))
-                    return Enum.valueOf(enumType, statusFileExtensions.get(ext));
-            } catch (SftpException e) {
-                throw new IOException("Exists check failed for path " + path, e);
-            } finally {
-                channel.disconnect();
+        if (statusFileExtensions.isEmpty())
+            return null;
+
+        ChannelSftp channel = pool.borrow();
+        try {
+            for (String ext : statusFileExtensions.keySet()) {
+                String path = resolvePath(name) + ext;
+                try {
+                    if (exists(channel, path))
+                        return Enum.valueOf(enumType, statusFileExtensions.get(ext));
+                } catch (SftpException e) {
+                    throw new IOException("Exists check failed for path " + path, e);
+                }
             }
+        } finally {
+            pool.release(channel);
         }
         return null;
     }
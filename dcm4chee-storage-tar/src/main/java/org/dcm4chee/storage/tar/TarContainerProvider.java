@@ -42,12 +42,15 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -58,8 +61,10 @@ import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.dcm4chee.storage.ChecksumException;
+import org.dcm4chee.storage.ChecksumInputStream;
 import org.dcm4chee.storage.ContainerEntry;
 import org.dcm4chee.storage.ExtractTask;
+import org.dcm4chee.storage.MessageDigestPool;
 import org.dcm4chee.storage.ObjectNotFoundException;
 import org.dcm4chee.storage.RetrieveContext;
 import org.dcm4chee.storage.StorageContext;
@@ -90,6 +95,7 @@ public class TarContainerProvider implements ContainerProvider {
     public void writeEntriesTo(StorageContext context,
             List<ContainerEntry> entries, OutputStream out) throws IOException {
         TarArchiveOutputStream tar = new TarArchiveOutputStream(out);
+        long offset = 0L;
         String checksumEntry = container.getChecksumEntry();
         if (checksumEntry != null) {
             ByteArrayOutputStream bout = new ByteArrayOutputStream();
@@ -99,12 +105,27 @@ public class TarContainerProvider implements ContainerProvider {
             tar.putArchiveEntry(tarEntry);
             tar.write(bout.toByteArray());
             tar.closeArchiveEntry();
+            offset += TarEntryIndex.entryLength(bout.size());
         }
+        long[] sizes = new long[entries.size()];
+        for (int i = 0; i < sizes.length; i++)
+            sizes[i] = Files.size(entries.get(i).getSourcePath());
+        String indexEntry = container.getIndexEntry();
+        if (indexEntry != null) {
+            long indexSize = TarEntryIndex.sizeOf(entries);
+            TarArchiveEntry tarEntry = new TarArchiveEntry(indexEntry);
+            tarEntry.setSize(indexSize);
+            tar.putArchiveEntry(tarEntry);
+            TarEntryIndex.write(entries, sizes,
+                    offset + TarEntryIndex.entryLength(indexSize), tar);
+            tar.closeArchiveEntry();
+        }
+        int i = 0;
         for (ContainerEntry entry : entries) {
             Path path = entry.getSourcePath();
             TarArchiveEntry tarEntry = new TarArchiveEntry(entry.getName());
             tarEntry.setModTime(Files.getLastModifiedTime(path).toMillis());
-            tarEntry.setSize(Files.size(path));
+            tarEntry.setSize(sizes[i++]);
             tar.putArchiveEntry(tarEntry);
             Files.copy(path, tar);
             tar.closeArchiveEntry();
@@ -117,19 +138,92 @@ public class TarContainerProvider implements ContainerProvider {
             String entryName, InputStream in) throws IOException {
         TarArchiveInputStream tar = new TarArchiveInputStream(in);
         String checksumEntry = container.getChecksumEntry();
+        String indexEntry = container.getIndexEntry();
+        Map<String, byte[]> checksums = null;
         TarArchiveEntry nextEntry;
         while ((nextEntry = tar.getNextTarEntry()) != null) {
             String nextEntryName = nextEntry.getName();
-            if (nextEntry.isDirectory() || nextEntryName.equals(checksumEntry))
+            if (nextEntryName.equals(checksumEntry))
+                checksums = ContainerEntry.readChecksumsFrom(tar);
+            if (nextEntry.isDirectory() || nextEntryName.equals(checksumEntry)
+                    || nextEntryName.equals(indexEntry))
                 continue;
 
             if (nextEntryName.equals(entryName))
-                return tar;
+                return verify(ctx, name, entryName, tar, checksums);
         }
         throw new ObjectNotFoundException(ctx.getStorageSystem()
                 .getStorageSystemPath(), name, entryName);
     }
 
+    @Override
+    public InputStream seekEntry(RetrieveContext ctx, String name,
+            String entryName, SeekableByteChannel channel) throws IOException {
+        Map<String, byte[]> checksums = new HashMap<String, byte[]>();
+        Map<String, Long> index = readIndex(channel, checksums);
+        if (index != null) {
+            Long offset = index.get(entryName);
+            if (offset == null)
+                throw new ObjectNotFoundException(ctx.getStorageSystem()
+                        .getStorageSystemPath(), name, entryName);
+
+            channel.position(offset.longValue());
+            TarArchiveInputStream tar = new TarArchiveInputStream(
+                    Channels.newInputStream(channel));
+            TarArchiveEntry entry = tar.getNextTarEntry();
+            if (entry != null && entry.getName().equals(entryName))
+                return verify(ctx, name, entryName, tar,
+                        checksums.isEmpty() ? null : checksums);
+
+            LOG.warn("Index of {} does not match entry {} - scan container",
+                    name, entryName);
+        }
+        channel.position(0L);
+        return seekEntry(ctx, name, entryName, Channels.newInputStream(channel));
+    }
+
+    @Override
+    public boolean hasEntryIndex() {
+        return container.getIndexEntry() != null;
+    }
+
+    /**
+     * Reads the index entry and the checksums of the entries, which precede
+     * all other entries.
+     */
+    private Map<String, Long> readIndex(SeekableByteChannel channel,
+            Map<String, byte[]> checksums) throws IOException {
+        String indexEntry = container.getIndexEntry();
+        if (indexEntry == null)
+            return null;
+
+        TarArchiveInputStream tar = new TarArchiveInputStream(
+                Channels.newInputStream(channel));
+        String checksumEntry = container.getChecksumEntry();
+        TarArchiveEntry entry;
+        while ((entry = tar.getNextTarEntry()) != null) {
+            String entryName = entry.getName();
+            if (entryName.equals(checksumEntry))
+                checksums.putAll(ContainerEntry.readChecksumsFrom(tar));
+            if (entry.isDirectory() || entryName.equals(checksumEntry))
+                continue;
+
+            return entryName.equals(indexEntry)
+                    ? TarEntryIndex.read(tar)
+                    : null;
+        }
+        return null;
+    }
+
+    private InputStream verify(RetrieveContext ctx, String name,
+            String entryName, InputStream in, Map<String, byte[]> checksums)
+            throws IOException {
+        if (checksums == null && container.getChecksumEntry() != null)
+            LOG.warn("Misssing checksum entry in {}", name);
+        return ChecksumInputStream.verify(in, checksums, ctx.getStorageSystem()
+                .getStorageSystemGroup().getDigestAlgorithm(), entryName, name);
+    }
+
     @Override
     public void extractEntries(RetrieveContext ctx, String name,
             ExtractTask extractTask, InputStream in) throws IOException {
@@ -144,7 +238,7 @@ public class TarContainerProvider implements ContainerProvider {
         if (checksumEntry != null) {
             if (checksumEntry.equals(entryName)) {
                 try {
-                    digest = MessageDigest.getInstance(ctx.getStorageSystem().getStorageSystemGroup()
+                    digest = MessageDigestPool.get(ctx.getStorageSystem().getStorageSystemGroup()
                             .getDigestAlgorithm());
                 } catch (NoSuchAlgorithmException e) {
                     throw new RuntimeException(e);
@@ -155,8 +249,12 @@ public class TarContainerProvider implements ContainerProvider {
             entry = skipDirectoryEntries(tar);
         }
 
+        String indexEntry = container.getIndexEntry();
         for (; entry != null; entry = skipDirectoryEntries(tar)) {
             entryName = entry.getName();
+            if (entryName.equals(indexEntry))
+                continue;
+
             InputStream in0 = tar;
             byte[] checksum = null;
             if (checksums != null && digest != null) {
@@ -181,6 +279,8 @@ public class TarContainerProvider implements ContainerProvider {
 
             extractTask.entryExtracted(entryName);
         }
+        if (digest != null)
+            MessageDigestPool.release(digest);
     }
 
     private TarArchiveEntry skipDirectoryEntries(TarArchiveInputStream tar)
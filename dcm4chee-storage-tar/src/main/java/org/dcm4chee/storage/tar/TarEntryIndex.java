@@ -0,0 +1,138 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.storage.tar;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dcm4chee.storage.ContainerEntry;
+
+/**
+ * Index of the entries of a tar container, written as a separate entry
+ * following the checksum entry. Each line holds the offset of the tar header
+ * of an entry within the container and the size of the entry as fixed-width
+ * hexadecimal numbers, followed by the entry name. The fixed width allows to
+ * calculate the size of the index - and therefore the offsets of the
+ * following entries - before writing it.
+ *
+ * @author agent <agent@local>
+ *
+ */
+class TarEntryIndex {
+
+    static final int RECORD_SIZE = 512;
+
+    private static final int NUMBER_LENGTH = 16;
+
+    private TarEntryIndex() {
+    }
+
+    /**
+     * Returns the number of bytes occupied by an entry of the given size,
+     * including its header and the padding of its data to the record size.
+     * Assumes entry names which fit into the name field of the tar header.
+     */
+    static long entryLength(long size) {
+        return RECORD_SIZE + (size + RECORD_SIZE - 1) / RECORD_SIZE
+                * RECORD_SIZE;
+    }
+
+    static long sizeOf(List<ContainerEntry> entries) {
+        long size = 0L;
+        for (ContainerEntry entry : entries)
+            size += 2 * (NUMBER_LENGTH + 1)
+                    + entry.getName().getBytes(StandardCharsets.UTF_8).length
+                    + 1;
+        return size;
+    }
+
+    static void write(List<ContainerEntry> entries, long[] sizes,
+            long offset, OutputStream out) throws IOException {
+        OutputStreamWriter w = new OutputStreamWriter(out,
+                StandardCharsets.UTF_8);
+        int i = 0;
+        for (ContainerEntry entry : entries) {
+            long size = sizes[i++];
+            w.write(toHex(offset));
+            w.write(' ');
+            w.write(toHex(size));
+            w.write(' ');
+            w.write(entry.getName());
+            w.write('\n');
+            offset += entryLength(size);
+        }
+        w.flush();
+    }
+
+    private static String toHex(long value) {
+        String s = Long.toHexString(value);
+        StringBuilder sb = new StringBuilder(NUMBER_LENGTH);
+        for (int i = s.length(); i < NUMBER_LENGTH; i++)
+            sb.append('0');
+        return sb.append(s).toString();
+    }
+
+    static Map<String, Long> read(InputStream in) throws IOException {
+        BufferedReader br = new BufferedReader(new InputStreamReader(in,
+                StandardCharsets.UTF_8));
+        Map<String, Long> offsets = new HashMap<String, Long>();
+        String line;
+        while ((line = br.readLine()) != null) {
+            if (line.length() <= 2 * (NUMBER_LENGTH + 1))
+                throw new IOException("Invalid index line: " + line);
+            try {
+                long offset = Long.parseLong(
+                        line.substring(0, NUMBER_LENGTH), 16);
+                offsets.put(line.substring(2 * (NUMBER_LENGTH + 1)),
+                        Long.valueOf(offset));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid index line: " + line, e);
+            }
+        }
+        return offsets;
+    }
+}
@@ -45,6 +45,8 @@ import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -258,4 +260,59 @@ public class CifsSystemStorageSystemProviderTest {
     public void testOpenInputStreamWithException() throws IOException {
         provider.openInputStream(retrieveCtx, ID2).close();
     }
+
+    @Test
+    public void testOpenChannelWithCachedSize() throws IOException {
+        cifs.setAttributeCacheSize(10);
+        provider.init(cifs);
+        provider.storeFile(storageCtx, LOCAL_FILE, ID2);
+        try (SeekableByteChannel channel = provider.openChannel(retrieveCtx, ID2)) {
+            Assert.assertEquals(Files.size(LOCAL_FILE), channel.size());
+            ByteBuffer bb = ByteBuffer.allocate(DATA.length());
+            while (bb.hasRemaining() && channel.read(bb) >= 0);
+            Assert.assertEquals(DATA,
+                    new String(bb.array(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testStoreFileAfterDeletedByOtherNode() throws IOException {
+        cifs.setAttributeCacheSize(10);
+        provider.init(cifs);
+        provider.storeFile(storageCtx, LOCAL_FILE, ID2);
+        file2.delete();
+        provider.storeFile(storageCtx, LOCAL_FILE, ID2);
+        Assert.assertTrue(file2.exists());
+    }
+
+    @Test(expected = ObjectNotFoundException.class)
+    public void testOpenChannelAfterDeletedByOtherNode() throws IOException {
+        cifs.setAttributeCacheSize(10);
+        provider.init(cifs);
+        provider.storeFile(storageCtx, LOCAL_FILE, ID2);
+        provider.openChannel(retrieveCtx, ID2).close();
+        file2.delete();
+        try (SeekableByteChannel channel = provider.openChannel(retrieveCtx, ID2)) {
+            channel.read(ByteBuffer.allocate(DATA.length()));
+        }
+    }
+
+    @Test(expected = ObjectAlreadyExistsException.class)
+    public void testStoreFileThrowsExceptionWithCachedSize() throws IOException {
+        cifs.setAttributeCacheSize(10);
+        provider.init(cifs);
+        provider.openChannel(retrieveCtx, ID1).close();
+        provider.storeFile(storageCtx, LOCAL_FILE, ID1);
+    }
+
+    @Test
+    public void testReleaseConnections() throws IOException {
+        cifs.setMaxConnections(1);
+        cifs.setConnectionTimeout(100);
+        provider.init(cifs);
+        provider.storeFile(storageCtx, LOCAL_FILE, ID2);
+        provider.openInputStream(retrieveCtx, ID2).close();
+        provider.openInputStream(retrieveCtx, ID1).close();
+        Assert.assertEquals(Files.size(LOCAL_FILE), storageCtx.getFileSize());
+    }
 }
@@ -42,13 +42,21 @@ import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.enterprise.inject.Produces;
 import javax.inject.Inject;
@@ -67,6 +75,7 @@ import org.dcm4chee.storage.conf.StorageDeviceExtension;
 import org.dcm4chee.storage.conf.StorageSystem;
 import org.dcm4chee.storage.conf.StorageSystemGroup;
 import org.dcm4chee.storage.conf.StorageSystemStatus;
+import org.dcm4chee.storage.conf.SyncPolicy;
 import org.dcm4chee.storage.encrypt.StorageSystemProviderEncryptDecorator;
 import org.dcm4chee.storage.spi.StorageSystemProvider;
 import org.jboss.arquillian.container.test.api.Deployment;
@@ -110,6 +119,10 @@ public class CloudStorageSystemProviderTest {
     @Named("org.dcm4chee.storage.cloud")
     StorageSystemProvider provider;
 
+    @Inject
+    @Named("org.dcm4chee.storage.cloud")
+    StorageSystemProvider otherNode;
+
     @Produces @StorageDevice
     static Device device = new Device("test");
 
@@ -119,6 +132,7 @@ public class CloudStorageSystemProviderTest {
     StorageContext storageCtx;
     RetrieveContext retrieveCtx;
     ExecutorService executor;
+    ScheduledExecutorService scheduledExecutor;
 
     @Before
     public void setup() throws IOException {
@@ -158,6 +172,11 @@ public class CloudStorageSystemProviderTest {
     @After
     public void teardown() {
         executor.shutdownNow();
+        if (scheduledExecutor != null) {
+            scheduledExecutor.shutdownNow();
+            device.setScheduledExecutor(null);
+            scheduledExecutor = null;
+        }
         device.removeDeviceExtension(ext);
         ext = null;
         group = null;
@@ -174,6 +193,20 @@ public class CloudStorageSystemProviderTest {
         Assert.assertEquals(Files.size(FILE1), storageCtx.getFileSize());
     }
 
+    @Test
+    public void testOpenOutputStreamExceedingPartSize() throws IOException {
+        system.setMultipartUploadSize("1MB");
+        byte[] b = new byte[100000];
+        for (int i = 0; i < b.length; i++)
+            b[i] = (byte) i;
+        try (OutputStream out = provider.openOutputStream(storageCtx, ID2)) {
+            for (int i = 0; i < 25; i++)
+                out.write(b);
+        }
+        Assert.assertEquals(25 * b.length, Files.size(FILE2));
+        Assert.assertEquals(25 * b.length, storageCtx.getFileSize());
+    }
+
     @Test(expected = ObjectAlreadyExistsException.class)
     public void testOpenOutputStreamWithException() throws IOException {
         provider.openOutputStream(storageCtx, ID1).close();
@@ -192,6 +225,164 @@ public class CloudStorageSystemProviderTest {
         provider.storeFile(storageCtx, FILE1, ID1);
     }
 
+    @Test
+    public void testStoreFileWithoutCheckExists() throws IOException {
+        system.setCheckExists(false);
+        provider.storeFile(storageCtx, FILE1, ID2);
+        Assert.assertTrue(Files.exists(FILE2));
+        try {
+            provider.storeFile(storageCtx, FILE1, ID2);
+            Assert.fail("ObjectAlreadyExistsException expected");
+        } catch (ObjectAlreadyExistsException e) {
+        }
+    }
+
+    @Test
+    public void testStoreFileWithoutCheckExistsAfterRestart() throws Exception {
+        system.setCheckExists(false);
+        provider.init(system);
+        try {
+            provider.storeFile(storageCtx, FILE1, ID1);
+            Assert.fail("ObjectAlreadyExistsException expected");
+        } catch (ObjectAlreadyExistsException e) {
+        }
+        // wait for the listing of the container
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        executor = Executors.newCachedThreadPool();
+        device.setExecutor(executor);
+        try {
+            provider.storeFile(storageCtx, FILE1, ID1);
+            Assert.fail("ObjectAlreadyExistsException expected");
+        } catch (ObjectAlreadyExistsException e) {
+        }
+        provider.storeFile(storageCtx, FILE1, ID2);
+        Assert.assertTrue(Files.exists(FILE2));
+    }
+
+    @Test
+    public void testDeleteObjectWithoutCheckExists() throws IOException {
+        system.setCheckExists(false);
+        provider.deleteObject(storageCtx, ID1);
+        Assert.assertFalse(Files.exists(FILE1));
+        provider.deleteObject(storageCtx, ID2);
+    }
+
+    private void initPacking() {
+        scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
+        device.setScheduledExecutor(scheduledExecutor);
+        system.setPackSegmentSize("1MB");
+        provider.init(system);
+    }
+
+    private int countSegments() throws IOException {
+        Path dir = DIR.resolve("_segments");
+        if (!Files.isDirectory(dir))
+            return 0;
+        int count = 0;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*.seg")) {
+            for (@SuppressWarnings("unused") Path path : ds)
+                count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void testPackedObjects() throws IOException {
+        initPacking();
+        String id3 = "x/y/z3";
+        int segments = countSegments();
+        provider.storeFile(storageCtx, FILE1, ID2);
+        try (OutputStream out = provider.openOutputStream(storageCtx, id3)) {
+            Files.copy(FILE1, out);
+        }
+        Assert.assertFalse(Files.exists(FILE2));
+        Assert.assertEquals("testdata", readPacked(ID2));
+        Assert.assertEquals(segments, countSegments());
+        provider.sync(Arrays.asList(ID2));
+        Assert.assertEquals(segments + 1, countSegments());
+        // reload index from uploaded segments
+        provider.init(system);
+        Assert.assertEquals("testdata", readPacked(ID2));
+        Assert.assertEquals("testdata", readPacked(id3));
+        try {
+            provider.storeFile(storageCtx, FILE1, ID2);
+            Assert.fail("ObjectAlreadyExistsException expected");
+        } catch (ObjectAlreadyExistsException e) {
+        }
+        provider.deleteObject(storageCtx, ID2);
+        provider.deleteObject(storageCtx, id3);
+        try {
+            provider.openInputStream(retrieveCtx, ID2).close();
+            Assert.fail("ObjectNotFoundException expected");
+        } catch (ObjectNotFoundException e) {
+        }
+    }
+
+    @Test
+    public void testPackedObjectUploadedOnStore() throws IOException {
+        initPacking();
+        system.setSyncPolicy(SyncPolicy.ALWAYS);
+        provider.storeFile(storageCtx, FILE1, ID2);
+        // reload index from uploaded segments, without sync
+        provider.init(system);
+        Assert.assertEquals("testdata", readPacked(ID2));
+        provider.deleteObject(storageCtx, ID2);
+    }
+
+    @Test
+    public void testSmallObjectsShareSegment() throws IOException {
+        initPacking();
+        int segments = countSegments();
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < 10; i++) {
+            String name = "packed/" + i;
+            provider.storeFile(storageCtx, FILE1, name);
+            names.add(name);
+        }
+        provider.sync(names);
+        Assert.assertEquals(segments + 1, countSegments());
+        provider.init(system);
+        for (String name : names) {
+            Assert.assertEquals("testdata", readPacked(name));
+            provider.deleteObject(storageCtx, name);
+        }
+    }
+
+    @Test
+    public void testReadObjectPackedByOtherNode() throws IOException {
+        initPacking();
+        otherNode.init(system);
+        try {
+            otherNode.openInputStream(retrieveCtx, ID2).close();
+            Assert.fail("ObjectNotFoundException expected");
+        } catch (ObjectNotFoundException e) {
+        }
+        provider.storeFile(storageCtx, FILE1, ID2);
+        provider.sync(Arrays.asList(ID2));
+        try (InputStream in = otherNode.openInputStream(retrieveCtx, ID2)) {
+            byte[] b = new byte[(int) Files.size(FILE1)];
+            int off = 0;
+            int n;
+            while (off < b.length && (n = in.read(b, off, b.length - off)) > 0)
+                off += n;
+            Assert.assertEquals("testdata",
+                    new String(b, 0, off, StandardCharsets.UTF_8));
+        }
+        provider.deleteObject(storageCtx, ID2);
+    }
+
+    private String readPacked(String id) throws IOException {
+        try (InputStream in = provider.openInputStream(retrieveCtx, id)) {
+            byte[] b = new byte[(int) Files.size(FILE1)];
+            int off = 0;
+            int n;
+            while (off < b.length && (n = in.read(b, off, b.length - off)) > 0)
+                off += n;
+            return new String(b, 0, off, StandardCharsets.UTF_8);
+        }
+    }
+
     @Test
     public void testCopyInputStream() throws IOException {
         try (InputStream in = Files.newInputStream(FILE1,
@@ -233,4 +424,55 @@ public class CloudStorageSystemProviderTest {
         provider.openInputStream(retrieveCtx, ID2).close();
     }
 
+    @Test
+    public void testOpenChannel() throws IOException {
+        try (SeekableByteChannel channel = provider.openChannel(retrieveCtx, ID1)) {
+            Assert.assertEquals(Files.size(FILE1), channel.size());
+            ByteBuffer bb = ByteBuffer.allocate(4);
+            channel.position(4);
+            while (bb.hasRemaining() && channel.read(bb) > 0)
+                ;
+            Assert.assertEquals("data", new String(bb.array(),
+                    StandardCharsets.UTF_8));
+            Assert.assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+            bb.clear();
+            channel.position(0);
+            while (bb.hasRemaining() && channel.read(bb) > 0)
+                ;
+            Assert.assertEquals("test", new String(bb.array(),
+                    StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testOpenChannelAcrossReadWindows() throws IOException {
+        byte[] data = new byte[3 * 1024 * 1024 + 1000];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) (i / 1000);
+        Files.createDirectories(FILE2.getParent());
+        Files.write(FILE2, data);
+        try (SeekableByteChannel channel = provider.openChannel(retrieveCtx, ID2)) {
+            Assert.assertEquals(data.length, channel.size());
+            ByteBuffer bb = ByteBuffer.allocate(data.length);
+            while (bb.hasRemaining() && channel.read(bb) > 0)
+                ;
+            Assert.assertFalse(bb.hasRemaining());
+            Assert.assertTrue(Arrays.equals(data, bb.array()));
+            Assert.assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+            ByteBuffer b1 = ByteBuffer.allocate(1);
+            channel.position(2 * 1024 * 1024 + 10);
+            Assert.assertEquals(1, channel.read(b1));
+            Assert.assertEquals(data[2 * 1024 * 1024 + 10], b1.get(0));
+            b1.clear();
+            channel.position(10);
+            Assert.assertEquals(1, channel.read(b1));
+            Assert.assertEquals(data[10], b1.get(0));
+        }
+    }
+
+    @Test(expected = ObjectNotFoundException.class)
+    public void testOpenChannelWithException() throws IOException {
+        provider.openChannel(retrieveCtx, ID2).close();
+    }
+
 }
@@ -0,0 +1,231 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.storage.test.unit.filecache;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.enterprise.inject.Produces;
+import javax.inject.Inject;
+
+import org.dcm4che3.net.Device;
+import org.dcm4chee.storage.RetrieveContext;
+import org.dcm4chee.storage.conf.Container;
+import org.dcm4chee.storage.conf.FileCache;
+import org.dcm4chee.storage.conf.StorageDevice;
+import org.dcm4chee.storage.conf.StorageDeviceExtension;
+import org.dcm4chee.storage.conf.StorageSystem;
+import org.dcm4chee.storage.conf.StorageSystemGroup;
+import org.dcm4chee.storage.filecache.DefaultFileCacheProvider;
+import org.dcm4chee.storage.filecache.TieredFileCacheProvider;
+import org.dcm4chee.storage.filesystem.FileSystemStorageSystemProvider;
+import org.dcm4chee.storage.service.RetrieveService;
+import org.dcm4chee.storage.service.impl.RetrieveServiceImpl;
+import org.dcm4chee.storage.test.unit.util.TransientDirectory;
+import org.dcm4chee.storage.zip.ZipContainerProvider;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * @author agent <agent@local>
+ *
+ */
+@RunWith(Arquillian.class)
+public class TieredFileCacheProviderTest {
+
+    private static final int FILE_SIZE = 518;
+    private static final String NAME = "test.zip";
+    private static final int ENTRY_SIZE = 5;
+    private static final Path RAM_DIR = Paths.get("target/ramcache");
+    private static final Path SSD_DIR = Paths.get("target/filecache");
+
+    @Deployment
+    public static JavaArchive createDeployment() {
+        return ShrinkWrap.create(JavaArchive.class)
+            .addClass(RetrieveServiceImpl.class)
+            .addClass(FileSystemStorageSystemProvider.class)
+            .addClass(DefaultFileCacheProvider.class)
+            .addClass(TieredFileCacheProvider.class)
+            .addClass(ZipContainerProvider.class)
+            .addAsManifestResource(EmptyAsset.INSTANCE, "beans.xml");
+    }
+
+    @Inject
+    RetrieveService service;
+
+    @Produces @StorageDevice
+    static Device device = new Device("test");
+
+    @Rule
+    public TransientDirectory ramDir = new TransientDirectory("target/ramcache");
+
+    @Rule
+    public TransientDirectory cacheDir = new TransientDirectory("target/filecache");
+
+    @Rule
+    public TransientDirectory journalDir = new TransientDirectory("target/journaldir");
+
+    StorageDeviceExtension ext;
+    StorageSystemGroup fsGroup;
+    StorageSystem fs;
+    FileCache fileCache;
+    ExecutorService executor;
+
+    @Before
+    public void setup() throws IOException {
+        ext = new StorageDeviceExtension();
+        device.addDeviceExtension(ext);
+        // write back entries in order of registration
+        executor = Executors.newSingleThreadExecutor();
+        device.setExecutor(executor);
+        fsGroup = new StorageSystemGroup();
+        fsGroup.setGroupID("fs");
+        ext.addStorageSystemGroup(fsGroup);
+        fs = new StorageSystem();
+        fs.setProviderName("org.dcm4chee.storage.filesystem");
+        fs.setStorageSystemID("fs");
+        fs.setStorageSystemPath("src/test/data");
+        fsGroup.addStorageSystem(fs);
+        fileCache = new FileCache();
+        fileCache.setProviderName("org.dcm4chee.storage.filecache.tiered");
+        fileCache.setFileCacheRootDirectory("target/filecache");
+        fileCache.setJournalRootDirectory("target/journaldir");
+        fileCache.setRAMRootDirectory("target/ramcache");
+        fsGroup.setFileCache(fileCache);
+    }
+
+    @After
+    public void teardown() throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        device.removeDeviceExtension(ext);
+        ext = null;
+        fsGroup = null;
+        fs = null;
+    }
+
+    @Test
+    public void testGetFile() throws Exception {
+        RetrieveContext ctx = service.createRetrieveContext(fs);
+        Path file = service.getFile(ctx, NAME);
+        Assert.assertTrue(file.startsWith(RAM_DIR));
+        Assert.assertEquals(FILE_SIZE, Files.size(file));
+        Path ssdFile = SSD_DIR.resolve("fs").resolve(NAME);
+        awaitExists(ssdFile);
+        Assert.assertEquals(FILE_SIZE, Files.size(ssdFile));
+        Assert.assertFalse(Files.isSymbolicLink(file));
+    }
+
+    @Test
+    public void testDemoteLargeObject() throws Exception {
+        fileCache.setRAMMaxObjectSize("100");
+        RetrieveContext ctx = service.createRetrieveContext(fs);
+        Path file = service.getFile(ctx, NAME);
+        awaitSymbolicLink(file, true);
+        Assert.assertEquals(FILE_SIZE, Files.size(file));
+        Assert.assertEquals(file, service.getFile(ctx, NAME));
+        Assert.assertTrue(Files.isSymbolicLink(file));
+    }
+
+    @Test
+    public void testRestoreLargeObject() throws Exception {
+        fileCache.setRAMMaxObjectSize("100");
+        RetrieveContext ctx = service.createRetrieveContext(fs);
+        Path file = service.getFile(ctx, NAME);
+        awaitSymbolicLink(file, true);
+        Files.delete(file);
+        // linked to the SSD tier instead of copied to the RAM tier
+        Assert.assertEquals(file, service.getFile(ctx, NAME));
+        Assert.assertTrue(Files.isSymbolicLink(file));
+        Assert.assertEquals(FILE_SIZE, Files.size(file));
+    }
+
+    @Test
+    public void testDemoteAndPromote() throws Exception {
+        fsGroup.setContainer(newZipContainer());
+        fileCache.setRAMSize("10");
+        RetrieveContext ctx = service.createRetrieveContext(fs);
+        Path entry1 = service.getFile(ctx, NAME, "entry-1");
+        Path entry2 = service.getFile(ctx, NAME, "entry-2");
+        Path entry3 = service.getFile(ctx, NAME, "entry-3");
+        awaitSymbolicLink(entry1, true);
+        Assert.assertFalse(Files.isSymbolicLink(entry3));
+        Assert.assertEquals(ENTRY_SIZE, Files.size(entry1));
+
+        Assert.assertEquals(entry1, service.getFile(ctx, NAME, "entry-1"));
+        awaitSymbolicLink(entry1, false);
+        awaitSymbolicLink(entry2, true);
+        Assert.assertEquals(ENTRY_SIZE, Files.size(entry1));
+        Assert.assertEquals(ENTRY_SIZE, Files.size(entry2));
+    }
+
+    private static Container newZipContainer() {
+        Container container = new Container();
+        container.setProviderName("org.dcm4chee.storage.zip");
+        return container;
+    }
+
+    private static void awaitExists(Path path) throws InterruptedException {
+        for (int i = 0; i < 100 && !Files.exists(path); i++)
+            Thread.sleep(100);
+        Assert.assertTrue(Files.exists(path));
+    }
+
+    private static void awaitSymbolicLink(Path path, boolean link)
+            throws InterruptedException {
+        for (int i = 0; i < 100 && Files.isSymbolicLink(path) != link; i++)
+            Thread.sleep(100);
+        Assert.assertEquals(link, Files.isSymbolicLink(path));
+    }
+}
@@ -45,6 +45,15 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.security.DigestInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.enterprise.inject.Produces;
 import javax.inject.Inject;
@@ -160,6 +169,86 @@ public class FileSystemStorageSystemProviderTest {
         Assert.assertTrue(Files.exists(FILE2));
     }
 
+    @Test
+    public void testOpenOutputStreamWithDirectoryCache() throws Exception {
+        fs.setDirectoryCacheSize(10);
+        provider.init(fs);
+        provider.openOutputStream(storageCtx, ID2).close();
+        provider.deleteObject(storageCtx, ID2);
+        Assert.assertFalse(Files.exists(FILE2.getParent()));
+        provider.openOutputStream(storageCtx, ID2).close();
+        Assert.assertTrue(Files.exists(FILE2));
+        Files.delete(FILE2);
+        Files.delete(FILE2.getParent());
+        provider.openOutputStream(storageCtx, ID2).close();
+        Assert.assertTrue(Files.exists(FILE2));
+    }
+
+    @Test
+    public void testStoreFileWithHardLink() throws Exception {
+        fs.setHardLinkOnStore(true);
+        Assert.assertFalse(Files.exists(FILE2));
+        provider.storeFile(storageCtx, FILE1, ID2);
+        Assert.assertTrue(Files.isSameFile(FILE1, FILE2));
+    }
+
+    @Test
+    public void testSync() throws Exception {
+        provider.storeFile(storageCtx, FILE1, ID2);
+        provider.sync(Arrays.asList(ID1, ID2));
+    }
+
+    @Test(expected = IOException.class)
+    public void testSyncMissingFile() throws Exception {
+        provider.sync(Arrays.asList(ID2));
+    }
+
+    @Test
+    public void testConcurrentSyncOnBoundedExecutor() throws Exception {
+        // all threads of the executor are busy with sync calls, so helpers
+        // of the leader never run
+        int callers = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        device.setExecutor(executor);
+        fs.setSyncGroupCommitWindow(100);
+        provider.init(fs);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int i = 0; i < callers; i++) {
+                final List<String> names = new ArrayList<String>();
+                for (int j = 0; j < 5; j++) {
+                    String name = "sync/" + i + "/" + j;
+                    Path file = DIR.resolve(name);
+                    Files.createDirectories(file.getParent());
+                    if (!Files.exists(file))
+                        Files.createFile(file);
+                    names.add(name);
+                }
+                if (i == 0)
+                    names.add("sync/missing");
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        provider.sync(names);
+                        return null;
+                    }
+                }));
+            }
+            try {
+                results.get(0).get(10, TimeUnit.SECONDS);
+                Assert.fail("IOException expected");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IOException);
+            }
+            // a missing file of one caller does not fail the others
+            for (int i = 1; i < callers; i++)
+                results.get(i).get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+            device.setExecutor(null);
+        }
+    }
+
     @Test
     public void testMoveFile() throws Exception {
         Assert.assertTrue(Files.exists(FILE1));
@@ -0,0 +1,228 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.storage.test.unit.metrics;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+
+import javax.enterprise.inject.Produces;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.dcm4che3.net.Device;
+import org.dcm4chee.storage.ObjectNotFoundException;
+import org.dcm4chee.storage.RetrieveContext;
+import org.dcm4chee.storage.StorageContext;
+import org.dcm4chee.storage.conf.StorageDevice;
+import org.dcm4chee.storage.conf.StorageDeviceExtension;
+import org.dcm4chee.storage.conf.StorageSystem;
+import org.dcm4chee.storage.conf.StorageSystemGroup;
+import org.dcm4chee.storage.conf.StorageSystemStatus;
+import org.dcm4chee.storage.filesystem.FileSystemStorageSystemProvider;
+import org.dcm4chee.storage.metrics.OperationMetrics;
+import org.dcm4chee.storage.metrics.StorageMetricsRegistry;
+import org.dcm4chee.storage.metrics.StorageSystemMetrics;
+import org.dcm4chee.storage.metrics.StorageSystemProviderMetricsDecorator;
+import org.dcm4chee.storage.spi.StorageSystemProvider;
+import org.dcm4chee.storage.test.unit.util.TransientDirectory;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.StringAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * @author agent <agent@local>
+ *
+ */
+@RunWith(Arquillian.class)
+public class StorageSystemProviderMetricsDecoratorTest {
+
+    private static final String ID = "a/b/c";
+    private static final String FS_PATH = "target/test-storage/metrics";
+    private static final int SIZE = 5000;
+
+    @Deployment
+    public static JavaArchive createDeployment() {
+        return ShrinkWrap
+                .create(JavaArchive.class)
+                .addClass(FileSystemStorageSystemProvider.class)
+                .addClass(StorageSystemProviderMetricsDecorator.class)
+                .addAsManifestResource(
+                        new StringAsset(
+                                "<decorators><class>org.dcm4chee.storage.metrics.StorageSystemProviderMetricsDecorator</class></decorators>"),
+                        "beans.xml");
+    }
+
+    @Inject
+    @Named("org.dcm4chee.storage.filesystem")
+    StorageSystemProvider provider;
+
+    @Produces @StorageDevice
+    static Device device = new Device("test");
+
+    @Rule
+    public TransientDirectory storageDir = new TransientDirectory(FS_PATH);
+
+    StorageDeviceExtension ext;
+    StorageSystemGroup fsGroup;
+    StorageSystem fs;
+    StorageSystemMetrics metrics;
+
+    @Before
+    public void setup() {
+        ext = new StorageDeviceExtension();
+        device.addDeviceExtension(ext);
+        fsGroup = new StorageSystemGroup();
+        fsGroup.setGroupID("fs");
+        ext.addStorageSystemGroup(fsGroup);
+        fs = new StorageSystem();
+        fs.setStorageSystemID("metrics");
+        fs.setStorageSystemPath(FS_PATH);
+        fs.setStorageSystemStatus(StorageSystemStatus.OK);
+        fs.setStorageSystemGroup(fsGroup);
+        provider.init(fs);
+        metrics = StorageMetricsRegistry.metricsOf(fs);
+        metrics.reset();
+    }
+
+    @After
+    public void teardown() {
+        device.removeDeviceExtension(ext);
+        ext = null;
+        fsGroup = null;
+        fs = null;
+    }
+
+    @Test
+    public void testTransfer() throws Exception {
+        try (OutputStream out = provider.openOutputStream(storageContext(), ID)) {
+            Assert.assertEquals(1, metrics.getInFlight());
+            out.write(new byte[SIZE]);
+        }
+        byte[] buf = new byte[1000];
+        try (InputStream in = provider.openInputStream(retrieveContext(), ID)) {
+            while (in.read(buf) > 0)
+                ;
+        }
+        Assert.assertEquals(0, metrics.getInFlight());
+        Assert.assertEquals(SIZE, metrics.getBytesWritten());
+        Assert.assertEquals(SIZE, metrics.getBytesRead());
+        OperationMetrics write = metrics.getOperation("openOutputStream");
+        Assert.assertEquals(1, write.getCount());
+        Assert.assertEquals(0, write.getErrors());
+        long histogramCount = 0;
+        for (long n : write.getHistogram())
+            histogramCount += n;
+        Assert.assertEquals(1, histogramCount);
+        Assert.assertEquals(1, metrics.getOperation("openInputStream").getCount());
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        try {
+            provider.openInputStream(retrieveContext(), "missing");
+            Assert.fail("ObjectNotFoundException expected");
+        } catch (ObjectNotFoundException e) {
+        }
+        OperationMetrics read = metrics.getOperation("openInputStream");
+        Assert.assertEquals(1, read.getCount());
+        Assert.assertEquals(1, read.getErrors());
+        Assert.assertEquals(1, metrics.getErrors());
+        Assert.assertEquals(0, metrics.getInFlight());
+    }
+
+    @Test
+    public void testSpaceAndSync() throws Exception {
+        try (OutputStream out = provider.openOutputStream(storageContext(), ID)) {
+            out.write(new byte[SIZE]);
+        }
+        provider.checkWriteable();
+        Assert.assertTrue(provider.getUsableSpace() > 0);
+        Assert.assertTrue(provider.getTotalSpace() > 0);
+        provider.sync(Collections.singletonList(ID));
+        for (String op : new String[] { "checkWriteable", "getUsableSpace",
+                "getTotalSpace", "sync" }) {
+            OperationMetrics metric = metrics.getOperation(op);
+            Assert.assertEquals(op, 1, metric.getCount());
+            Assert.assertEquals(op, 0, metric.getErrors());
+        }
+        Assert.assertEquals(0, metrics.getInFlight());
+    }
+
+    @Test
+    public void testMBean() throws Exception {
+        try (OutputStream out = provider.openOutputStream(storageContext(), ID)) {
+            out.write(new byte[SIZE]);
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = StorageMetricsRegistry.objectName("fs", "metrics");
+        Assert.assertTrue(server.isRegistered(name));
+        Assert.assertEquals(Long.valueOf(SIZE),
+                server.getAttribute(name, "BytesWritten"));
+        server.invoke(name, "reset", null, null);
+        Assert.assertEquals(Long.valueOf(0),
+                server.getAttribute(name, "BytesWritten"));
+    }
+
+    private StorageContext storageContext() {
+        StorageContext ctx = new StorageContext();
+        ctx.setStorageSystemProvider(provider);
+        ctx.setStorageSystem(fs);
+        return ctx;
+    }
+
+    private RetrieveContext retrieveContext() {
+        RetrieveContext ctx = new RetrieveContext();
+        ctx.setStorageSystemProvider(provider);
+        ctx.setStorageSystem(fs);
+        return ctx;
+    }
+}
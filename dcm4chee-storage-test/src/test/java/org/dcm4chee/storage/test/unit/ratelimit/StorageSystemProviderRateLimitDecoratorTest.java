@@ -0,0 +1,283 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.storage.test.unit.ratelimit;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.enterprise.inject.Produces;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.dcm4che3.net.Device;
+import org.dcm4chee.storage.IOPriority;
+import org.dcm4chee.storage.RetrieveContext;
+import org.dcm4chee.storage.StorageContext;
+import org.dcm4chee.storage.conf.StorageDevice;
+import org.dcm4chee.storage.conf.StorageDeviceExtension;
+import org.dcm4chee.storage.conf.StorageSystem;
+import org.dcm4chee.storage.conf.StorageSystemGroup;
+import org.dcm4chee.storage.conf.StorageSystemStatus;
+import org.dcm4chee.storage.filesystem.FileSystemStorageSystemProvider;
+import org.dcm4chee.storage.ratelimit.StorageSystemProviderRateLimitDecorator;
+import org.dcm4chee.storage.spi.StorageSystemProvider;
+import org.dcm4chee.storage.test.unit.util.TransientDirectory;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.StringAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * @author agent <agent@local>
+ *
+ */
+@RunWith(Arquillian.class)
+public class StorageSystemProviderRateLimitDecoratorTest {
+
+    private static final String ID = "a/b/c";
+    private static final String FS_PATH = "target/test-storage/ratelimit";
+
+    @Deployment
+    public static JavaArchive createDeployment() {
+        return ShrinkWrap
+                .create(JavaArchive.class)
+                .addClass(FileSystemStorageSystemProvider.class)
+                .addClass(StorageSystemProviderRateLimitDecorator.class)
+                .addAsManifestResource(
+                        new StringAsset(
+                                "<decorators><class>org.dcm4chee.storage.ratelimit.StorageSystemProviderRateLimitDecorator</class></decorators>"),
+                        "beans.xml");
+    }
+
+    @Inject
+    @Named("org.dcm4chee.storage.filesystem")
+    StorageSystemProvider provider;
+
+    @Produces @StorageDevice
+    static Device device = new Device("test");
+
+    @Rule
+    public TransientDirectory storageDir = new TransientDirectory(FS_PATH);
+
+    StorageDeviceExtension ext;
+    StorageSystemGroup fsGroup;
+    StorageSystem fs;
+
+    @Before
+    public void setup() {
+        ext = new StorageDeviceExtension();
+        device.addDeviceExtension(ext);
+        fsGroup = new StorageSystemGroup();
+        fsGroup.setGroupID("fs");
+        ext.addStorageSystemGroup(fsGroup);
+        fs = new StorageSystem();
+        fs.setStorageSystemID("fs");
+        fs.setStorageSystemPath(FS_PATH);
+        fs.setStorageSystemStatus(StorageSystemStatus.OK);
+        fs.setStorageSystemGroup(fsGroup);
+    }
+
+    @After
+    public void teardown() {
+        device.removeDeviceExtension(ext);
+        ext = null;
+        fsGroup = null;
+        fs = null;
+    }
+
+    @Test
+    public void testMaxBandwidth() throws Exception {
+        fs.setMaxBandwidth("2KB");
+        provider.init(fs);
+        long start = System.nanoTime();
+        try (OutputStream out = provider.openOutputStream(storageContext(), ID)) {
+            out.write(new byte[5000]);
+        }
+        byte[] buf = new byte[1000];
+        int read = 0;
+        int n;
+        try (InputStream in = provider.openInputStream(
+                retrieveContext(IOPriority.INTERACTIVE), ID)) {
+            while ((n = in.read(buf)) > 0)
+                read += n;
+        }
+        Assert.assertEquals(5000, read);
+        // 10000 bytes at 2000 bytes/s with initial burst of 2000 bytes
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.SECONDS.toNanos(3));
+    }
+
+    @Test
+    public void testPriority() throws Exception {
+        fs.setMaxIOPS(2);
+        provider.init(fs);
+        // exhaust initial burst, so all following requests wait
+        for (int i = 0; i < 3; i++)
+            queryStatus(IOPriority.INTERACTIVE);
+        final List<IOPriority> completed =
+                Collections.synchronizedList(new ArrayList<IOPriority>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (final IOPriority priority : new IOPriority[] {
+                IOPriority.SCRUBBING, IOPriority.ARCHIVING, IOPriority.INTERACTIVE }) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        queryStatus(priority);
+                        completed.add(priority);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+            Thread.sleep(50);
+        }
+        for (Thread thread : threads)
+            thread.join();
+        Assert.assertEquals(Arrays.asList(IOPriority.INTERACTIVE,
+                IOPriority.ARCHIVING, IOPriority.SCRUBBING), completed);
+    }
+
+    @Test
+    public void testPriorityWithLargeTransfer() throws Exception {
+        fs.setMaxBandwidth("2KB");
+        provider.init(fs);
+        final Path largeFile = storageDir.getPath().resolve("large");
+        Path smallFile = storageDir.getPath().resolve("small");
+        Files.write(largeFile, new byte[10000]);
+        Files.write(smallFile, new byte[1000]);
+        final StorageContext scrubCtx = storageContext();
+        scrubCtx.setPriority(IOPriority.SCRUBBING);
+        Thread scrub = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    provider.storeFile(scrubCtx, largeFile, "a/large");
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        scrub.start();
+        Thread.sleep(100);
+        StorageContext ctx = storageContext();
+        ctx.setPriority(IOPriority.INTERACTIVE);
+        long start = System.nanoTime();
+        provider.storeFile(ctx, smallFile, "a/small");
+        // waits only for the tokens it needs, not for the 10000 bytes of
+        // the scrubbing transfer, which started before
+        Assert.assertTrue(System.nanoTime() - start
+                < TimeUnit.MILLISECONDS.toNanos(1500));
+        Assert.assertTrue(scrub.isAlive());
+        scrub.join();
+    }
+
+    @Test
+    public void testMaxBandwidthOfStoreFile() throws Exception {
+        fs.setMaxBandwidth("2KB");
+        provider.init(fs);
+        Path file = storageDir.getPath().resolve("file");
+        Files.write(file, new byte[6000]);
+        StorageContext ctx = storageContext();
+        long start = System.nanoTime();
+        provider.storeFile(ctx, file, ID);
+        // 6000 bytes at 2000 bytes/s with initial burst of 2000 bytes
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.SECONDS.toNanos(2));
+        Assert.assertEquals(6000, Files.size(storageDir.getPath().resolve(ID)));
+        Assert.assertEquals(6000, ctx.getFileSize());
+    }
+
+    @Test
+    public void testMaxBandwidthOfMoveFile() throws Exception {
+        fs.setMaxBandwidth("2KB");
+        provider.init(fs);
+        Path file = storageDir.getPath().resolve("file");
+        Files.write(file, new byte[6000]);
+        long start = System.nanoTime();
+        provider.moveFile(storageContext(), file, ID);
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.SECONDS.toNanos(2));
+        Assert.assertEquals(6000, Files.size(storageDir.getPath().resolve(ID)));
+        Assert.assertFalse(Files.exists(file));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testStoreFileAsyncWithMaxBandwidth() throws Exception {
+        fs.setMaxBandwidth("2KB");
+        provider.init(fs);
+        Path file = storageDir.getPath().resolve("file");
+        Files.write(file, new byte[6000]);
+        provider.storeFileAsync(storageContext(), file, ID);
+    }
+
+    private void queryStatus(IOPriority priority) throws IOException {
+        provider.queryStatus(retrieveContext(priority), ID, IOPriority.class);
+    }
+
+    private StorageContext storageContext() {
+        StorageContext ctx = new StorageContext();
+        ctx.setStorageSystemProvider(provider);
+        ctx.setStorageSystem(fs);
+        return ctx;
+    }
+
+    private RetrieveContext retrieveContext(IOPriority priority) {
+        RetrieveContext ctx = new RetrieveContext();
+        ctx.setStorageSystemProvider(provider);
+        ctx.setStorageSystem(fs);
+        ctx.setPriority(priority);
+        return ctx;
+    }
+}
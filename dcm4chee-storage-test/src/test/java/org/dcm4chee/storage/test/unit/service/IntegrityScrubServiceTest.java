@@ -0,0 +1,216 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.storage.test.unit.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.enterprise.inject.Produces;
+import javax.inject.Inject;
+
+import org.dcm4che3.net.Device;
+import org.dcm4chee.storage.conf.Container;
+import org.dcm4chee.storage.conf.StorageDevice;
+import org.dcm4chee.storage.conf.StorageDeviceExtension;
+import org.dcm4chee.storage.conf.StorageSystem;
+import org.dcm4chee.storage.conf.StorageSystemGroup;
+import org.dcm4chee.storage.filecache.DefaultFileCacheProvider;
+import org.dcm4chee.storage.filesystem.FileSystemStorageSystemProvider;
+import org.dcm4chee.storage.service.IntegrityScrub;
+import org.dcm4chee.storage.service.IntegrityScrubService;
+import org.dcm4chee.storage.service.impl.IntegrityScrubServiceImpl;
+import org.dcm4chee.storage.service.impl.RetrieveServiceImpl;
+import org.dcm4chee.storage.test.unit.util.TransientDirectory;
+import org.dcm4chee.storage.zip.ZipContainerProvider;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * @author agent <agent@local>
+ *
+ */
+@RunWith(Arquillian.class)
+public class IntegrityScrubServiceTest {
+
+    private static final Path ZIP_PATH = Paths.get("src/test/data/test.zip");
+    private static final String ZIP_DIGEST = "bf641dfb634b79d58f40572230f6d6aa";
+    private static final String ENTRY_DIGEST = "1043bfc77febe75fafec0c4309faccf1";
+    private static final byte[] ENTRY = { 'e', 'n', 't', 'r', 'y' };
+
+    @Deployment
+    public static JavaArchive createDeployment() {
+        return ShrinkWrap.create(JavaArchive.class)
+            .addClass(IntegrityScrubServiceImpl.class)
+            .addClass(RetrieveServiceImpl.class)
+            .addClass(FileSystemStorageSystemProvider.class)
+            .addClass(DefaultFileCacheProvider.class)
+            .addClass(ZipContainerProvider.class)
+            .addAsManifestResource(EmptyAsset.INSTANCE, "beans.xml");
+    }
+
+    @Inject
+    IntegrityScrubService service;
+
+    @Produces @StorageDevice
+    static Device device = new Device("test");
+
+    @Rule
+    public TransientDirectory storageDir = new TransientDirectory("target/scrub");
+
+    StorageDeviceExtension ext;
+    StorageSystemGroup fsGroup;
+    StorageSystem fs;
+    ExecutorService executor;
+
+    @Before
+    public void setup() throws IOException {
+        ext = new StorageDeviceExtension();
+        device.addDeviceExtension(ext);
+        executor = Executors.newCachedThreadPool();
+        device.setExecutor(executor);
+        fsGroup = new StorageSystemGroup();
+        fsGroup.setGroupID("fs");
+        fsGroup.setDigestAlgorithm("MD5");
+        ext.addStorageSystemGroup(fsGroup);
+        fs = new StorageSystem();
+        fs.setProviderName("org.dcm4chee.storage.filesystem");
+        fs.setStorageSystemID("fs");
+        fs.setStorageSystemPath("target/scrub");
+        fs.setScrubThreads(4);
+        fsGroup.addStorageSystem(fs);
+    }
+
+    @After
+    public void teardown() throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        device.removeDeviceExtension(ext);
+        ext = null;
+        fsGroup = null;
+        fs = null;
+    }
+
+    @Test
+    public void testScrubDigests() throws Exception {
+        Map<String, String> digests = new HashMap<String, String>();
+        for (int i = 0; i < 10; i++)
+            digests.put(copyZip("a/" + i + ".zip"), ZIP_DIGEST);
+        digests.put(copyZip("b/0.zip"), ENTRY_DIGEST);
+        digests.put("b/missing.zip", ZIP_DIGEST);
+        IntegrityScrub scrub = service.scrub(fs, digests);
+        Assert.assertTrue(scrub.awaitCompletion(10, TimeUnit.SECONDS));
+        Assert.assertEquals(12, scrub.getCheckedObjects());
+        Assert.assertEquals(11 * Files.size(ZIP_PATH), scrub.getBytesRead());
+        Assert.assertEquals(
+                new HashSet<String>(Arrays.asList("b/0.zip", "b/missing.zip")),
+                scrub.getFailures().keySet());
+    }
+
+    @Test
+    public void testScrubContainerEntries() throws Exception {
+        Container container = new Container();
+        container.setProviderName("org.dcm4chee.storage.zip");
+        fsGroup.setContainer(container);
+        copyZip("a/0.zip");
+        copyZip("a/1.zip");
+        writeZip("b/0.zip", "0123456789abcdef0123456789abcdef");
+        IntegrityScrub scrub = service.scrub(fs);
+        Assert.assertTrue(scrub.awaitCompletion(10, TimeUnit.SECONDS));
+        Assert.assertEquals(3, scrub.getCheckedObjects());
+        Assert.assertEquals(Collections.singleton("b/0.zip"),
+                scrub.getFailures().keySet());
+    }
+
+    @Test
+    public void testScrubWithMaxRate() throws Exception {
+        fs.setScrubMaxRate("2KB");
+        Map<String, String> digests = new HashMap<String, String>();
+        for (int i = 0; i < 10; i++)
+            digests.put(copyZip("a/" + i + ".zip"), ZIP_DIGEST);
+        long start = System.nanoTime();
+        IntegrityScrub scrub = service.scrub(fs, digests);
+        Assert.assertTrue(scrub.awaitCompletion(10, TimeUnit.SECONDS));
+        Assert.assertTrue(scrub.getFailures().isEmpty());
+        // 10 * 518 bytes at 2000 bytes/s with initial burst of 2000 bytes
+        Assert.assertTrue(System.nanoTime() - start
+                >= TimeUnit.SECONDS.toNanos(1));
+    }
+
+    private String copyZip(String name) throws IOException {
+        Path path = storageDir.getPath().resolve(name);
+        Files.createDirectories(path.getParent());
+        Files.copy(ZIP_PATH, path);
+        return name;
+    }
+
+    private void writeZip(String name, String entryDigest) throws IOException {
+        Path path = storageDir.getPath().resolve(name);
+        Files.createDirectories(path.getParent());
+        try (ZipOutputStream zip = new ZipOutputStream(
+                Files.newOutputStream(path))) {
+            zip.putNextEntry(new ZipEntry("MD5SUM"));
+            zip.write((entryDigest + " entry-1\n").getBytes(StandardCharsets.US_ASCII));
+            zip.putNextEntry(new ZipEntry("entry-1"));
+            zip.write(ENTRY);
+        }
+    }
+}
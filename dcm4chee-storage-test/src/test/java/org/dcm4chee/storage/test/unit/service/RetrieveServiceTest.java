@@ -40,21 +40,38 @@ package org.dcm4chee.storage.test.unit.service;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.enterprise.context.Dependent;
 import javax.enterprise.inject.Produces;
 import javax.inject.Inject;
+import javax.inject.Named;
 
 import org.dcm4che3.net.Device;
+import org.dcm4chee.storage.ChecksumException;
 import org.dcm4chee.storage.ContainerEntry;
+import org.dcm4chee.storage.ExtractTask;
 import org.dcm4chee.storage.RetrieveContext;
+import org.dcm4chee.storage.StorageContext;
 import org.dcm4chee.storage.conf.Container;
 import org.dcm4chee.storage.conf.FileCache;
 import org.dcm4chee.storage.conf.StorageDevice;
@@ -66,6 +83,8 @@ import org.dcm4chee.storage.filesystem.FileSystemStorageSystemProvider;
 import org.dcm4chee.storage.service.RetrieveService;
 import org.dcm4chee.storage.service.VerifyContainerException;
 import org.dcm4chee.storage.service.impl.RetrieveServiceImpl;
+import org.dcm4chee.storage.spi.ContainerProvider;
+import org.dcm4chee.storage.tar.TarContainerProvider;
 import org.dcm4chee.storage.test.unit.util.TransientDirectory;
 import org.dcm4chee.storage.zip.ZipContainerProvider;
 import org.jboss.arquillian.container.test.api.Deployment;
@@ -92,6 +111,12 @@ public class RetrieveServiceTest {
     private static final String ENTRY_NAME = "entry-2";
     private static final String DIGEST = "1043bfc77febe75fafec0c4309faccf1";
     private static final int ENTRY_SIZE = 5;
+    private static final String TAR_NAME = "test.tar";
+    private static final String BAD_DIGEST = "00000000000000000000000000000000";
+    private static final String GENERATED_ENTRY = "entry";
+    private static final int GENERATED_ENTRY_SIZE = 8 * 1024 * 1024;
+    // 32 buffers of 64 KB, see ExtractTaskImpl
+    private static final int EXTRACT_BUFFERS_SIZE = 32 * 64 * 1024;
 
     @Deployment
     public static JavaArchive createDeployment() {
@@ -100,6 +125,8 @@ public class RetrieveServiceTest {
             .addClass(FileSystemStorageSystemProvider.class)
             .addClass(DefaultFileCacheProvider.class)
             .addClass(ZipContainerProvider.class)
+            .addClass(TarContainerProvider.class)
+            .addClass(GeneratedContainerProvider.class)
             .addAsManifestResource(EmptyAsset.INSTANCE, "beans.xml");
     }
 
@@ -115,6 +142,9 @@ public class RetrieveServiceTest {
     @Rule
     public TransientDirectory journalDir = new TransientDirectory("target/journaldir");
 
+    @Rule
+    public TransientDirectory tarDir = new TransientDirectory("target/test-storage/tar");
+
     StorageDeviceExtension ext;
     StorageSystemGroup fsGroup;
     StorageSystem fs;
@@ -142,6 +172,7 @@ public class RetrieveServiceTest {
         fileCache.setProviderName("org.dcm4chee.storage.filecache");
         fileCache.setFileCacheRootDirectory("target/filecache");
         fileCache.setJournalRootDirectory("target/journaldir");
+        GeneratedContainerProvider.reset();
     }
 
     @After
@@ -152,6 +183,7 @@ public class RetrieveServiceTest {
         ext = null;
         fsGroup = null;
         fs = null;
+        GeneratedContainerProvider.gate.countDown();
     }
 
     @Test
@@ -179,6 +211,22 @@ public class RetrieveServiceTest {
         Assert.assertEquals(RetrieveServiceTest.FILE_SIZE, Files.size(file));
     }
 
+    @Test
+    public void testGetFileAsync() throws Exception {
+        RetrieveContext ctx = service.createRetrieveContext(fs);
+        Path file = service.getFileAsync(ctx, NAME, null, null).get();
+        Assert.assertEquals(RetrieveServiceTest.FILE_SIZE, Files.size(file));
+    }
+
+    @Test
+    public void testOpenInputStreamAsync() throws Exception {
+        RetrieveContext ctx = service.createRetrieveContext(fs);
+        try ( InputStream in = service.openInputStreamAsync(ctx, NAME, null, null).get() ) {
+            Assert.assertEquals(RetrieveServiceTest.FILE_SIZE,
+                    readFully(in, RetrieveServiceTest.FILE_SIZE));
+        }
+    }
+
     @Test
     public void testOpenInputStreamWithFileCache() throws Exception {
         fsGroup.setFileCache(fileCache);
@@ -197,6 +245,27 @@ public class RetrieveServiceTest {
         Assert.assertEquals(RetrieveServiceTest.FILE_SIZE, Files.size(file));
     }
 
+    @Test
+    public void testOpenChannelWithFileCache() throws Exception {
+        fsGroup.setFileCache(fileCache);
+        RetrieveContext ctx = service.createRetrieveContext(fs);
+        try ( SeekableByteChannel channel = service.openChannel(ctx, NAME) ) {
+            Assert.assertEquals(RetrieveServiceTest.FILE_SIZE, channel.size());
+        }
+        Assert.assertFalse(Files.exists(Paths.get("target/filecache",
+                fs.getStorageSystemID(), NAME)));
+    }
+
+    @Test
+    public void testOpenChannelFromFileCache() throws Exception {
+        fsGroup.setFileCache(fileCache);
+        RetrieveContext ctx = service.createRetrieveContext(fs);
+        Path file = service.getFile(ctx, NAME);
+        try ( SeekableByteChannel channel = service.openChannel(ctx, NAME) ) {
+            Assert.assertEquals(Files.size(file), channel.size());
+        }
+    }
+
     @Test
     public void testGetEntryInputStream() throws Exception {
         fsGroup.setContainer(container);
@@ -216,6 +285,18 @@ public class RetrieveServiceTest {
         Assert.assertEquals(RetrieveServiceTest.ENTRY_SIZE, Files.size(file));
     }
 
+    @Test
+    public void testGetEntryFilesInReverseOrder() throws Exception {
+        fsGroup.setContainer(container);
+        fsGroup.setFileCache(fileCache);
+        RetrieveContext ctx = service.createRetrieveContext(fs);
+        String[] entryNames = { "entry-3", "entry-2", "entry-1" };
+        for (String entryName : entryNames) {
+            Path file = service.getFile(ctx, NAME, entryName);
+            Assert.assertEquals(RetrieveServiceTest.ENTRY_SIZE, Files.size(file));
+        }
+    }
+
     @Test
     public void testVerifyContainer() throws Exception {
         fsGroup.setContainer(container);
@@ -262,4 +343,282 @@ public class RetrieveServiceTest {
         ContainerEntry entry = new ContainerEntry.Builder(NAME, DIGEST).build();
         service.resolveContainerEntries(Arrays.asList(entry));
     }
+
+    @Test
+    public void testGetEntryFileBySeek() throws Exception {
+        // entry-1 fails verification, so only seeking can provide entry-3
+        StorageSystem tar = createTarStorageSystem(BAD_DIGEST, DIGEST, DIGEST);
+        device.setExecutor(new Executor() {
+            // hold back the extraction until the seeker was started
+            private Runnable held;
+            private int count;
+
+            @Override
+            public synchronized void execute(Runnable command) {
+                if (++count == 1) {
+                    held = command;
+                    return;
+                }
+                executor.execute(command);
+                if (count == 2)
+                    executor.execute(held);
+            }
+        });
+        RetrieveContext ctx = service.createRetrieveContext(tar);
+        Path file = service.getFile(ctx, TAR_NAME, "entry-3");
+        Assert.assertEquals(RetrieveServiceTest.ENTRY_SIZE, Files.size(file));
+        try {
+            service.getFile(ctx, TAR_NAME, "entry-1");
+            Assert.fail("ChecksumException expected");
+        } catch (ChecksumException e) {
+        }
+    }
+
+    @Test
+    public void testGetEntryFileWithChecksumError() throws Exception {
+        StorageSystem tar = createTarStorageSystem(DIGEST, DIGEST, BAD_DIGEST);
+        RetrieveContext ctx = service.createRetrieveContext(tar);
+        try {
+            service.getFile(ctx, TAR_NAME, "entry-3");
+            Assert.fail("ChecksumException expected");
+        } catch (ChecksumException e) {
+        }
+        Path dir = Paths.get("target/filecache/tar", TAR_NAME);
+        Assert.assertFalse(Files.exists(dir.resolve("entry-3")));
+        Assert.assertFalse(Files.exists(dir.resolve("entry-3.seek")));
+    }
+
+    @Test
+    public void testExtractBlocksOnWriter() throws Exception {
+        StorageSystem gen = createGeneratedStorageSystem("gen.bin");
+        // hold back the writer, started after the extraction
+        HoldingExecutor holdingExecutor = new HoldingExecutor(2);
+        device.setExecutor(holdingExecutor);
+        Future<Path> future = getEntryFileAsync(gen, "gen.bin");
+        Thread.sleep(500);
+        Assert.assertFalse(future.isDone());
+        Assert.assertEquals(EXTRACT_BUFFERS_SIZE,
+                GeneratedContainerProvider.bytesRead.get());
+        holdingExecutor.release();
+        Path file = future.get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(GENERATED_ENTRY_SIZE, Files.size(file));
+        Assert.assertEquals(GENERATED_ENTRY_SIZE,
+                GeneratedContainerProvider.bytesRead.get());
+    }
+
+    @Test
+    public void testWriterFailureStopsExtraction() throws Exception {
+        StorageSystem gen = createGeneratedStorageSystem("gen.bin");
+        // let the writer fail to create the temporary file of the entry
+        Files.createDirectories(Paths.get("target/filecache",
+                gen.getStorageSystemID(), "gen.bin", GENERATED_ENTRY + ".part"));
+        Future<Path> future = getEntryFileAsync(gen, "gen.bin");
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            Assert.fail("FileAlreadyExistsException expected");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof FileAlreadyExistsException);
+        }
+        Assert.assertTrue(GeneratedContainerProvider.bytesRead.get()
+                < GENERATED_ENTRY_SIZE);
+    }
+
+    @Test
+    public void testMaxConcurrentExtractions() throws Exception {
+        StorageSystem gen = createGeneratedStorageSystem(
+                "gen-1.bin", "gen-2.bin", "gen-3.bin", "gen-4.bin");
+        gen.setMaxConcurrentExtractions(2);
+        List<Future<Path>> futures = new ArrayList<Future<Path>>();
+        for (int i = 1; i <= 4; i++)
+            futures.add(getEntryFileAsync(gen, "gen-" + i + ".bin"));
+        Thread.sleep(500);
+        Assert.assertEquals(2, GeneratedContainerProvider.running.get());
+        GeneratedContainerProvider.gate.countDown();
+        for (Future<Path> future : futures)
+            Assert.assertEquals(GENERATED_ENTRY_SIZE,
+                    Files.size(future.get(10, TimeUnit.SECONDS)));
+        Assert.assertEquals(2, GeneratedContainerProvider.maxRunning.get());
+    }
+
+    private class HoldingExecutor implements Executor {
+        private final int hold;
+        private int count;
+        private Runnable held;
+
+        HoldingExecutor(int hold) {
+            this.hold = hold;
+        }
+
+        @Override
+        public synchronized void execute(Runnable command) {
+            if (++count == hold)
+                held = command;
+            else
+                executor.execute(command);
+        }
+
+        synchronized void release() {
+            Assert.assertNotNull(held);
+            executor.execute(held);
+        }
+    }
+
+    private Future<Path> getEntryFileAsync(StorageSystem storageSystem,
+            final String name) {
+        final RetrieveContext ctx = service.createRetrieveContext(storageSystem);
+        return executor.submit(new Callable<Path>() {
+            @Override
+            public Path call() throws Exception {
+                return service.getFile(ctx, name, GENERATED_ENTRY);
+            }
+        });
+    }
+
+    private StorageSystem createGeneratedStorageSystem(String... names)
+            throws IOException {
+        StorageSystemGroup genGroup = new StorageSystemGroup();
+        genGroup.setGroupID("gen");
+        ext.addStorageSystemGroup(genGroup);
+        StorageSystem gen = new StorageSystem();
+        gen.setProviderName("org.dcm4chee.storage.filesystem");
+        gen.setStorageSystemID("gen");
+        gen.setStorageSystemPath(tarDir.getPath().toString());
+        genGroup.addStorageSystem(gen);
+        Container genContainer = new Container();
+        genContainer.setProviderName("org.dcm4chee.storage.test.generated");
+        genGroup.setContainer(genContainer);
+        genGroup.setFileCache(fileCache);
+        for (String name : names)
+            Files.createFile(tarDir.getPath().resolve(name));
+        return gen;
+    }
+
+    /**
+     * Extracts one entry of {@link #GENERATED_ENTRY_SIZE} bytes from any
+     * container, after {@link #gate} was opened, if
+     * {@link StorageSystem#getMaxConcurrentExtractions()} is set.
+     */
+    @Named("org.dcm4chee.storage.test.generated")
+    @Dependent
+    public static class GeneratedContainerProvider implements ContainerProvider {
+
+        static final AtomicLong bytesRead = new AtomicLong();
+        static final AtomicInteger running = new AtomicInteger();
+        static final AtomicInteger maxRunning = new AtomicInteger();
+        static volatile CountDownLatch gate;
+
+        static void reset() {
+            bytesRead.set(0);
+            running.set(0);
+            maxRunning.set(0);
+            gate = new CountDownLatch(1);
+        }
+
+        @Override
+        public void init(Container container) {
+        }
+
+        @Override
+        public void writeEntriesTo(StorageContext context,
+                List<ContainerEntry> entries, OutputStream out) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public InputStream seekEntry(RetrieveContext ctx, String name,
+                String entryName, InputStream in) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public InputStream seekEntry(RetrieveContext ctx, String name,
+                String entryName, SeekableByteChannel channel) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean hasEntryIndex() {
+            return false;
+        }
+
+        @Override
+        public void extractEntries(RetrieveContext ctx, String name,
+                ExtractTask extractTask, InputStream in) throws IOException {
+            int n = running.incrementAndGet();
+            try {
+                int max;
+                while (n > (max = maxRunning.get())
+                        && !maxRunning.compareAndSet(max, n))
+                    ;
+                if (ctx.getStorageSystem().getMaxConcurrentExtractions() > 0)
+                    gate.await();
+                extractTask.copyStream(GENERATED_ENTRY,
+                        new GeneratedInputStream(GENERATED_ENTRY_SIZE));
+                extractTask.entryExtracted(GENERATED_ENTRY);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+    }
+
+    private static class GeneratedInputStream extends InputStream {
+
+        private long remaining;
+
+        GeneratedInputStream(long size) {
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (remaining <= 0)
+                return -1;
+
+            int n = (int) Math.min(len, remaining);
+            remaining -= n;
+            GeneratedContainerProvider.bytesRead.addAndGet(n);
+            return n;
+        }
+    }
+
+    private StorageSystem createTarStorageSystem(String... digests)
+            throws IOException {
+        StorageSystemGroup tarGroup = new StorageSystemGroup();
+        tarGroup.setGroupID("tar");
+        tarGroup.setDigestAlgorithm("MD5");
+        ext.addStorageSystemGroup(tarGroup);
+        StorageSystem tar = new StorageSystem();
+        tar.setProviderName("org.dcm4chee.storage.filesystem");
+        tar.setStorageSystemID("tar");
+        tar.setStorageSystemPath(tarDir.getPath().toString());
+        tarGroup.addStorageSystem(tar);
+        Container tarContainer = new Container();
+        tarContainer.setProviderName("org.dcm4chee.storage.tar");
+        tarContainer.setChecksumEntry("MD5SUM");
+        tarContainer.setIndexEntry("INDEX");
+        tarGroup.setContainer(tarContainer);
+        tarGroup.setFileCache(fileCache);
+
+        Path entryPath = tarDir.getPath().resolve("entry");
+        Files.write(entryPath, new byte[] { 'e', 'n', 't', 'r', 'y' });
+        List<ContainerEntry> entries = new ArrayList<ContainerEntry>();
+        for (int i = 0; i < digests.length; i++)
+            entries.add(new ContainerEntry.Builder("entry-" + (i + 1),
+                    digests[i]).setSourcePath(entryPath).build());
+        TarContainerProvider provider = new TarContainerProvider();
+        provider.init(tarContainer);
+        try (OutputStream out = Files.newOutputStream(
+                tarDir.getPath().resolve(TAR_NAME))) {
+            provider.writeEntriesTo(new StorageContext(), entries, out);
+        }
+        return tar;
+    }
 }
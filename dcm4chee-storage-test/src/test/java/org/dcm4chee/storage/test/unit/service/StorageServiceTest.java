@@ -40,24 +40,41 @@ package org.dcm4chee.storage.test.unit.service;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.channels.CompletionHandler;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+import javax.enterprise.context.Dependent;
 import javax.enterprise.inject.Produces;
 import javax.inject.Inject;
+import javax.inject.Named;
 
 import org.dcm4che3.conf.api.DicomConfiguration;
 import org.dcm4che3.net.Device;
 import org.dcm4chee.storage.ContainerEntry;
+import org.dcm4chee.storage.ObjectAlreadyExistsException;
 import org.dcm4chee.storage.StorageContext;
 import org.dcm4chee.storage.conf.Container;
 import org.dcm4chee.storage.conf.FileCache;
+import org.dcm4chee.storage.conf.PlacementPolicy;
 import org.dcm4chee.storage.conf.StorageDevice;
 import org.dcm4chee.storage.conf.StorageDeviceExtension;
 import org.dcm4chee.storage.conf.StorageSystem;
@@ -96,12 +113,14 @@ public class StorageServiceTest {
     private static final String[] ENTRY_NAMES = { "entry-1", "entry-2", "entry-3" };
     private static final byte[] ENTRY = { 'e', 'n', 't', 'r', 'y' };
     private static final String DIGEST = "1043bfc77febe75fafec0c4309faccf1";
+    private static final int SLOW_OPEN_DELAY = 50;
 
     @Deployment
     public static JavaArchive createDeployment() {
         return ShrinkWrap.create(JavaArchive.class)
             .addClass(StorageServiceImpl.class)
             .addClass(FileSystemStorageSystemProvider.class)
+            .addClass(SlowFileSystemStorageSystemProvider.class)
             .addClass(DefaultFileCacheProvider.class)
             .addClass(ZipContainerProvider.class)
             .addAsManifestResource(EmptyAsset.INSTANCE, "beans.xml");
@@ -113,6 +132,8 @@ public class StorageServiceTest {
     @Produces @StorageDevice
     static Device device = new Device("test");
 
+    static MockDicomConfiguration dicomConfiguration = new MockDicomConfiguration(device);
+
 //    @Produces
 //    private static DicomConfiguration dicomConfiguration = new MockDicomConfiguration();
 
@@ -156,6 +177,7 @@ public class StorageServiceTest {
         fileCache.setFileCacheRootDirectory("target/filecache");
         fileCache.setJournalRootDirectory("target/journaldir");
         fsGroup.setFileCache(fileCache);
+        dicomConfiguration.reset();
     }
 
     @After
@@ -170,8 +192,8 @@ public class StorageServiceTest {
     }
     
     @Produces
-    DicomConfiguration createDicomConfiguration(@StorageDevice Device device) {
-        return new MockDicomConfiguration(device);
+    DicomConfiguration createDicomConfiguration() {
+        return dicomConfiguration;
     }
 
     private StorageSystem createStorageSystem(String id, String next)
@@ -227,6 +249,200 @@ public class StorageServiceTest {
                 fsGroup.getActiveStorageSystemIDs());
     }
 
+    @Test
+    public void testSelectStorageSystemWithUsableSpaceRefreshInterval()
+            throws Exception {
+        fs1.setUsableSpaceRefreshInterval(60);
+        fs2.setUsableSpaceRefreshInterval(60);
+        fs3.setUsableSpaceRefreshInterval(60);
+        Assert.assertSame(fs1, service.selectStorageSystem("fs", 0, false));
+        Assert.assertSame(fs2, service.selectStorageSystem("fs", 0, false));
+        Assert.assertSame(fs1, service.selectStorageSystem("fs", 0, false));
+        Assert.assertNull(service.selectStorageSystem("fs", Long.MAX_VALUE / 2, false));
+        Assert.assertArrayEquals(
+                new String[]{},
+                fsGroup.getActiveStorageSystemIDs());
+    }
+
+    @Test
+    public void testSelectStorageSystemWithLeastInFlight() throws Exception {
+        fsGroup.setPlacementPolicy(PlacementPolicy.LEAST_IN_FLIGHT);
+        Assert.assertSame(fs1, service.selectStorageSystem("fs", 0, false));
+        Assert.assertSame(fs2, service.selectStorageSystem("fs", 0, false));
+        StorageContext ctx = service.createStorageContext(fs1);
+        try ( OutputStream out = service.openOutputStream(ctx, NAME) ) {
+            Assert.assertSame(fs2, service.selectStorageSystem("fs", 0, false));
+            Assert.assertSame(fs2, service.selectStorageSystem("fs", 0, false));
+        }
+        Assert.assertSame(fs1, service.selectStorageSystem("fs", 0, false));
+    }
+
+    @Test
+    public void testSelectStorageSystemWithLatencyWeighted() throws Exception {
+        fsGroup.setPlacementPolicy(PlacementPolicy.LATENCY_WEIGHTED);
+        fs2.setProviderName("org.dcm4chee.storage.test.slow");
+        // the client takes its time to supply the data, which does not add
+        // to the latency of fs1
+        StorageContext ctx1 = service.createStorageContext(fs1);
+        try ( OutputStream out = service.openOutputStream(ctx1, NAME) ) {
+            Thread.sleep(4 * SLOW_OPEN_DELAY);
+            out.write(ENTRY);
+        }
+        StorageContext ctx2 = service.createStorageContext(fs2);
+        for (int i = 0; i < 8; i++) {
+            try ( OutputStream out = service.openOutputStream(ctx2, NAME + i) ) {
+                out.write(ENTRY);
+            }
+        }
+        int selectedFs1 = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (service.selectStorageSystem("fs", 0, false) == fs1)
+                selectedFs1++;
+        }
+        Assert.assertTrue("fs1 selected " + selectedFs1 + " times", selectedFs1 > 800);
+    }
+
+    /**
+     * Takes {@value StorageServiceTest#SLOW_OPEN_DELAY} ms to open an output stream.
+     */
+    @Named("org.dcm4chee.storage.test.slow")
+    @Dependent
+    public static class SlowFileSystemStorageSystemProvider
+            extends FileSystemStorageSystemProvider {
+
+        @Override
+        public OutputStream openOutputStream(StorageContext context, String name)
+                throws IOException {
+            try {
+                Thread.sleep(SLOW_OPEN_DELAY);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            return super.openOutputStream(context, name);
+        }
+    }
+
+    @Test
+    public void testConcurrentSelectStorageSystem() throws Exception {
+        fsGroup.setParallelism(3);
+        service.selectStorageSystem("fs", 0, false);
+        service.selectStorageSystem("fs", 0, false);
+        Map<String,AtomicInteger> counts = selectStorageSystemConcurrently(4, 300);
+        Assert.assertEquals(3, counts.size());
+        for (AtomicInteger count : counts.values())
+            Assert.assertEquals(400, count.get());
+
+        // replaces the snapshot of the active storage systems
+        createMountCheckFile(fs2);
+        counts = selectStorageSystemConcurrently(4, 300);
+        Assert.assertNull(counts.get("fs2"));
+        Assert.assertEquals(2, counts.size());
+        Assert.assertTrue(Math.abs(counts.get("fs1").get() - counts.get("fs3").get()) <= 8);
+        List<String> activeIDs = new ArrayList<String>(
+                Arrays.asList(fsGroup.getActiveStorageSystemIDs()));
+        Collections.sort(activeIDs);
+        Assert.assertEquals(Arrays.asList("fs1", "fs3"), activeIDs);
+    }
+
+    private Map<String,AtomicInteger> selectStorageSystemConcurrently(int threads,
+            final int selections) throws Exception {
+        final ConcurrentHashMap<String,AtomicInteger> counts =
+                new ConcurrentHashMap<String,AtomicInteger>();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(threads);
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    for (int j = 0; j < selections; j++) {
+                        StorageSystem system = service.selectStorageSystem("fs", 0, false);
+                        Assert.assertNotNull(system);
+                        AtomicInteger newCount = new AtomicInteger();
+                        AtomicInteger count = counts.putIfAbsent(
+                                system.getStorageSystemID(), newCount);
+                        (count != null ? count : newCount).incrementAndGet();
+                    }
+                    return null;
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<Void> future : futures)
+            future.get(30, TimeUnit.SECONDS);
+        return counts;
+    }
+
+    @Test
+    public void testFailedMergeIsRequeued() throws Exception {
+        fsGroup.setParallelism(1);
+        Assert.assertSame(fs1, service.selectStorageSystem("fs", 0, false));
+        Assert.assertEquals(1, dicomConfiguration.getMerges());
+
+        dicomConfiguration.failMerges(1);
+        createMountCheckFile(fs1);
+        Assert.assertSame(fs2, service.selectStorageSystem("fs", 0, false));
+        Assert.assertEquals(2, dicomConfiguration.getMergeAttempts());
+        Assert.assertEquals(1, dicomConfiguration.getMerges());
+        Assert.assertEquals(StorageSystemStatus.OK, fs1.getStorageSystemStatus());
+        deleteMountCheckFile(fs1);
+
+        // the next configuration change also merges the requeued status of fs1
+        createMountCheckFile(fs2);
+        fsGroup.setParallelism(2);
+        Assert.assertSame(fs1, service.selectStorageSystem("fs", 0, false));
+        Assert.assertEquals(2, dicomConfiguration.getMerges());
+        Assert.assertEquals(StorageSystemStatus.NOT_ACCESSABLE, fs1.getStorageSystemStatus());
+        Assert.assertEquals(StorageSystemStatus.NOT_ACCESSABLE, fs2.getStorageSystemStatus());
+        Assert.assertEquals(
+                Arrays.asList("fs1=NOT_ACCESSABLE", "fs2=NOT_ACCESSABLE"),
+                sortedMergedStatusChanges());
+    }
+
+    @Test
+    public void testChangesDuringFailedMerge() throws Exception {
+        fsGroup.setParallelism(1);
+        Assert.assertSame(fs1, service.selectStorageSystem("fs", 0, false));
+        Assert.assertEquals(1, dicomConfiguration.getMerges());
+
+        CountDownLatch mergeLatch = new CountDownLatch(1);
+        dicomConfiguration.setMergeLatch(mergeLatch);
+        dicomConfiguration.failMerges(1);
+        createMountCheckFile(fs1);
+        Assert.assertSame(fs2, service.selectStorageSystem("fs", 0));
+        waitForMergeAttempts(2);
+
+        // detected while the failing merge is still running
+        createMountCheckFile(fs3);
+        fsGroup.setParallelism(2);
+        Assert.assertSame(fs2, service.selectStorageSystem("fs", 0));
+
+        mergeLatch.countDown();
+        waitForMerges(2);
+        Assert.assertEquals(3, dicomConfiguration.getMergeAttempts());
+        Assert.assertEquals(
+                Arrays.asList("fs1=NOT_ACCESSABLE", "fs3=NOT_ACCESSABLE"),
+                sortedMergedStatusChanges());
+    }
+
+    private static void waitForMergeAttempts(int count) throws InterruptedException {
+        for (int i = 0; i < 100 && dicomConfiguration.getMergeAttempts() < count; i++)
+            Thread.sleep(50);
+        Assert.assertEquals(count, dicomConfiguration.getMergeAttempts());
+    }
+
+    private static void waitForMerges(int count) throws InterruptedException {
+        for (int i = 0; i < 100 && dicomConfiguration.getMerges() < count; i++)
+            Thread.sleep(50);
+        Assert.assertEquals(count, dicomConfiguration.getMerges());
+    }
+
+    private static List<String> sortedMergedStatusChanges() {
+        List<String> changes = dicomConfiguration.getMergedStatusChanges();
+        Collections.sort(changes);
+        return changes;
+    }
+
     @Test
     public void testOpenOutputStream() throws Exception {
         StorageContext ctx = service.createStorageContext(fs1);
@@ -261,6 +477,32 @@ public class StorageServiceTest {
         Assert.assertEquals(ENTRY.length, Files.size(CACHE_PATH));
     }
 
+    @Test
+    public void testOpenOutputStreamWithDigest() throws Exception {
+        fsGroup.setDigestAlgorithm("MD5");
+        StorageContext ctx = service.createStorageContext(fs1);
+        try ( OutputStream out = service.openOutputStream(ctx, NAME) ) {
+            out.write(ENTRY);
+        }
+        Assert.assertEquals(DIGEST, ctx.getFileDigest());
+    }
+
+    @Test
+    public void testCopyInputStreamWithDigest() throws Exception {
+        fsGroup.setDigestAlgorithm("MD5");
+        StorageContext ctx = service.createStorageContext(fs1);
+        try (ByteArrayInputStream in = new ByteArrayInputStream(ENTRY)) {
+            service.copyInputStream(ctx, in, NAME);
+        }
+        Assert.assertEquals(DIGEST, ctx.getFileDigest());
+    }
+
+    @Test
+    public void testCopyInputStreamWithDigestAndFileCache() throws Exception {
+        fs1.setCacheOnStore(true);
+        testCopyInputStreamWithDigest();
+    }
+
     @Test
     public void testStoreFile() throws Exception {
         StorageContext ctx = service.createStorageContext(fs1);
@@ -278,6 +520,95 @@ public class StorageServiceTest {
         Assert.assertEquals(ENTRY.length, Files.size(CACHE_PATH));
     }
 
+    @Test
+    public void testStoreFileTwiceWithFileCacheAndHardLink() throws Exception {
+        fs1.setCacheOnStore(true);
+        fs1.setHardLinkOnStore(true);
+        testStoreFile();
+        Files.write(SRC_PATH, new byte[] { 'o', 't', 'h', 'e', 'r', 's' });
+        try {
+            service.storeFile(service.createStorageContext(fs1), SRC_PATH, NAME);
+            Assert.fail("ObjectAlreadyExistsException expected");
+        } catch (ObjectAlreadyExistsException e) {
+        }
+        Assert.assertArrayEquals(ENTRY,
+                Files.readAllBytes(Paths.get(fs1.getStorageSystemPath(), NAME)));
+        Assert.assertArrayEquals(ENTRY, Files.readAllBytes(CACHE_PATH));
+    }
+
+    @Test
+    public void testStoreFileAsync() throws Exception {
+        StorageContext ctx = service.createStorageContext(fs1);
+        makeSourceFile();
+        service.storeFileAsync(ctx, SRC_PATH, NAME, null, null).get();
+        Assert.assertEquals(ENTRY.length,
+                Files.size(Paths.get(fs1.getStorageSystemPath(), NAME)));
+        Assert.assertEquals(ENTRY.length, ctx.getFileSize());
+    }
+
+    @Test
+    public void testStoreFileNativeAsync() throws Exception {
+        fs1.setNativeAsync(true);
+        StorageContext ctx = service.createStorageContext(fs1);
+        makeSourceFile();
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        service.storeFileAsync(ctx, SRC_PATH, NAME, ctx,
+                new CompletionHandler<Void, StorageContext>() {
+
+                    @Override
+                    public void completed(Void result, StorageContext attachment) {
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void failed(Throwable exc, StorageContext attachment) {
+                        failure.set(exc);
+                        done.countDown();
+                    }
+                });
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertNull(failure.get());
+        Assert.assertEquals(ENTRY.length,
+                Files.size(Paths.get(fs1.getStorageSystemPath(), NAME)));
+        Assert.assertEquals(ENTRY.length, ctx.getFileSize());
+    }
+
+    @Test
+    public void testStoreFileNativeAsyncWithMaxAsyncTransfers() throws Exception {
+        fs1.setNativeAsync(true);
+        fs1.setMaxAsyncTransfers(1);
+        final List<Runnable> workers = Collections.synchronizedList(new ArrayList<Runnable>());
+        device.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                workers.add(command);
+            }
+        });
+        makeSourceFile();
+        Future<Void> first = service.storeFileAsync(
+                service.createStorageContext(fs1), SRC_PATH, "a/b/1", null, null);
+        Future<Void> second = service.storeFileAsync(
+                service.createStorageContext(fs1), SRC_PATH, "a/b/2", null, null);
+        // the second transfer waits for the permit of the first one
+        Assert.assertEquals(1, workers.size());
+        device.setExecutor(executor);
+        workers.get(0).run();
+        first.get(10, TimeUnit.SECONDS);
+        second.get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(ENTRY.length,
+                Files.size(Paths.get(fs1.getStorageSystemPath(), "a/b/2")));
+    }
+
+    @Test
+    public void testCopyInputStreamAsync() throws Exception {
+        StorageContext ctx = service.createStorageContext(fs1);
+        service.copyInputStreamAsync(ctx, new ByteArrayInputStream(ENTRY),
+                NAME, null, null).get();
+        Assert.assertEquals(ENTRY.length,
+                Files.size(Paths.get(fs1.getStorageSystemPath(), NAME)));
+    }
+
     @Test
     public void testMoveFile() throws Exception {
         StorageContext ctx = service.createStorageContext(fs1);
@@ -38,6 +38,7 @@
 
 package org.dcm4chee.storage.test.unit.sftp;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -51,12 +52,14 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.Properties;
+import java.util.Random;
 
 import javax.enterprise.inject.Produces;
 import javax.inject.Inject;
 import javax.inject.Named;
 
 import org.dcm4che3.net.Device;
+import org.dcm4che3.util.StreamUtils;
 import org.dcm4chee.storage.ObjectAlreadyExistsException;
 import org.dcm4chee.storage.ObjectNotFoundException;
 import org.dcm4chee.storage.RetrieveContext;
@@ -66,6 +69,7 @@ import org.dcm4chee.storage.conf.StorageDeviceExtension;
 import org.dcm4chee.storage.conf.StorageSystem;
 import org.dcm4chee.storage.conf.StorageSystemGroup;
 import org.dcm4chee.storage.encrypt.StorageSystemProviderEncryptDecorator;
+import org.dcm4chee.storage.sftp.SftpChannelPool;
 import org.dcm4chee.storage.sftp.SftpStorageSystemProvider;
 import org.dcm4chee.storage.spi.StorageSystemProvider;
 import org.jboss.arquillian.container.test.api.Deployment;
@@ -324,6 +328,35 @@ public class SftpSystemStorageSystemProviderTest {
         provider.openInputStream(retrieveCtx, ID1).close();
     }
 
+    @Test
+    public void testTransferWithRequestWindow() throws IOException {
+        sftp.setRequestWindow(64);
+        sftp.setBufferedOutputLength(64 * 1024);
+        provider.init(sftp);
+        SftpChannelPool pool = ((SftpStorageSystemProvider) provider)
+                .getChannelPool();
+        ChannelSftp pooled = pool.borrow();
+        try {
+            // JSch keeps 16 read requests in flight by default
+            Assert.assertEquals(64, pooled.getBulkRequests());
+        } finally {
+            pool.release(pooled);
+        }
+        byte[] data = new byte[1024 * 1024];
+        new Random().nextBytes(data);
+        try (OutputStream out = provider.openOutputStream(storageCtx, ID2)) {
+            for (int off = 0; off < data.length; off += 1000)
+                out.write(data, off, Math.min(1000, data.length - off));
+        }
+        Assert.assertEquals(data.length, storageCtx.getFileSize());
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(data.length);
+        try (InputStream in = provider.openInputStream(retrieveCtx, ID2)) {
+            StreamUtils.copy(in, bout);
+        }
+        Assert.assertArrayEquals(data, bout.toByteArray());
+        Assert.assertEquals(1, pool.getChannelsCreated());
+    }
+
     @Test(expected = ObjectNotFoundException.class)
     public void testOpenInputStreamWithException() throws IOException {
         provider.openInputStream(retrieveCtx, ID2).close();
@@ -648,6 +648,44 @@ public class TarContainerProviderTest {
         assertArrayEquals(ENTRY, readFile(targetFilePath));
     }
 
+    @Test
+    public void testSeekEntryFromChannel() throws Exception {
+        Path tarPath = createFile(TAR, NAME);
+        Path targetFilePath = dir.getPath().resolve(ENTRY_NAME);
+        try (InputStream in = provider.seekEntry(retrieveCtx, NAME, ENTRY_NAME,
+                Files.newByteChannel(tarPath))) {
+            Files.copy(in, targetFilePath);
+        }
+        assertArrayEquals(ENTRY, readFile(targetFilePath));
+    }
+
+    @Test
+    public void testSeekEntryWithIndex() throws Exception {
+        container.setIndexEntry("INDEX");
+        Path srcEntryPath = createFile(ENTRY, ENTRY_FILE);
+        Path tarPath = dir.getPath().resolve(NAME);
+        try (OutputStream out = Files.newOutputStream(tarPath)) {
+            provider.writeEntriesTo(storageCtx, makeEntries(srcEntryPath), out);
+        }
+        List<String> tarEntryNames = new ArrayList<String>();
+        try (TarArchiveInputStream tar = new TarArchiveInputStream(
+                Files.newInputStream(tarPath))) {
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextTarEntry()) != null)
+                tarEntryNames.add(entry.getName());
+        }
+        assertEquals(Arrays.asList("MD5SUM", "INDEX", ENTRY_NAMES[0],
+                ENTRY_NAMES[1], ENTRY_NAMES[2]), tarEntryNames);
+        for (String entryName : ENTRY_NAMES) {
+            Path targetFilePath = dir.getPath().resolve(entryName);
+            try (InputStream in = provider.seekEntry(retrieveCtx, NAME,
+                    entryName, Files.newByteChannel(tarPath))) {
+                Files.copy(in, targetFilePath);
+            }
+            assertArrayEquals(ENTRY, readFile(targetFilePath));
+        }
+    }
+
     @Test
     public void testExtractEntries() throws Exception {
         final ArrayList<String> entryNames = new ArrayList<String>();
@@ -37,13 +37,40 @@
  * ***** END LICENSE BLOCK ***** */
 package org.dcm4chee.storage.test.unit.util;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.dcm4che3.conf.api.DicomConfiguration;
 import org.dcm4che3.conf.core.api.ConfigurationException;
 import org.dcm4che3.net.ApplicationEntity;
 import org.dcm4che3.net.Device;
+import org.dcm4chee.storage.conf.StorageDeviceExtension;
+import org.dcm4chee.storage.conf.StorageSystem;
+import org.dcm4chee.storage.conf.StorageSystemGroup;
+import org.dcm4chee.storage.conf.StorageSystemStatus;
 
+/**
+ * Returns the device itself as stored configuration. Changes of the storage
+ * configuration of the device by a failed merge are rolled back, the status
+ * changes of storage systems by successful merges are recorded.
+ */
 public class MockDicomConfiguration implements DicomConfiguration {
     private final Device device;
+    private final AtomicInteger mergeAttempts = new AtomicInteger();
+    private final AtomicInteger merges = new AtomicInteger();
+    private final List<String> mergedStatusChanges = new ArrayList<String>();
+    private final Map<StorageSystemGroup,String[]> storedActiveIDs =
+            new HashMap<StorageSystemGroup,String[]>();
+    private final Map<StorageSystemGroup,String> storedNextIDs =
+            new HashMap<StorageSystemGroup,String>();
+    private final Map<StorageSystem,StorageSystemStatus> storedStatus =
+            new HashMap<StorageSystem,StorageSystemStatus>();
+    private int mergeFailures;
+    private volatile CountDownLatch mergeLatch;
   
     public MockDicomConfiguration() {
         this(null);
@@ -71,6 +98,8 @@ public class MockDicomConfiguration implements DicomConfiguration {
 
     @Override
     public Device findDevice(String name) throws ConfigurationException {
+        if (device != null)
+            storeStorageConfiguration();
         return device;
     }
 
@@ -80,6 +109,99 @@ public class MockDicomConfiguration implements DicomConfiguration {
 
     @Override
     public void merge(Device device) throws ConfigurationException {
+        mergeAttempts.incrementAndGet();
+        CountDownLatch latch = mergeLatch;
+        if (latch != null) {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (mergeFailures > 0) {
+                mergeFailures--;
+                restoreStorageConfiguration();
+                throw new ConfigurationException(
+                        "Merge of " + device.getDeviceName() + " failed");
+            }
+            for (Map.Entry<StorageSystem,StorageSystemStatus> entry
+                    : storedStatus.entrySet()) {
+                StorageSystem system = entry.getKey();
+                if (system.getStorageSystemStatus() != entry.getValue())
+                    mergedStatusChanges.add(system.getStorageSystemID()
+                            + '=' + system.getStorageSystemStatus());
+            }
+        }
+        merges.incrementAndGet();
+    }
+
+    /**
+     * Lets the next merges fail.
+     */
+    public synchronized void failMerges(int count) {
+        this.mergeFailures = count;
+    }
+
+    /**
+     * Lets merges wait until the latch is released.
+     */
+    public void setMergeLatch(CountDownLatch mergeLatch) {
+        this.mergeLatch = mergeLatch;
+    }
+
+    public int getMergeAttempts() {
+        return mergeAttempts.get();
+    }
+
+    public int getMerges() {
+        return merges.get();
+    }
+
+    /**
+     * Returns the status changes of storage systems by successful merges, as
+     * {@code <storageSystemID>=<status>}, in the order of the merges.
+     */
+    public synchronized List<String> getMergedStatusChanges() {
+        return new ArrayList<String>(mergedStatusChanges);
+    }
+
+    public synchronized void reset() {
+        mergeAttempts.set(0);
+        merges.set(0);
+        mergeFailures = 0;
+        mergeLatch = null;
+        mergedStatusChanges.clear();
+    }
+
+    private synchronized void storeStorageConfiguration() {
+        storedActiveIDs.clear();
+        storedNextIDs.clear();
+        storedStatus.clear();
+        StorageDeviceExtension ext =
+                device.getDeviceExtension(StorageDeviceExtension.class);
+        if (ext == null || ext.getStorageSystemGroups() == null)
+            return;
+
+        for (StorageSystemGroup group : ext.getStorageSystemGroups().values()) {
+            storedActiveIDs.put(group, group.getActiveStorageSystemIDs());
+            storedNextIDs.put(group, group.getNextStorageSystemID());
+            if (group.getStorageSystems() != null)
+                for (StorageSystem system : group.getStorageSystems().values())
+                    storedStatus.put(system, system.getStorageSystemStatus());
+        }
+    }
+
+    private void restoreStorageConfiguration() {
+        for (Map.Entry<StorageSystemGroup,String[]> entry
+                : storedActiveIDs.entrySet()) {
+            StorageSystemGroup group = entry.getKey();
+            group.setActiveStorageSystemIDs(entry.getValue());
+            group.setNextStorageSystemID(storedNextIDs.get(group));
+        }
+        for (Map.Entry<StorageSystem,StorageSystemStatus> entry
+                : storedStatus.entrySet())
+            entry.getKey().setStorageSystemStatus(entry.getValue());
     }
 
     @Override
@@ -204,6 +204,19 @@ public class ZipContainerProviderTest {
         assertArrayEquals(ENTRY, readFile(targetFilePath));
     }
 
+    @Test
+    public void testSeekEntryFromChannel() throws Exception {
+        Path zipPath = createFile(ZIP, NAME);
+        for (String entryName : ENTRY_NAMES) {
+            Path targetFilePath = dir.getPath().resolve(entryName);
+            try (InputStream in = provider.seekEntry(retrieveCtx, NAME,
+                    entryName, Files.newByteChannel(zipPath))) {
+                Files.copy(in, targetFilePath);
+            }
+            assertArrayEquals(ENTRY, readFile(targetFilePath));
+        }
+    }
+
     @Test
     public void testExtractEntries() throws Exception {
         final ArrayList<String> entryNames = new ArrayList<String>();
@@ -41,6 +41,8 @@ package org.dcm4chee.storage.zip;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.DigestInputStream;
@@ -59,10 +61,12 @@ import javax.inject.Named;
 
 import org.dcm4chee.storage.ContainerEntry;
 import org.dcm4chee.storage.ExtractTask;
+import org.dcm4chee.storage.MessageDigestPool;
 import org.dcm4chee.storage.ObjectNotFoundException;
 import org.dcm4chee.storage.RetrieveContext;
 import org.dcm4chee.storage.StorageContext;
 import org.dcm4chee.storage.ChecksumException;
+import org.dcm4chee.storage.ChecksumInputStream;
 import org.dcm4chee.storage.conf.Container;
 import org.dcm4chee.storage.spi.ContainerProvider;
 import org.slf4j.Logger;
@@ -124,19 +128,72 @@ public class ZipContainerProvider implements ContainerProvider {
             String entryName, InputStream in) throws IOException {
         ZipInputStream zip = new ZipInputStream(in);
         String checksumEntry = container.getChecksumEntry();
+        Map<String, byte[]> checksums = null;
         ZipEntry nextEntry;
         while ((nextEntry = zip.getNextEntry()) != null) {
             String nextEntryName = nextEntry.getName();
+            if (nextEntryName.equals(checksumEntry))
+                checksums = ContainerEntry.readChecksumsFrom(zip);
             if (nextEntry.isDirectory() || nextEntryName.equals(checksumEntry))
                 continue;
 
             if (nextEntryName.equals(entryName))
-                return zip;
+                return verify(ctx, name, entryName, zip, checksums);
         }
         throw new ObjectNotFoundException(ctx.getStorageSystem()
                 .getStorageSystemPath(), name, entryName);
     }
 
+    @Override
+    public InputStream seekEntry(RetrieveContext ctx, String name,
+            String entryName, SeekableByteChannel channel) throws IOException {
+        Map<String, Long> index = ZipEntryIndex.read(channel);
+        if (index != null) {
+            String checksumEntry = container.getChecksumEntry();
+            Long offset = index.get(entryName);
+            if (offset == null || entryName.equals(checksumEntry))
+                throw new ObjectNotFoundException(ctx.getStorageSystem()
+                        .getStorageSystemPath(), name, entryName);
+
+            Map<String, byte[]> checksums = null;
+            Long checksumOffset = checksumEntry != null
+                    ? index.get(checksumEntry)
+                    : null;
+            if (checksumOffset != null) {
+                channel.position(checksumOffset.longValue());
+                ZipInputStream zip = new ZipInputStream(
+                        Channels.newInputStream(channel));
+                if (zip.getNextEntry() != null)
+                    checksums = ContainerEntry.readChecksumsFrom(zip);
+            }
+            channel.position(offset.longValue());
+            ZipInputStream zip = new ZipInputStream(
+                    Channels.newInputStream(channel));
+            ZipEntry entry = zip.getNextEntry();
+            if (entry != null && entry.getName().equals(entryName))
+                return verify(ctx, name, entryName, zip, checksums);
+
+            LOG.warn("Central directory of {} does not match entry {}"
+                    + " - scan container", name, entryName);
+        }
+        channel.position(0L);
+        return seekEntry(ctx, name, entryName, Channels.newInputStream(channel));
+    }
+
+    @Override
+    public boolean hasEntryIndex() {
+        return true;
+    }
+
+    private InputStream verify(RetrieveContext ctx, String name,
+            String entryName, InputStream in, Map<String, byte[]> checksums)
+            throws IOException {
+        if (checksums == null && container.getChecksumEntry() != null)
+            LOG.warn("Misssing checksum entry in {}", name);
+        return ChecksumInputStream.verify(in, checksums, ctx.getStorageSystem()
+                .getStorageSystemGroup().getDigestAlgorithm(), entryName, name);
+    }
+
     @Override
     public void extractEntries(RetrieveContext ctx, String name,
             ExtractTask extractTask, InputStream in) throws IOException {
@@ -151,7 +208,7 @@ public class ZipContainerProvider implements ContainerProvider {
         if (checksumEntry != null) {
             if (checksumEntry.equals(entryName)) {
                 try {
-                    digest = MessageDigest.getInstance(ctx.getStorageSystem().getStorageSystemGroup()
+                    digest = MessageDigestPool.get(ctx.getStorageSystem().getStorageSystemGroup()
                             .getDigestAlgorithm());
                 } catch (NoSuchAlgorithmException e) {
                     throw new RuntimeException(e);
@@ -188,6 +245,8 @@ public class ZipContainerProvider implements ContainerProvider {
 
             extractTask.entryExtracted(entryName);
         }
+        if (digest != null)
+            MessageDigestPool.release(digest);
     }
 
     private ZipEntry skipDirectoryEntries(ZipInputStream zip)
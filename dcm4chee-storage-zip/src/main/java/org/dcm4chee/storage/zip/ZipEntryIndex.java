@@ -0,0 +1,146 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012-2015
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.storage.zip;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the offsets of the local file headers of all entries from the
+ * central directory at the end of a ZIP file. ZIP64 archives are not
+ * supported.
+ *
+ * @author agent <agent@local>
+ *
+ */
+class ZipEntryIndex {
+
+    private static final int ENDSIG = 0x06054b50;
+    private static final int CENSIG = 0x02014b50;
+    private static final int ENDHDR = 22;
+    private static final int CENHDR = 46;
+    private static final int MAX_COMMENT_LENGTH = 0xffff;
+    private static final int MAX_CEN_SIZE = 64 * 1024 * 1024;
+
+    private ZipEntryIndex() {
+    }
+
+    /**
+     * Returns the offsets of the local file headers by entry name or
+     * {@code null}, if no valid central directory was found.
+     */
+    static Map<String, Long> read(SeekableByteChannel channel)
+            throws IOException {
+        long size = channel.size();
+        if (size < ENDHDR)
+            return null;
+
+        int tailLength = (int) Math.min(size, ENDHDR + MAX_COMMENT_LENGTH);
+        long tailStart = size - tailLength;
+        ByteBuffer tail = readFully(channel, tailStart, tailLength);
+        int end = findEndOfCentralDirectory(tail);
+        if (end < 0)
+            return null;
+
+        int numEntries = tail.getShort(end + 10) & 0xffff;
+        long cenSize = tail.getInt(end + 12) & 0xffffffffL;
+        long cenOffset = tail.getInt(end + 16) & 0xffffffffL;
+        if (numEntries == 0xffff || cenSize > MAX_CEN_SIZE
+                || cenOffset + cenSize > tailStart + end)
+            return null;
+
+        ByteBuffer cen;
+        if (cenOffset >= tailStart) {
+            tail.limit((int) (cenOffset - tailStart + cenSize));
+            tail.position((int) (cenOffset - tailStart));
+            cen = tail.slice().order(ByteOrder.LITTLE_ENDIAN);
+        } else
+            cen = readFully(channel, cenOffset, (int) cenSize);
+
+        Map<String, Long> offsets = new HashMap<String, Long>(numEntries * 2);
+        int pos = 0;
+        for (int i = 0; i < numEntries; i++) {
+            if (pos + CENHDR > cen.limit() || cen.getInt(pos) != CENSIG)
+                return null;
+
+            int nameLength = cen.getShort(pos + 28) & 0xffff;
+            int extraLength = cen.getShort(pos + 30) & 0xffff;
+            int commentLength = cen.getShort(pos + 32) & 0xffff;
+            long offset = cen.getInt(pos + 42) & 0xffffffffL;
+            if (pos + CENHDR + nameLength > cen.limit())
+                return null;
+
+            byte[] b = new byte[nameLength];
+            cen.position(pos + CENHDR);
+            cen.get(b);
+            offsets.put(new String(b, StandardCharsets.UTF_8),
+                    Long.valueOf(offset));
+            pos += CENHDR + nameLength + extraLength + commentLength;
+        }
+        return offsets;
+    }
+
+    private static int findEndOfCentralDirectory(ByteBuffer tail) {
+        for (int i = tail.limit() - ENDHDR; i >= 0; i--) {
+            if (tail.getInt(i) == ENDSIG
+                    && i + ENDHDR + (tail.getShort(i + 20) & 0xffff)
+                        == tail.limit())
+                return i;
+        }
+        return -1;
+    }
+
+    private static ByteBuffer readFully(SeekableByteChannel channel,
+            long position, int length) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        channel.position(position);
+        while (bb.hasRemaining())
+            if (channel.read(bb) < 0)
+                throw new EOFException();
+        bb.flip();
+        return bb;
+    }
+}